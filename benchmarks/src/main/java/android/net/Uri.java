@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Plain JVM replacement for the parts of {@code Uri} that Volley uses. The framework class
+ * decodes through libcore's {@code java.nio.charset.Charsets}, which a desktop JVM refuses to
+ * load, so this delegates to {@link java.net.URI} instead.
+ */
+public class Uri {
+
+    private final String mUriString;
+    private final URI mUri;
+
+    private Uri(String uriString, URI uri) {
+        mUriString = uriString;
+        mUri = uri;
+    }
+
+    public static Uri parse(String uriString) {
+        URI uri;
+        try {
+            uri = new URI(uriString);
+        } catch (URISyntaxException e) {
+            uri = null;
+        }
+        return new Uri(uriString, uri);
+    }
+
+    public String getHost() {
+        return mUri != null ? mUri.getHost() : null;
+    }
+
+    public String getScheme() {
+        return mUri != null ? mUri.getScheme() : null;
+    }
+
+    public String getPath() {
+        return mUri != null ? mUri.getPath() : null;
+    }
+
+    @Override
+    public String toString() {
+        return mUriString;
+    }
+}
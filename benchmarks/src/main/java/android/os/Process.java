@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Plain JVM replacement for the framework's {@code Process}. Thread priorities are left to the
+ * JVM; the constants match the framework so that compiled Volley code sees the same values.
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_LOWEST = 19;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_FOREGROUND = -2;
+    public static final int THREAD_PRIORITY_DISPLAY = -4;
+    public static final int THREAD_PRIORITY_URGENT_DISPLAY = -8;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+    public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+    public static final int THREAD_PRIORITY_MORE_FAVORABLE = -1;
+    public static final int THREAD_PRIORITY_LESS_FAVORABLE = +1;
+
+    public static void setThreadPriority(int priority) {
+    }
+
+    public static void setThreadPriority(int tid, int priority) {
+    }
+
+    public static int getThreadPriority(int tid) {
+        return THREAD_PRIORITY_DEFAULT;
+    }
+
+    public static int myPid() {
+        return 1;
+    }
+
+    public static int myTid() {
+        return (int) Thread.currentThread().getId();
+    }
+
+    public static int myUid() {
+        return 10000;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Plain JVM replacement for the framework's hidden {@code SystemProperties}, which is read by
+ * {@code Build} during class initialization. Every property is unset, so callers get their
+ * defaults (and {@code Build.VERSION.SDK_INT} is 0).
+ */
+public class SystemProperties {
+
+    public static String get(String key) {
+        return "";
+    }
+
+    public static String get(String key, String def) {
+        return def;
+    }
+
+    public static int getInt(String key, int def) {
+        return def;
+    }
+
+    public static long getLong(String key, long def) {
+        return def;
+    }
+
+    public static boolean getBoolean(String key, boolean def) {
+        return def;
+    }
+
+    public static void set(String key, String val) {
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A request that signals a {@link Semaphore} once it has been delivered, so that a benchmark
+ * thread can wait for the round trip through a {@link com.android.volley.RequestQueue}.
+ */
+public class BenchmarkRequest extends Request<byte[]> {
+    private final Semaphore mDone;
+    private Priority mPriority = Priority.NORMAL;
+
+    public BenchmarkRequest(String url, Semaphore done) {
+        super(Method.GET, url, null);
+        mDone = done;
+    }
+
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(response.data, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    @Override
+    protected void deliverResponse(byte[] response) {
+        mDone.release();
+    }
+
+    @Override
+    public void deliverError(VolleyError error) {
+        mDone.release();
+    }
+}
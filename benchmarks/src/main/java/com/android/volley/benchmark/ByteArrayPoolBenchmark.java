@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.SizeClassByteArrayPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ByteArrayPool#getBuf}/{@link ByteArrayPool#returnBuf} pairs with a mix of buffer sizes,
+ * for both the list based pool and {@link SizeClassByteArrayPool}.
+ * Run with {@code -t 4} (or more) to measure contention between dispatcher threads, and with
+ * {@code -prof gc} to see how many buffers the pool fails to recycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteArrayPoolBenchmark {
+
+    /** Byte cap of the pool; 4096 is what BasicNetwork uses by default. */
+    @Param({"4096", "65536"})
+    public int sizeLimit;
+
+    /** {@link ByteArrayPool} or {@link SizeClassByteArrayPool}. */
+    @Param({"list", "sizeClass"})
+    public String pool;
+
+    private ByteArrayPool mPool;
+
+    @State(Scope.Thread)
+    public static class Sizes {
+        final int[] sizes = new int[1024];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // Mostly the 1024 byte copy buffer, with some larger content-length sized requests.
+            Random random = new Random(42);
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = random.nextInt(4) == 0 ? 256 + random.nextInt(8192) : 1024;
+            }
+        }
+
+        int next() {
+            return sizes[next++ & (sizes.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPool = "sizeClass".equals(pool)
+                ? new SizeClassByteArrayPool(sizeLimit) : new ByteArrayPool(sizeLimit);
+    }
+
+    @Benchmark
+    public byte[] getAndReturn(Sizes sizes) {
+        byte[] buf = mPool.getBuf(sizes.next());
+        mPool.returnBuf(buf);
+        return buf;
+    }
+
+    @Benchmark
+    public void getTwoAndReturn(Sizes sizes) {
+        // Two buffers outstanding at once, as in BasicNetwork.entityToBytes.
+        byte[] first = mPool.getBuf(sizes.next());
+        byte[] second = mPool.getBuf(sizes.next());
+        mPool.returnBuf(second);
+        mPool.returnBuf(first);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.Cache;
+import com.android.volley.toolbox.ConcurrentDiskBasedCache;
+import com.android.volley.toolbox.DiskBasedCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput of {@link DiskBasedCache} and {@link ConcurrentDiskBasedCache} with 4 reader
+ * threads and 0, 1, 2 or 4 threads concurrently writing large entries, as happens when the cache
+ * dispatcher serves hits while network dispatchers store responses.
+ *
+ * <p>Compare the {@code get} rows between groups: with a single lock they drop as writers are
+ * added, with lock striping they should stay roughly flat as long as there are spare cores. Also
+ * look at the {@code put} rows; with a single lock the readers starve the writers. On a machine
+ * with fewer cores than threads the numbers mostly reflect CPU sharing. Other writer counts can
+ * be tried with e.g. {@code -tg 4,8}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheContentionBenchmark {
+
+    /** Number of distinct keys that are read; writers use a disjoint set of the same size. */
+    private static final int KEYS = 1000;
+
+    @Param({"synchronized", "concurrent"})
+    public String cache;
+
+    @Param({"4096"})
+    public int readSize;
+
+    @Param({"262144"})
+    public int writeSize;
+
+    private File mRoot;
+    private Cache mCache;
+    private Cache.Entry mWriteEntry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = CacheFixtures.createTempDir("volley-contention");
+        if ("concurrent".equals(cache)) {
+            mCache = new ConcurrentDiskBasedCache(mRoot, Integer.MAX_VALUE);
+        } else {
+            mCache = new DiskBasedCache(mRoot, Integer.MAX_VALUE);
+        }
+        mCache.initialize();
+        Cache.Entry readEntry = CacheFixtures.makeEntry(readSize);
+        for (int i = 0; i < KEYS; i++) {
+            mCache.put(CacheFixtures.key(i), readEntry);
+        }
+        mWriteEntry = CacheFixtures.makeEntry(writeSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CacheFixtures.delete(mRoot);
+    }
+
+    private Cache.Entry read() {
+        return mCache.get(CacheFixtures.key(ThreadLocalRandom.current().nextInt(KEYS)));
+    }
+
+    private void write() {
+        mCache.put(CacheFixtures.key(KEYS + ThreadLocalRandom.current().nextInt(KEYS)),
+                mWriteEntry);
+    }
+
+    @Benchmark
+    @Group("writers0")
+    @GroupThreads(4)
+    public Cache.Entry readOnly() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("writers1")
+    @GroupThreads(4)
+    public Cache.Entry get1() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("writers1")
+    @GroupThreads(1)
+    public void put1() {
+        write();
+    }
+
+    @Benchmark
+    @Group("writers2")
+    @GroupThreads(4)
+    public Cache.Entry get2() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("writers2")
+    @GroupThreads(2)
+    public void put2() {
+        write();
+    }
+
+    @Benchmark
+    @Group("writers4")
+    @GroupThreads(4)
+    public Cache.Entry get4() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("writers4")
+    @GroupThreads(4)
+    public void put4() {
+        write();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.Cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Helpers shared by the cache benchmarks.
+ */
+public class CacheFixtures {
+
+    private CacheFixtures() {
+    }
+
+    /** Returns the cache key used for entry number {@code i}. */
+    public static String key(int i) {
+        return "0:http://bench.example.com/api/v1/items/" + i + "?fields=id,name,price";
+    }
+
+    /** Builds an unexpired entry with typical response headers and a body of the given size. */
+    public static Cache.Entry makeEntry(int bodySize) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            entry.data[i] = (byte) i;
+        }
+        entry.etag = "\"5f3a9c\"";
+        entry.serverDate = System.currentTimeMillis();
+        entry.lastModified = entry.serverDate - 60000;
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        headers.put("Cache-Control", "public, max-age=300");
+        headers.put("ETag", entry.etag);
+        entry.responseHeaders = headers;
+        return entry;
+    }
+
+    /** Creates a fresh, empty directory under java.io.tmpdir. */
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    /** Recursively deletes {@code file}. */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
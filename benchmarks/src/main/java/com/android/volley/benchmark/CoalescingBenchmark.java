@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.Cache;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.toolbox.TieredCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link RequestQueue#add} for bursts of requests with the same cache key, as when
+ * many views ask for the same resource at once. Each caller thread adds {@code duplicates}
+ * requests for a new URL, so all but the first wait on the one in flight, and then waits for all
+ * of them to be delivered. The score is in added requests per second.
+ *
+ * <p>With {@code cache=disk} the requests are served from a {@link DiskBasedCache}, so the
+ * numbers show whether waiting requests go back to disk for the response of the one they waited
+ * on; with {@code cache=memory} they mostly show the cost of the coalescing bookkeeping.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoalescingBenchmark {
+
+    /** Number of requests added for each URL. */
+    @Param({"1", "8", "64"})
+    public int duplicates;
+
+    @Param({"memory", "disk"})
+    public String cache;
+
+    @Param({"4"})
+    public int networkThreads;
+
+    @Param({"1024"})
+    public int bodySize;
+
+    private File mRoot;
+    private RequestQueue mQueue;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Semaphore done = new Semaphore(0);
+        final String prefix = "http://bench.example.com/" + Thread.currentThread().getId() + "/";
+        int sequence;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Cache backingCache;
+        if ("disk".equals(cache)) {
+            mRoot = CacheFixtures.createTempDir("coalescing");
+            backingCache = new DiskBasedCache(mRoot, 16 * 1024 * 1024);
+        } else {
+            backingCache = new TieredCache(new NoCache(), 16 * 1024 * 1024);
+        }
+        mQueue = new RequestQueue(backingCache,
+                new BasicNetwork(new InMemoryHttpStack(bodySize)), networkThreads,
+                new DirectDelivery());
+        mQueue.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mQueue.stop();
+        if (mRoot != null) {
+            CacheFixtures.delete(mRoot);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addDuplicate(Caller caller) throws InterruptedException {
+        int sequence = caller.sequence++;
+        mQueue.add(new BenchmarkRequest(caller.prefix + sequence / duplicates, caller.done));
+        if ((sequence + 1) % duplicates == 0) {
+            // Last request of the burst; wait for the whole burst to be delivered.
+            caller.done.acquire(duplicates);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.Cache;
+import com.android.volley.toolbox.DiskBasedCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DiskBasedCache#get}, {@link DiskBasedCache#put} and {@link DiskBasedCache#initialize}
+ * against a cache directory pre-populated with {@link #entries} entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskBasedCacheBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    @Param({"512"})
+    public int entrySize;
+
+    /** Whether the cache keeps a journal, making {@link #initialize()} read one file. */
+    @Param({"false", "true"})
+    public boolean journal;
+
+    private File mRoot;
+    private DiskBasedCache mCache;
+    private Cache.Entry mEntry;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mRoot = CacheFixtures.createTempDir("volley-disk-cache");
+        mEntry = CacheFixtures.makeEntry(entrySize);
+        mCache = newCache();
+        mCache.initialize();
+        for (int i = 0; i < entries; i++) {
+            mCache.put(CacheFixtures.key(i), mEntry);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CacheFixtures.delete(mRoot);
+    }
+
+    private DiskBasedCache newCache() {
+        // Large enough that nothing is ever pruned.
+        return new DiskBasedCache(mRoot, Integer.MAX_VALUE, journal);
+    }
+
+    @Benchmark
+    public Cache.Entry get() {
+        return mCache.get(CacheFixtures.key(ThreadLocalRandom.current().nextInt(entries)));
+    }
+
+    @Benchmark
+    public void put() {
+        mCache.put(CacheFixtures.key(ThreadLocalRandom.current().nextInt(entries)), mEntry);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public DiskBasedCache initialize() {
+        DiskBasedCache cache = newCache();
+        cache.initialize();
+        return cache;
+    }
+}
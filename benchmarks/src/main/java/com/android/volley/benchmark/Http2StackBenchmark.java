@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.Http2Stack;
+import com.android.volley.toolbox.HttpStack;
+import com.android.volley.toolbox.HurlStack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link BasicNetwork#performRequest} from 16 threads, like a busy network
+ * dispatcher pool, against a loopback server that answers after {@code latencyMs}. Compares
+ * {@link HurlStack}, which needs a connection per request in flight, with {@link Http2Stack},
+ * which multiplexes them over one connection. The number of connections the server accepted
+ * is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Http2StackBenchmark {
+
+    @Param({"hurl", "http2"})
+    public String stack;
+
+    /** Server think time per request. */
+    @Param({"0", "5"})
+    public long latencyMs;
+
+    @Param({"1024"})
+    public int bodySize;
+
+    private LocalServer mServer;
+    private HttpStack mStack;
+    private BasicNetwork mNetwork;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mServer = new LocalServer("http2".equals(stack), bodySize, latencyMs);
+        mServer.start();
+        mStack = "http2".equals(stack) ? new Http2Stack() : new HurlStack();
+        mNetwork = new BasicNetwork(mStack);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println("Connections accepted: " + mServer.getConnectionCount());
+        if (mStack instanceof Http2Stack) {
+            ((Http2Stack) mStack).shutdown();
+        }
+        mServer.shutdown();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public NetworkResponse performRequest() throws VolleyError {
+        return mNetwork.performRequest(new BenchmarkRequest(mServer.getUrl(), null));
+    }
+}
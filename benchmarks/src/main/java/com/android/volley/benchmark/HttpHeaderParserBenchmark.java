@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import org.apache.http.impl.cookie.DateUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpHeaderParser#parseCacheHeaders} on a typical set of response headers, with freshness
+ * given either by Cache-Control or by Date/Expires.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpHeaderParserBenchmark {
+
+    @Param({"true", "false"})
+    public boolean cacheControl;
+
+    private NetworkResponse mResponse;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        // Same map type as BasicNetwork.convertHeaders.
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headers.put("Date", DateUtils.formatDate(new Date(now)));
+        headers.put("Last-Modified", DateUtils.formatDate(new Date(now - 3600000)));
+        headers.put("ETag", "\"5f3a9c-1b2\"");
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        headers.put("Content-Length", "1024");
+        headers.put("Server", "nginx");
+        headers.put("Vary", "Accept-Encoding");
+        if (cacheControl) {
+            headers.put("Cache-Control", "public, max-age=300, stale-while-revalidate=60");
+        } else {
+            headers.put("Expires", DateUtils.formatDate(new Date(now + 300000)));
+        }
+        mResponse = new NetworkResponse(200, new byte[1024], headers, false);
+    }
+
+    @Benchmark
+    public Cache.Entry parseCacheHeaders() {
+        return HttpHeaderParser.parseCacheHeaders(mResponse);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.HttpStack;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.util.Map;
+
+/**
+ * An {@link HttpStack} that answers every request from memory with a fixed body, standing in
+ * for the network the same way the tests' MockHttpStack does.
+ */
+public class InMemoryHttpStack implements HttpStack {
+    private static final ProtocolVersion HTTP_1_1 = new ProtocolVersion("HTTP", 1, 1);
+
+    private final byte[] mBody;
+
+    /**
+     * @param bodySize size in bytes of the response body returned for every request
+     */
+    public InMemoryHttpStack(int bodySize) {
+        mBody = new byte[bodySize];
+        for (int i = 0; i < bodySize; i++) {
+            mBody[i] = (byte) ('a' + (i % 26));
+        }
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) {
+        BasicHttpResponse response = new BasicHttpResponse(HTTP_1_1, 200, "OK");
+        response.addHeader("Content-Type", "application/json; charset=utf-8");
+        response.addHeader("Cache-Control", "public, max-age=300");
+        response.addHeader("ETag", "\"bench\"");
+        response.setEntity(new ByteArrayEntity(mBody));
+        return response;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A loopback server that answers every request with a fixed body after a fixed delay, speaking
+ * either HTTP/1.1 with keep-alive or cleartext HTTP/2 (h2c) with prior knowledge. It counts the
+ * connections it accepts.
+ */
+public class LocalServer extends Thread {
+    private final ServerSocket mServerSocket;
+    private final boolean mHttp2;
+    private final byte[] mBody;
+    private final long mLatencyMs;
+    private final ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(4);
+    private final AtomicInteger mConnections = new AtomicInteger();
+
+    /**
+     * @param http2 Whether to speak h2c instead of HTTP/1.1
+     * @param bodySize Size of each response body
+     * @param latencyMs Time to wait before answering each request
+     */
+    public LocalServer(boolean http2, int bodySize, long latencyMs) throws IOException {
+        mServerSocket = new ServerSocket(0, 128);
+        mHttp2 = http2;
+        mBody = new byte[bodySize];
+        mLatencyMs = latencyMs;
+        setDaemon(true);
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    /** Returns the number of connections accepted so far. */
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+        mScheduler.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                mConnections.incrementAndGet();
+                Thread connection = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (mHttp2) {
+                                serveHttp2(socket);
+                            } else {
+                                serveHttp1(socket);
+                            }
+                        } catch (IOException e) {
+                            // Closed by the client.
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                // Ignored.
+                            }
+                        }
+                    }
+                };
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            // Shut down.
+        }
+    }
+
+    /** One request at a time per connection, as HTTP/1.1 clients send them. */
+    private void serveHttp1(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        OutputStream out = socket.getOutputStream();
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Length: " + mBody.length
+                + "\r\nConnection: keep-alive\r\n\r\n").getBytes("US-ASCII");
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.length() > 0) {
+                continue;
+            }
+            sleep();
+            out.write(head);
+            out.write(mBody);
+            out.flush();
+        }
+    }
+
+    /** Any number of concurrent streams per connection; headers are not decoded. */
+    private void serveHttp2(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        in.readFully(new byte[24]);
+        writeFrame(out, 0x4, 0, 0, new byte[0], 0);
+        while (true) {
+            int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            final int streamId = in.readInt() & 0x7fffffff;
+            in.readFully(new byte[length]);
+            if (type == 0x4 && (flags & 0x1) == 0) {
+                writeFrame(out, 0x4, 0x1, 0, new byte[0], 0);
+            } else if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0) {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // ":status: 200" from the static table.
+                            writeFrame(out, 0x1, 0x4, streamId, new byte[] { (byte) 0x88 }, 1);
+                            writeFrame(out, 0x0, 0x1, streamId, mBody, mBody.length);
+                        } catch (IOException e) {
+                            // Closed by the client.
+                        }
+                    }
+                }, mLatencyMs, TimeUnit.MILLISECONDS);
+            } else if (type == 0x7) {
+                return;
+            }
+        }
+    }
+
+    private void sleep() {
+        if (mLatencyMs > 0) {
+            try {
+                Thread.sleep(mLatencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId,
+            byte[] payload, int length) throws IOException {
+        synchronized (out) {
+            out.write(new byte[] {
+                    (byte) (length >>> 16), (byte) (length >>> 8), (byte) length,
+                    (byte) type, (byte) flags,
+                    (byte) (streamId >>> 24), (byte) (streamId >>> 16),
+                    (byte) (streamId >>> 8), (byte) streamId });
+            out.write(payload, 0, length);
+            out.flush();
+        }
+    }
+}
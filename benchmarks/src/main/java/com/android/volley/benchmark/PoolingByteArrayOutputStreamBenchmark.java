@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.PoolingByteArrayOutputStream;
+import com.android.volley.toolbox.SizeClassByteArrayPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a response body into a {@link PoolingByteArrayOutputStream} in 1 KiB chunks, the way
+ * BasicNetwork does, either growing from the default size (unknown content length) or presized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolingByteArrayOutputStreamBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int bodySize;
+
+    @Param({"4096"})
+    public int poolSize;
+
+    /** {@link ByteArrayPool} or {@link SizeClassByteArrayPool}. */
+    @Param({"list", "sizeClass"})
+    public String pool;
+
+    private ByteArrayPool mPool;
+    private byte[] mChunk;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mPool = "sizeClass".equals(pool)
+                ? new SizeClassByteArrayPool(poolSize) : new ByteArrayPool(poolSize);
+        mChunk = new byte[1024];
+    }
+
+    private byte[] copy(PoolingByteArrayOutputStream out) throws IOException {
+        try {
+            for (int written = 0; written < bodySize; written += mChunk.length) {
+                out.write(mChunk, 0, Math.min(mChunk.length, bodySize - written));
+            }
+            return out.toByteArray();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] growFromDefault() throws IOException {
+        return copy(new PoolingByteArrayOutputStream(mPool));
+    }
+
+    @Benchmark
+    public byte[] presized() throws IOException {
+        return copy(new PoolingByteArrayOutputStream(mPool, bodySize));
+    }
+}
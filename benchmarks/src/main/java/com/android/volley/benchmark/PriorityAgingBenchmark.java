@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.HostScheduler;
+import com.android.volley.Request;
+import com.android.volley.Request.Priority;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.NoCache;
+
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a feed under sustained load: a background thread keeps {@code backlog} NORMAL
+ * requests queued for {@code busyMs} at a time, more than the network dispatchers can run, and
+ * then lets the queue drain. Each request takes {@code latencyMs} on the "network". One caller
+ * thread of each priority measures its requests against that load.
+ *
+ * <p>The score is the time from {@link RequestQueue#add} to delivery, sampled per priority; look
+ * at the p0.99 and p0.999 rows of {@code mixed:low} and {@code mixed:normal}. Without aging
+ * ({@code agingIntervalMs=0}) LOW requests only run once the backlog drains, so their tail
+ * latency is close to {@code busyMs}. With aging they wait about one interval per level.</p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class PriorityAgingBenchmark {
+
+    /** Time a LOW or NORMAL request waits to gain a priority level, or 0 for no aging. */
+    @Param({"0", "50"})
+    public long agingIntervalMs;
+
+    @Param({"2"})
+    public int networkThreads;
+
+    @Param({"2"})
+    public int latencyMs;
+
+    /** Background NORMAL requests kept queued or in flight. */
+    @Param({"8"})
+    public int backlog;
+
+    /** How long the background load runs before letting the queue drain. */
+    @Param({"500"})
+    public int busyMs;
+
+    private RequestQueue mQueue;
+    private Thread mLoad;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Semaphore done = new Semaphore(0);
+        final String prefix = "http://bench.example.com/" + Thread.currentThread().getId() + "/";
+        int sequence;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        HostScheduler scheduler = new HostScheduler(Integer.MAX_VALUE);
+        scheduler.setAgingInterval(Priority.LOW, agingIntervalMs);
+        scheduler.setAgingInterval(Priority.NORMAL, agingIntervalMs);
+        InMemoryHttpStack stack = new InMemoryHttpStack(1024) {
+            @Override
+            public HttpResponse performRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) {
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.performRequest(request, additionalHeaders);
+            }
+        };
+        mQueue = new RequestQueue(new NoCache(), new BasicNetwork(stack), networkThreads,
+                new DirectDelivery(), scheduler);
+        mQueue.start();
+        mLoad = new Thread("background-load") {
+            @Override
+            public void run() {
+                Semaphore slots = new Semaphore(backlog);
+                int sequence = 0;
+                try {
+                    while (true) {
+                        long busyUntil = System.currentTimeMillis() + busyMs;
+                        while (System.currentTimeMillis() < busyUntil) {
+                            slots.acquire();
+                            BenchmarkRequest request = new BenchmarkRequest(
+                                    "http://bench.example.com/load/" + sequence++, slots);
+                            request.setShouldCache(false);
+                            mQueue.add(request);
+                        }
+                        // Let the backlog drain.
+                        slots.acquire(backlog);
+                        slots.release(backlog);
+                    }
+                } catch (InterruptedException e) {
+                    // Done.
+                }
+            }
+        };
+        mLoad.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mLoad.interrupt();
+        mLoad.join();
+        mQueue.stop();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void normal(Caller caller) throws InterruptedException {
+        roundTrip(caller, Priority.NORMAL);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void low(Caller caller) throws InterruptedException {
+        roundTrip(caller, Priority.LOW);
+    }
+
+    private void roundTrip(Caller caller, Priority priority) throws InterruptedException {
+        BenchmarkRequest request = new BenchmarkRequest(caller.prefix + caller.sequence++,
+                caller.done);
+        request.setPriority(priority);
+        request.setShouldCache(false);
+        mQueue.add(request);
+        caller.done.acquire();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.benchmark;
+
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.NoCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through {@link RequestQueue#add} and the queue's internal finish bookkeeping, with
+ * several caller threads contending for the queue's locks. The network is an
+ * {@link InMemoryHttpStack}, so the numbers are dominated by Volley's own overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestQueueBenchmark {
+
+    /** Whether requests go through the cache triage and waiting-request staging. */
+    @Param({"false", "true"})
+    public boolean shouldCache;
+
+    @Param({"4"})
+    public int networkThreads;
+
+    @Param({"1024"})
+    public int bodySize;
+
+    private RequestQueue mQueue;
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Semaphore done = new Semaphore(0);
+        final String prefix = "http://bench.example.com/" + Thread.currentThread().getId() + "/";
+        int sequence;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mQueue = new RequestQueue(new NoCache(), new BasicNetwork(new InMemoryHttpStack(bodySize)),
+                networkThreads, new DirectDelivery());
+        mQueue.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mQueue.stop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addAndFinish(Caller caller) throws InterruptedException {
+        // Distinct URLs so that no request is staged behind another one.
+        BenchmarkRequest request = new BenchmarkRequest(caller.prefix + caller.sequence++,
+                caller.done);
+        request.setShouldCache(shouldCache);
+        mQueue.add(request);
+        caller.done.acquire();
+    }
+}
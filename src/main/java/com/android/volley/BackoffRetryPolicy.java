@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.Random;
+
+/**
+ * A retry policy that waits before each retry, for a random time of up to a delay that doubles
+ * with each retry ("full jitter"), so that clients hit by the same outage don't all retry at
+ * once. The timeout grows as with {@link DefaultRetryPolicy}.
+ * <p>
+ * Nothing waits out the delay on a network dispatcher thread. Instead
+ * {@link com.android.volley.toolbox.BasicNetwork} throws a {@link RetryScheduledError}, and the
+ * {@link RequestQueue} holds the request until the delay has passed and then puts it back in
+ * the network queue, while the dispatcher takes other requests. Code calling a
+ * {@link Network} directly for requests with this policy needs to handle
+ * {@link RetryScheduledError} itself.
+ */
+public class BackoffRetryPolicy extends DefaultRetryPolicy {
+
+    /** The default number of retries. */
+    public static final int DEFAULT_BACKOFF_MAX_RETRIES = 3;
+
+    /** The default longest delay before the first retry, in milliseconds. */
+    public static final int DEFAULT_BASE_DELAY_MS = 100;
+
+    /** The default longest delay before any retry, in milliseconds. */
+    public static final int DEFAULT_MAX_DELAY_MS = 10000;
+
+    private static final Random sRandom = new Random();
+
+    private final int mBaseDelayMs;
+    private final int mMaxDelayMs;
+    private final Random mRandom;
+
+    /** The delay before the retry prepared by the last call to retry(). */
+    private long mRetryDelayMs;
+
+    /**
+     * Constructs a new retry policy using the default timeout, retries and delays.
+     */
+    public BackoffRetryPolicy() {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_BACKOFF_MAX_RETRIES, DEFAULT_BACKOFF_MULT,
+                DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Constructs a new retry policy.
+     * @param initialTimeoutMs The initial timeout for the policy.
+     * @param maxNumRetries The maximum number of retries.
+     * @param backoffMultiplier Backoff multiplier for the timeout.
+     * @param baseDelayMs The longest delay before the first retry; doubles with each retry.
+     * @param maxDelayMs The longest delay before any retry.
+     */
+    public BackoffRetryPolicy(int initialTimeoutMs, int maxNumRetries, float backoffMultiplier,
+            int baseDelayMs, int maxDelayMs) {
+        this(initialTimeoutMs, maxNumRetries, backoffMultiplier, baseDelayMs, maxDelayMs,
+                sRandom);
+    }
+
+    BackoffRetryPolicy(int initialTimeoutMs, int maxNumRetries, float backoffMultiplier,
+            int baseDelayMs, int maxDelayMs, Random random) {
+        super(initialTimeoutMs, maxNumRetries, backoffMultiplier);
+        if (baseDelayMs < 0 || maxDelayMs < 0) {
+            throw new IllegalArgumentException("Delays must not be negative");
+        }
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * Returns the delay to wait before the retry prepared by the last call to
+     * {@link #retry(VolleyError)}, in milliseconds.
+     */
+    public long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+
+    /**
+     * Prepares for the next retry by applying a backoff to the timeout and picking the delay to
+     * wait before it.
+     * @param error The error code of the last attempt.
+     */
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+        super.retry(error);
+        mRetryDelayMs = mRandom.nextInt(getMaxDelayMs(getCurrentRetryCount()) + 1);
+    }
+
+    /** Returns the longest delay before the given retry, counting from 1. */
+    int getMaxDelayMs(int retry) {
+        long delayMs = mBaseDelayMs;
+        for (int i = 1; i < retry && delayMs < mMaxDelayMs; i++) {
+            delayMs *= 2;
+        }
+        return (int) Math.min(delayMs, mMaxDelayMs);
+    }
+}
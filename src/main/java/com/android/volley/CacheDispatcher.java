@@ -97,78 +97,94 @@ public class CacheDispatcher extends Thread {
                 }
                 continue;
             }
-            try {
-                request.addMarker("cache-queue-take");
+            processRequest(request);
+        }
+    }
 
-                // If the request has been canceled, don't bother dispatching it.
-                if (request.isCanceled()) {
-                    request.finish("cache-discard-canceled");
-                    continue;
-                }
+    /**
+     * Resolves a request taken from the cache queue from the cache, or sends it on to the network
+     * queue.
+     */
+    void processRequest(final Request<?> request) {
+        try {
+            request.addMarker("cache-queue-take");
+
+            // If the request has been canceled, don't bother dispatching it.
+            if (request.isCanceled()) {
+                request.finish("cache-discard-canceled");
+                return;
+            }
 
-                // Attempt to retrieve this item from cache.
-                // 从缓存系统中获取request请求结果Cache.Entry.
-                Cache.Entry entry = mCache.get(request.getCacheKey());
-                if (entry == null) {
-                    request.addMarker("cache-miss");
-                    // Cache miss; send off to the network dispatcher.
-                    // 如果缓存系统中没有该缓存请求,则将request加入到网络请求队列中.
-                    // 由于NetworkQueue跟NetworkDispatcher线程关联,并且也是生产者-消费者队列,
-                    // 所以这里添加request请求就相当于将request执行网络请求.
-                    mNetworkQueue.put(request);
-                    continue;
-                }
+            // If the request's deadline has passed, nobody wants the response anymore.
+            if (request.isPastDeadline()) {
+                request.addMarker("cache-discard-deadline");
+                NetworkDispatcher.notifyDeadlineExceeded(request);
+                mDelivery.postError(request, new DeadlineExceededError());
+                return;
+            }
 
-                // If it is completely expired, just send it to the network.
-                // 判断缓存结果是否过期.
-                if (entry.isExpired()) {
-                    request.addMarker("cache-hit-expired");
-                    request.setCacheEntry(entry);
+            // Attempt to retrieve this item from cache.
+            // 从缓存系统中获取request请求结果Cache.Entry.
+            Cache.Entry entry = mCache.get(request.getCacheKey());
+            if (entry == null) {
+                request.addMarker("cache-miss");
+                // Cache miss; send off to the network dispatcher.
+                // 如果缓存系统中没有该缓存请求,则将request加入到网络请求队列中.
+                // 由于NetworkQueue跟NetworkDispatcher线程关联,并且也是生产者-消费者队列,
+                // 所以这里添加request请求就相当于将request执行网络请求.
+                mNetworkQueue.put(request);
+                return;
+            }
 
-                    // 过期的缓存需要重新执行request请求
-                    mNetworkQueue.put(request);
-                    continue;
-                }
+            // If it is completely expired, just send it to the network.
+            // 判断缓存结果是否过期.
+            if (entry.isExpired()) {
+                request.addMarker("cache-hit-expired");
+                request.setCacheEntry(entry);
 
-                // We have a cache hit; parse its data for delivery back to the request.
-                request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
-                request.addMarker("cache-hit-parsed");
-
-                // 判断Request请求结果是否新鲜?
-                if (!entry.refreshNeeded()) {
-                    // Completely unexpired cache hit. Just deliver the response.
-                    // 请求结果新鲜,则直接将请求结果分发,进行异步回调用户接口.
-                    mDelivery.postResponse(request, response);
-                } else {
-                    // Soft-expired cache hit. We can deliver the cached response,
-                    // but we need to also send the request to the network for
-                    // refreshing.
-                    // 请求结果不新鲜,但是同样还是将缓存结果返回给用户,并且同时执行网络请求,刷新Request网络结果缓存.
-                    request.addMarker("cache-hit-refresh-needed");
-                    request.setCacheEntry(entry);
-
-                    // Mark the response as intermediate.
-                    response.intermediate = true;
-
-                    // Post the intermediate response back to the user and have
-                    // the delivery then forward the request along to the network.
-                    final Request<?> finalRequest = request;
-                    mDelivery.postResponse(request, response, new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mNetworkQueue.put(finalRequest);
-                            } catch (InterruptedException e) {
-                                // Not much we can do about this.
-                            }
+                // 过期的缓存需要重新执行request请求
+                mNetworkQueue.put(request);
+                return;
+            }
+
+            // We have a cache hit; parse its data for delivery back to the request.
+            request.addMarker("cache-hit");
+            Response<?> response = request.parseNetworkResponse(
+                    new NetworkResponse(entry.data, entry.responseHeaders));
+            request.addMarker("cache-hit-parsed");
+
+            // 判断Request请求结果是否新鲜?
+            if (!entry.refreshNeeded()) {
+                // Completely unexpired cache hit. Just deliver the response.
+                // 请求结果新鲜,则直接将请求结果分发,进行异步回调用户接口.
+                NetworkDispatcher.notifyResponseParsed(request, response);
+                mDelivery.postResponse(request, response);
+            } else {
+                // Soft-expired cache hit. We can deliver the cached response,
+                // but we need to also send the request to the network for
+                // refreshing.
+                // 请求结果不新鲜,但是同样还是将缓存结果返回给用户,并且同时执行网络请求,刷新Request网络结果缓存.
+                request.addMarker("cache-hit-refresh-needed");
+                request.setCacheEntry(entry);
+
+                // Mark the response as intermediate.
+                response.intermediate = true;
+
+                // Post the intermediate response back to the user and have
+                // the delivery then forward the request along to the network.
+                mDelivery.postResponse(request, response, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mNetworkQueue.put(request);
+                        } catch (InterruptedException e) {
+                            // Not much we can do about this.
                         }
-                    });
-                }
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                    }
+                });
             }
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
         }
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Runs cache triage and network requests as tasks on an {@link Executor}, instead of on
+ * dispatcher threads of their own.
+ *
+ * <p>Requests still wait in priority queues. Each request added to a queue submits one task,
+ * which takes whichever request is first in the queue when it runs, so requests keep their
+ * priority order as long as the executor has fewer threads than there are requests. Tasks that
+ * run while the dispatcher is stopped leave the queues alone; {@link #start()} submits tasks for
+ * the requests left in them.</p>
+ */
+class ExecutorDispatcher {
+
+    /** The cache triage queue. */
+    final PriorityBlockingQueue<Request<?>> mCacheQueue;
+
+    /** The queue of requests going out to the network. */
+    final BlockingQueue<Request<?>> mNetworkQueue;
+
+    private final Executor mExecutor;
+    private final Cache mCache;
+    private final HostScheduler mHostScheduler;
+
+    /** Performs cache triage; never started as a thread. */
+    private final CacheDispatcher mCacheDispatcher;
+
+    /** Performs network requests; never started as a thread. */
+    private final NetworkDispatcher mNetworkDispatcher;
+
+    private final Runnable mCacheTask = new Runnable() {
+        @Override
+        public void run() {
+            Request<?> request = mRunning ? mCacheQueue.poll() : null;
+            if (request != null) {
+                initializeCache();
+                mCacheDispatcher.processRequest(request);
+            }
+        }
+    };
+
+    private final Runnable mNetworkTask = new Runnable() {
+        @Override
+        public void run() {
+            Request<?> request = mRunning ? mNetworkQueue.poll() : null;
+            if (request != null) {
+                mNetworkDispatcher.processRequest(request);
+            }
+        }
+    };
+
+    private volatile boolean mRunning;
+
+    private volatile boolean mCacheInitialized;
+
+    /**
+     * @param hostScheduler Queue to use to limit requests per host, or null for a plain
+     *     priority queue
+     */
+    ExecutorDispatcher(Executor executor, Network network, Cache cache,
+            ResponseDelivery delivery, HostScheduler hostScheduler) {
+        mExecutor = executor;
+        mCache = cache;
+        mHostScheduler = hostScheduler;
+        mCacheQueue = new PriorityBlockingQueue<Request<?>>() {
+            @Override
+            public boolean offer(Request<?> request) {
+                boolean added = super.offer(request);
+                submit(mCacheTask);
+                return added;
+            }
+        };
+        if (hostScheduler != null) {
+            hostScheduler.setOfferListener(new Runnable() {
+                @Override
+                public void run() {
+                    submit(mNetworkTask);
+                }
+            });
+            mNetworkQueue = hostScheduler;
+        } else {
+            mNetworkQueue = new PriorityBlockingQueue<Request<?>>() {
+                @Override
+                public boolean offer(Request<?> request) {
+                    boolean added = super.offer(request);
+                    submit(mNetworkTask);
+                    return added;
+                }
+            };
+        }
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, cache, delivery);
+        mNetworkDispatcher = new NetworkDispatcher(mNetworkQueue, network, cache, delivery);
+    }
+
+    /** Starts running tasks, including for requests queued while stopped. */
+    void start() {
+        mRunning = true;
+        for (int i = mCacheQueue.size(); i > 0; i--) {
+            submit(mCacheTask);
+        }
+        for (int i = mNetworkQueue.size(); i > 0; i--) {
+            submit(mNetworkTask);
+        }
+    }
+
+    /** Stops taking requests from the queues. Requests already running are completed. */
+    void stop() {
+        mRunning = false;
+    }
+
+    /**
+     * Called when a request has finished. With a {@link HostScheduler}, this may let a request
+     * waiting for its host to run.
+     */
+    void onRequestFinished() {
+        if (mHostScheduler != null && !mHostScheduler.isEmpty()) {
+            submit(mNetworkTask);
+        }
+    }
+
+    private void submit(Runnable task) {
+        if (mRunning) {
+            mExecutor.execute(task);
+        }
+    }
+
+    /** Makes a blocking call to initialize the cache before the first request uses it. */
+    private void initializeCache() {
+        if (mCacheInitialized) {
+            return;
+        }
+        synchronized (mCacheTask) {
+            if (!mCacheInitialized) {
+                mCache.initialize();
+                mCacheInitialized = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,914 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A network queue that limits the number of requests in flight to each host and takes turns
+ * between hosts.
+ * <p>
+ * Requests are taken in priority order, as from a
+ * {@link java.util.concurrent.PriorityBlockingQueue}. Within a priority, hosts are served
+ * round-robin, so a host with a long backlog doesn't hold up the others, and requests for one
+ * host keep the order they were added in. A host that already has {@code maxRequestsPerHost}
+ * requests in flight is skipped until one of them finishes, which lets requests for other hosts,
+ * even at a lower priority, use the free dispatchers.
+ * <p>
+ * A request is in flight from when it's taken from the queue until {@link RequestQueue} sees it
+ * finish. The queued and in-flight counts and the average time spent waiting in the queue are
+ * kept for each host, for tuning the limit.
+ * <p>
+ * So that a steady stream of requests can't starve those of a lower priority, requests can be
+ * aged with {@link #setAgingInterval}: a request then counts as one priority higher for every
+ * interval it has waited, up to {@link Request.Priority#HIGH}. Between requests at the same
+ * effective priority, the one that has waited longest goes first. To age requests without
+ * limiting requests per host, use a limit of {@link Integer#MAX_VALUE}.
+ * <p>
+ * Requests can also be rate limited, per host with {@link #setHostRateLimit} and per priority
+ * with {@link #setPriorityRateLimit}, so that a burst of prefetches can't use up the bandwidth
+ * interactive requests need. Each limit is a token bucket holding up to one second's worth of
+ * requests and bytes. A request whose host or priority is out of tokens stays in the queue, like
+ * one whose host is at its limit, and dispatchers take other requests meanwhile. Bytes are only
+ * known once a request has been made, so they are charged afterwards through
+ * {@link #onBytesTransferred}, which {@link RequestQueue} calls for each response; a large
+ * response then holds back later requests until the bucket has refilled.
+ */
+public class HostScheduler extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /** A queued request. */
+    private static class Entry {
+        final Request<?> request;
+        final Host host;
+        final long enqueuedMs;
+        boolean throttled;
+
+        Entry(Request<?> request, Host host, long enqueuedMs) {
+            this.request = request;
+            this.host = host;
+            this.enqueuedMs = enqueuedMs;
+        }
+    }
+
+    /** State kept for each host. */
+    private static class Host {
+        final String name;
+        int queued;
+        int inFlight;
+        long taken;
+        long totalWaitMs;
+        long throttled;
+        /** Rate limit for this host, or null if it isn't limited. */
+        TokenBucket bucket;
+
+        Host(String name) {
+            this.name = name;
+        }
+    }
+
+    /** A rate limit on requests and bytes, allowing bursts of up to one second's worth. */
+    private static class TokenBucket {
+        final double requestsPerSecond;
+        final long bytesPerSecond;
+        double requestTokens;
+        double byteTokens;
+        long lastRefillMs;
+
+        TokenBucket(double requestsPerSecond, long bytesPerSecond, long nowMs) {
+            this.requestsPerSecond = requestsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            requestTokens = getMaxRequestTokens();
+            byteTokens = bytesPerSecond;
+            lastRefillMs = nowMs;
+        }
+
+        private double getMaxRequestTokens() {
+            return Math.max(1, requestsPerSecond);
+        }
+
+        private void refill(long nowMs) {
+            long elapsedMs = nowMs - lastRefillMs;
+            if (elapsedMs <= 0) {
+                return;
+            }
+            lastRefillMs = nowMs;
+            requestTokens = Math.min(requestTokens + requestsPerSecond * elapsedMs / 1000,
+                    getMaxRequestTokens());
+            byteTokens = Math.min(byteTokens + (double) bytesPerSecond * elapsedMs / 1000,
+                    bytesPerSecond);
+        }
+
+        /** Returns how long until a request may be made, or 0 if it may be made now. */
+        long getWaitMs(long nowMs) {
+            refill(nowMs);
+            double waitMs = 0;
+            if (requestsPerSecond > 0 && requestTokens < 1) {
+                waitMs = (1 - requestTokens) * 1000 / requestsPerSecond;
+            }
+            if (bytesPerSecond > 0 && byteTokens <= 0) {
+                waitMs = Math.max(waitMs, (1 - byteTokens) * 1000 / bytesPerSecond);
+            }
+            return (long) Math.ceil(waitMs);
+        }
+
+        /** Takes a token for a request. */
+        void take(long nowMs) {
+            refill(nowMs);
+            if (requestsPerSecond > 0) {
+                requestTokens -= 1;
+            }
+        }
+
+        /** Charges bytes sent or received, which may leave the bucket in debt. */
+        void charge(long bytes, long nowMs) {
+            refill(nowMs);
+            if (bytesPerSecond > 0) {
+                byteTokens -= bytes;
+            }
+        }
+    }
+
+    private static final Request.Priority[] PRIORITIES = Request.Priority.values();
+
+    private final int mMaxRequestsPerHost;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signaled when a request may have become available to take. */
+    private final Condition mAvailable = mLock.newCondition();
+
+    // All of the following are guarded by mLock.
+
+    /**
+     * Queued requests for each priority, by host. The first host in iteration order is the next
+     * to be served; a host moves to the end when it's served.
+     */
+    private final List<LinkedHashMap<Host, LinkedList<Entry>>> mQueues =
+            new ArrayList<LinkedHashMap<Host, LinkedList<Entry>>>(PRIORITIES.length);
+
+    /** All hosts seen, by name. */
+    private final Map<String, Host> mHosts = new HashMap<String, Host>();
+
+    /** Requests taken and not yet finished, with the host they were counted against. */
+    private final Map<Request<?>, Host> mInFlight = new HashMap<Request<?>, Host>();
+
+    private int mSize;
+
+    /**
+     * Time a request of each priority waits to gain a level, by priority ordinal, or 0 to not
+     * age requests of that priority.
+     */
+    private final long[] mAgingIntervalMs = new long[PRIORITIES.length];
+
+    /** Whether any priority is aged. */
+    private boolean mAging;
+
+    /** Rate limit for hosts without a limit of their own, as {requests/s, bytes/s}, or null. */
+    private double[] mDefaultHostRate;
+
+    /** Rate limits set for individual hosts, as {requests/s, bytes/s}. */
+    private final Map<String, double[]> mHostRates = new HashMap<String, double[]>();
+
+    /** Rate limit for each priority, by priority ordinal, or null if it isn't limited. */
+    private final TokenBucket[] mPriorityBuckets = new TokenBucket[PRIORITIES.length];
+
+    /** Whether any rate limit counts bytes. */
+    private boolean mLimitingBytes;
+
+    /** Requests that have been held back by a rate limit. */
+    private long mThrottledCount;
+
+    /**
+     * Time until the next throttled request may run, as found by the last dequeue, or -1 if no
+     * request was throttled.
+     */
+    private long mThrottleWaitMs = -1;
+
+    /** Runs the offer listener when throttled requests may run, or null until first needed. */
+    private Timer mWakeUpTimer;
+
+    /** Whether a run of the offer listener is scheduled on mWakeUpTimer. */
+    private boolean mWakeUpScheduled;
+
+    /** Called after each request is added, outside the lock. */
+    private volatile Runnable mOfferListener;
+
+    /**
+     * @param maxRequestsPerHost The most requests to have in flight to one host
+     */
+    public HostScheduler(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be at least 1");
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            mQueues.add(new LinkedHashMap<Host, LinkedList<Entry>>());
+        }
+    }
+
+    /**
+     * Sets how long a request of the given priority waits in the queue before it is taken as if
+     * it had the next higher priority. Requests don't age past {@link Request.Priority#HIGH}.
+     *
+     * @param priority The priority to age
+     * @param intervalMs Time to wait for each level gained, or 0 to not age requests with this
+     *     priority
+     * @return This scheduler, to allow for chaining.
+     */
+    public HostScheduler setAgingInterval(Request.Priority priority, long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("intervalMs must not be negative");
+        }
+        mLock.lock();
+        try {
+            mAgingIntervalMs[priority.ordinal()] = intervalMs;
+            mAging = false;
+            for (long interval : mAgingIntervalMs) {
+                mAging |= interval > 0;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /** Returns the aging interval for a priority, or 0 if it isn't aged. */
+    public long getAgingInterval(Request.Priority priority) {
+        mLock.lock();
+        try {
+            return mAgingIntervalMs[priority.ordinal()];
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Limits the rate of requests to each host that doesn't have a limit of its own. Each host
+     * is limited separately.
+     *
+     * @param requestsPerSecond Most requests to start per second, or 0 for no limit
+     * @param bytesPerSecond Most bytes to send and receive per second, or 0 for no limit
+     * @return This scheduler, to allow for chaining.
+     */
+    public HostScheduler setHostRateLimit(double requestsPerSecond, long bytesPerSecond) {
+        checkRate(requestsPerSecond, bytesPerSecond);
+        mLock.lock();
+        try {
+            mDefaultHostRate = toRate(requestsPerSecond, bytesPerSecond);
+            for (Host host : mHosts.values()) {
+                if (!mHostRates.containsKey(host.name)) {
+                    host.bucket = newBucket(mDefaultHostRate);
+                }
+            }
+            onRateLimitsChanged();
+        } finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Limits the rate of requests to one host, overriding the limit set for all hosts.
+     *
+     * @param host The host name, as in the request URL
+     * @param requestsPerSecond Most requests to start per second, or 0 for no limit
+     * @param bytesPerSecond Most bytes to send and receive per second, or 0 for no limit
+     * @return This scheduler, to allow for chaining.
+     */
+    public HostScheduler setHostRateLimit(String host, double requestsPerSecond,
+            long bytesPerSecond) {
+        checkRate(requestsPerSecond, bytesPerSecond);
+        mLock.lock();
+        try {
+            double[] rate = new double[] { requestsPerSecond, bytesPerSecond };
+            mHostRates.put(host, rate);
+            Host state = mHosts.get(host);
+            if (state != null) {
+                state.bucket = newBucket(rate);
+            }
+            onRateLimitsChanged();
+        } finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Limits the rate of requests with the given priority, across all hosts. Aged requests count
+     * against the limit of the priority they were added with.
+     *
+     * @param priority The priority to limit
+     * @param requestsPerSecond Most requests to start per second, or 0 for no limit
+     * @param bytesPerSecond Most bytes to send and receive per second, or 0 for no limit
+     * @return This scheduler, to allow for chaining.
+     */
+    public HostScheduler setPriorityRateLimit(Request.Priority priority,
+            double requestsPerSecond, long bytesPerSecond) {
+        checkRate(requestsPerSecond, bytesPerSecond);
+        mLock.lock();
+        try {
+            mPriorityBuckets[priority.ordinal()] =
+                    newBucket(toRate(requestsPerSecond, bytesPerSecond));
+            onRateLimitsChanged();
+        } finally {
+            mLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Called with the bytes sent and received for a request taken from this queue, to charge
+     * them to its host's and priority's rate limits.
+     */
+    public void onBytesTransferred(Request<?> request, long bytes) {
+        mLock.lock();
+        try {
+            long nowMs = elapsedRealtime();
+            Host host = mInFlight.get(request);
+            if (host == null) {
+                host = mHosts.get(getHost(request));
+            }
+            if (host != null && host.bucket != null) {
+                host.bucket.charge(bytes, nowMs);
+            }
+            TokenBucket priorityBucket = mPriorityBuckets[request.getPriority().ordinal()];
+            if (priorityBucket != null) {
+                priorityBucket.charge(bytes, nowMs);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests that have been held back by a rate limit. */
+    public long getThrottledCount() {
+        mLock.lock();
+        try {
+            return mThrottledCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests for a host that have been held back by a rate limit. */
+    public long getThrottledCount(String host) {
+        mLock.lock();
+        try {
+            Host state = mHosts.get(host);
+            return state != null ? state.throttled : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns whether any rate limit counts bytes, so they need to be reported. */
+    boolean isLimitingBytes() {
+        mLock.lock();
+        try {
+            return mLimitingBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the most requests allowed in flight to one host. */
+    public int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Called when a request has finished, freeing its host's slot. Has no effect if the request
+     * wasn't taken from this queue.
+     */
+    public void onRequestFinished(Request<?> request) {
+        mLock.lock();
+        try {
+            Host host = mInFlight.remove(request);
+            if (host != null) {
+                host.inFlight--;
+                mAvailable.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the hosts that have had requests queued. */
+    public Set<String> getHosts() {
+        mLock.lock();
+        try {
+            return new HashSet<String>(mHosts.keySet());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests waiting in the queue for a host. */
+    public int getQueuedCount(String host) {
+        mLock.lock();
+        try {
+            Host state = mHosts.get(host);
+            return state != null ? state.queued : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the number of requests in flight to a host. */
+    public int getInFlightCount(String host) {
+        mLock.lock();
+        try {
+            Host state = mHosts.get(host);
+            return state != null ? state.inFlight : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns the average time requests for a host have waited in the queue, in milliseconds. */
+    public long getAverageWaitMs(String host) {
+        mLock.lock();
+        try {
+            Host state = mHosts.get(host);
+            return state != null && state.taken > 0 ? state.totalWaitMs / state.taken : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued requests whose host is below its limit and not held back by
+     * its rate limit.
+     */
+    public int getRunnableCount() {
+        mLock.lock();
+        try {
+            long nowMs = elapsedRealtime();
+            int count = 0;
+            for (Host host : mHosts.values()) {
+                if (host.bucket != null && host.queued > 0 && host.bucket.getWaitMs(nowMs) > 0) {
+                    continue;
+                }
+                count += Math.min(host.queued, Math.max(0, mMaxRequestsPerHost - host.inFlight));
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Sets a callback to run after each request is added. */
+    void setOfferListener(Runnable listener) {
+        mOfferListener = listener;
+    }
+
+    /** Returns the clock used to measure time spent in the queue; can be replaced in tests. */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /** Returns the host used to schedule a request. */
+    static String getHost(Request<?> request) {
+        String url = request.getUrl();
+        String host = url != null ? Uri.parse(url).getHost() : null;
+        return host != null ? host : "";
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        String name = getHost(request);
+        mLock.lock();
+        try {
+            Host host = mHosts.get(name);
+            if (host == null) {
+                host = new Host(name);
+                double[] rate = mHostRates.get(name);
+                host.bucket = newBucket(rate != null ? rate : mDefaultHostRate);
+                mHosts.put(name, host);
+            }
+            LinkedHashMap<Host, LinkedList<Entry>> queue =
+                    mQueues.get(PRIORITIES.length - 1 - request.getPriority().ordinal());
+            LinkedList<Entry> entries = queue.get(host);
+            if (entries == null) {
+                entries = new LinkedList<Entry>();
+                queue.put(host, entries);
+            }
+            entries.add(new Entry(request, host, elapsedRealtime()));
+            host.queued++;
+            mSize++;
+            mAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
+        Runnable listener = mOfferListener;
+        if (listener != null) {
+            listener.run();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            Request<?> request = dequeue(true);
+            if (request == null && mThrottleWaitMs >= 0) {
+                // Nobody is waiting on the queue; let the listener know when to come back.
+                scheduleWakeUp(mThrottleWaitMs);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue(true)) == null) {
+                if (mThrottleWaitMs >= 0) {
+                    mAvailable.await(mThrottleWaitMs, TimeUnit.MILLISECONDS);
+                } else {
+                    mAvailable.await();
+                }
+            }
+            signalIfAvailable();
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue(true)) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                long waitNanos = mThrottleWaitMs >= 0
+                        ? Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(mThrottleWaitMs))
+                        : nanos;
+                nanos -= waitNanos - mAvailable.awaitNanos(waitNanos);
+            }
+            signalIfAvailable();
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            return dequeue(false);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            for (LinkedHashMap<Host, LinkedList<Entry>> queue : mQueues) {
+                Iterator<Map.Entry<Host, LinkedList<Entry>>> hosts = queue.entrySet().iterator();
+                while (hosts.hasNext()) {
+                    LinkedList<Entry> entries = hosts.next().getValue();
+                    Iterator<Entry> it = entries.iterator();
+                    while (it.hasNext()) {
+                        Entry entry = it.next();
+                        if (entry.request == o) {
+                            it.remove();
+                            entry.host.queued--;
+                            mSize--;
+                            if (entries.isEmpty()) {
+                                hosts.remove();
+                            }
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        mLock.lock();
+        try {
+            for (LinkedHashMap<Host, LinkedList<Entry>> queue : mQueues) {
+                queue.clear();
+            }
+            for (Host host : mHosts.values()) {
+                host.queued = 0;
+            }
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        mLock.lock();
+        try {
+            List<Request<?>> snapshot = new ArrayList<Request<?>>(mSize);
+            for (LinkedHashMap<Host, LinkedList<Entry>> queue : mQueues) {
+                for (LinkedList<Entry> entries : queue.values()) {
+                    for (Entry entry : entries) {
+                        snapshot.add(entry.request);
+                    }
+                }
+            }
+            final Iterator<Request<?>> it = snapshot.iterator();
+            return new Iterator<Request<?>>() {
+                private Request<?> mLast;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Request<?> next() {
+                    mLast = it.next();
+                    return mLast;
+                }
+
+                @Override
+                public void remove() {
+                    HostScheduler.this.remove(mLast);
+                }
+            };
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        mLock.lock();
+        try {
+            int count = 0;
+            Request<?> request;
+            while (count < maxElements && (request = dequeue(true)) != null) {
+                c.add(request);
+                count++;
+            }
+            return count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Finds the next request to run: the highest effective priority first, and within a priority
+     * the first host in turn that is below its limit. Must hold the lock.
+     *
+     * Requests held back by a rate limit are skipped, and {@code mThrottleWaitMs} is set to the
+     * time until the first of them may run.
+     *
+     * @param remove whether to remove the request and count it as in flight
+     * @return the request, or null if every queued request's host is at its limit or throttled
+     */
+    private Request<?> dequeue(boolean remove) {
+        mThrottleWaitMs = -1;
+        if (mSize == 0) {
+            return null;
+        }
+        long nowMs = elapsedRealtime();
+        LinkedHashMap<Host, LinkedList<Entry>> bestQueue = null;
+        Host bestHost = null;
+        Entry best = null;
+        int bestLevel = -1;
+        for (int i = 0; i < mQueues.size(); i++) {
+            LinkedHashMap<Host, LinkedList<Entry>> queue = mQueues.get(i);
+            TokenBucket priorityBucket = mPriorityBuckets[PRIORITIES.length - 1 - i];
+            long priorityWaitMs = priorityBucket != null && !queue.isEmpty()
+                    ? priorityBucket.getWaitMs(nowMs) : 0;
+            for (Map.Entry<Host, LinkedList<Entry>> hostEntries : queue.entrySet()) {
+                Host host = hostEntries.getKey();
+                if (host.inFlight >= mMaxRequestsPerHost) {
+                    continue;
+                }
+                Entry entry = hostEntries.getValue().getFirst();
+                long waitMs = host.bucket != null ? host.bucket.getWaitMs(nowMs) : 0;
+                waitMs = Math.max(waitMs, priorityWaitMs);
+                if (waitMs > 0) {
+                    onThrottled(entry, waitMs, remove);
+                    continue;
+                }
+                int level = getLevel(PRIORITIES.length - 1 - i, entry.enqueuedMs, nowMs);
+                if (level > bestLevel
+                        || (level == bestLevel && entry.enqueuedMs < best.enqueuedMs)) {
+                    bestQueue = queue;
+                    bestHost = host;
+                    best = entry;
+                    bestLevel = level;
+                }
+                break;
+            }
+            if (best != null && !mAging) {
+                // Without aging, the first priority with a runnable host wins.
+                break;
+            }
+        }
+        if (best == null || !remove) {
+            return best != null ? best.request : null;
+        }
+        LinkedList<Entry> entries = bestQueue.remove(bestHost);
+        entries.removeFirst();
+        // Move the host to the back of the line for this priority.
+        if (!entries.isEmpty()) {
+            bestQueue.put(bestHost, entries);
+        }
+        if (bestHost.bucket != null) {
+            bestHost.bucket.take(nowMs);
+        }
+        TokenBucket priorityBucket = mPriorityBuckets[best.request.getPriority().ordinal()];
+        if (priorityBucket != null) {
+            priorityBucket.take(nowMs);
+        }
+        bestHost.queued--;
+        bestHost.inFlight++;
+        bestHost.taken++;
+        bestHost.totalWaitMs += nowMs - best.enqueuedMs;
+        mInFlight.put(best.request, bestHost);
+        mSize--;
+        return best.request;
+    }
+
+    /**
+     * Returns the effective priority level of a request with the given priority ordinal that
+     * was queued at {@code enqueuedMs}. Must hold the lock.
+     */
+    private int getLevel(int ordinal, long enqueuedMs, long nowMs) {
+        long intervalMs = mAgingIntervalMs[ordinal];
+        int maxAgedLevel = Request.Priority.HIGH.ordinal();
+        if (intervalMs <= 0 || ordinal >= maxAgedLevel) {
+            return ordinal;
+        }
+        long levels = (nowMs - enqueuedMs) / intervalMs;
+        return (int) Math.min(ordinal + levels, maxAgedLevel);
+    }
+
+    /**
+     * Notes that a request was held back by a rate limit for {@code waitMs}, counting it the first
+     * time if it's being dequeued. Must hold the lock.
+     */
+    private void onThrottled(Entry entry, long waitMs, boolean remove) {
+        if (remove && !entry.throttled) {
+            entry.throttled = true;
+            entry.host.throttled++;
+            mThrottledCount++;
+        }
+        if (mThrottleWaitMs < 0 || waitMs < mThrottleWaitMs) {
+            mThrottleWaitMs = waitMs;
+        }
+    }
+
+    /**
+     * Runs the offer listener after {@code delayMs}, if it isn't already due to. Must hold the
+     * lock.
+     */
+    private void scheduleWakeUp(long delayMs) {
+        if (mOfferListener == null || mWakeUpScheduled) {
+            return;
+        }
+        if (mWakeUpTimer == null) {
+            mWakeUpTimer = new Timer("Volley-HostScheduler", true);
+        }
+        mWakeUpScheduled = true;
+        mWakeUpTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                mLock.lock();
+                try {
+                    mWakeUpScheduled = false;
+                } finally {
+                    mLock.unlock();
+                }
+                Runnable listener = mOfferListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        }, delayMs);
+    }
+
+    /** Wakes waiting dispatchers after rate limits change. Must hold the lock. */
+    private void onRateLimitsChanged() {
+        mLimitingBytes = mDefaultHostRate != null && mDefaultHostRate[1] > 0;
+        for (double[] rate : mHostRates.values()) {
+            mLimitingBytes |= rate[1] > 0;
+        }
+        for (TokenBucket bucket : mPriorityBuckets) {
+            mLimitingBytes |= bucket != null && bucket.bytesPerSecond > 0;
+        }
+        mAvailable.signalAll();
+    }
+
+    /** Returns a bucket for a rate, or null if the rate is null. Must hold the lock. */
+    private TokenBucket newBucket(double[] rate) {
+        return rate != null ? new TokenBucket(rate[0], (long) rate[1], elapsedRealtime()) : null;
+    }
+
+    /** Returns a rate as {requests/s, bytes/s}, or null if neither is limited. */
+    private static double[] toRate(double requestsPerSecond, long bytesPerSecond) {
+        return requestsPerSecond > 0 || bytesPerSecond > 0
+                ? new double[] { requestsPerSecond, bytesPerSecond } : null;
+    }
+
+    private static void checkRate(double requestsPerSecond, long bytesPerSecond) {
+        if (requestsPerSecond < 0 || bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limits must not be negative");
+        }
+    }
+
+    /** Passes the signal on if more requests can be taken. Must hold the lock. */
+    private void signalIfAvailable() {
+        if (mSize > 0) {
+            mAvailable.signal();
+        }
+    }
+}
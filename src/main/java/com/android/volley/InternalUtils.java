@@ -39,5 +39,15 @@ class InternalUtils {
         return hash;
     }
 
+    static String sha1Hash(byte[] bytes) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(bytes, 0, bytes.length);
+            return convertToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
 
 }
@@ -88,7 +88,6 @@ public class NetworkDispatcher extends Thread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         Request<?> request;
         while (true) {
-            long startTimeMs = SystemClock.elapsedRealtime();
             // release previous request object to avoid leaking request object when mQueue is drained.
             request = null;
             try {
@@ -102,58 +101,139 @@ public class NetworkDispatcher extends Thread {
                 continue;
             }
 
-            try {
-                request.addMarker("network-queue-take");
+            processRequest(request);
+        }
+    }
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
-                }
+    /** Returns true once {@link #quit()} has been called. */
+    boolean isQuitting() {
+        return mQuit;
+    }
 
-                addTrafficStatsTag(request);
+    /**
+     * Performs a request taken from the queue and delivers its response or error.
+     */
+    void processRequest(Request<?> request) {
+        long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            request.addMarker("network-queue-take");
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                return;
+            }
 
-                // Perform the network request
-                //  // 在当前线程中解析网络结果.
-                // 不同的Request实现的parseNetworkResponse是不同的(例如StringRequest和JsonRequest)..
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
-                request.addMarker("network-http-complete");
+            if (request.isPastDeadline()) {
+                request.addMarker("network-discard-deadline");
+                notifyDeadlineExceeded(request);
+                mDelivery.postError(request, new DeadlineExceededError());
+                return;
+            }
 
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
+            addTrafficStatsTag(request);
+
+            // Perform the network request
+            //  // 在当前线程中解析网络结果.
+            // 不同的Request实现的parseNetworkResponse是不同的(例如StringRequest和JsonRequest)..
+            NetworkResponse networkResponse = mNetwork.performRequest(request);
+            request.addMarker("network-http-complete");
+            notifyNetworkResponse(request, networkResponse);
+            notifySingleFlightResponse(request, networkResponse);
+
+            // If the server returned 304 AND we delivered a response already,
+            // we're done -- don't deliver a second identical response.
+            if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                request.finish("not-modified");
+                return;
+            }
 
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
+            // Parse the response here on the worker thread.
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
 
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
+            // Write to cache if applicable.
+            // TODO: Only update cache metadata instead of entire record for 304s.
+            if (request.shouldCache() && response.cacheEntry != null) {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
+            }
 
-                // Post the response back.
-                // 将网络请求结果进行传递.
-                // ResponseDelivery调用顺序如下:
-                // ResponseDelivery.postResponse==>ResponseDeliveryRunnable[Runnable]->run
-                // ==>Request->deliverResponse==>用户设置的Listener回调接口
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError volleyError) {
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                parseAndDeliverNetworkError(request, volleyError);
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                VolleyError volleyError = new VolleyError(e);
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
+            // Post the response back.
+            // 将网络请求结果进行传递.
+            // ResponseDelivery调用顺序如下:
+            // ResponseDelivery.postResponse==>ResponseDeliveryRunnable[Runnable]->run
+            // ==>Request->deliverResponse==>用户设置的Listener回调接口
+            // Complete the duplicates waiting on this request before it can finish and
+            // release them to the cache queue.
+            notifyResponseParsed(request, response);
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+        } catch (VolleyError volleyError) {
+            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            if (volleyError.networkResponse != null) {
+                notifyNetworkResponse(request, volleyError.networkResponse);
+            }
+            if (volleyError instanceof RetryScheduledError) {
+                scheduleRetry(request, (RetryScheduledError) volleyError);
+                return;
             }
+            if (volleyError instanceof DeadlineExceededError) {
+                notifyDeadlineExceeded(request);
+            }
+            parseAndDeliverNetworkError(request, volleyError);
+        } catch (Exception e) {
+            VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            VolleyError volleyError = new VolleyError(e);
+            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            mDelivery.postError(request, volleyError);
+        }
+    }
+
+    /** Hands a parsed response to the requests waiting on {@code request}, if any. */
+    static void notifyResponseParsed(Request<?> request, Response<?> response) {
+        RequestQueue queue = request.getRequestQueue();
+        if (queue != null) {
+            queue.onResponseParsed(request, response);
+        }
+    }
+
+    /** Shares a network response with the requests waiting on {@code request}, if any. */
+    static void notifySingleFlightResponse(Request<?> request, NetworkResponse networkResponse) {
+        RequestQueue queue = request.getRequestQueue();
+        if (queue != null) {
+            queue.onSingleFlightResponse(request, networkResponse);
+        }
+    }
+
+    /** Reports the size of a network response for rate limiting. */
+    static void notifyNetworkResponse(Request<?> request, NetworkResponse networkResponse) {
+        RequestQueue queue = request.getRequestQueue();
+        if (queue != null) {
+            queue.onNetworkResponse(request, networkResponse);
+        }
+    }
+
+    /**
+     * Hands a request to its queue to be retried after a delay, or delivers the error that
+     * caused the retry if it has no queue to go back to.
+     */
+    private void scheduleRetry(Request<?> request, RetryScheduledError error) {
+        RequestQueue queue = request.getRequestQueue();
+        if (queue == null) {
+            parseAndDeliverNetworkError(request, (VolleyError) error.getCause());
+            return;
+        }
+        request.addMarker("network-retry-scheduled");
+        queue.scheduleRetry(request, error.getDelayMs());
+    }
+
+    /** Counts a request dropped because its deadline passed. */
+    static void notifyDeadlineExceeded(Request<?> request) {
+        RequestQueue queue = request.getRequestQueue();
+        if (queue != null) {
+            queue.onDeadlineExceeded(request);
         }
     }
 
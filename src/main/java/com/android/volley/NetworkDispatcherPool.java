@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of {@link NetworkDispatcher} threads whose size follows the load on the network queue.
+ * <p>
+ * The pool keeps at least {@code minThreads} dispatchers. When requests are waiting and all
+ * dispatchers are busy, another one is started if the expected wait for a free dispatcher,
+ * judged from the recent request latency, is longer than {@link #SCALE_UP_WAIT_MS}; slow
+ * requests therefore get more threads than fast ones. Dispatchers beyond the minimum exit after
+ * finding the queue empty for the keep-alive time. All dispatchers take from the same
+ * {@link PriorityBlockingQueue}, or {@link HostScheduler}, so requests are still started in
+ * priority order.
+ */
+class NetworkDispatcherPool {
+
+    /** Default time an idle dispatcher beyond the minimum waits before it exits. */
+    static final long DEFAULT_KEEP_ALIVE_MS = 10 * 1000;
+
+    /** Expected queueing delay above which another dispatcher is started. */
+    static final long SCALE_UP_WAIT_MS = 50;
+
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+    private final int mMinThreads;
+    private final int mMaxThreads;
+    private final long mKeepAliveMs;
+
+    /** The queue of requests going out to the network; adding to it may start a dispatcher. */
+    final BlockingQueue<Request<?>> mQueue;
+
+    // All of the following are guarded by this.
+    private final Set<Worker> mWorkers = new HashSet<Worker>();
+    private boolean mRunning;
+    private int mBusyWorkers;
+    private int mPeakWorkers;
+    private long mAverageLatencyMs = -1;
+
+    /**
+     * @param minThreads Dispatchers to keep even when idle
+     * @param maxThreads Most dispatchers to run at once
+     * @param keepAliveMs Time an idle dispatcher beyond the minimum waits before it exits
+     * @param hostScheduler Queue to use to limit requests per host, or null for a plain
+     *     priority queue
+     */
+    NetworkDispatcherPool(Network network, Cache cache, ResponseDelivery delivery,
+            int minThreads, int maxThreads, long keepAliveMs, HostScheduler hostScheduler) {
+        if (minThreads < 0 || maxThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException(
+                    "Invalid thread pool size: " + minThreads + ".." + maxThreads);
+        }
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mMinThreads = minThreads;
+        mMaxThreads = maxThreads;
+        mKeepAliveMs = keepAliveMs;
+        if (hostScheduler != null) {
+            hostScheduler.setOfferListener(new Runnable() {
+                @Override
+                public void run() {
+                    onRequestQueued();
+                }
+            });
+            mQueue = hostScheduler;
+        } else {
+            mQueue = new PriorityBlockingQueue<Request<?>>() {
+                @Override
+                public boolean offer(Request<?> request) {
+                    boolean added = super.offer(request);
+                    onRequestQueued();
+                    return added;
+                }
+            };
+        }
+    }
+
+    /** Starts the minimum number of dispatchers, and more if requests are already waiting. */
+    synchronized void start() {
+        mRunning = true;
+        while (mWorkers.size() < mMinThreads) {
+            addWorker();
+        }
+        maybeAddWorker();
+    }
+
+    /** Stops all dispatchers. Requests still in the queue are kept for a later start(). */
+    synchronized void stop() {
+        mRunning = false;
+        for (Worker worker : mWorkers) {
+            worker.quit();
+        }
+        mWorkers.clear();
+        mBusyWorkers = 0;
+    }
+
+    /** Returns the number of running dispatchers. */
+    synchronized int getThreadCount() {
+        return mWorkers.size();
+    }
+
+    /** Returns the largest number of dispatchers that have run at once. */
+    synchronized int getPeakThreadCount() {
+        return mPeakWorkers;
+    }
+
+    /**
+     * Returns whether another dispatcher should be started.
+     *
+     * @param waiting Requests waiting with no idle dispatcher to take them
+     * @param threads Dispatchers running now
+     * @param averageLatencyMs Recent time taken per request, or -1 if unknown
+     */
+    static boolean shouldAddThread(int waiting, int threads, long averageLatencyMs) {
+        if (waiting <= 0) {
+            return false;
+        }
+        if (threads == 0 || averageLatencyMs < 0) {
+            return true;
+        }
+        // Each dispatcher works through its share of the backlog one request at a time.
+        return waiting * averageLatencyMs / threads >= SCALE_UP_WAIT_MS;
+    }
+
+    private synchronized void onRequestQueued() {
+        maybeAddWorker();
+    }
+
+    private synchronized void onRequestStarted(Worker worker) {
+        if (mWorkers.contains(worker)) {
+            mBusyWorkers++;
+            maybeAddWorker();
+        }
+    }
+
+    private synchronized void onRequestFinished(Worker worker, long latencyMs) {
+        if (!mWorkers.contains(worker)) {
+            // Stopped while the request was running.
+            return;
+        }
+        mBusyWorkers--;
+        // Moving average, so the pool follows changes in latency within a few requests.
+        if (mAverageLatencyMs < 0) {
+            mAverageLatencyMs = latencyMs;
+        } else {
+            mAverageLatencyMs = (mAverageLatencyMs * 7 + latencyMs) / 8;
+        }
+    }
+
+    /**
+     * Called when a dispatcher found the queue empty for the keep-alive time.
+     *
+     * @return whether the dispatcher should exit
+     */
+    private synchronized boolean onIdle(Worker worker) {
+        if (!mWorkers.contains(worker)) {
+            return true;
+        }
+        if (mWorkers.size() > mMinThreads && mQueue.isEmpty()) {
+            mWorkers.remove(worker);
+            return true;
+        }
+        return false;
+    }
+
+    /** Starts a dispatcher if the backlog calls for one. Must hold the lock. */
+    private void maybeAddWorker() {
+        if (!mRunning || mWorkers.size() >= mMaxThreads) {
+            return;
+        }
+        int idle = mWorkers.size() - mBusyWorkers;
+        // Requests held back by a per-host limit can't use another thread.
+        int runnable = mQueue instanceof HostScheduler
+                ? ((HostScheduler) mQueue).getRunnableCount() : mQueue.size();
+        if (shouldAddThread(runnable - idle, mWorkers.size(), mAverageLatencyMs)) {
+            addWorker();
+        }
+    }
+
+    /** Must hold the lock. */
+    private void addWorker() {
+        Worker worker = new Worker(this);
+        mWorkers.add(worker);
+        mPeakWorkers = Math.max(mPeakWorkers, mWorkers.size());
+        worker.start();
+    }
+
+    /** A dispatcher that exits when the pool no longer needs it. */
+    private static class Worker extends NetworkDispatcher {
+        private final NetworkDispatcherPool mPool;
+
+        Worker(NetworkDispatcherPool pool) {
+            super(pool.mQueue, pool.mNetwork, pool.mCache, pool.mDelivery);
+            mPool = pool;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                Request<?> request;
+                try {
+                    request = mPool.mQueue.poll(mPool.mKeepAliveMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // We may have been interrupted because it was time to quit.
+                    if (isQuitting()) {
+                        return;
+                    }
+                    continue;
+                }
+                if (request == null) {
+                    if (isQuitting() || mPool.onIdle(this)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                mPool.onRequestStarted(this);
+                long startTimeMs = SystemClock.elapsedRealtime();
+                try {
+                    processRequest(request);
+                } finally {
+                    mPool.onRequestFinished(this, SystemClock.elapsedRealtime() - startTimeMs);
+                }
+            }
+        }
+    }
+}
@@ -36,14 +36,21 @@ public class NetworkResponse implements Serializable{
      * @param headers Headers returned with this response, or null for none
      * @param notModified True if the server returned a 304 and the data was already in cache
      * @param networkTimeMs Round-trip network time to receive network response
+     * @param stale True if the data is a cached copy that was returned without being validated
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
-            boolean notModified, long networkTimeMs) {
+            boolean notModified, long networkTimeMs, boolean stale) {
         this.statusCode = statusCode;
         this.data = data;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
+        this.stale = stale;
+    }
+
+    public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
+            boolean notModified, long networkTimeMs) {
+        this(statusCode, data, headers, notModified, networkTimeMs, false);
     }
 
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
@@ -78,5 +85,11 @@ public class NetworkResponse implements Serializable{
     /** Network roundtrip time in milliseconds. */
     /** HTTP请求的往返延迟. */
     public final long networkTimeMs;
+
+    /**
+     * True if the data is a cached copy that was returned without being validated by the server,
+     * e.g. because its host's circuit is open. It doesn't get a new cache lifetime.
+     */
+    public final boolean stale;
 }
 
@@ -20,12 +20,17 @@ import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import com.android.volley.VolleyLog.MarkerLog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -57,6 +62,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         int PATCH = 7;
     }
 
+    /**
+     * Callback for when a request is canceled, for networks that can stop work in progress, e.g.
+     * by waking up a thread waiting on the server.
+     */
+    public interface CancelListener {
+        /** Called on the thread that canceled the request. */
+        public void onCanceled(Request<?> request);
+    }
+
     /** An event log tracing the lifetime of this request; for debugging. */
     private final MarkerLog mEventLog = MarkerLog.ENABLED ? new MarkerLog() : null;
 
@@ -95,18 +109,42 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** 该request请求是否需要缓存，默认http request请求都是可以缓存的. */
     private boolean mShouldCache = true;
 
+    /**
+     * Headers whose values go into the cache key along with a hash of the body, or null if the
+     * cache key is just the method and URL.
+     */
+    private String[] mCacheKeyHeaders;
+
+    /** The cache key including the body hash, once computed. */
+    private String mBodyHashCacheKey;
+
+    /** Whether identical uncacheable requests in flight together may share a response. */
+    private boolean mSingleFlight = false;
+
+    /** Key identical single-flight requests share, set when the request is added to a queue. */
+    private String mSingleFlightKey;
+
     /** Whether or not this request has been canceled. */
     /** 该request请求是否被取消的标志. */
     private boolean mCanceled = false;
 
+    /** Told when this request is canceled. Guarded by this request's monitor. */
+    private final List<CancelListener> mCancelListeners = new ArrayList<CancelListener>(1);
+
     /** Whether or not a response has been delivered for this request yet. */
     /** 该request是否已经获取请求结果. */
     private boolean mResponseDelivered = false;
 
+    /** Body bytes sent since the last network response was charged, guarded by this. */
+    private long mBodyBytesSent = 0;
+
     /** The retry policy for this request. */
     /** request重试策略. */
     private RetryPolicy mRetryPolicy;
 
+    /** When this request must be done by, in elapsedRealtime() milliseconds, or 0 for never. */
+    private long mDeadlineMs = 0;
+
     /**
      * When a request can be retrieved from cache but must be refreshed from
      * the network, the cache entry will be stored here so that in the event of
@@ -165,7 +203,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return This Request object to allow for chaining.
      */
     public Request<?> setTag(Object tag) {
+        Object oldTag = mTag;
         mTag = tag;
+        if (mRequestQueue != null && oldTag != tag) {
+            mRequestQueue.onTagChanged(this, oldTag);
+        }
         return this;
     }
 
@@ -283,6 +325,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /** Returns the queue this request was added to, or null. */
+    RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
     /**
      * Sets the sequence number of this request.  Used by {@link RequestQueue}.
      *
@@ -337,7 +384,78 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     /** 使用request的url作为volley cache缓存系统存储的key值(默认url可唯一标识一个request). */
     public String getCacheKey() {
-        return mMethod + ":" + mUrl;
+        if (mCacheKeyHeaders == null) {
+            return mMethod + ":" + mUrl;
+        }
+        freezeCacheKey();
+        return mBodyHashCacheKey;
+    }
+
+    /**
+     * Computes the cache key including the body hash, if there is one, so that it doesn't change
+     * while the request is processed. Called when the request is added to a queue. If the body
+     * or headers can't be built, the request is made uncacheable and gets a key of its own, so
+     * it can't be given another request's response.
+     */
+    void freezeCacheKey() {
+        if (mCacheKeyHeaders == null || mBodyHashCacheKey != null) {
+            return;
+        }
+        try {
+            mBodyHashCacheKey = mMethod + ":" + mUrl + ":" + hashBodyAndHeaders();
+        } catch (AuthFailureError e) {
+            mShouldCache = false;
+            mBodyHashCacheKey = mMethod + ":" + mUrl + ":" + mIdentifier;
+        }
+    }
+
+    /**
+     * Makes the cache key include a hash of {@link #getBody()} and of the values of the given
+     * headers, so that requests that send their query in the body, like POST-based read APIs,
+     * can be cached: responses to different queries are cached separately, and repeated queries
+     * are served from the cache for as long as the response's cache headers allow. The key is
+     * computed once, at the latest when the request is added to a queue, so the body and headers
+     * must not change after that. If they can't be built, the request isn't cached.
+     *
+     * @param headerNames Headers whose values select a different response, e.g. "Accept-Language"
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setBodyHashCacheKey(String... headerNames) {
+        mCacheKeyHeaders = headerNames;
+        mBodyHashCacheKey = null;
+        return this;
+    }
+
+    /**
+     * Returns true if the cache key includes a hash of the body.
+     */
+    public final boolean hasBodyHashCacheKey() {
+        return mCacheKeyHeaders != null;
+    }
+
+    private String hashBodyAndHeaders() throws AuthFailureError {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] body = getBody();
+            if (body != null) {
+                bytes.write(body);
+            }
+            Map<String, String> headers = getHeaders();
+            for (String name : mCacheKeyHeaders) {
+                bytes.write(0);
+                bytes.write(name.toLowerCase().getBytes("UTF-8"));
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    if (header.getKey().equalsIgnoreCase(name)) {
+                        bytes.write(':');
+                        bytes.write(header.getValue().getBytes("UTF-8"));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream.
+            throw new RuntimeException(e);
+        }
+        return InternalUtils.sha1Hash(bytes.toByteArray());
     }
 
     /**
@@ -361,11 +479,43 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Mark this request as canceled.  No callback will be delivered.
+     * Mark this request as canceled.  No callback will be delivered. If the request is still
+     * waiting to be dispatched, it's removed from its queue right away.
      */
     /** 标识该request已经被取消. */
     public void cancel() {
-        mCanceled = true;
+        List<CancelListener> listeners;
+        synchronized (this) {
+            mCanceled = true;
+            listeners = mCancelListeners.isEmpty() ? Collections.<CancelListener>emptyList()
+                    : new ArrayList<CancelListener>(mCancelListeners);
+        }
+        if (mRequestQueue != null) {
+            mRequestQueue.onCanceled(this);
+        }
+        for (CancelListener listener : listeners) {
+            listener.onCanceled(this);
+        }
+    }
+
+    /**
+     * Adds a listener to be told when this request is canceled. If the request has already been
+     * canceled, the listener is told right away.
+     */
+    public void addCancelListener(CancelListener listener) {
+        boolean canceled;
+        synchronized (this) {
+            mCancelListeners.add(listener);
+            canceled = mCanceled;
+        }
+        if (canceled) {
+            listener.onCanceled(this);
+        }
+    }
+
+    /** Removes a listener added with {@link #addCancelListener(CancelListener)}. */
+    public synchronized void removeCancelListener(CancelListener listener) {
+        mCancelListeners.remove(listener);
     }
 
     /**
@@ -546,6 +696,46 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Set whether this request may share the network response of an identical request, i.e. one
+     * with the same method, URL and body, that is in flight when it is added. Each request parses
+     * the shared response itself. Only applies to requests that aren't cached, since cached
+     * requests already share responses by cache key. Use it for requests whose response depends
+     * on nothing else, e.g. uncacheable GETs or idempotent POST queries.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setSingleFlight(boolean singleFlight) {
+        mSingleFlight = singleFlight;
+        return this;
+    }
+
+    /**
+     * Returns true if this request may share the network response of an identical request.
+     */
+    public final boolean isSingleFlight() {
+        return mSingleFlight;
+    }
+
+    /**
+     * Returns true if the network response of this request holds the whole response body, so
+     * that identical single-flight requests waiting on it can parse it too. The default
+     * implementation returns true; requests that parse the body as it is read off the network,
+     * without keeping it, return false and are then never shared.
+     */
+    protected boolean canShareNetworkResponse() {
+        return true;
+    }
+
+    void setSingleFlightKey(String singleFlightKey) {
+        mSingleFlightKey = singleFlightKey;
+    }
+
+    /** Returns the key identical single-flight requests share, or null if there is none. */
+    String getSingleFlightKey() {
+        return mSingleFlightKey;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -572,7 +762,43 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     /** 返回重试的时间，用于日志记录. */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        int timeoutMs = mRetryPolicy.getCurrentTimeout();
+        if (mDeadlineMs > 0) {
+            // Don't wait for the network past the deadline.
+            long remainingMs = mDeadlineMs - SystemClock.elapsedRealtime();
+            if (remainingMs < timeoutMs) {
+                timeoutMs = (int) Math.max(remainingMs, 1);
+            }
+        }
+        return timeoutMs;
+    }
+
+    /**
+     * Sets an end-to-end deadline for this request, {@code timeoutMs} from now. If the deadline
+     * passes while the request waits to be dispatched or between retries, it is dropped and a
+     * {@link DeadlineExceededError} is delivered; network attempts are cut short at the deadline.
+     *
+     * @param timeoutMs Time from now that the request must be done by, or 0 for no deadline
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long timeoutMs) {
+        mDeadlineMs = timeoutMs > 0 ? SystemClock.elapsedRealtime() + timeoutMs : 0;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of this request in {@link SystemClock#elapsedRealtime()} time, or 0 if
+     * it has none.
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns true if this request has a deadline that has passed.
+     */
+    public boolean isPastDeadline() {
+        return mDeadlineMs > 0 && SystemClock.elapsedRealtime() >= mDeadlineMs;
     }
 
     /**
@@ -591,6 +817,22 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         mResponseDelivered = true;
     }
 
+    /**
+     * Records that the HTTP stack sent {@code bytes} bytes of this request's body, so that a
+     * {@link HostScheduler} limiting bytes can charge them to the request's host without building
+     * the body again.
+     */
+    public synchronized void markBodySent(long bytes) {
+        mBodyBytesSent += bytes;
+    }
+
+    /** Returns the body bytes sent since the last call, and resets the count. */
+    synchronized long takeBodyBytesSent() {
+        long bytes = mBodyBytesSent;
+        mBodyBytesSent = 0;
+        return bytes;
+    }
+
     /**
      * Returns true if this request has had a response delivered for it.
      */
@@ -610,6 +852,29 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** 子类必须重写该方法，用来解析http请求的结果. */
     abstract protected Response<T> parseNetworkResponse(NetworkResponse response);
 
+    /**
+     * Returns the number of bytes received for a network response, which a
+     * {@link HostScheduler} limiting bytes charges to the request's host.
+     *
+     * <p>The default implementation returns the length of the response data. Requests that read
+     * their response off the network themselves count the bytes they read instead.</p>
+     */
+    protected long getNetworkResponseBytes(NetworkResponse response) {
+        return response.data != null ? response.data.length : 0;
+    }
+
+    /**
+     * Returns true if this request can be delivered the response parsed by {@code other}, a
+     * request with the same cache key. Requests added while a duplicate is in flight are then
+     * given its parsed response as is, instead of parsing their own from the same data.
+     *
+     * <p>The default implementation returns false. Requests whose parsed responses are immutable
+     * and depend only on the response data can return true for requests of their own class.</p>
+     */
+    protected boolean canShareResponseWith(Request<?> other) {
+        return false;
+    }
+
     /**
      * Subclasses can override this method to parse 'networkError' and return a more specific error.
      *
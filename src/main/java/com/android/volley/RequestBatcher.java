@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines small requests for endpoints that have a batch (multi-get) API into one HTTP call.
+ * <p>
+ * Requests added through {@link #add(Request)} that the {@link BatchAdapter} gives a batch key
+ * are held for up to a short window, or until {@code maxBatchSize} requests with the same key
+ * have been collected, and then sent to the {@link RequestQueue} as a single request built by the
+ * adapter. When it completes, the adapter splits the response into one response for each
+ * original request, which is parsed by that request's
+ * {@link Request#parseNetworkResponse(NetworkResponse)} on the network thread, written to the
+ * cache under the request's own cache key, and delivered to its listener. Other requests are
+ * added to the queue unchanged.
+ * <p>
+ * Batched requests are not looked up in the cache first, but since their responses are cached,
+ * requests for the same data added to the queue directly can be served from the cache.
+ * A batched request can be canceled until its response is delivered, also through the queue's
+ * {@code cancelAll} methods, since it is one of the queue's current requests from when it is
+ * added; the batch itself is only dropped once all of its requests are canceled.
+ */
+public class RequestBatcher {
+
+    /** Default most requests sent in one batch. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+    /** Default time to wait for more requests before sending a batch, in milliseconds. */
+    public static final int DEFAULT_WINDOW_MS = 10;
+
+    /**
+     * Knows how to combine requests into calls to a batch endpoint, and how to split its
+     * responses. Only called for requests it has given a batch key.
+     */
+    public interface BatchAdapter {
+        /**
+         * Returns a key identifying the batch endpoint that can serve a request, or null if the
+         * request can't be batched. Only requests with equal keys are sent together.
+         */
+        public String getBatchKey(Request<?> request);
+
+        /** Returns the URL of the batch call for the given requests. */
+        public String getBatchUrl(String batchKey, List<Request<?>> requests);
+
+        /**
+         * Returns the body of the batch call, or null to send it as a GET.
+         *
+         * @throws AuthFailureError in the event of auth failure
+         */
+        public byte[] getBatchBody(String batchKey, List<Request<?>> requests)
+                throws AuthFailureError;
+
+        /** Returns the content type of the batch call's body. */
+        public String getBatchBodyContentType(String batchKey);
+
+        /**
+         * Splits the response of a batch call. Called on a network thread.
+         *
+         * @return the response for each request, in the order of {@code requests}; a null or
+         *     non-2xx response is delivered to its request as a {@link ServerError}
+         * @throws VolleyError if the response can't be split; the error is delivered to every
+         *     request in the batch
+         */
+        public List<NetworkResponse> parseBatchResponse(NetworkResponse response,
+                List<Request<?>> requests) throws VolleyError;
+    }
+
+    private final RequestQueue mQueue;
+    private final BatchAdapter mAdapter;
+    private final int mMaxBatchSize;
+    private final long mWindowMs;
+
+    /** Handler to the main thread, for sending batches when their window closes. */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Requests waiting to be sent, by batch key. */
+    private final Map<String, List<Request<?>>> mPendingBatches =
+            new HashMap<String, List<Request<?>>>();
+
+    /**
+     * @param queue The queue to send requests and batches to
+     * @param adapter Combines requests into batches and splits their responses
+     * @param maxBatchSize The most requests to send in one batch
+     * @param windowMs Time to wait for more requests before sending a batch, in milliseconds
+     */
+    public RequestBatcher(RequestQueue queue, BatchAdapter adapter, int maxBatchSize,
+            long windowMs) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        mQueue = queue;
+        mAdapter = adapter;
+        mMaxBatchSize = maxBatchSize;
+        mWindowMs = windowMs;
+    }
+
+    /**
+     * Creates a batcher with the default batch size and window.
+     *
+     * @param queue The queue to send requests and batches to
+     * @param adapter Combines requests into batches and splits their responses
+     */
+    public RequestBatcher(RequestQueue queue, BatchAdapter adapter) {
+        this(queue, adapter, DEFAULT_MAX_BATCH_SIZE, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * Adds a request, to be sent in a batch if the adapter can batch it, otherwise straight to
+     * the queue.
+     *
+     * @param request The request to service
+     * @return The passed-in request
+     */
+    public <T> Request<T> add(Request<T> request) {
+        final String batchKey = mAdapter.getBatchKey(request);
+        if (batchKey == null) {
+            return mQueue.add(request);
+        }
+        // Registered with the queue without being dispatched, so that cancelAll reaches it.
+        mQueue.track(request);
+        request.addMarker("add-to-batch");
+        List<Request<?>> full = null;
+        synchronized (mPendingBatches) {
+            List<Request<?>> batch = mPendingBatches.get(batchKey);
+            if (batch == null) {
+                batch = new ArrayList<Request<?>>();
+                mPendingBatches.put(batchKey, batch);
+                // The first request opens the window.
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(batchKey);
+                    }
+                }, mWindowMs);
+            }
+            batch.add(request);
+            if (batch.size() >= mMaxBatchSize) {
+                full = mPendingBatches.remove(batchKey);
+            }
+        }
+        if (full != null) {
+            send(batchKey, full);
+        }
+        return request;
+    }
+
+    /**
+     * Sends all requests waiting for their batch window to close now.
+     */
+    public void flushAll() {
+        List<String> batchKeys;
+        synchronized (mPendingBatches) {
+            batchKeys = new ArrayList<String>(mPendingBatches.keySet());
+        }
+        for (String batchKey : batchKeys) {
+            flush(batchKey);
+        }
+    }
+
+    /** Returns the number of requests waiting for their batch to be sent. */
+    public int getPendingCount() {
+        synchronized (mPendingBatches) {
+            int count = 0;
+            for (List<Request<?>> batch : mPendingBatches.values()) {
+                count += batch.size();
+            }
+            return count;
+        }
+    }
+
+    private void flush(String batchKey) {
+        List<Request<?>> batch;
+        synchronized (mPendingBatches) {
+            batch = mPendingBatches.remove(batchKey);
+        }
+        if (batch != null) {
+            send(batchKey, batch);
+        }
+    }
+
+    private void send(String batchKey, List<Request<?>> batch) {
+        List<Request<?>> requests = new ArrayList<Request<?>>(batch.size());
+        for (Request<?> request : batch) {
+            if (request.isCanceled()) {
+                request.finish("canceled-in-batch");
+            } else {
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        if (requests.size() == 1) {
+            // Not worth the batch endpoint.
+            mQueue.add(requests.get(0));
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Sending %d requests in batch %s", requests.size(), batchKey);
+        }
+        mQueue.add(new BatchRequest(batchKey, requests, mAdapter, mQueue.getCache()));
+    }
+
+    /**
+     * The single request sent for a batch. Its result is the parsed response of each request in
+     * the batch.
+     */
+    private static class BatchRequest extends Request<List<Response<?>>> {
+        private final String mBatchKey;
+        private final List<Request<?>> mRequests;
+        private final BatchAdapter mAdapter;
+        private final Cache mCache;
+
+        /** Whether the batch's outcome was handed to its requests, which then finished them. */
+        private boolean mDelivered = false;
+
+        /** The body from the adapter, built on first use since the method depends on it. */
+        private byte[] mBody;
+        private boolean mBodyBuilt = false;
+
+        /** Cancels the batch once all of its requests are canceled. */
+        private final CancelListener mCancelListener = new CancelListener() {
+            @Override
+            public void onCanceled(Request<?> request) {
+                if (isCanceled()) {
+                    cancel();
+                }
+            }
+        };
+
+        BatchRequest(String batchKey, List<Request<?>> requests, BatchAdapter adapter,
+                Cache cache) {
+            super(Method.DEPRECATED_GET_OR_POST, adapter.getBatchUrl(batchKey, requests), null);
+            mBatchKey = batchKey;
+            mRequests = requests;
+            mAdapter = adapter;
+            mCache = cache;
+            // Responses are cached for each request instead.
+            setShouldCache(false);
+            int timeoutMs = 0;
+            for (Request<?> request : requests) {
+                timeoutMs = Math.max(timeoutMs, request.getTimeoutMs());
+            }
+            setRetryPolicy(new DefaultRetryPolicy(timeoutMs,
+                    DefaultRetryPolicy.DEFAULT_MAX_RETRIES,
+                    DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+            for (Request<?> request : requests) {
+                request.addCancelListener(mCancelListener);
+            }
+        }
+
+        @Override
+        public int getMethod() {
+            try {
+                return getBody() != null ? Method.POST : Method.GET;
+            } catch (AuthFailureError e) {
+                return Method.POST;
+            }
+        }
+
+        /** Builds the body once; an auth failure isn't kept, so a retry asks the adapter again. */
+        @Override
+        public synchronized byte[] getBody() throws AuthFailureError {
+            if (!mBodyBuilt) {
+                mBody = mAdapter.getBatchBody(mBatchKey, mRequests);
+                mBodyBuilt = true;
+            }
+            return mBody;
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mAdapter.getBatchBodyContentType(mBatchKey);
+        }
+
+        /** Uses the headers of the first request; requests in a batch share an endpoint. */
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return mRequests.get(0).getHeaders();
+        }
+
+        @Override
+        public Priority getPriority() {
+            Priority priority = Priority.LOW;
+            for (Request<?> request : mRequests) {
+                if (request.getPriority().ordinal() > priority.ordinal()) {
+                    priority = request.getPriority();
+                }
+            }
+            return priority;
+        }
+
+        /** Only canceled once every request in the batch is. */
+        @Override
+        public boolean isCanceled() {
+            for (Request<?> request : mRequests) {
+                if (!request.isCanceled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected Response<List<Response<?>>> parseNetworkResponse(NetworkResponse response) {
+            List<NetworkResponse> parts;
+            try {
+                parts = mAdapter.parseBatchResponse(response, mRequests);
+            } catch (VolleyError e) {
+                return Response.error(e);
+            }
+            if (parts == null || parts.size() != mRequests.size()) {
+                return Response.error(new ParseError(response));
+            }
+            List<Response<?>> results = new ArrayList<Response<?>>(mRequests.size());
+            for (int i = 0; i < mRequests.size(); i++) {
+                Request<?> request = mRequests.get(i);
+                NetworkResponse part = parts.get(i);
+                request.addMarker("batch-http-complete");
+                if (part == null || part.statusCode < 200 || part.statusCode > 299) {
+                    results.add(Response.error(request.parseNetworkError(
+                            part != null ? new ServerError(part) : new ServerError())));
+                    continue;
+                }
+                Response<?> result = request.parseNetworkResponse(part);
+                request.addMarker("batch-parse-complete");
+                if (result.isSuccess() && request.shouldCache() && result.cacheEntry != null) {
+                    mCache.put(request.getCacheKey(), result.cacheEntry);
+                    request.addMarker("network-cache-written");
+                }
+                results.add(result);
+            }
+            return Response.success(results, null);
+        }
+
+        @Override
+        protected void deliverResponse(List<Response<?>> results) {
+            mDelivered = true;
+            for (int i = 0; i < mRequests.size(); i++) {
+                deliver(mRequests.get(i), results.get(i));
+            }
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            mDelivered = true;
+            for (Request<?> request : mRequests) {
+                deliver(request, Response.error(request.parseNetworkError(error)));
+            }
+        }
+
+        /**
+         * Finishes the requests in the batch if it was finished without delivering to them, e.g.
+         * because they were all canceled, so they don't stay in the queue's current requests.
+         */
+        @Override
+        protected void onFinish() {
+            super.onFinish();
+            for (Request<?> request : mRequests) {
+                request.removeCancelListener(mCancelListener);
+            }
+            if (!mDelivered) {
+                for (Request<?> request : mRequests) {
+                    request.finish("canceled-batch");
+                }
+            }
+        }
+
+        /** Delivers a response to a request in the batch, as ResponseDelivery would. */
+        @SuppressWarnings("unchecked")
+        private static <T> void deliver(Request<T> request, Response<?> response) {
+            if (request.isCanceled()) {
+                request.finish("canceled-at-delivery");
+                return;
+            }
+            request.markDelivered();
+            if (response.isSuccess()) {
+                request.deliverResponse((T) response.result);
+            } else {
+                request.deliverError(response.error);
+            }
+            request.finish("done");
+        }
+    }
+}
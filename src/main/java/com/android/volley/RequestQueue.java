@@ -18,17 +18,23 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -49,19 +55,37 @@ public class RequestQueue {
     /** 为每一个request申请独立的序列号. */
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
+    /** Number of requests dropped because their deadline passed. */
+    private final AtomicInteger mDeadlineExceededCount = new AtomicInteger();
+
+    /** Number of retries scheduled after a delay. */
+    private final AtomicInteger mRetryCount = new AtomicInteger();
+
+    /** Total delay of the retries scheduled, in milliseconds. */
+    private final AtomicLong mRetryBackoffMs = new AtomicLong();
+
+    /** Number of single-flight requests added, and how many of those shared a response. */
+    private final AtomicInteger mSingleFlightCount = new AtomicInteger();
+    private final AtomicInteger mSingleFlightSharedCount = new AtomicInteger();
+
+    /** Requests waiting for their delay to pass before they are retried. */
+    private final DelayQueue<RetryDispatcher.DelayedRetry> mRetryQueue =
+            new DelayQueue<RetryDispatcher.DelayedRetry>();
+
     /**
-     * Staging area for requests that already have a duplicate request in flight.
-     *
-     * <ul>
-     *     <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
-     *          key.</li>
-     *     <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     *          is <em>not</em> contained in that list. Is null if no requests are staged.</li>
-     * </ul>
+     * Cacheable requests in flight, by cache key. Requests added while a request with the same
+     * cache key is in flight wait on its {@link InFlightRequest} instead of being dispatched.
      */
     /** 维护了一个等待请求的集合,如果一个请求正在被处理并且可以被缓存,后续的相同 url 的请求,将进入此等待队列 */
-    private final Map<String, Queue<Request<?>>> mWaitingRequests =
-            new HashMap<String, Queue<Request<?>>>();
+    private final ConcurrentHashMap<String, InFlightRequest> mInFlightRequests =
+            new ConcurrentHashMap<String, InFlightRequest>();
+
+    /**
+     * Uncacheable {@link Request#isSingleFlight() single-flight} requests in flight, by method,
+     * URL and body. Requests added while an identical one is in flight wait on it.
+     */
+    private final ConcurrentHashMap<String, InFlightRequest> mSingleFlightRequests =
+            new ConcurrentHashMap<String, InFlightRequest>();
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
@@ -71,15 +95,24 @@ public class RequestQueue {
     /** 保存所有被加入到当前队列的request集合. */
     private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
 
+    /**
+     * The requests in {@link #mCurrentRequests} that have a tag, by tag, so that
+     * {@link #cancelAll(Object)} doesn't have to look at every request. Tags are compared by
+     * identity. Guarded by mCurrentRequests.
+     */
+    private final Map<Object, Set<Request<?>>> mRequestsByTag =
+            new IdentityHashMap<Object, Set<Request<?>>>();
+
     /** The cache triage queue. */
     /** 与缓存线程(CacheDispatcher)绑定的缓存队列. */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final PriorityBlockingQueue<Request<?>> mCacheQueue;
 
     /** The queue of requests that are actually going out to the network. */
     /** 存储需要进行网络通信的request的存储队列. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final BlockingQueue<Request<?>> mNetworkQueue;
+
+    /** The network queue if it limits requests per host, otherwise null. */
+    private final HostScheduler mHostScheduler;
 
     /** Number of network request dispatcher threads to start. */
     /** RequestQueue默认开启的网络线程的数量. */
@@ -100,9 +133,18 @@ public class RequestQueue {
     /** The network dispatchers. */
     private NetworkDispatcher[] mDispatchers;
 
+    /** The network dispatchers when their number adapts to the load, otherwise null. */
+    private final NetworkDispatcherPool mDispatcherPool;
+
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
 
+    /** The dispatcher moving delayed retries back to the network queue. */
+    private RetryDispatcher mRetryDispatcher;
+
+    /** Runs cache triage and network requests when they are run on an Executor, otherwise null. */
+    private final ExecutorDispatcher mExecutorDispatcher;
+
     private List<RequestFinishedListener> mFinishedListeners =
             new ArrayList<RequestFinishedListener>();
 
@@ -116,10 +158,157 @@ public class RequestQueue {
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
             ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, delivery, null);
+    }
+
+    /**
+     * Creates the worker pool, with network requests scheduled by a {@link HostScheduler}.
+     * Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @param hostScheduler Network queue limiting the requests in flight to each host, or null
+     *     to dispatch network requests in priority order only
+     */
+    public RequestQueue(Cache cache, Network network, int threadPoolSize,
+            ResponseDelivery delivery, HostScheduler hostScheduler) {
         mCache = cache;
         mNetwork = network;
         mDispatchers = new NetworkDispatcher[threadPoolSize];
         mDelivery = delivery;
+        mHostScheduler = hostScheduler;
+        mCacheQueue = new PriorityBlockingQueue<Request<?>>();
+        mNetworkQueue = hostScheduler != null
+                ? hostScheduler : new PriorityBlockingQueue<Request<?>>();
+        mDispatcherPool = null;
+        mExecutorDispatcher = null;
+    }
+
+    /**
+     * Creates the worker pool with a number of network dispatchers that follows the load.
+     * Processing will not begin until {@link #start()} is called.
+     * <p>
+     * Between {@code minThreadPoolSize} and {@code maxThreadPoolSize} dispatcher threads run at
+     * any time. Threads are added while requests wait for the network longer than the recent
+     * request latency justifies, and removed after being idle for a while.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param minThreadPoolSize Number of network dispatcher threads to keep when idle
+     * @param maxThreadPoolSize Largest number of network dispatcher threads to run
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int minThreadPoolSize,
+            int maxThreadPoolSize, ResponseDelivery delivery) {
+        this(cache, network, minThreadPoolSize, maxThreadPoolSize, delivery, null);
+    }
+
+    /**
+     * Creates the worker pool with a number of network dispatchers that follows the load, and
+     * network requests scheduled by a {@link HostScheduler}. Processing will not begin until
+     * {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param minThreadPoolSize Number of network dispatcher threads to keep when idle
+     * @param maxThreadPoolSize Largest number of network dispatcher threads to run
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @param hostScheduler Network queue limiting the requests in flight to each host, or null
+     *     to dispatch network requests in priority order only
+     */
+    public RequestQueue(Cache cache, Network network, int minThreadPoolSize,
+            int maxThreadPoolSize, ResponseDelivery delivery, HostScheduler hostScheduler) {
+        this(cache, network, minThreadPoolSize, maxThreadPoolSize,
+                NetworkDispatcherPool.DEFAULT_KEEP_ALIVE_MS, delivery, hostScheduler);
+    }
+
+    /**
+     * Creates the worker pool with a number of network dispatchers that follows the load.
+     * Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param minThreadPoolSize Number of network dispatcher threads to keep when idle
+     * @param maxThreadPoolSize Largest number of network dispatcher threads to run
+     */
+    public RequestQueue(Cache cache, Network network, int minThreadPoolSize,
+            int maxThreadPoolSize) {
+        this(cache, network, minThreadPoolSize, maxThreadPoolSize,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    RequestQueue(Cache cache, Network network, int minThreadPoolSize, int maxThreadPoolSize,
+            long keepAliveMs, ResponseDelivery delivery, HostScheduler hostScheduler) {
+        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new NetworkDispatcher[0];
+        mDelivery = delivery;
+        mHostScheduler = hostScheduler;
+        mDispatcherPool = new NetworkDispatcherPool(network, cache, delivery,
+                minThreadPoolSize, maxThreadPoolSize, keepAliveMs, hostScheduler);
+        mCacheQueue = new PriorityBlockingQueue<Request<?>>();
+        mNetworkQueue = mDispatcherPool.mQueue;
+        mExecutorDispatcher = null;
+    }
+
+    /**
+     * Creates a queue that runs cache triage and network requests as tasks on the given
+     * {@link Executor}, rather than on dispatcher threads of its own. Processing will not begin
+     * until {@link #start()} is called.
+     * <p>
+     * One task is submitted for each request that is queued for the cache or the network, and
+     * takes the highest priority request waiting when it runs. How many requests run at once is
+     * up to the executor: an executor that runs every task on a new thread lets any number of
+     * slow requests proceed together, while a fixed pool keeps requests in priority order.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param executor Executor to run cache triage and network requests on
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @param hostScheduler Network queue limiting the requests in flight to each host, or null
+     *     to dispatch network requests in priority order only
+     */
+    public RequestQueue(Cache cache, Network network, Executor executor,
+            ResponseDelivery delivery, HostScheduler hostScheduler) {
+        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new NetworkDispatcher[0];
+        mDelivery = delivery;
+        mHostScheduler = hostScheduler;
+        mDispatcherPool = null;
+        mExecutorDispatcher =
+                new ExecutorDispatcher(executor, network, cache, delivery, hostScheduler);
+        mCacheQueue = mExecutorDispatcher.mCacheQueue;
+        mNetworkQueue = mExecutorDispatcher.mNetworkQueue;
+    }
+
+    /**
+     * Creates a queue that runs cache triage and network requests as tasks on the given
+     * {@link Executor}. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param executor Executor to run cache triage and network requests on
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, Executor executor,
+            ResponseDelivery delivery) {
+        this(cache, network, executor, delivery, null);
+    }
+
+    /**
+     * Creates a queue that runs cache triage and network requests as tasks on the given
+     * {@link Executor}. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param executor Executor to run cache triage and network requests on
+     */
+    public RequestQueue(Cache cache, Network network, Executor executor) {
+        this(cache, network, executor,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
     }
 
     /**
@@ -149,10 +338,22 @@ public class RequestQueue {
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
+        mRetryDispatcher = new RetryDispatcher(mRetryQueue, mNetworkQueue);
+        mRetryDispatcher.start();
+        if (mExecutorDispatcher != null) {
+            mExecutorDispatcher.start();
+            return;
+        }
+
         // Create the cache dispatcher and start it.
         mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
         mCacheDispatcher.start();
 
+        if (mDispatcherPool != null) {
+            mDispatcherPool.start();
+            return;
+        }
+
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++) {
             NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
@@ -174,6 +375,43 @@ public class RequestQueue {
                 mDispatchers[i].quit();
             }
         }
+        if (mDispatcherPool != null) {
+            mDispatcherPool.stop();
+        }
+        if (mExecutorDispatcher != null) {
+            mExecutorDispatcher.stop();
+        }
+        if (mRetryDispatcher != null) {
+            mRetryDispatcher.quit();
+        }
+    }
+
+    /**
+     * Returns the number of network dispatcher threads currently running. This is 0 if requests
+     * run on an {@link Executor}.
+     */
+    public int getNetworkThreadCount() {
+        if (mDispatcherPool != null) {
+            return mDispatcherPool.getThreadCount();
+        }
+        int count = 0;
+        for (int i = 0; i < mDispatchers.length; i++) {
+            if (mDispatchers[i] != null && mDispatchers[i].isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the largest number of network dispatcher threads that have run at once, or the
+     * thread pool size if it is fixed.
+     */
+    public int getPeakNetworkThreadCount() {
+        if (mDispatcherPool != null) {
+            return mDispatcherPool.getPeakThreadCount();
+        }
+        return mDispatchers.length;
     }
 
     /**
@@ -183,6 +421,115 @@ public class RequestQueue {
         return mSequenceGenerator.incrementAndGet();
     }
 
+    /**
+     * Returns the number of requests that have been dropped with a {@link DeadlineExceededError}
+     * since this queue was created.
+     */
+    public int getDeadlineExceededCount() {
+        return mDeadlineExceededCount.get();
+    }
+
+    /**
+     * Called by the network dispatchers with each network response, including error responses,
+     * so that a {@link HostScheduler} limiting bytes can charge them to the request's host.
+     */
+    void onNetworkResponse(Request<?> request, NetworkResponse response) {
+        if (mHostScheduler == null || !mHostScheduler.isLimitingBytes()) {
+            return;
+        }
+        long bytes = request.getNetworkResponseBytes(response) + request.takeBodyBytesSent();
+        mHostScheduler.onBytesTransferred(request, bytes);
+    }
+
+    /**
+     * Returns the number of retries that have been scheduled after a delay, as with a
+     * {@link BackoffRetryPolicy}, since this queue was created.
+     */
+    public int getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    /**
+     * Returns the total delay of the retries scheduled since this queue was created, in
+     * milliseconds.
+     */
+    public long getRetryBackoffMs() {
+        return mRetryBackoffMs.get();
+    }
+
+    /** Returns the number of requests waiting for their delay to pass before a retry. */
+    public int getPendingRetryCount() {
+        return mRetryQueue.size();
+    }
+
+    /**
+     * Returns the number of uncacheable {@link Request#isSingleFlight() single-flight} requests
+     * added since this queue was created.
+     */
+    public int getSingleFlightCount() {
+        return mSingleFlightCount.get();
+    }
+
+    /**
+     * Returns the number of single-flight requests that were given the network response of an
+     * identical request instead of going to the network themselves.
+     */
+    public int getSingleFlightSharedCount() {
+        return mSingleFlightSharedCount.get();
+    }
+
+    /**
+     * Returns the fraction of single-flight requests that shared another request's network
+     * response, or 0 if none were added.
+     */
+    public float getSingleFlightDedupRatio() {
+        int count = mSingleFlightCount.get();
+        return count == 0 ? 0f : (float) mSingleFlightSharedCount.get() / count;
+    }
+
+    /**
+     * Called by the network dispatchers when a request is to be retried after a delay. The
+     * request waits outside the network queue, without holding a dispatcher or its host's slot,
+     * and is put back in the network queue once the delay has passed.
+     */
+    void scheduleRetry(Request<?> request, long delayMs) {
+        if (mHostScheduler != null) {
+            mHostScheduler.onRequestFinished(request);
+        }
+        if (mExecutorDispatcher != null) {
+            mExecutorDispatcher.onRequestFinished();
+        }
+        if (request.isCanceled()) {
+            request.finish("retry-discard-cancelled");
+            return;
+        }
+        long deadline = request.getDeadline();
+        if (deadline > 0) {
+            // Come back no later than the deadline, to be dropped then.
+            delayMs = Math.max(0, Math.min(delayMs, deadline - SystemClock.elapsedRealtime()));
+        }
+        mRetryCount.incrementAndGet();
+        mRetryBackoffMs.addAndGet(delayMs);
+        mRetryQueue.add(new RetryDispatcher.DelayedRetry(request, delayMs));
+    }
+
+    /**
+     * Called when a request is dropped because its deadline has passed.
+     */
+    void onDeadlineExceeded(Request<?> request) {
+        mDeadlineExceededCount.incrementAndGet();
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Deadline exceeded for %s", request.getUrl());
+        }
+    }
+
+    /**
+     * Gets the {@link HostScheduler} scheduling network requests, or null if there is none.
+     */
+    public HostScheduler getHostScheduler() {
+        return mHostScheduler;
+    }
+
     /**
      * Gets the {@link Cache} instance being used.
      */
@@ -203,13 +550,18 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
+        List<Request<?>> canceled = new ArrayList<Request<?>>();
         synchronized (mCurrentRequests) {
             for (Request<?> request : mCurrentRequests) {
                 if (filter.apply(request)) {
-                    request.cancel();
+                    canceled.add(request);
                 }
             }
         }
+        // Cancel outside the lock, since canceling takes requests out of the dispatch queues.
+        for (Request<?> request : canceled) {
+            request.cancel();
+        }
     }
 
     /**
@@ -220,61 +572,290 @@ public class RequestQueue {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+        List<Request<?>> canceled;
+        synchronized (mCurrentRequests) {
+            Set<Request<?>> requests = mRequestsByTag.get(tag);
+            if (requests == null) {
+                return;
             }
-        });
+            canceled = new ArrayList<Request<?>>(requests);
+        }
+        for (Request<?> request : canceled) {
+            request.cancel();
+        }
     }
 
     /**
-     * Adds a Request to the dispatch queue.
-     * @param request The request to service
-     * @return The passed-in request
+     * Called when a request has been canceled. If the request is still waiting in the cache or
+     * network queue, it's taken out and finished right away, instead of when a dispatcher gets
+     * to it, so a burst of cancellations doesn't hold up the requests behind it.
      */
-    public <T> Request<T> add(Request<T> request) {
+    void onCanceled(Request<?> request) {
+        synchronized (mCurrentRequests) {
+            if (!mCurrentRequests.contains(request)) {
+                return;
+            }
+        }
+        // A dispatcher may take the request at any time; whoever removes it finishes it.
+        if (mCacheQueue.remove(request) || mNetworkQueue.remove(request)
+                || removeRetry(request)) {
+            request.finish("cancel-removed-from-queue");
+        }
+    }
+
+    /** Removes a request waiting to be retried, returning whether it was waiting. */
+    private boolean removeRetry(Request<?> request) {
+        if (mRetryQueue.isEmpty()) {
+            return false;
+        }
+        for (RetryDispatcher.DelayedRetry retry : mRetryQueue) {
+            if (retry.request == request) {
+                return mRetryQueue.remove(retry);
+            }
+        }
+        return false;
+    }
+
+    /** Called when the tag of a request is changed, to keep the tag index up to date. */
+    void onTagChanged(Request<?> request, Object oldTag) {
+        synchronized (mCurrentRequests) {
+            if (mCurrentRequests.contains(request)) {
+                removeFromTagIndex(request, oldTag);
+                addToTagIndex(request, request.getTag());
+            }
+        }
+    }
+
+    /** Must hold the mCurrentRequests lock. */
+    private void addToTagIndex(Request<?> request, Object tag) {
+        if (tag == null) {
+            return;
+        }
+        Set<Request<?>> requests = mRequestsByTag.get(tag);
+        if (requests == null) {
+            requests = new HashSet<Request<?>>();
+            mRequestsByTag.put(tag, requests);
+        }
+        requests.add(request);
+    }
+
+    /** Must hold the mCurrentRequests lock. */
+    private void removeFromTagIndex(Request<?> request, Object tag) {
+        Set<Request<?>> requests = tag != null ? mRequestsByTag.get(tag) : null;
+        if (requests != null && requests.remove(request) && requests.isEmpty()) {
+            // Drop the set, so tags such as finished activities aren't kept alive.
+            mRequestsByTag.remove(tag);
+        }
+    }
+
+    /**
+     * Adds a request to the set of current requests without dispatching it, for requests that are
+     * sent as part of another one, such as a batch. It can then be canceled by
+     * {@link #cancelAll(Object)} and {@link #cancelAll(RequestFilter)}, and is removed from the
+     * set when it finishes.
+     */
+    void track(Request<?> request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
         synchronized (mCurrentRequests) {
             mCurrentRequests.add(request);
+            addToTagIndex(request, request.getTag());
         }
 
         // Process requests in the order they are added.
         // 分配request唯一的序列号.
         request.setSequence(getSequenceNumber());
+    }
+
+    /**
+     * Adds a Request to the dispatch queue.
+     * @param request The request to service
+     * @return The passed-in request
+     */
+    public <T> Request<T> add(Request<T> request) {
+        track(request);
         request.addMarker("add-to-queue");
 
+        // Don't dispatch requests that nobody is waiting for anymore.
+        if (request.isPastDeadline()) {
+            request.addMarker("add-discard-deadline");
+            onDeadlineExceeded(request);
+            mDelivery.postError(request, new DeadlineExceededError());
+            return request;
+        }
+
+        // Fix the cache key before it is used, in case it depends on the body.
+        request.freezeCacheKey();
+
         // If the request is uncacheable, skip the cache queue and go straight to the network.
         // request不允许缓存,则直接将request加入到mNetworkQueue当中
         if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
+            if (request.isSingleFlight()) {
+                addSingleFlight(request);
+            } else {
+                mNetworkQueue.add(request);
+            }
             return request;
         }
 
-        // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
+        // Wait on the request in flight if there's already one with the same cache key.
+        String cacheKey = request.getCacheKey();
+        while (true) {
+            InFlightRequest inFlight = mInFlightRequests.get(cacheKey);
+            if (inFlight == null) {
+                // 将Request加入到等待Map中,表示Request正在执行.
+                inFlight = new InFlightRequest(request);
+                if (mInFlightRequests.putIfAbsent(cacheKey, inFlight) == null) {
+                    mCacheQueue.add(request);
+                    return request;
+                }
+            } else if (inFlight.addWaiter(request)) {
                 // There is already a request in flight. Queue up.
                 // 表示RequestQueue正在调度该Request,因为后续相同的Request先入队列,排队等待执行.
-                Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request<?>>();
-                }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
+                request.addMarker("waiting-for-in-flight");
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
+                return request;
             } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                // 将Request加入到等待Map中,表示Request正在执行.
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                // The request in flight just completed; retire it and try again.
+                mInFlightRequests.remove(cacheKey, inFlight);
+            }
+        }
+    }
+
+    /**
+     * Sends an uncacheable single-flight request to the network, unless an identical request is
+     * already in flight, in which case it waits for that request's network response.
+     */
+    private void addSingleFlight(Request<?> request) {
+        String key = request.canShareNetworkResponse() ? getSingleFlightKey(request) : null;
+        if (key == null) {
+            mNetworkQueue.add(request);
+            return;
+        }
+        request.setSingleFlightKey(key);
+        mSingleFlightCount.incrementAndGet();
+        while (true) {
+            InFlightRequest inFlight = mSingleFlightRequests.get(key);
+            if (inFlight == null) {
+                inFlight = new InFlightRequest(request);
+                if (mSingleFlightRequests.putIfAbsent(key, inFlight) == null) {
+                    mNetworkQueue.add(request);
+                    return;
+                }
+            } else if (inFlight.addWaiter(request)) {
+                request.addMarker("waiting-for-single-flight");
+                return;
+            } else {
+                // The request in flight just completed; retire it and try again.
+                mSingleFlightRequests.remove(key, inFlight);
+            }
+        }
+    }
+
+    /**
+     * Returns the key identical single-flight requests share: the method, the URL and a hash of
+     * the body. Returns null if the body can't be built, in which case the request isn't shared.
+     */
+    private static String getSingleFlightKey(Request<?> request) {
+        byte[] body;
+        try {
+            body = request.getBody();
+        } catch (AuthFailureError e) {
+            return null;
+        }
+        String key = request.getMethod() + ":" + request.getUrl();
+        return body == null ? key : key + ":" + InternalUtils.sha1Hash(body);
+    }
+
+    /**
+     * Called by the network dispatchers with the network response of a successful request.
+     *
+     * <p>If {@code request} is an uncacheable single-flight request, the identical requests
+     * waiting on it each parse and are delivered their own response from the same network
+     * response.</p>
+     */
+    void onSingleFlightResponse(Request<?> request, NetworkResponse networkResponse) {
+        String key = request.getSingleFlightKey();
+        if (key == null) {
+            return;
+        }
+        InFlightRequest inFlight = mSingleFlightRequests.get(key);
+        if (inFlight == null || inFlight.mRequest != request) {
+            return;
+        }
+        mSingleFlightRequests.remove(key, inFlight);
+        List<Request<?>> waiters = inFlight.close();
+        for (Request<?> waiter : waiters) {
+            if (waiter.isPastDeadline()) {
+                // Let the network dispatcher drop it.
+                mNetworkQueue.add(waiter);
+                continue;
+            }
+            mSingleFlightSharedCount.incrementAndGet();
+            try {
+                Response<?> response = waiter.parseNetworkResponse(networkResponse);
+                waiter.addMarker("single-flight-response-parsed");
+                waiter.markDelivered();
+                mDelivery.postResponse(waiter, response);
+            } catch (Exception e) {
+                VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                mDelivery.postError(waiter, new VolleyError(e));
+            }
+        }
+    }
+
+    /**
+     * Called by the dispatchers once a successful response for {@code request} has been parsed,
+     * before it is delivered.
+     *
+     * <p>If {@code request} is in flight for its cache key, the requests waiting on it get the
+     * response too: requests that {@link Request#canShareResponseWith can share} it are delivered
+     * the same parsed response, others parse their own from the response's cache entry. Neither
+     * reads the cache again.</p>
+     */
+    void onResponseParsed(Request<?> request, Response<?> response) {
+        if (!request.shouldCache() || !response.isSuccess() || response.intermediate) {
+            return;
+        }
+        String cacheKey = request.getCacheKey();
+        InFlightRequest inFlight = mInFlightRequests.get(cacheKey);
+        if (inFlight == null || inFlight.mRequest != request) {
+            return;
+        }
+        mInFlightRequests.remove(cacheKey, inFlight);
+        List<Request<?>> waiters = inFlight.close();
+        if (waiters.isEmpty()) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Delivering response to %d waiting requests for cacheKey=%s.",
+                    waiters.size(), cacheKey);
+        }
+        Cache.Entry entry = response.cacheEntry;
+        for (Request<?> waiter : waiters) {
+            if (waiter.isPastDeadline()) {
+                // Let the cache dispatcher drop it.
+                mCacheQueue.add(waiter);
+            } else if (waiter.canShareResponseWith(request)) {
+                waiter.addMarker("coalesced-response-shared");
+                waiter.markDelivered();
+                mDelivery.postResponse(waiter, response);
+            } else if (entry != null && entry.data != null) {
+                try {
+                    Response<?> parsed = waiter.parseNetworkResponse(
+                            new NetworkResponse(entry.data, entry.responseHeaders));
+                    waiter.addMarker("coalesced-response-parsed");
+                    waiter.markDelivered();
+                    mDelivery.postResponse(waiter, parsed);
+                } catch (Exception e) {
+                    VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                    mDelivery.postError(waiter, new VolleyError(e));
+                }
+            } else {
+                mCacheQueue.add(waiter);
             }
-            return request;
         }
     }
 
@@ -290,7 +871,15 @@ public class RequestQueue {
         // Remove from the set of requests currently being processed.
         // 从正在执行的Request队列中删除指定的request.
         synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+            if (mCurrentRequests.remove(request)) {
+                removeFromTagIndex(request, request.getTag());
+            }
+        }
+        if (mHostScheduler != null) {
+            mHostScheduler.onRequestFinished(request);
+        }
+        if (mExecutorDispatcher != null) {
+            mExecutorDispatcher.onRequestFinished();
         }
 
         // 观察者模式,通知Observer该request请求结束.
@@ -301,22 +890,36 @@ public class RequestQueue {
         }
 
         if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                // 因为当前Request已经正常结束,而且该request是可以缓存的,所以这时需要直接把正在等待的所有相同
-                // url的Request全部加入到缓存队列中,从缓存系统读取结果后回调用户接口.
-                String cacheKey = request.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
+            // 当前Request结束时没有把结果交给等待的Request(例如出错或者被取消),所以这时需要把正在等待的所有相同
+            // url的Request全部加入到缓存队列中,从缓存系统读取结果后回调用户接口.
+            String cacheKey = request.getCacheKey();
+            InFlightRequest inFlight = mInFlightRequests.get(cacheKey);
+            if (inFlight != null && inFlight.mRequest == request) {
+                mInFlightRequests.remove(cacheKey, inFlight);
+                List<Request<?>> waitingRequests = inFlight.close();
+                if (!waitingRequests.isEmpty()) {
                     if (VolleyLog.DEBUG) {
                         VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
                                 waitingRequests.size(), cacheKey);
                     }
                     // Process all queued up requests. They won't be considered as in flight, but
-                    // that's not a problem as the cache has been primed by 'request'.
+                    // that's not a problem as the cache has been primed by 'request', if it
+                    // could be.
                     mCacheQueue.addAll(waitingRequests);
                 }
             }
         }
+
+        // Without a network response to share, the requests waiting on a single-flight request
+        // go to the network themselves.
+        String singleFlightKey = request.getSingleFlightKey();
+        if (singleFlightKey != null) {
+            InFlightRequest inFlight = mSingleFlightRequests.get(singleFlightKey);
+            if (inFlight != null && inFlight.mRequest == request) {
+                mSingleFlightRequests.remove(singleFlightKey, inFlight);
+                mNetworkQueue.addAll(inFlight.close());
+            }
+        }
     }
 
     public  <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
@@ -333,4 +936,63 @@ public class RequestQueue {
         mFinishedListeners.remove(listener);
       }
     }
+
+    /**
+     * A cacheable request in flight, and the requests with the same cache key waiting on it.
+     * Waiters are pushed onto a lock-free stack, which is closed once the request completes so
+     * that late arrivals know to dispatch themselves instead.
+     */
+    private static class InFlightRequest {
+        /** Marks the waiter stack of a request that has completed. */
+        private static final Waiter CLOSED = new Waiter(null, null);
+
+        final Request<?> mRequest;
+        private final AtomicReference<Waiter> mWaiters = new AtomicReference<Waiter>();
+
+        InFlightRequest(Request<?> request) {
+            mRequest = request;
+        }
+
+        /**
+         * Adds a request to be completed with this one.
+         *
+         * @return false if this request has already completed
+         */
+        boolean addWaiter(Request<?> request) {
+            while (true) {
+                Waiter head = mWaiters.get();
+                if (head == CLOSED) {
+                    return false;
+                }
+                if (mWaiters.compareAndSet(head, new Waiter(request, head))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Marks this request as completed.
+         *
+         * @return the waiting requests, in the order they were added
+         */
+        List<Request<?>> close() {
+            Waiter head = mWaiters.getAndSet(CLOSED);
+            ArrayList<Request<?>> waiters = new ArrayList<Request<?>>();
+            for (Waiter w = head; w != null && w != CLOSED; w = w.mNext) {
+                waiters.add(w.mRequest);
+            }
+            Collections.reverse(waiters);
+            return waiters;
+        }
+    }
+
+    private static class Waiter {
+        final Request<?> mRequest;
+        final Waiter mNext;
+
+        Waiter(Request<?> request, Waiter next) {
+            mRequest = request;
+            mNext = next;
+        }
+    }
 }
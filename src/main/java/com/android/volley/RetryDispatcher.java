@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides a thread that moves requests waiting to be retried back to the network queue once
+ * their delay has passed. Network dispatchers don't wait out the delay themselves, so they are
+ * free for other requests in the meantime.
+ */
+class RetryDispatcher extends Thread {
+
+    /** A request waiting to be retried. */
+    static class DelayedRetry implements Delayed {
+        final Request<?> request;
+        final long dueNanos;
+
+        DelayedRetry(Request<?> request, long delayMs) {
+            this.request = request;
+            dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long diff = dueNanos - ((DelayedRetry) other).dueNanos;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    /** Requests waiting to be retried, kept by the {@link RequestQueue} across restarts. */
+    private final DelayQueue<DelayedRetry> mRetryQueue;
+
+    /** The queue of requests going out to the network. */
+    private final BlockingQueue<Request<?>> mNetworkQueue;
+
+    /** Used for telling us to die. */
+    private volatile boolean mQuit = false;
+
+    RetryDispatcher(DelayQueue<DelayedRetry> retryQueue,
+            BlockingQueue<Request<?>> networkQueue) {
+        mRetryQueue = retryQueue;
+        mNetworkQueue = networkQueue;
+        setDaemon(true);
+    }
+
+    /** Forces this dispatcher to quit immediately. Waiting requests stay in the queue. */
+    void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            DelayedRetry retry;
+            try {
+                retry = mRetryQueue.take();
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    return;
+                }
+                continue;
+            }
+            retry.request.addMarker("retry-queue-take");
+            mNetworkQueue.add(retry.request);
+        }
+    }
+}
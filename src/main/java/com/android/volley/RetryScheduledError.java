@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Thrown by a {@link Network} when a request should be retried after a delay. The network
+ * dispatcher puts the request back in its {@link RequestQueue} once the delay has passed,
+ * instead of delivering this error.
+ *
+ * @see BackoffRetryPolicy
+ */
+@SuppressWarnings("serial")
+public class RetryScheduledError extends VolleyError {
+    private final long mDelayMs;
+
+    /**
+     * @param error The error that caused the retry
+     * @param delayMs Time to wait before the retry
+     */
+    public RetryScheduledError(VolleyError error, long delayMs) {
+        super(error.networkResponse);
+        initCause(error);
+        mDelayMs = delayMs;
+    }
+
+    /** Returns the time to wait before the retry, in milliseconds. */
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+}
@@ -16,11 +16,15 @@
 
 package com.android.volley.toolbox;
 
+import android.net.Uri;
 import android.os.SystemClock;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.BackoffRetryPolicy;
 import com.android.volley.Cache;
 import com.android.volley.Cache.Entry;
+import com.android.volley.CircuitOpenError;
+import com.android.volley.DeadlineExceededError;
 import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
@@ -28,6 +32,7 @@ import com.android.volley.NoConnectionError;
 import com.android.volley.RedirectError;
 import com.android.volley.Request;
 import com.android.volley.RetryPolicy;
+import com.android.volley.RetryScheduledError;
 import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
 import com.android.volley.VolleyError;
@@ -66,13 +71,18 @@ public class BasicNetwork implements Network {
 
     protected final ByteArrayPool mPool;
 
+    /** Value of the Warning header added to stale responses served while a circuit is open. */
+    static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
+    private volatile CircuitBreaker mCircuitBreaker;
+
     /**
      * @param httpStack HTTP stack to be used
      */
     public BasicNetwork(HttpStack httpStack) {
         // If a pool isn't passed in, then build a small default pool that will give us a lot of
         // benefit and not use too much memory.
-        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+        this(httpStack, new SizeClassByteArrayPool(DEFAULT_POOL_SIZE));
     }
 
     /**
@@ -84,11 +94,42 @@ public class BasicNetwork implements Network {
         mPool = pool;
     }
 
+    /**
+     * Sets a circuit breaker to stop sending requests to hosts that keep failing, or null to send
+     * every request.
+     * <p>
+     * While a host's circuit is open, requests to it that have a cache entry, because it is
+     * expired or needs a refresh, get the cached data back as if the server had returned a 304,
+     * marked as {@link NetworkResponse#stale} so that {@link HttpHeaderParser} keeps it expired,
+     * and with a {@code Warning: 110} header for the caller.
+     * Other requests fail with a {@link CircuitOpenError}.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    /** Returns the circuit breaker in use, or null if there is none. */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
+    }
+
     //一次请求只有发生SocketTimeoutException 或ConnectTimeoutException或认证失败的401、403错误才会进行重试策略
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
+            // Don't start another attempt once the request's deadline has passed.
+            if (request.isPastDeadline()) {
+                request.addMarker("network-deadline-exceeded");
+                throw new DeadlineExceededError();
+            }
+            CircuitBreaker breaker = mCircuitBreaker;
+            String host = breaker != null ? getHost(request) : null;
+            if (breaker != null && !breaker.allowRequest(host)) {
+                return getCircuitOpenResponse(request, requestStart);
+            }
+            // Whether the circuit breaker has been told how this attempt went.
+            boolean outcomeRecorded = false;
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
             Map<String, String> responseHeaders = Collections.emptyMap();
@@ -106,6 +147,15 @@ public class BasicNetwork implements Network {
 
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
+                if (breaker != null) {
+                    // Any response but a server error shows the host is up.
+                    if (statusCode >= 500) {
+                        breaker.onFailure(host);
+                    } else {
+                        breaker.onSuccess(host);
+                    }
+                    outcomeRecorded = true;
+                }
 
                 //把HttpResponse 的头信息提取出来
                 responseHeaders = convertHeaders(httpResponse.getAllHeaders());
@@ -126,6 +176,12 @@ public class BasicNetwork implements Network {
                     // the new ones from the response.
                     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
                     entry.responseHeaders.putAll(responseHeaders);
+                    // The entry has been validated, so it is no longer stale.
+                    // http://tools.ietf.org/html/rfc7234#section-4.3.4
+                    if (!responseHeaders.containsKey("Warning")
+                            && isStaleWarning(entry.responseHeaders.get("Warning"))) {
+                        entry.responseHeaders.remove("Warning");
+                    }
                     return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data,
                             entry.responseHeaders, true,
                             SystemClock.elapsedRealtime() - requestStart);
@@ -137,6 +193,17 @@ public class BasicNetwork implements Network {
                 	request.setRedirectUrl(newUrl);
                 }
 
+                // Streaming requests parse successful responses straight off the network.
+                if (request instanceof StreamingRequest && httpResponse.getEntity() != null
+                        && statusCode >= 200 && statusCode <= 299) {
+                    responseContents = streamEntity((StreamingRequest<?>) request, statusCode,
+                            responseHeaders, httpResponse.getEntity());
+                    long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                    logSlowRequests(requestLifetime, request, responseContents, statusLine);
+                    return new NetworkResponse(statusCode, responseContents, responseHeaders,
+                            false, requestLifetime);
+                }
+
                 // Some responses such as 204s do not have content.  We must check.
                 if (httpResponse.getEntity() != null) {
                   responseContents = entityToBytes(httpResponse.getEntity());
@@ -157,8 +224,10 @@ public class BasicNetwork implements Network {
                         SystemClock.elapsedRealtime() - requestStart);
             } catch (SocketTimeoutException e) {
                 // 捕获各种异常，进行重试操作.
+                outcomeRecorded |= recordFailure(breaker, host, request);
                 attemptRetryOnException("socket", request, new TimeoutError());
             } catch (ConnectTimeoutException e) {
+                outcomeRecorded |= recordFailure(breaker, host, request);
                 attemptRetryOnException("connection", request, new TimeoutError());
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + request.getUrl(), e);
@@ -168,6 +237,7 @@ public class BasicNetwork implements Network {
                 if (httpResponse != null) {
                     statusCode = httpResponse.getStatusLine().getStatusCode();
                 } else {
+                    outcomeRecorded |= recordFailure(breaker, host, request);
                     throw new NoConnectionError(e);
                 }
                 if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || 
@@ -194,10 +264,61 @@ public class BasicNetwork implements Network {
                 } else {
                     throw new NetworkError(e);
                 }
+            } finally {
+                if (breaker != null && !outcomeRecorded) {
+                    // Free the probe slot if this was a probe.
+                    breaker.onCanceled(host);
+                }
             }
         }
     }
 
+    /**
+     * Tells the circuit breaker, if there is one, that an attempt failed without a response,
+     * unless it failed because the request was canceled.
+     *
+     * @return whether the failure was recorded
+     */
+    private static boolean recordFailure(CircuitBreaker breaker, String host,
+            Request<?> request) {
+        if (breaker == null || request.isCanceled()) {
+            return false;
+        }
+        breaker.onFailure(host);
+        return true;
+    }
+
+    /**
+     * Returns the response for a request whose host's circuit is open: the stale cache entry if
+     * there is one, marked as stale and with a Warning header.
+     *
+     * @throws CircuitOpenError if there is no cache entry
+     */
+    private static NetworkResponse getCircuitOpenResponse(Request<?> request, long requestStart)
+            throws CircuitOpenError {
+        Entry entry = request.getCacheEntry();
+        if (entry == null || entry.data == null) {
+            request.addMarker("network-circuit-open");
+            throw new CircuitOpenError();
+        }
+        request.addMarker("network-circuit-open-stale");
+        Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(entry.responseHeaders);
+        headers.put("Warning", STALE_WARNING);
+        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data, headers, true,
+                SystemClock.elapsedRealtime() - requestStart, true);
+    }
+
+    /** Returns whether a Warning header value says that a response is stale. */
+    static boolean isStaleWarning(String warning) {
+        return warning != null && (warning.startsWith("110") || warning.startsWith("111"));
+    }
+
+    private static String getHost(Request<?> request) {
+        String host = Uri.parse(request.getUrl()).getHost();
+        return host != null ? host : "";
+    }
+
     /**
      * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
      */
@@ -228,6 +349,13 @@ public class BasicNetwork implements Network {
                     String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
             throw e;
         }
+        if (retryPolicy instanceof BackoffRetryPolicy) {
+            // Free this thread; the request queue retries the request after the delay.
+            long delayMs = ((BackoffRetryPolicy) retryPolicy).getRetryDelayMs();
+            request.addMarker(String.format("%s-retry-scheduled [timeout=%s, delay=%s]",
+                    logPrefix, oldTimeout, delayMs));
+            throw new RetryScheduledError(exception, delayMs);
+        }
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
     }
 
@@ -286,6 +414,29 @@ public class BasicNetwork implements Network {
         }
     }
 
+    /**
+     * Hands the content of HttpEntity to a streaming request to parse.
+     *
+     * @return the body if the request kept it for the cache, otherwise an empty array
+     */
+    private byte[] streamEntity(StreamingRequest<?> request, int statusCode,
+            Map<String, String> headers, HttpEntity entity) throws IOException, ServerError {
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            byte[] body = request.streamResponse(statusCode, headers, in, mPool);
+            return body != null ? body : new byte[0];
+        } finally {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+        }
+    }
+
     /**
      * Converts Headers[] to Map<String, String>.
      */
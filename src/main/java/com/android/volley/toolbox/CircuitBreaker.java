@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks request failures for each host and stops sending requests to hosts that are failing,
+ * so requests fail fast instead of each waiting out a timeout.
+ * <p>
+ * Each host starts {@link State#CLOSED}. Once enough of its recent requests have failed, it
+ * opens: requests to it aren't sent for a while, and {@link BasicNetwork} fails them with a
+ * {@link com.android.volley.CircuitOpenError} or answers them from a stale cache entry. After the
+ * wait the host is half-open, and a single request is let through as a probe. If the probe
+ * succeeds the host closes again; if it fails the host opens for another wait.
+ * <p>
+ * Timeouts, connection failures and 5xx responses count as failures. Other responses, including
+ * 4xx errors, show that the host is up and count as successes.
+ */
+public class CircuitBreaker {
+
+    /** The state of a host. */
+    public enum State {
+        /** Requests are sent. */
+        CLOSED,
+        /** Requests aren't sent. */
+        OPEN,
+        /** One request is sent to see if the host has recovered. */
+        HALF_OPEN
+    }
+
+    /** Callback interface for changes in the state of a host. */
+    public interface Listener {
+        /** Called when a host changes from one state to another. */
+        public void onStateChanged(String host, State from, State to);
+    }
+
+    /** Default number of recent requests looked at. */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+
+    /** Default number of recent requests needed before a host can open. */
+    public static final int DEFAULT_MIN_REQUESTS = 5;
+
+    /** Default share of recent requests that must fail for a host to open. */
+    public static final float DEFAULT_FAILURE_RATIO = 0.5f;
+
+    /** Default time a host stays open before a probe is sent. */
+    public static final long DEFAULT_OPEN_MS = 5000;
+
+    /** State kept for each host. */
+    private static class Host {
+        final String name;
+        /** Outcomes of recent requests, true for failures, as a ring. */
+        final boolean[] outcomes;
+        int count;
+        int next;
+        int failures;
+        State state = State.CLOSED;
+        long openedMs;
+        boolean probing;
+
+        Host(String name, int windowSize) {
+            this.name = name;
+            outcomes = new boolean[windowSize];
+        }
+
+        void record(boolean failure) {
+            if (count == outcomes.length) {
+                failures -= outcomes[next] ? 1 : 0;
+            } else {
+                count++;
+            }
+            outcomes[next] = failure;
+            failures += failure ? 1 : 0;
+            next = (next + 1) % outcomes.length;
+        }
+
+        void reset() {
+            count = 0;
+            next = 0;
+            failures = 0;
+        }
+    }
+
+    /** A change of state to pass to the listener. */
+    private static class Transition {
+        final String host;
+        final State from;
+        final State to;
+
+        Transition(String host, State from, State to) {
+            this.host = host;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final int mWindowSize;
+    private final int mMinRequests;
+    private final float mFailureRatio;
+    private final long mOpenMs;
+
+    /** Guarded by itself. */
+    private final Map<String, Host> mHosts = new HashMap<String, Host>();
+
+    private volatile Listener mListener;
+
+    /**
+     * Creates a circuit breaker with the default thresholds.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_MIN_REQUESTS, DEFAULT_FAILURE_RATIO, DEFAULT_OPEN_MS);
+    }
+
+    /**
+     * @param windowSize Number of recent requests to look at for each host
+     * @param minRequests Number of recent requests needed before a host can open
+     * @param failureRatio Share of recent requests that must fail for a host to open
+     * @param openMs Time a host stays open before a probe is sent
+     */
+    public CircuitBreaker(int windowSize, int minRequests, float failureRatio, long openMs) {
+        if (windowSize < 1 || minRequests < 1 || minRequests > windowSize) {
+            throw new IllegalArgumentException("minRequests must be between 1 and windowSize");
+        }
+        if (failureRatio <= 0f || failureRatio > 1f) {
+            throw new IllegalArgumentException("failureRatio must be above 0 and at most 1");
+        }
+        mWindowSize = windowSize;
+        mMinRequests = minRequests;
+        mFailureRatio = failureRatio;
+        mOpenMs = openMs;
+    }
+
+    /** Sets a listener to call when a host changes state, or null for none. */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /** Returns the state of a host. */
+    public State getState(String host) {
+        synchronized (mHosts) {
+            Host state = mHosts.get(host);
+            return state != null ? state.state : State.CLOSED;
+        }
+    }
+
+    /**
+     * Returns whether a request to a host may be sent. A request that is allowed must be followed
+     * by a call to {@link #onSuccess}, {@link #onFailure} or {@link #onCanceled}.
+     */
+    public boolean allowRequest(String host) {
+        Transition transition = null;
+        boolean allowed;
+        synchronized (mHosts) {
+            Host state = getHost(host);
+            if (state.state == State.OPEN && elapsedRealtime() - state.openedMs >= mOpenMs) {
+                transition = setState(state, State.HALF_OPEN);
+            }
+            if (state.state == State.CLOSED) {
+                allowed = true;
+            } else if (state.state == State.HALF_OPEN && !state.probing) {
+                state.probing = true;
+                allowed = true;
+            } else {
+                allowed = false;
+            }
+        }
+        notifyListener(transition);
+        return allowed;
+    }
+
+    /** Called when a request to a host succeeded, or got a response showing the host is up. */
+    public void onSuccess(String host) {
+        Transition transition = null;
+        synchronized (mHosts) {
+            Host state = getHost(host);
+            if (state.state == State.HALF_OPEN && state.probing) {
+                state.probing = false;
+                state.reset();
+                transition = setState(state, State.CLOSED);
+            } else if (state.state == State.CLOSED) {
+                state.record(false);
+            }
+        }
+        notifyListener(transition);
+    }
+
+    /** Called when a request to a host failed in a way that suggests the host is down. */
+    public void onFailure(String host) {
+        Transition transition = null;
+        synchronized (mHosts) {
+            Host state = getHost(host);
+            if (state.state == State.HALF_OPEN && state.probing) {
+                state.probing = false;
+                state.openedMs = elapsedRealtime();
+                transition = setState(state, State.OPEN);
+            } else if (state.state == State.CLOSED) {
+                state.record(true);
+                if (state.count >= mMinRequests
+                        && state.failures >= mFailureRatio * state.count) {
+                    state.openedMs = elapsedRealtime();
+                    transition = setState(state, State.OPEN);
+                }
+            }
+        }
+        notifyListener(transition);
+    }
+
+    /**
+     * Called when a request that was allowed ended without saying anything about the host, for
+     * example because it was canceled. Lets another probe through if it was one.
+     */
+    public void onCanceled(String host) {
+        synchronized (mHosts) {
+            Host state = mHosts.get(host);
+            if (state != null && state.state == State.HALF_OPEN) {
+                state.probing = false;
+            }
+        }
+    }
+
+    /** Returns the clock used to time open hosts; can be replaced in tests. */
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /** Must hold the mHosts lock. */
+    private Host getHost(String host) {
+        Host state = mHosts.get(host);
+        if (state == null) {
+            state = new Host(host, mWindowSize);
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+    /** Must hold the mHosts lock. */
+    private static Transition setState(Host host, State state) {
+        Transition transition = new Transition(host.name, host.state, state);
+        host.state = state;
+        return transition;
+    }
+
+    private void notifyListener(Transition transition) {
+        Listener listener = mListener;
+        if (transition != null && listener != null) {
+            listener.onStateChanged(transition.host, transition.from, transition.to);
+        }
+    }
+}
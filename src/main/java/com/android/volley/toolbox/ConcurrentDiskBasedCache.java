@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.toolbox.DiskBasedCache.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DiskBasedCache} alternative for caches shared by several dispatchers.
+ *
+ * <p>{@link DiskBasedCache} does all of its work, including file I/O and pruning, while holding
+ * a single lock, so a large {@link #put} blocks {@link #get} of every other key. This cache keeps
+ * its index in a {@link ConcurrentHashMap} and only serializes operations on the same file, using
+ * a fixed set of lock stripes. LRU order is tracked with access stamps, which are only sorted
+ * when the cache has to be pruned.
+ *
+ * <p>The on-disk format is the same as {@link DiskBasedCache}'s, so either can be used on the
+ * same directory.
+ */
+public class ConcurrentDiskBasedCache implements Cache {
+
+    /** Number of locks that file operations are striped across. Must be a power of two. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Map of the Key, Node pairs. */
+    private final ConcurrentHashMap<String, Node> mEntries;
+
+    /** Total amount of space currently used by the cache in bytes. */
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /** Source of access stamps; higher is more recently used. */
+    private final AtomicLong mClock = new AtomicLong();
+
+    /** Locks guarding the cache files, selected by file name. */
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+
+    /** Held while pruning, so that only one thread prunes at a time. */
+    private final Object mPruneLock = new Object();
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /**
+     * Constructs an instance of the ConcurrentDiskBasedCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param concurrencyLevel The estimated number of threads using the cache concurrently.
+     */
+    public ConcurrentDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes,
+            int concurrencyLevel) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mEntries = new ConcurrentHashMap<String, Node>(16, .75f, concurrencyLevel);
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Constructs an instance of the ConcurrentDiskBasedCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public ConcurrentDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, 4);
+    }
+
+    /**
+     * Constructs an instance of the ConcurrentDiskBasedCache at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public ConcurrentDiskBasedCache(File rootDirectory) {
+        this(rootDirectory, DiskBasedCache.DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        clear(0);
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /** Acquires the lock stripes from {@code index} on, then deletes everything. */
+    private void clear(int index) {
+        if (index < mLocks.length) {
+            synchronized (mLocks[index]) {
+                clear(index + 1);
+            }
+            return;
+        }
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mEntries.clear();
+        mTotalSize.set(0);
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        if (!mEntries.containsKey(key)) {
+            return null;
+        }
+        String filename = DiskBasedCache.getFilenameForKey(key);
+        synchronized (lockFor(filename)) {
+            return getLocked(key, filename);
+        }
+    }
+
+    private Entry getLocked(String key, String filename) {
+        Node node = mEntries.get(key);
+        if (node == null) {
+            return null;
+        }
+        File file = new File(mRootDirectory, filename);
+        try {
+            byte[] data = DiskBasedCache.readData(file, node.header);
+            node.accessed = mClock.incrementAndGet();
+            return node.header.toCacheEntry(data);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeLocked(key, filename);
+            return null;
+        } catch (RuntimeException e) {
+            // A corrupt header mustn't fail the request; drop the entry as for an IOException.
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeLocked(key, filename);
+            return null;
+        }
+    }
+
+    /**
+     * Initializes the cache by scanning for all files currently in the specified root directory.
+     * Creates the root directory if necessary.
+     */
+    @Override
+    public void initialize() {
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            return;
+        }
+
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            synchronized (lockFor(file.getName())) {
+                CountingInputStream fis = null;
+                try {
+                    fis = new CountingInputStream(
+                            new BufferedInputStream(new FileInputStream(file)), file.length());
+                    CacheHeader entry = CacheHeader.readHeader(fis);
+                    entry.headerLength = fis.bytesRead;
+                    // Like entries that are put, count the data only.
+                    entry.size = file.length() - entry.headerLength;
+                    // Entries put while the cache was initializing are newer than the file.
+                    Node node = new Node(entry, mClock.incrementAndGet());
+                    if (mEntries.putIfAbsent(entry.key, node) == null) {
+                        mTotalSize.addAndGet(entry.size);
+                    }
+                } catch (IOException e) {
+                    file.delete();
+                } finally {
+                    try {
+                        if (fis != null) {
+                            fis.close();
+                        }
+                    } catch (IOException ignored) { }
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        String filename = DiskBasedCache.getFilenameForKey(key);
+        synchronized (lockFor(filename)) {
+            Entry entry = getLocked(key, filename);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                putLocked(key, filename, entry);
+            }
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        String filename = DiskBasedCache.getFilenameForKey(key);
+        synchronized (lockFor(filename)) {
+            putLocked(key, filename, entry);
+        }
+        // Prune without holding a file lock, since pruning acquires others.
+        pruneIfNeeded();
+    }
+
+    private void putLocked(String key, String filename, Entry entry) {
+        File file = new File(mRootDirectory, filename);
+        try {
+            CacheHeader e = DiskBasedCache.writeFile(file, key, entry);
+            Node old = mEntries.put(key, new Node(e, mClock.incrementAndGet()));
+            mTotalSize.addAndGet(old == null ? e.size : e.size - old.header.size);
+            return;
+        } catch (IOException e) {
+        }
+        boolean deleted = file.delete();
+        if (!deleted) {
+            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        String filename = DiskBasedCache.getFilenameForKey(key);
+        synchronized (lockFor(filename)) {
+            removeLocked(key, filename);
+        }
+    }
+
+    private void removeLocked(String key, String filename) {
+        boolean deleted = new File(mRootDirectory, filename).delete();
+        Node node = mEntries.remove(key);
+        if (node != null) {
+            mTotalSize.addAndGet(-node.header.size);
+        }
+        if (!deleted) {
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s", key, filename);
+        }
+    }
+
+    /**
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(String key) {
+        return new File(mRootDirectory, DiskBasedCache.getFilenameForKey(key));
+    }
+
+    private Object lockFor(String filename) {
+        int h = filename.hashCode();
+        // Spread the bits, as file names of similar keys share a prefix.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return mLocks[h & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Evicts the least recently used entries if the cache is over its maximum size, down to
+     * {@link DiskBasedCache#HYSTERESIS_FACTOR} of the maximum.
+     */
+    private void pruneIfNeeded() {
+        if (mTotalSize.get() < mMaxCacheSizeInBytes) {
+            return;
+        }
+        synchronized (mPruneLock) {
+            // Another thread may have pruned while we were waiting.
+            if (mTotalSize.get() < mMaxCacheSizeInBytes) {
+                return;
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Pruning old cache entries.");
+            }
+
+            long before = mTotalSize.get();
+            int prunedFiles = 0;
+            long startTime = SystemClock.elapsedRealtime();
+
+            // Copy the stamps first, since they may change while sorting.
+            Candidate[] candidates = new Candidate[mEntries.size()];
+            int count = 0;
+            Iterator<Map.Entry<String, Node>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext() && count < candidates.length) {
+                Map.Entry<String, Node> entry = iterator.next();
+                candidates[count++] = new Candidate(entry.getKey(), entry.getValue());
+            }
+            Arrays.sort(candidates, 0, count);
+
+            for (int i = 0; i < count; i++) {
+                Candidate candidate = candidates[i];
+                String filename = DiskBasedCache.getFilenameForKey(candidate.key);
+                synchronized (lockFor(filename)) {
+                    // Skip entries that were replaced or used since the snapshot.
+                    Node node = mEntries.get(candidate.key);
+                    if (node != candidate.node || node.accessed != candidate.accessed) {
+                        continue;
+                    }
+                    removeLocked(candidate.key, filename);
+                }
+                prunedFiles++;
+                if (mTotalSize.get() < mMaxCacheSizeInBytes * DiskBasedCache.HYSTERESIS_FACTOR) {
+                    break;
+                }
+            }
+
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("pruned %d files, %d bytes, %d ms", prunedFiles,
+                        (mTotalSize.get() - before), SystemClock.elapsedRealtime() - startTime);
+            }
+        }
+    }
+
+    /** An index entry: the cached header plus when it was last used. */
+    private static class Node {
+        final CacheHeader header;
+        volatile long accessed;
+
+        Node(CacheHeader header, long accessed) {
+            this.header = header;
+            this.accessed = accessed;
+        }
+    }
+
+    /** A snapshot of a Node's access stamp, ordered oldest first. */
+    private static class Candidate implements Comparable<Candidate> {
+        final String key;
+        final Node node;
+        final long accessed;
+
+        Candidate(String key, Node node) {
+            this.key = key;
+            this.node = node;
+            this.accessed = node.accessed;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return accessed < other.accessed ? -1 : (accessed == other.accessed ? 0 : 1);
+        }
+    }
+}
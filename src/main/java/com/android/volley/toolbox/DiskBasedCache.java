@@ -22,7 +22,8 @@ import com.android.volley.Cache;
 import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,20 +32,31 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>By default {@link #initialize()} reads the header of every file in the directory. A cache
+ * constructed with {@code useJournal} set instead keeps an index of its entries in a journal file
+ * and reads only that on startup, falling back to reading the headers if it is missing or
+ * corrupt.
  */
 public class DiskBasedCache implements Cache {
 
     /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
+    private final LinkedHashMap<String, CacheHeader> mEntries =
             new LinkedHashMap<String, CacheHeader>(16, .75f, true);
 
     /** Total amount of space currently used by the cache in bytes. */
@@ -60,23 +72,41 @@ public class DiskBasedCache implements Cache {
 
     /** Default maximum disk usage in bytes. */
     /** 默认硬盘最大的缓存空间(5M). */
-    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+    static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
     /** High water mark percentage for the cache */
-    private static final float HYSTERESIS_FACTOR = 0.9f;
+    static final float HYSTERESIS_FACTOR = 0.9f;
 
     /** Magic number for current version of cache file format. */
     /** 标记缓存起始的MAGIC_NUMBER. */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /** Index of the entries on disk, or null if the cache doesn't keep a journal. */
+    private final DiskCacheJournal mJournal;
+
+    /** Thread compacting the journal in the background, if any. */
+    private Thread mCompactionThread;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param useJournal Whether to keep a journal of the entries so that {@link #initialize()}
+     *     doesn't need to read every file in the directory.
      */
-    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes, boolean useJournal) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mJournal = useJournal ? new DiskCacheJournal(rootDirectory) : null;
+    }
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, false);
     }
 
     /**
@@ -101,6 +131,9 @@ public class DiskBasedCache implements Cache {
         }
         mEntries.clear();
         mTotalSize = 0;
+        if (mJournal != null) {
+            mJournal.rewrite(mEntries.values());
+        }
         VolleyLog.d("Cache cleared.");
     }
 
@@ -117,30 +150,22 @@ public class DiskBasedCache implements Cache {
         }
 
         File file = getFileForKey(key);
-        CountingInputStream cis = null;
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            // 读完CacheHeader部分,并通过CountingInputStream的bytesRead成员记录已经读取的字节数.
-            CacheHeader.readHeader(cis); // eat header
             // 读取缓存文件存储的HTTP响应体内容.
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
+            byte[] data = readData(file, entry);
+            if (mJournal != null) {
+                mJournal.appendRead(key);
+            }
             return entry.toCacheEntry(data);
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
             remove(key);
             return null;
-        }  catch (NegativeArraySizeException e) {
+        } catch (RuntimeException e) {
+            // A corrupt header mustn't fail the request; drop the entry as for an IOException.
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
             remove(key);
             return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
-            }
         }
     }
 
@@ -156,6 +181,13 @@ public class DiskBasedCache implements Cache {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
             }
+            if (mJournal != null) {
+                mJournal.rewrite(mEntries.values());
+            }
+            return;
+        }
+
+        if (mJournal != null && initializeFromJournal()) {
             return;
         }
 
@@ -164,11 +196,17 @@ public class DiskBasedCache implements Cache {
             return;
         }
         for (File file : files) {
-            BufferedInputStream fis = null;
+            if (mJournal != null && DiskCacheJournal.isJournalFile(file.getName())) {
+                continue;
+            }
+            CountingInputStream fis = null;
             try {
-                fis = new BufferedInputStream(new FileInputStream(file));
+                fis = new CountingInputStream(
+                        new BufferedInputStream(new FileInputStream(file)), file.length());
                 CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
+                entry.headerLength = fis.bytesRead;
+                // Like entries that are put, count the data only.
+                entry.size = file.length() - entry.headerLength;
                 putEntry(entry.key, entry);
             } catch (IOException e) {
                 if (file != null) {
@@ -182,6 +220,72 @@ public class DiskBasedCache implements Cache {
                 } catch (IOException ignored) { }
             }
         }
+        if (mJournal != null) {
+            mJournal.rewrite(mEntries.values());
+        }
+    }
+
+    /**
+     * Builds the index from the journal rather than from the cache files.
+     *
+     * <p>The directory is still listed (but no files are opened) so that entries whose file has
+     * gone missing or doesn't have the journaled size are dropped, and files the journal doesn't
+     * know about, e.g. because the process died before their PUT record was written, are deleted.
+     *
+     * @return true if successful, false if the cache files need to be scanned instead
+     */
+    private boolean initializeFromJournal() {
+        long startTime = SystemClock.elapsedRealtime();
+        LinkedHashMap<String, CacheHeader> entries =
+                new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+        boolean complete;
+        try {
+            complete = mJournal.read(entries);
+        } catch (IOException e) {
+            VolleyLog.d("Rebuilding corrupt cache journal: %s", e.toString());
+            mJournal.delete();
+            return false;
+        } catch (RuntimeException e) {
+            // Not expected with the lengths checked, but a corrupt journal mustn't fail
+            // initialization when the files can still be scanned.
+            VolleyLog.e(e, "Rebuilding unreadable cache journal");
+            mJournal.delete();
+            return false;
+        }
+        if (!complete && entries.isEmpty()) {
+            return false;
+        }
+
+        String[] names = mRootDirectory.list();
+        Set<String> files = new HashSet<String>();
+        if (names != null) {
+            Collections.addAll(files, names);
+        }
+        Set<String> indexed = new HashSet<String>();
+        for (CacheHeader entry : entries.values()) {
+            String filename = getFilenameForKey(entry.key);
+            long length = entry.headerLength + entry.size;
+            if (files.contains(filename) && new File(mRootDirectory, filename).length() == length) {
+                indexed.add(filename);
+                putEntry(entry.key, entry);
+            } else {
+                // Missing, or rewritten without its PUT record being journaled.
+                complete = false;
+            }
+        }
+        for (String name : files) {
+            if (!indexed.contains(name) && !DiskCacheJournal.isJournalFile(name)) {
+                new File(mRootDirectory, name).delete();
+            }
+        }
+        if (!complete) {
+            mJournal.rewrite(mEntries.values());
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Read cache journal: %d entries, %d ms",
+                    mEntries.size(), SystemClock.elapsedRealtime() - startTime);
+        }
+        return true;
     }
 
     /**
@@ -212,17 +316,12 @@ public class DiskBasedCache implements Cache {
         pruneIfNeeded(entry.data.length);
         File file = getFileForKey(key);
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
-            }
-            fos.write(entry.data);
-            fos.close();
+            CacheHeader e = writeFile(file, key, entry);
             putEntry(key, e);
+            if (mJournal != null) {
+                mJournal.appendPut(e);
+                compactJournalIfNeeded();
+            }
             return;
         } catch (IOException e) {
         }
@@ -239,6 +338,9 @@ public class DiskBasedCache implements Cache {
     public synchronized void remove(String key) {
         boolean deleted = getFileForKey(key).delete();
         removeEntry(key);
+        if (mJournal != null) {
+            mJournal.appendRemove(key);
+        }
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
                     key, getFilenameForKey(key));
@@ -251,7 +353,7 @@ public class DiskBasedCache implements Cache {
      * @return A pseudo-unique filename.
      */
     /** 根据key的hash值生成对应的存储文件名称. */
-    private String getFilenameForKey(String key) {
+    static String getFilenameForKey(String key) {
         int firstHalfLength = key.length() / 2;
         String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
         localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
@@ -297,6 +399,9 @@ public class DiskBasedCache implements Cache {
                        e.key, getFilenameForKey(e.key));
             }
             iterator.remove();
+            if (mJournal != null) {
+                mJournal.appendRemove(e.key);
+            }
             prunedFiles++;
 
             if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
@@ -311,6 +416,52 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Rewrites the journal on a background thread if most of its records are redundant.
+     */
+    private void compactJournalIfNeeded() {
+        if ((mCompactionThread != null && mCompactionThread.isAlive())
+                || !mJournal.needsCompaction(mEntries.size())) {
+            return;
+        }
+        final List<CacheHeader> snapshot = new ArrayList<CacheHeader>(mEntries.values());
+        mJournal.beginCompaction();
+        mCompactionThread = new Thread("volley-journal-compaction") {
+            @Override
+            public void run() {
+                boolean written;
+                try {
+                    mJournal.writeCompactedJournal(snapshot);
+                    written = true;
+                } catch (IOException e) {
+                    VolleyLog.e("Failed to compact cache journal: %s", e.toString());
+                    written = false;
+                }
+                synchronized (DiskBasedCache.this) {
+                    if (written) {
+                        mJournal.finishCompaction(snapshot.size());
+                    } else {
+                        mJournal.abortCompaction();
+                    }
+                }
+            }
+        };
+        mCompactionThread.start();
+    }
+
+    /**
+     * Waits for a background compaction of the journal, if any, to finish.
+     */
+    void awaitJournalCompaction() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mCompactionThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
     /**
      * Puts the entry with the specified key into the cache.
      * @param key The key to identify the entry by.
@@ -339,10 +490,78 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Writes a cache file for the entry, and returns its header.
+     */
+    static CacheHeader writeFile(File file, String key, Entry entry) throws IOException {
+        // Serialize the header first so its length, and thus the offset of the data, is known.
+        CacheHeader e = new CacheHeader(key, entry);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        if (!e.writeHeader(header)) {
+            VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
+            throw new IOException();
+        }
+        e.headerLength = header.size();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            header.writeTo(fos);
+            fos.write(entry.data);
+        } finally {
+            fos.close();
+        }
+        return e;
+    }
+
+    /**
+     * Reads the data of a cache file, i.e. everything after the header, with positional reads
+     * rather than through a stream.
+     *
+     * <p>The file must start with a header for the entry's key that is exactly
+     * {@code entry.headerLength} bytes long, followed by {@code entry.size} bytes of data.
+     * Otherwise the index is stale, e.g. because the process died between writing the file and
+     * journaling it, and an IOException is thrown rather than returning the wrong bytes.
+     */
+    static byte[] readData(File file, CacheHeader entry) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            long length = channel.size() - entry.headerLength;
+            if (entry.headerLength <= 0 || length != entry.size || length > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected size " + channel.size() + " with header of "
+                        + entry.headerLength + " bytes, expected " + entry.size + " of data");
+            }
+            CountingInputStream header = new CountingInputStream(
+                    new ByteArrayInputStream(readFully(channel, 0, entry.headerLength)),
+                    entry.headerLength);
+            CacheHeader onDisk = CacheHeader.readHeader(header);
+            if (!entry.key.equals(onDisk.key) || header.bytesRead != entry.headerLength) {
+                throw new IOException("Stale cache index for " + entry.key);
+            }
+            return readFully(channel, entry.headerLength, (int) length);
+        } finally {
+            fis.close();
+        }
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[length]);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        return buffer.array();
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
+     *
+     * @throws IOException if {@code length} is negative, or more than is left in a
+     *     {@link CountingInputStream} of known length, e.g. because it was read from a corrupt file
      * */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+    static byte[] streamToBytes(InputStream in, int length) throws IOException {
+        checkLength(in, length);
         byte[] bytes = new byte[length];
         int count;
         int pos = 0;
@@ -394,6 +613,10 @@ public class DiskBasedCache implements Cache {
         /** HTTP的响应headers. */
         public Map<String, String> responseHeaders;
 
+        /** Length of the serialized header, i.e. the offset of the data in the cache file.
+         * (This is not serialized as part of the header.) */
+        public int headerLength;
+
         private CacheHeader() { }
 
         /**
@@ -481,11 +704,28 @@ public class DiskBasedCache implements Cache {
     }
 
     /** 继承FilterInputStream,增加记录读取总字节数的功能. */
-    private static class CountingInputStream extends FilterInputStream {
-        private int bytesRead = 0;
+    static class CountingInputStream extends FilterInputStream {
+        int bytesRead = 0;
+
+        /** Length of the underlying stream, or -1 if unknown. */
+        private final long mLength;
 
-        private CountingInputStream(InputStream in) {
+        CountingInputStream(InputStream in) {
+            this(in, -1);
+        }
+
+        /**
+         * @param length The length of {@code in}, so that lengths read from it can be checked
+         *     against the bytes that are left
+         */
+        CountingInputStream(InputStream in, long length) {
             super(in);
+            mLength = length;
+        }
+
+        /** Returns the number of bytes left in the stream, or -1 if its length is unknown. */
+        long bytesRemaining() {
+            return mLength < 0 ? -1 : mLength - bytesRead;
         }
 
         @Override
@@ -578,11 +818,31 @@ public class DiskBasedCache implements Cache {
     }
 
     static String readString(InputStream is) throws IOException {
-        int n = (int) readLong(is);
-        byte[] b = streamToBytes(is, n);
+        long n = readLong(is);
+        if (n > Integer.MAX_VALUE) {
+            throw new IOException("String too long: " + n);
+        }
+        byte[] b = streamToBytes(is, (int) n);
         return new String(b, "UTF-8");
     }
 
+    /**
+     * Throws an IOException if a length read from {@code is} is negative, or an EOFException if
+     * it is more than the bytes left in it, rather than letting it fail the allocation of a
+     * buffer.
+     */
+    private static void checkLength(InputStream is, long length) throws IOException {
+        long remaining = is instanceof CountingInputStream
+                ? ((CountingInputStream) is).bytesRemaining() : -1;
+        if (length < 0) {
+            throw new IOException("Negative length " + length);
+        }
+        if (remaining >= 0 && length > remaining) {
+            // Reading on would hit the end, as it would for a record cut short.
+            throw new EOFException("Length " + length + " with " + remaining + " bytes left");
+        }
+    }
+
     static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
         if (map != null) {
             writeInt(os, map.size());
@@ -602,6 +862,8 @@ public class DiskBasedCache implements Cache {
      */
     static Map<String, String> readStringStringMap(InputStream is) throws IOException {
         int size = readInt(is);
+        // Each entry takes at least the lengths of its key and value.
+        checkLength(is, size * 16L);
         Map<String, String> result = (size == 0)
                 ? Collections.<String, String>emptyMap()
                 : new HashMap<String, String>(size);
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/**
+ * Append-only index of a {@link DiskBasedCache} directory, so the cache can be initialized by
+ * reading one file instead of opening every cache file and parsing its header.
+ *
+ * <p>The journal starts with a magic number and a version, followed by one record per mutation:
+ * <ul>
+ *     <li>PUT: the entry's {@link CacheHeader} followed by its size and header length.</li>
+ *     <li>READ: the key of an entry that was read, so LRU order survives a restart. These are
+ *     buffered rather than flushed one by one, since losing some only affects eviction order.
+ *     </li>
+ *     <li>REMOVE: the key of an entry that was removed or pruned.</li>
+ * </ul>
+ * Replaying the records in order rebuilds the cache's index in access order. Once most of the
+ * records are redundant the journal is compacted, i.e. rewritten from the live entries.
+ *
+ * <p>This class is not thread safe; all calls must be made while holding the cache's lock, with
+ * the exception of {@link #writeCompactedJournal(Collection)}.
+ */
+class DiskCacheJournal {
+
+    /** Name of the journal file inside the cache directory. */
+    static final String JOURNAL_FILE = "journal";
+
+    /** Name of the file a new journal is written to before it replaces the journal. */
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /** Name of the file a background compaction writes the compacted journal to. */
+    static final String JOURNAL_FILE_COMPACT = "journal.compact";
+
+    /** Magic number for current version of journal file format. */
+    private static final int JOURNAL_MAGIC = 0x20150901;
+
+    /** Version 3: PUT records of scanned entries hold the size of the data, not of the file. */
+    private static final int JOURNAL_VERSION = 3;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_READ = 2;
+    private static final int OP_REMOVE = 3;
+
+    /** Don't bother compacting journals with fewer records than this. */
+    private static final int MIN_COMPACTION_RECORDS = 2000;
+
+    private final File mJournalFile;
+    private final File mTempFile;
+    private final File mCompactFile;
+
+    /** Writer for appending records, or null if the journal isn't open for writing. */
+    private OutputStream mWriter;
+
+    /** Number of records in the journal file, used to decide when to compact. */
+    private int mRecordCount;
+
+    /** Records appended while a compaction is in progress, or null if there is none. */
+    private ByteArrayOutputStream mPendingRecords;
+
+    /** Number of records in {@link #mPendingRecords}. */
+    private int mPendingCount;
+
+    DiskCacheJournal(File rootDirectory) {
+        mJournalFile = new File(rootDirectory, JOURNAL_FILE);
+        mTempFile = new File(rootDirectory, JOURNAL_FILE_TMP);
+        mCompactFile = new File(rootDirectory, JOURNAL_FILE_COMPACT);
+    }
+
+    /**
+     * Returns true if {@code name} is one of the journal's own files rather than a cache entry.
+     */
+    static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name)
+                || JOURNAL_FILE_COMPACT.equals(name);
+    }
+
+    /**
+     * Replays the journal into {@code entries}, which should be an access-ordered map.
+     *
+     * <p>A record cut short at the end of the file (e.g. by a crash mid-write) is dropped. In that
+     * case, or if the journal doesn't exist, false is returned and the caller must {@link #rewrite}
+     * the journal before appending to it. Otherwise the journal is opened for appending.
+     *
+     * @return true if the journal was read completely and is ready for appending
+     * @throws IOException if the journal is corrupt or can't be read
+     */
+    boolean read(LinkedHashMap<String, CacheHeader> entries) throws IOException {
+        if (!mJournalFile.exists()) {
+            return false;
+        }
+        int records = 0;
+        // Knowing the length lets lengths read from a corrupt journal be rejected.
+        InputStream is = new DiskBasedCache.CountingInputStream(
+                new BufferedInputStream(new FileInputStream(mJournalFile)), mJournalFile.length());
+        try {
+            if (DiskBasedCache.readInt(is) != JOURNAL_MAGIC
+                    || DiskBasedCache.readInt(is) != JOURNAL_VERSION) {
+                throw new IOException("Unexpected journal header");
+            }
+            while (true) {
+                int op = is.read();
+                if (op == -1) {
+                    break;
+                }
+                try {
+                    readRecord(op, is, entries);
+                } catch (EOFException e) {
+                    VolleyLog.d("Truncated cache journal after %d records", records);
+                    return false;
+                }
+                records++;
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) { }
+        }
+        openForAppend();
+        mRecordCount = records;
+        return mWriter != null;
+    }
+
+    private static void readRecord(int op, InputStream is,
+            LinkedHashMap<String, CacheHeader> entries) throws IOException {
+        switch (op) {
+            case OP_PUT:
+                CacheHeader header = CacheHeader.readHeader(is);
+                header.size = DiskBasedCache.readLong(is);
+                header.headerLength = DiskBasedCache.readInt(is);
+                entries.put(header.key, header);
+                break;
+            case OP_READ:
+                // Moves the entry to the end of the access order.
+                entries.get(DiskBasedCache.readString(is));
+                break;
+            case OP_REMOVE:
+                entries.remove(DiskBasedCache.readString(is));
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    /**
+     * Replaces the journal with one PUT record per entry, in iteration order, and opens it for
+     * appending. Any compaction in progress is abandoned.
+     */
+    void rewrite(Collection<CacheHeader> entries) {
+        close();
+        abortCompaction();
+        try {
+            writeJournal(mTempFile, entries);
+            if (!mTempFile.renameTo(mJournalFile)) {
+                throw new IOException("Could not rename " + mTempFile);
+            }
+        } catch (IOException e) {
+            VolleyLog.e("Failed to write cache journal: %s", e.toString());
+            delete();
+            return;
+        }
+        openForAppend();
+        mRecordCount = entries.size();
+    }
+
+    private void openForAppend() {
+        try {
+            mWriter = new BufferedOutputStream(new FileOutputStream(mJournalFile, true));
+        } catch (IOException e) {
+            VolleyLog.e("Failed to open cache journal: %s", e.toString());
+            mWriter = null;
+        }
+    }
+
+    void appendPut(CacheHeader header) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(OP_PUT);
+        try {
+            if (!header.writeHeader(record)) {
+                return;
+            }
+            DiskBasedCache.writeLong(record, header.size);
+            DiskBasedCache.writeInt(record, header.headerLength);
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream.
+            return;
+        }
+        append(record, true);
+    }
+
+    void appendRead(String key) {
+        append(keyRecord(OP_READ, key), false);
+    }
+
+    void appendRemove(String key) {
+        append(keyRecord(OP_REMOVE, key), true);
+    }
+
+    private static ByteArrayOutputStream keyRecord(int op, String key) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(op);
+        try {
+            DiskBasedCache.writeString(record, key);
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream.
+        }
+        return record;
+    }
+
+    /**
+     * Appends a record. Unless {@code flush} is true it may stay buffered until a later record is
+     * flushed, or the buffer fills up.
+     */
+    private void append(ByteArrayOutputStream record, boolean flush) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            record.writeTo(mWriter);
+            if (flush) {
+                mWriter.flush();
+            }
+        } catch (IOException e) {
+            // The journal may now end in a partial record, which the next read will drop.
+            VolleyLog.e("Failed to append to cache journal: %s", e.toString());
+            close();
+            return;
+        }
+        mRecordCount++;
+        if (mPendingRecords != null) {
+            mPendingRecords.write(record.toByteArray(), 0, record.size());
+            mPendingCount++;
+        }
+    }
+
+    /**
+     * Returns true if most of the journal's records are redundant and it should be compacted.
+     */
+    boolean needsCompaction(int entryCount) {
+        return mWriter != null && mPendingRecords == null
+                && mRecordCount >= MIN_COMPACTION_RECORDS && mRecordCount >= 2 * entryCount;
+    }
+
+    /**
+     * Starts a compaction. Records appended from now on are also kept in memory until
+     * {@link #finishCompaction(int)}, since they won't be part of the compacted journal.
+     */
+    void beginCompaction() {
+        mPendingRecords = new ByteArrayOutputStream();
+        mPendingCount = 0;
+    }
+
+    /**
+     * Writes a journal containing {@code entries} to the compaction file. Unlike the other
+     * methods this is called without holding the cache's lock, from the compaction thread, so
+     * {@code entries} must be a snapshot. Only one compaction may run at a time.
+     */
+    void writeCompactedJournal(Collection<CacheHeader> entries) throws IOException {
+        writeJournal(mCompactFile, entries);
+    }
+
+    private static void writeJournal(File file, Collection<CacheHeader> entries)
+            throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            DiskBasedCache.writeInt(os, JOURNAL_MAGIC);
+            DiskBasedCache.writeInt(os, JOURNAL_VERSION);
+            for (CacheHeader header : entries) {
+                os.write(OP_PUT);
+                if (!header.writeHeader(os)) {
+                    throw new IOException("Failed to write header for " + header.key);
+                }
+                DiskBasedCache.writeLong(os, header.size);
+                DiskBasedCache.writeInt(os, header.headerLength);
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Completes a compaction once {@link #writeCompactedJournal(Collection)} has succeeded:
+     * appends the records made in the meantime and swaps in the compacted journal. Does nothing
+     * but clean up if the compaction was abandoned.
+     *
+     * @param snapshotSize the number of entries in the compacted journal
+     */
+    void finishCompaction(int snapshotSize) {
+        ByteArrayOutputStream pending = mPendingRecords;
+        mPendingRecords = null;
+        if (pending == null || mWriter == null) {
+            mCompactFile.delete();
+            return;
+        }
+        try {
+            OutputStream os = new FileOutputStream(mCompactFile, true);
+            try {
+                pending.writeTo(os);
+            } finally {
+                os.close();
+            }
+            close();
+            if (!mCompactFile.renameTo(mJournalFile)) {
+                throw new IOException("Could not rename " + mCompactFile);
+            }
+            mRecordCount = snapshotSize + mPendingCount;
+        } catch (IOException e) {
+            // The old journal is still complete, keep using it.
+            VolleyLog.e("Failed to compact cache journal: %s", e.toString());
+            mCompactFile.delete();
+        }
+        if (mWriter == null) {
+            openForAppend();
+        }
+    }
+
+    /**
+     * Abandons any compaction in progress.
+     */
+    void abortCompaction() {
+        mPendingRecords = null;
+    }
+
+    /**
+     * Closes the journal; further appends are dropped until it is rewritten.
+     */
+    void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) { }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the journal, so the next initialize falls back to scanning the cache
+     * directory.
+     */
+    void delete() {
+        close();
+        abortCompaction();
+        mJournalFile.delete();
+        mTempFile.delete();
+    }
+}
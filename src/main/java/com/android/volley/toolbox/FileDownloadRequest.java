@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request that downloads a response body into a file, without holding the body in memory.
+ * <p>
+ * The body is written to <code>&lt;destination&gt;.part</code> as it arrives and the file is
+ * renamed to the destination once it is complete. If a download is interrupted, by an error,
+ * a retry or {@link #cancel()}, the partial file is kept, and the next request for the same
+ * destination asks the server for the rest of it with a <code>Range</code> header. An
+ * <code>If-Range</code> header with the entity's validator makes sure the pieces belong to the
+ * same version of the file; if it changed, the server sends the whole body again.
+ * <p>
+ * Downloads are not cached and run at {@link Priority#LOW} unless {@link #setPriority} is called.
+ * Cancellation is checked between chunks, so a canceled download stops promptly.
+ */
+public class FileDownloadRequest extends StreamingRequest<File> {
+
+    /** Callback interface for download progress. */
+    public interface ProgressListener {
+        /**
+         * Called on the main thread as the file is downloaded.
+         *
+         * @param bytesDownloaded Bytes in the file so far, including any resumed part
+         * @param totalBytes Size of the whole file, or -1 if the server didn't say
+         */
+        public void onProgress(long bytesDownloaded, long totalBytes);
+    }
+
+    /** Suffix of the file the body is written to until it is complete. */
+    static final String PART_SUFFIX = ".part";
+
+    /** Suffix of the file holding the validator of a partial download. */
+    static final String VALIDATOR_SUFFIX = ".part.validator";
+
+    /** Most bytes copied to the file between progress updates and cancellation checks. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final File mDestination;
+    private final File mPartFile;
+    private final File mValidatorFile;
+    private final Listener<File> mListener;
+    private final ProgressListener mProgressListener;
+    private final Handler mHandler;
+    private Priority mPriority = Priority.LOW;
+
+    /**
+     * Creates a new GET request that downloads {@code url} to {@code destination}.
+     *
+     * @param url URL of the file
+     * @param destination File to write the body to; its directory is created if needed
+     * @param listener Listener to receive the destination once the download completes
+     * @param progressListener Listener for progress updates, or null
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public FileDownloadRequest(String url, File destination, Listener<File> listener,
+            ProgressListener progressListener, ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mDestination = destination;
+        mPartFile = new File(destination.getPath() + PART_SUFFIX);
+        mValidatorFile = new File(destination.getPath() + VALIDATOR_SUFFIX);
+        mListener = listener;
+        mProgressListener = progressListener;
+        mHandler = progressListener != null ? new Handler(Looper.getMainLooper()) : null;
+        setShouldCache(false);
+    }
+
+    /**
+     * Creates a new GET request that downloads {@code url} to {@code destination}.
+     *
+     * @param url URL of the file
+     * @param destination File to write the body to; its directory is created if needed
+     * @param listener Listener to receive the destination once the download completes
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public FileDownloadRequest(String url, File destination, Listener<File> listener,
+            ErrorListener errorListener) {
+        this(url, destination, listener, null, errorListener);
+    }
+
+    /** Returns the file the body is downloaded to. */
+    public File getDestination() {
+        return mDestination;
+    }
+
+    /**
+     * Sets the priority of this request in the {@link com.android.volley.RequestQueue}. Must be
+     * called before the request is added to the queue.
+     */
+    public FileDownloadRequest setPriority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    @Override
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Adds the headers that resume a partial download, if there is one. These are computed
+     * again for every attempt, so a retry continues where the previous attempt stopped.
+     */
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        Map<String, String> headers = new HashMap<String, String>(super.getHeaders());
+        long offset = mPartFile.length();
+        String validator = offset > 0 ? readValidator() : null;
+        if (validator != null) {
+            headers.put("Range", "bytes=" + offset + "-");
+            headers.put("If-Range", validator);
+        }
+        return headers;
+    }
+
+    @Override
+    protected Response<File> parseResponseStream(int statusCode, Map<String, String> headers,
+            InputStream body) throws IOException {
+        long offset = 0;
+        long total = parseLength(headers.get("Content-Length"));
+        if (statusCode == HTTP_PARTIAL_CONTENT) {
+            String contentRange = headers.get("Content-Range");
+            offset = parseRangeStart(contentRange);
+            if (offset != mPartFile.length()) {
+                discardPartialDownload();
+                throw new IOException("Unexpected Content-Range: " + contentRange);
+            }
+            total = parseRangeTotal(contentRange);
+        } else {
+            // A full body: either there was nothing to resume, or the file changed.
+            writeValidator(getValidator(headers));
+        }
+
+        File parent = mPartFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        RandomAccessFile file = new RandomAccessFile(mPartFile, "rw");
+        long position = offset;
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(offset);
+            ReadableByteChannel source = Channels.newChannel(body);
+            long count;
+            while ((count = channel.transferFrom(source, position, CHUNK_SIZE)) > 0) {
+                position += count;
+                postProgress(position, total);
+                if (isCanceled()) {
+                    addMarker("download-canceled");
+                    return Response.error(new VolleyError("Download canceled"));
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        if (total >= 0 && position != total) {
+            throw new IOException("Expected " + total + " bytes but got " + position);
+        }
+        if (mDestination.exists() && !mDestination.delete()) {
+            throw new IOException("Unable to replace " + mDestination);
+        }
+        if (!mPartFile.renameTo(mDestination)) {
+            throw new IOException("Unable to rename " + mPartFile + " to " + mDestination);
+        }
+        mValidatorFile.delete();
+        return Response.success(mDestination, null);
+    }
+
+    @Override
+    protected VolleyError parseNetworkError(VolleyError volleyError) {
+        NetworkResponse response = volleyError.networkResponse;
+        if (response != null && response.statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            // The partial file doesn't fit the file on the server; start over next time.
+            discardPartialDownload();
+        }
+        return volleyError;
+    }
+
+    @Override
+    protected void deliverResponse(File response) {
+        if (mListener != null) {
+            mListener.onResponse(response);
+        }
+    }
+
+    private void postProgress(final long bytesDownloaded, final long totalBytes) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCanceled()) {
+                    mProgressListener.onProgress(bytesDownloaded, totalBytes);
+                }
+            }
+        });
+    }
+
+    private void discardPartialDownload() {
+        mPartFile.delete();
+        mValidatorFile.delete();
+    }
+
+    /**
+     * Returns the value to send in <code>If-Range</code> to resume this response, or null if the
+     * response can't be resumed. Weak entity tags may not be used in <code>If-Range</code>.
+     */
+    private static String getValidator(Map<String, String> headers) {
+        String etag = headers.get("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return headers.get("Last-Modified");
+    }
+
+    private String readValidator() {
+        if (!mValidatorFile.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mValidatorFile);
+            return new String(DiskBasedCache.streamToBytes(in, (int) mValidatorFile.length()),
+                    "UTF-8");
+        } catch (IOException e) {
+            VolleyLog.d("Unable to read %s: %s", mValidatorFile, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private void writeValidator(String validator) throws IOException {
+        if (validator == null) {
+            mValidatorFile.delete();
+            return;
+        }
+        File parent = mValidatorFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        FileOutputStream out = new FileOutputStream(mValidatorFile);
+        try {
+            out.write(validator.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the first byte position of a "bytes first-last/total" Content-Range, or -1. */
+    static long parseRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dash = contentRange.indexOf('-');
+        return dash < 0 ? -1 : parseLength(contentRange.substring(6, dash));
+    }
+
+    /** Returns the total length of a "bytes first-last/total" Content-Range, or -1. */
+    static long parseRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.indexOf('/');
+        return slash < 0 ? -1 : parseLength(contentRange.substring(slash + 1));
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link Network} that hedges idempotent requests to cut tail latency. If a GET or HEAD
+ * hasn't completed within a percentile of the latency recently seen for its host, a duplicate
+ * is sent, and the first attempt to succeed is used. The other attempt is canceled, as are both
+ * when the request is, which ends them early with stacks that listen for cancellation, such as
+ * {@link Http2Stack}; other stacks finish them in the background and the response is dropped.
+ * <p>
+ * Extra load is capped by a budget: each hedgeable request earns a fraction of a hedge, and a
+ * hedge is only sent when a whole one has been earned. Hedging starts once
+ * {@value #MIN_LATENCY_SAMPLES} responses have been seen from a host.
+ * <p>
+ * Attempts of hedged requests run on an executor while the calling network dispatcher waits for
+ * the first success. Requests that can't be hedged run on the calling thread as usual.
+ * {@link StreamingRequest}s, such as file downloads, are never hedged.
+ */
+public class HedgingNetwork implements Network {
+
+    /** Default latency percentile after which a hedge is sent. */
+    public static final float DEFAULT_LATENCY_PERCENTILE = 0.95f;
+
+    /** Default hedges allowed per hedgeable request. */
+    public static final float DEFAULT_HEDGE_BUDGET = 0.1f;
+
+    /** Default shortest wait before sending a hedge. */
+    public static final long DEFAULT_MIN_HEDGE_DELAY_MS = 10;
+
+    /** Latencies kept for each host. */
+    private static final int LATENCY_SAMPLES = 100;
+
+    /** Latencies needed from a host before its requests are hedged. */
+    static final int MIN_LATENCY_SAMPLES = 20;
+
+    /** Most hedges that can be saved up, for bursts. */
+    private static final float MAX_BUDGET = 10f;
+
+    private final Network mNetwork;
+    private final Executor mExecutor;
+
+    private float mLatencyPercentile = DEFAULT_LATENCY_PERCENTILE;
+    private float mHedgeBudget = DEFAULT_HEDGE_BUDGET;
+    private long mMinHedgeDelayMs = DEFAULT_MIN_HEDGE_DELAY_MS;
+
+    /** Hedges earned and not yet sent. Guarded by this. */
+    private float mBudget = 0f;
+    private long mHedgeCount = 0;
+    private long mHedgeWinCount = 0;
+
+    /** Recent latencies, by host. */
+    private final Map<String, LatencyTracker> mTrackers = new HashMap<String, LatencyTracker>();
+
+    /**
+     * Creates a hedging network that runs attempts on its own pool of daemon threads.
+     *
+     * @param network The network to perform each attempt with
+     */
+    public HedgingNetwork(Network network) {
+        this(network, Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Volley-hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * @param network The network to perform each attempt with
+     * @param executor Runs attempts; needs a free thread for each attempt in flight
+     */
+    public HedgingNetwork(Network network, Executor executor) {
+        mNetwork = network;
+        mExecutor = executor;
+    }
+
+    /**
+     * Sets the percentile of a host's recent latency after which a hedge is sent.
+     *
+     * @param percentile Between 0 and 1
+     * @return This network, to allow for chaining
+     */
+    public synchronized HedgingNetwork setLatencyPercentile(float percentile) {
+        if (percentile < 0f || percentile > 1f) {
+            throw new IllegalArgumentException("percentile must be between 0 and 1");
+        }
+        mLatencyPercentile = percentile;
+        return this;
+    }
+
+    /** Returns the percentile of recent latency after which a hedge is sent. */
+    public synchronized float getLatencyPercentile() {
+        return mLatencyPercentile;
+    }
+
+    /**
+     * Sets how many hedges may be sent per hedgeable request, for example 0.1 for at most 10%
+     * more requests. 0 turns hedging off.
+     *
+     * @return This network, to allow for chaining
+     */
+    public synchronized HedgingNetwork setHedgeBudget(float hedgesPerRequest) {
+        if (hedgesPerRequest < 0f) {
+            throw new IllegalArgumentException("hedgesPerRequest must not be negative");
+        }
+        mHedgeBudget = hedgesPerRequest;
+        return this;
+    }
+
+    /** Returns how many hedges may be sent per hedgeable request. */
+    public synchronized float getHedgeBudget() {
+        return mHedgeBudget;
+    }
+
+    /**
+     * Sets the shortest time to wait before sending a hedge, however fast the host has been.
+     *
+     * @return This network, to allow for chaining
+     */
+    public synchronized HedgingNetwork setMinHedgeDelay(long delayMs) {
+        mMinHedgeDelayMs = delayMs;
+        return this;
+    }
+
+    /** Returns the shortest time to wait before sending a hedge. */
+    public synchronized long getMinHedgeDelay() {
+        return mMinHedgeDelayMs;
+    }
+
+    /** Returns the number of hedges sent. */
+    public synchronized long getHedgeCount() {
+        return mHedgeCount;
+    }
+
+    /** Returns the number of hedges that completed before the request they duplicated. */
+    public synchronized long getHedgeWinCount() {
+        return mHedgeWinCount;
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        if (!isHedgeable(request)) {
+            return mNetwork.performRequest(request);
+        }
+        LatencyTracker tracker = getTracker(request.getUrl());
+        long hedgeDelayMs;
+        synchronized (this) {
+            mBudget = Math.min(mBudget + mHedgeBudget, MAX_BUDGET);
+            hedgeDelayMs = -1;
+            if (mHedgeBudget > 0f && mBudget >= 1f) {
+                long percentileMs = tracker.getPercentile(mLatencyPercentile);
+                if (percentileMs >= 0) {
+                    hedgeDelayMs = Math.max(percentileMs, mMinHedgeDelayMs);
+                }
+            }
+        }
+        if (hedgeDelayMs < 0) {
+            // Can't hedge; don't pay for the executor.
+            long startNanos = System.nanoTime();
+            NetworkResponse response = mNetwork.performRequest(request);
+            tracker.add((System.nanoTime() - startNanos) / 1000000L);
+            return response;
+        }
+
+        Race race = new Race();
+        Attempt primary = new Attempt(request, request.getCacheEntry(),
+                request.getRetryPolicy(), race, tracker);
+        race.start(primary);
+        Attempt hedge = null;
+        try {
+            if (!race.await(hedgeDelayMs) && trySpendBudget()) {
+                request.addMarker("hedge-sent");
+                hedge = new Attempt(request, copyOf(request.getCacheEntry()),
+                        new DefaultRetryPolicy(request.getTimeoutMs(), 0, 1f), race, tracker);
+                race.start(hedge);
+            }
+            race.await(0);
+        } catch (InterruptedException e) {
+            primary.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+        return race.getResult(request, hedge);
+    }
+
+    private synchronized boolean trySpendBudget() {
+        if (mBudget < 1f) {
+            return false;
+        }
+        mBudget -= 1f;
+        mHedgeCount++;
+        return true;
+    }
+
+    private synchronized void onHedgeWon() {
+        mHedgeWinCount++;
+    }
+
+    private static boolean isHedgeable(Request<?> request) {
+        int method = request.getMethod();
+        return (method == Request.Method.GET || method == Request.Method.HEAD)
+                && !(request instanceof StreamingRequest);
+    }
+
+    private LatencyTracker getTracker(String url) {
+        String host = Uri.parse(url).getHost();
+        if (host == null) {
+            host = "";
+        }
+        synchronized (mTrackers) {
+            LatencyTracker tracker = mTrackers.get(host);
+            if (tracker == null) {
+                tracker = new LatencyTracker();
+                mTrackers.put(host, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /** Returns a copy of a cache entry whose headers the hedge can change on a 304. */
+    private static Cache.Entry copyOf(Cache.Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        Cache.Entry copy = new Cache.Entry();
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        if (entry.responseHeaders != null) {
+            copy.responseHeaders.putAll(entry.responseHeaders);
+        }
+        return copy;
+    }
+
+    /** The latencies of the last successful requests to a host, in milliseconds. */
+    private static class LatencyTracker {
+        private final long[] mSamples = new long[LATENCY_SAMPLES];
+        private int mCount = 0;
+        private int mNext = 0;
+
+        synchronized void add(long latencyMs) {
+            mSamples[mNext] = latencyMs;
+            mNext = (mNext + 1) % mSamples.length;
+            mCount = Math.min(mCount + 1, mSamples.length);
+        }
+
+        /** Returns a percentile of the recent latencies, or -1 if there are too few. */
+        synchronized long getPercentile(float percentile) {
+            if (mCount < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = new long[mCount];
+            System.arraycopy(mSamples, 0, sorted, 0, mCount);
+            Arrays.sort(sorted);
+            return sorted[Math.min((int) (percentile * mCount), mCount - 1)];
+        }
+    }
+
+    /** The attempts for one request, and the first response. Guarded by itself. */
+    private class Race {
+        private int mPending = 0;
+        private NetworkResponse mResponse;
+        private Attempt mWinner;
+        private Attempt mFirstAttempt;
+        private VolleyError mError;
+        private RuntimeException mRuntimeException;
+
+        void start(Attempt attempt) {
+            synchronized (this) {
+                mPending++;
+                if (mFirstAttempt == null) {
+                    mFirstAttempt = attempt;
+                }
+            }
+            mExecutor.execute(attempt);
+        }
+
+        /**
+         * Waits until an attempt succeeds or all of them fail.
+         *
+         * @param timeoutMs The longest to wait, or 0 to wait as long as it takes
+         * @return Whether the race is over
+         */
+        synchronized boolean await(long timeoutMs) throws InterruptedException {
+            long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+            while (mResponse == null && mPending > 0) {
+                if (timeoutMs == 0) {
+                    wait();
+                } else {
+                    long remainingMs = (deadlineNanos - System.nanoTime()) / 1000000L;
+                    if (remainingMs <= 0) {
+                        return false;
+                    }
+                    wait(remainingMs);
+                }
+            }
+            return true;
+        }
+
+        synchronized void onSuccess(Attempt attempt, NetworkResponse response) {
+            mPending--;
+            if (mResponse == null) {
+                mResponse = response;
+                mWinner = attempt;
+            }
+            notifyAll();
+        }
+
+        synchronized void onError(Attempt attempt, VolleyError error, RuntimeException e) {
+            mPending--;
+            // The first attempt's error is the one the request would have had without hedging.
+            if ((mError == null && mRuntimeException == null) || attempt == mFirstAttempt) {
+                mError = error;
+                mRuntimeException = e;
+            }
+            notifyAll();
+        }
+
+        /** Returns the winning response and cancels the other attempt, or throws the error. */
+        NetworkResponse getResult(Request<?> request, Attempt hedge) throws VolleyError {
+            Attempt winner;
+            NetworkResponse response;
+            synchronized (this) {
+                winner = mWinner;
+                response = mResponse;
+                if (response == null) {
+                    if (mRuntimeException != null) {
+                        throw mRuntimeException;
+                    }
+                    throw mError;
+                }
+            }
+            if (hedge != null) {
+                if (winner == hedge) {
+                    request.addMarker("hedge-won");
+                    onHedgeWon();
+                    mFirstAttempt.cancel();
+                } else {
+                    hedge.cancel();
+                }
+            }
+            if (!winner.getUrl().equals(request.getUrl())) {
+                request.setRedirectUrl(winner.getUrl());
+            }
+            return response;
+        }
+    }
+
+    /**
+     * One attempt at a request, as a request of its own so it can be canceled separately. The
+     * URL, headers and body come from the original request.
+     */
+    private class Attempt extends Request<Object> implements Runnable {
+        private final Request<?> mRequest;
+        private final Race mRace;
+        private final LatencyTracker mTracker;
+
+        /** Cancels this attempt when the original request is canceled. */
+        private final CancelListener mCancelListener = new CancelListener() {
+            @Override
+            public void onCanceled(Request<?> request) {
+                cancel();
+            }
+        };
+
+        Attempt(Request<?> request, Cache.Entry cacheEntry, RetryPolicy retryPolicy, Race race,
+                LatencyTracker tracker) {
+            super(request.getMethod(), request.getUrl(), null);
+            mRequest = request;
+            mRace = race;
+            mTracker = tracker;
+            setCacheEntry(cacheEntry);
+            setRetryPolicy(retryPolicy);
+            if (request.getDeadline() > 0) {
+                setDeadline(Math.max(request.getDeadline() - SystemClock.elapsedRealtime(), 1));
+            }
+        }
+
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            mRequest.addCancelListener(mCancelListener);
+            try {
+                NetworkResponse response = mNetwork.performRequest(this);
+                mTracker.add((System.nanoTime() - startNanos) / 1000000L);
+                mRace.onSuccess(this, response);
+            } catch (VolleyError e) {
+                mRace.onError(this, e, null);
+            } catch (RuntimeException e) {
+                mRace.onError(this, null, e);
+            } finally {
+                mRequest.removeCancelListener(mCancelListener);
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return super.isCanceled() || mRequest.isCanceled();
+        }
+
+        @Override
+        public boolean isPastDeadline() {
+            return mRequest.isPastDeadline();
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return mRequest.getHeaders();
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mRequest.getBodyContentType();
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError {
+            return mRequest.getBody();
+        }
+
+        @Override
+        public void markBodySent(long bytes) {
+            mRequest.markBodySent(bytes);
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mRequest.getPriority();
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ * <p>
+ * The {@link Encoder} indexes header fields in its dynamic table so that headers repeated on
+ * every request, such as the user agent, cookies and authority, cost a byte or two after the
+ * first request on a connection. The {@link Decoder} implements the whole format, including
+ * Huffman-coded strings.
+ */
+final class Hpack {
+
+    /** Default size of the dynamic tables, from SETTINGS_HEADER_TABLE_SIZE. */
+    static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+    /** Per-entry overhead counted against the table size. */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /** The static table, as name and value pairs. Index 1 is at position 0. */
+    private static final String[] STATIC_TABLE = {
+            ":authority", "",
+            ":method", "GET",
+            ":method", "POST",
+            ":path", "/",
+            ":path", "/index.html",
+            ":scheme", "http",
+            ":scheme", "https",
+            ":status", "200",
+            ":status", "204",
+            ":status", "206",
+            ":status", "304",
+            ":status", "400",
+            ":status", "404",
+            ":status", "500",
+            "accept-charset", "",
+            "accept-encoding", "gzip, deflate",
+            "accept-language", "",
+            "accept-ranges", "",
+            "accept", "",
+            "access-control-allow-origin", "",
+            "age", "",
+            "allow", "",
+            "authorization", "",
+            "cache-control", "",
+            "content-disposition", "",
+            "content-encoding", "",
+            "content-language", "",
+            "content-length", "",
+            "content-location", "",
+            "content-range", "",
+            "content-type", "",
+            "cookie", "",
+            "date", "",
+            "etag", "",
+            "expect", "",
+            "expires", "",
+            "from", "",
+            "host", "",
+            "if-match", "",
+            "if-modified-since", "",
+            "if-none-match", "",
+            "if-range", "",
+            "if-unmodified-since", "",
+            "last-modified", "",
+            "link", "",
+            "location", "",
+            "max-forwards", "",
+            "proxy-authenticate", "",
+            "proxy-authorization", "",
+            "range", "",
+            "referer", "",
+            "refresh", "",
+            "retry-after", "",
+            "server", "",
+            "set-cookie", "",
+            "strict-transport-security", "",
+            "transfer-encoding", "",
+            "user-agent", "",
+            "vary", "",
+            "via", "",
+            "www-authenticate", "",
+    };
+
+    private static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length / 2;
+
+    /** The static table's fields, for the decoder. */
+    private static final HeaderField[] STATIC_FIELDS = new HeaderField[STATIC_TABLE_LENGTH];
+
+    /** Static table index of each name's first entry. */
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+
+    /** Static table index of each name and value pair that has a value. */
+    private static final Map<String, Integer> STATIC_FIELD_INDEX = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE_LENGTH; i >= 1; i--) {
+            String name = STATIC_TABLE[2 * (i - 1)];
+            String value = STATIC_TABLE[2 * (i - 1) + 1];
+            STATIC_FIELDS[i - 1] = new HeaderField(name, value);
+            STATIC_NAME_INDEX.put(name, i);
+            if (value.length() > 0) {
+                STATIC_FIELD_INDEX.put(name + '\u0000' + value, i);
+            }
+        }
+    }
+
+    /** Huffman code of each octet, and of EOS at 256 (RFC 7541 Appendix B). */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+            0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+            0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+            0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+            0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+            0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+            0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+            0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+            0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+            0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+            0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+            0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+            0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+            0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+            0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+            0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+            0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+            0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+            0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+            0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+            0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+            0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+            0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+            0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+            0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+            0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+            0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+            0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+            0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee, 0x3fffffff,
+    };
+
+    /** Length in bits of each Huffman code. */
+    private static final byte[] HUFFMAN_CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30,
+    };
+
+    /**
+     * Huffman decoding tree. The children of node n are at 2n and 2n + 1, and are either the index
+     * of another node or a symbol stored as -1 - symbol. The root is node 0.
+     */
+    private static final int[] HUFFMAN_TREE = new int[2 * 256];
+
+    static {
+        int nodes = 1;
+        for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int node = 0;
+            for (int bit = HUFFMAN_CODE_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int child = 2 * node + ((code >>> bit) & 1);
+                if (HUFFMAN_TREE[child] == 0) {
+                    HUFFMAN_TREE[child] = nodes++;
+                }
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = -1 - symbol;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /** A header field and the space it takes in a dynamic table. */
+    private static class HeaderField {
+        final String name;
+        final String value;
+        final int size;
+
+        HeaderField(String name, String value) {
+            this.name = name;
+            this.value = value;
+            this.size = utf8Length(name) + utf8Length(value) + ENTRY_OVERHEAD;
+        }
+    }
+
+    /** A dynamic table, with the newest field at index 0. */
+    private static class DynamicTable {
+        private final List<HeaderField> mFields = new ArrayList<HeaderField>();
+        private int mSize = 0;
+        private int mMaxSize = DEFAULT_HEADER_TABLE_SIZE;
+
+        int length() {
+            return mFields.size();
+        }
+
+        HeaderField get(int index) {
+            return mFields.get(index);
+        }
+
+        void add(HeaderField field) {
+            mFields.add(0, field);
+            mSize += field.size;
+            evict();
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evict();
+        }
+
+        int getMaxSize() {
+            return mMaxSize;
+        }
+
+        private void evict() {
+            while (mSize > mMaxSize) {
+                mSize -= mFields.remove(mFields.size() - 1).size;
+            }
+        }
+    }
+
+    /**
+     * Encodes header blocks for one connection. Not thread safe; header blocks must be encoded in
+     * the order they are sent.
+     */
+    static class Encoder {
+        private final DynamicTable mTable = new DynamicTable();
+
+        /** Table size to signal at the start of the next block, or -1 if unchanged. */
+        private int mPendingMaxSize = -1;
+
+        /** Smallest table size set since the last block. */
+        private int mSmallestMaxSize = Integer.MAX_VALUE;
+
+        /**
+         * Sets the most space the peer's decoder allows for the dynamic table, from its
+         * SETTINGS_HEADER_TABLE_SIZE. Sizes above the default are not used.
+         */
+        void setMaxTableSize(int maxSize) {
+            maxSize = Math.min(maxSize, DEFAULT_HEADER_TABLE_SIZE);
+            mSmallestMaxSize = Math.min(mSmallestMaxSize, maxSize);
+            mPendingMaxSize = maxSize;
+        }
+
+        /**
+         * Writes a header block for the given lowercase header names and values.
+         *
+         * @param namesAndValues Alternating header names and values
+         */
+        void encode(List<String> namesAndValues, ByteArrayOutputStream out) {
+            if (mPendingMaxSize >= 0) {
+                // The decoder must see the smallest size if the table shrank and grew again.
+                if (mSmallestMaxSize < mPendingMaxSize) {
+                    writeInt(out, mSmallestMaxSize, 5, 0x20);
+                    mTable.setMaxSize(mSmallestMaxSize);
+                }
+                writeInt(out, mPendingMaxSize, 5, 0x20);
+                mTable.setMaxSize(mPendingMaxSize);
+                mPendingMaxSize = -1;
+                mSmallestMaxSize = Integer.MAX_VALUE;
+            }
+            for (int i = 0; i < namesAndValues.size(); i += 2) {
+                writeField(namesAndValues.get(i), namesAndValues.get(i + 1), out);
+            }
+        }
+
+        private void writeField(String name, String value, ByteArrayOutputStream out) {
+            Integer staticIndex = STATIC_FIELD_INDEX.get(name + '\u0000' + value);
+            if (staticIndex != null) {
+                writeInt(out, staticIndex, 7, 0x80);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < mTable.length(); i++) {
+                HeaderField field = mTable.get(i);
+                if (field.name.equals(name)) {
+                    if (field.value.equals(value)) {
+                        writeInt(out, STATIC_TABLE_LENGTH + 1 + i, 7, 0x80);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE_LENGTH + 1 + i;
+                    }
+                }
+            }
+            Integer staticNameIndex = STATIC_NAME_INDEX.get(name);
+            if (staticNameIndex != null) {
+                nameIndex = staticNameIndex;
+            }
+            HeaderField field = new HeaderField(name, value);
+            if (isSensitive(name)) {
+                // Keep credentials out of the table, where they could be probed for.
+                writeInt(out, nameIndex, 4, 0x10);
+            } else if (field.size <= mTable.getMaxSize()) {
+                writeInt(out, nameIndex, 6, 0x40);
+                mTable.add(field);
+            } else {
+                writeInt(out, nameIndex, 4, 0);
+            }
+            if (nameIndex == 0) {
+                writeString(out, utf8(name));
+            }
+            writeString(out, utf8(value));
+        }
+
+        private static boolean isSensitive(String name) {
+            return "authorization".equals(name) || "proxy-authorization".equals(name);
+        }
+    }
+
+    /**
+     * Decodes header blocks for one connection. Not thread safe; header blocks must be decoded in
+     * the order they are received, including blocks for streams that are no longer wanted.
+     */
+    static class Decoder {
+        private final DynamicTable mTable = new DynamicTable();
+        private final int mMaxTableSize;
+
+        private byte[] mBlock;
+        private int mPos;
+        private int mEnd;
+
+        /**
+         * @param maxTableSize The most space the encoder may use for the dynamic table, as sent
+         *     in SETTINGS_HEADER_TABLE_SIZE
+         */
+        Decoder(int maxTableSize) {
+            mMaxTableSize = maxTableSize;
+            mTable.setMaxSize(maxTableSize);
+        }
+
+        /**
+         * Decodes a header block.
+         *
+         * @return Alternating header names and values
+         * @throws IOException if the block is malformed, which is a connection error
+         */
+        List<String> decode(byte[] block, int offset, int length) throws IOException {
+            mBlock = block;
+            mPos = offset;
+            mEnd = offset + length;
+            List<String> namesAndValues = new ArrayList<String>();
+            try {
+                while (mPos < mEnd) {
+                    int b = mBlock[mPos] & 0xff;
+                    if ((b & 0x80) != 0) {
+                        HeaderField field = getField(readInt(7));
+                        namesAndValues.add(field.name);
+                        namesAndValues.add(field.value);
+                    } else if ((b & 0xc0) == 0x40) {
+                        HeaderField field = readLiteral(6);
+                        mTable.add(field);
+                        namesAndValues.add(field.name);
+                        namesAndValues.add(field.value);
+                    } else if ((b & 0xe0) == 0x20) {
+                        int maxSize = readInt(5);
+                        if (maxSize > mMaxTableSize) {
+                            throw new IOException("Header table size too large: " + maxSize);
+                        }
+                        mTable.setMaxSize(maxSize);
+                    } else {
+                        // Literal without indexing, or never indexed.
+                        HeaderField field = readLiteral(4);
+                        namesAndValues.add(field.name);
+                        namesAndValues.add(field.value);
+                    }
+                }
+            } finally {
+                mBlock = null;
+            }
+            return namesAndValues;
+        }
+
+        private HeaderField getField(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE_LENGTH) {
+                return STATIC_FIELDS[index - 1];
+            }
+            int dynamicIndex = index - STATIC_TABLE_LENGTH - 1;
+            if (dynamicIndex < 0 || dynamicIndex >= mTable.length()) {
+                throw new IOException("Header index out of range: " + index);
+            }
+            return mTable.get(dynamicIndex);
+        }
+
+        private HeaderField readLiteral(int prefixBits) throws IOException {
+            int nameIndex = readInt(prefixBits);
+            String name = nameIndex == 0 ? readString() : getField(nameIndex).name;
+            return new HeaderField(name, readString());
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = mBlock[mPos++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                if (mPos >= mEnd) {
+                    throw new IOException("Truncated integer");
+                }
+                int b = mBlock[mPos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Integer too large");
+        }
+
+        private String readString() throws IOException {
+            if (mPos >= mEnd) {
+                throw new IOException("Truncated string");
+            }
+            boolean huffman = (mBlock[mPos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length < 0 || length > mEnd - mPos) {
+                throw new IOException("Truncated string");
+            }
+            String value = huffman
+                    ? new String(huffmanDecode(mBlock, mPos, length), "UTF-8")
+                    : new String(mBlock, mPos, length, "UTF-8");
+            mPos += length;
+            return value;
+        }
+    }
+
+    /** Writes an integer with an N-bit prefix, OR-ing the first byte with {@code flags}. */
+    static void writeInt(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Writes a string literal, Huffman-coded if that makes it shorter. */
+    static void writeString(ByteArrayOutputStream out, byte[] data) {
+        int huffmanLength = huffmanEncodedLength(data);
+        if (huffmanLength < data.length) {
+            writeInt(out, huffmanLength, 7, 0x80);
+            huffmanEncode(data, out);
+        } else {
+            writeInt(out, data.length, 7, 0);
+            out.write(data, 0, data.length);
+        }
+    }
+
+    static int huffmanEncodedLength(byte[] data) {
+        long bits = 0;
+        for (byte b : data) {
+            bits += HUFFMAN_CODE_LENGTHS[b & 0xff];
+        }
+        return (int) ((bits + 7) >> 3);
+    }
+
+    static void huffmanEncode(byte[] data, ByteArrayOutputStream out) {
+        long current = 0;
+        int bits = 0;
+        for (byte b : data) {
+            int symbol = b & 0xff;
+            current = (current << HUFFMAN_CODE_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            bits += HUFFMAN_CODE_LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (current >> bits));
+            }
+        }
+        if (bits > 0) {
+            // Pad with the most significant bits of EOS, which are all ones.
+            out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+    static byte[] huffmanDecode(byte[] data, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int shift = 7; shift >= 0; shift--) {
+                int bit = (b >>> shift) & 1;
+                int child = HUFFMAN_TREE[2 * node + bit];
+                depth++;
+                allOnes &= bit == 1;
+                if (child < 0) {
+                    int symbol = -1 - child;
+                    if (symbol == 256) {
+                        throw new IOException("EOS in Huffman-coded string");
+                    }
+                    out.write(symbol);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else {
+                    node = child;
+                }
+            }
+        }
+        if (depth > 7 || !allOnes) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                // Each half of a surrogate pair counts for half of its four bytes.
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
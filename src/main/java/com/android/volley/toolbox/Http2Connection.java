@@ -0,0 +1,918 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Request;
+import com.android.volley.VolleyLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An HTTP/2 connection over a plain socket, started with prior knowledge (h2c, RFC 7540 section
+ * 3.4), that carries any number of concurrent request streams.
+ * <p>
+ * Frames are read by a daemon thread for each connection, which hands header blocks and data to
+ * the streams waiting for them. Request threads write their own frames, serialized on a lock.
+ * Threads waiting on a stream are woken up when their request is canceled, through its
+ * {@link Request.CancelListener}, in which case the stream is reset so the server stops working
+ * on it.
+ * <p>
+ * Locking: the write lock may be taken before the connection's monitor, never after it.
+ */
+class Http2Connection {
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int DEFAULT_INITIAL_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /** Receive window advertised for each stream. */
+    private static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+
+    /** Receive window for the whole connection. */
+    private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+
+    /** Guards writes to the socket and the HPACK encoder. */
+    private final Object mWriteLock = new Object();
+    private final OutputStream mOut;
+    private final byte[] mFrameHeader = new byte[9];
+
+    /** Wakes up threads waiting on the connection, so they notice their request was canceled. */
+    private final Request.CancelListener mCancelListener = new Request.CancelListener() {
+        @Override
+        public void onCanceled(Request<?> request) {
+            synchronized (Http2Connection.this) {
+                Http2Connection.this.notifyAll();
+            }
+        }
+    };
+    private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+
+    /** Only used by the reader thread. */
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+
+    // Guarded by this.
+    private final Map<Integer, Stream> mStreams = new HashMap<Integer, Stream>();
+    private int mNextStreamId = 1;
+    private int mActiveStreams = 0;
+    private int mPendingStreams = 0;
+    private int mMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int mInitialWindowSize = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long mSendWindow = DEFAULT_INITIAL_WINDOW_SIZE;
+    private int mUnacknowledgedBytes = 0;
+    private boolean mSettingsReceived = false;
+    private boolean mGoingAway = false;
+    private IOException mFailure;
+
+    private Http2Connection(Socket socket) throws IOException {
+        mSocket = socket;
+        mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        mOut = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Connects to a server, sends the connection preface and waits for the server's settings.
+     */
+    static Http2Connection open(String host, int port, int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMs);
+            Http2Connection connection = new Http2Connection(socket);
+            connection.start(host, timeoutMs);
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void start(String host, int timeoutMs) throws IOException {
+        synchronized (mWriteLock) {
+            mOut.write(PREFACE);
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+            writeFrameLocked(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+            writeFrameLocked(TYPE_WINDOW_UPDATE, 0, 0,
+                    windowUpdate(CONNECTION_WINDOW_SIZE - DEFAULT_INITIAL_WINDOW_SIZE), 0, 4);
+            mOut.flush();
+        }
+        Thread reader = new Thread("Volley-h2-" + host) {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        // Limits such as the concurrent stream count arrive in the server's first frame.
+        long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (this) {
+            while (!mSettingsReceived) {
+                if (mFailure != null) {
+                    throw mFailure;
+                }
+                long remainingMs = (deadlineNanos - System.nanoTime()) / 1000000L;
+                if (remainingMs <= 0) {
+                    throw new SocketTimeoutException("No SETTINGS from server");
+                }
+                waitLocked(remainingMs);
+            }
+        }
+    }
+
+    /**
+     * Opens a stream and sends the request headers.
+     *
+     * @param namesAndValues Alternating lowercase header names and values, pseudo-headers first
+     * @param endStream Whether the request has no body
+     * @return The new stream, or null if the connection is shutting down and can't take new
+     *     streams
+     */
+    Stream newStream(List<String> namesAndValues, boolean endStream, Request<?> request,
+            int timeoutMs) throws IOException {
+        long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+        // Wakes this thread up if the request is canceled while it waits; cleared by the stream.
+        request.addCancelListener(mCancelListener);
+        Stream opened = null;
+        try {
+            synchronized (this) {
+                while (mActiveStreams + mPendingStreams >= mMaxConcurrentStreams
+                        && mFailure == null && !mGoingAway) {
+                    awaitLocked(request, deadlineNanos);
+                }
+                if (mFailure != null || mGoingAway) {
+                    return null;
+                }
+                mPendingStreams++;
+            }
+            try {
+                synchronized (mWriteLock) {
+                    Stream stream;
+                    // Stream IDs have to be used in the order the streams are opened.
+                    synchronized (this) {
+                        if (mFailure != null || mGoingAway) {
+                            return null;
+                        }
+                        stream = new Stream(mNextStreamId, mInitialWindowSize, request);
+                        mNextStreamId += 2;
+                        if (mNextStreamId < 0) {
+                            // Out of stream IDs; the next request gets a new connection.
+                            mGoingAway = true;
+                        }
+                        mStreams.put(stream.mId, stream);
+                        mActiveStreams++;
+                    }
+                    ByteArrayOutputStream block = new ByteArrayOutputStream();
+                    mEncoder.encode(namesAndValues, block);
+                    writeHeadersLocked(stream.mId, block.toByteArray(), endStream);
+                    mOut.flush();
+                    opened = stream;
+                    return stream;
+                }
+            } finally {
+                synchronized (this) {
+                    mPendingStreams--;
+                    closeIfDoneLocked();
+                }
+            }
+        } finally {
+            if (opened == null) {
+                request.removeCancelListener(mCancelListener);
+            }
+        }
+    }
+
+    /** Returns whether new streams can be opened on this connection. */
+    synchronized boolean isUsable() {
+        return mFailure == null && !mGoingAway;
+    }
+
+    /** Returns the number of streams waiting for a response. */
+    synchronized int getActiveStreamCount() {
+        return mActiveStreams;
+    }
+
+    /**
+     * Tells the server the connection is going away and closes it. Streams that are still open
+     * fail.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mGoingAway = true;
+        }
+        try {
+            synchronized (mWriteLock) {
+                byte[] payload = new byte[8];
+                putInt(payload, 4, ERROR_NO_ERROR);
+                writeFrameLocked(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        close();
+    }
+
+    private void close() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Ignored.
+        }
+    }
+
+    /** Reads and dispatches frames until the connection fails or is closed. */
+    private void readFrames() {
+        IOException failure;
+        try {
+            while (true) {
+                readFrame();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (this) {
+            mFailure = failure;
+            for (Stream stream : mStreams.values()) {
+                if (!stream.mRemoteFinished && stream.mError == null) {
+                    stream.failLocked(new IOException("Connection closed: " + failure));
+                }
+            }
+            notifyAll();
+        }
+        close();
+    }
+
+    private void readFrame() throws IOException {
+        int length = mIn.readUnsignedShort() << 8 | mIn.readUnsignedByte();
+        int type = mIn.readUnsignedByte();
+        int flags = mIn.readUnsignedByte();
+        int streamId = mIn.readInt() & 0x7fffffff;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw protocolError("Frame too large: " + length);
+        }
+        switch (type) {
+            case TYPE_DATA:
+                readData(streamId, flags, length);
+                break;
+            case TYPE_HEADERS:
+                readHeaders(streamId, flags, length);
+                break;
+            case TYPE_RST_STREAM:
+                readRstStream(streamId, length);
+                break;
+            case TYPE_SETTINGS:
+                readSettings(flags, length);
+                break;
+            case TYPE_PING:
+                readPing(flags, length);
+                break;
+            case TYPE_GOAWAY:
+                readGoAway(length);
+                break;
+            case TYPE_WINDOW_UPDATE:
+                readWindowUpdate(streamId, length);
+                break;
+            case TYPE_PUSH_PROMISE:
+                // Push is disabled in our settings.
+                throw protocolError("Unexpected PUSH_PROMISE");
+            case TYPE_CONTINUATION:
+                throw protocolError("CONTINUATION without HEADERS");
+            case TYPE_PRIORITY:
+            default:
+                // Nothing to do for priorities or unknown frame types.
+                mIn.skipBytes(length);
+                break;
+        }
+    }
+
+    private void readData(int streamId, int flags, int length) throws IOException {
+        int padding = (flags & FLAG_PADDED) != 0 ? mIn.readUnsignedByte() : 0;
+        int dataLength = length - ((flags & FLAG_PADDED) != 0 ? 1 : 0) - padding;
+        if (dataLength < 0) {
+            throw protocolError("Bad padding");
+        }
+        byte[] data = new byte[dataLength];
+        mIn.readFully(data);
+        mIn.skipBytes(padding);
+        int connectionUpdate;
+        synchronized (this) {
+            Stream stream = mStreams.get(streamId);
+            if (stream == null || stream.mClosed || stream.mError != null) {
+                // Nobody will read this, so give the space back straight away.
+                connectionUpdate = consumeLocked(length);
+            } else {
+                if (dataLength > 0) {
+                    stream.mData.add(data);
+                    stream.mBuffered += dataLength;
+                }
+                connectionUpdate = consumeLocked(length - dataLength);
+                if ((flags & FLAG_END_STREAM) != 0) {
+                    stream.mRemoteFinished = true;
+                    deactivateLocked(stream);
+                }
+                notifyAll();
+            }
+        }
+        if (connectionUpdate > 0) {
+            writeWindowUpdate(0, connectionUpdate);
+        }
+    }
+
+    private void readHeaders(int streamId, int flags, int length) throws IOException {
+        byte[] payload = new byte[length];
+        mIn.readFully(payload);
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            padding = payload[offset++] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        int fragmentLength = length - offset - padding;
+        if (fragmentLength < 0) {
+            throw protocolError("Bad padding");
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(fragmentLength);
+        block.write(payload, offset, fragmentLength);
+        boolean endHeaders = (flags & FLAG_END_HEADERS) != 0;
+        while (!endHeaders) {
+            int continuationLength = mIn.readUnsignedShort() << 8 | mIn.readUnsignedByte();
+            int type = mIn.readUnsignedByte();
+            int continuationFlags = mIn.readUnsignedByte();
+            int continuationStreamId = mIn.readInt() & 0x7fffffff;
+            if (type != TYPE_CONTINUATION || continuationStreamId != streamId
+                    || continuationLength > DEFAULT_MAX_FRAME_SIZE) {
+                throw protocolError("Expected CONTINUATION");
+            }
+            byte[] fragment = new byte[continuationLength];
+            mIn.readFully(fragment);
+            block.write(fragment, 0, fragment.length);
+            endHeaders = (continuationFlags & FLAG_END_HEADERS) != 0;
+        }
+        // Blocks for streams we no longer want are still decoded to keep the table in sync.
+        byte[] blockBytes = block.toByteArray();
+        List<String> namesAndValues = mDecoder.decode(blockBytes, 0, blockBytes.length);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        synchronized (this) {
+            Stream stream = mStreams.get(streamId);
+            if (stream == null || stream.mClosed || stream.mError != null) {
+                return;
+            }
+            if (stream.mResponseHeaders == null
+                    && (endStream || !isInformational(namesAndValues))) {
+                stream.mResponseHeaders = namesAndValues;
+            }
+            // Anything after the response headers is trailers, which are dropped.
+            if (endStream) {
+                stream.mRemoteFinished = true;
+                deactivateLocked(stream);
+            }
+            notifyAll();
+        }
+    }
+
+    private void readRstStream(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw protocolError("Bad RST_STREAM length: " + length);
+        }
+        int errorCode = mIn.readInt();
+        synchronized (this) {
+            Stream stream = mStreams.get(streamId);
+            if (stream != null && stream.mError == null) {
+                stream.failLocked(new IOException("Stream reset by server, error " + errorCode));
+                notifyAll();
+            }
+        }
+    }
+
+    private void readSettings(int flags, int length) throws IOException {
+        if ((flags & FLAG_ACK) != 0) {
+            mIn.skipBytes(length);
+            return;
+        }
+        if (length % 6 != 0) {
+            throw protocolError("Bad SETTINGS length: " + length);
+        }
+        byte[] payload = new byte[length];
+        mIn.readFully(payload);
+        int headerTableSize = -1;
+        synchronized (this) {
+            for (int i = 0; i < length; i += 6) {
+                int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+                int value = getInt(payload, i + 2);
+                switch (id) {
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                        headerTableSize = value;
+                        break;
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        mMaxConcurrentStreams = value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw protocolError("Bad initial window size: " + value);
+                        }
+                        int delta = value - mInitialWindowSize;
+                        mInitialWindowSize = value;
+                        for (Stream stream : mStreams.values()) {
+                            stream.mSendWindow += delta;
+                        }
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        mMaxFrameSize = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            mSettingsReceived = true;
+            notifyAll();
+        }
+        synchronized (mWriteLock) {
+            if (headerTableSize >= 0) {
+                mEncoder.setMaxTableSize(headerTableSize);
+            }
+            writeFrameLocked(TYPE_SETTINGS, FLAG_ACK, 0, null, 0, 0);
+            mOut.flush();
+        }
+    }
+
+    private void readPing(int flags, int length) throws IOException {
+        if (length != 8) {
+            throw protocolError("Bad PING length: " + length);
+        }
+        byte[] payload = new byte[8];
+        mIn.readFully(payload);
+        if ((flags & FLAG_ACK) == 0) {
+            synchronized (mWriteLock) {
+                writeFrameLocked(TYPE_PING, FLAG_ACK, 0, payload, 0, payload.length);
+                mOut.flush();
+            }
+        }
+    }
+
+    private void readGoAway(int length) throws IOException {
+        if (length < 8) {
+            throw protocolError("Bad GOAWAY length: " + length);
+        }
+        int lastStreamId = mIn.readInt() & 0x7fffffff;
+        int errorCode = mIn.readInt();
+        mIn.skipBytes(length - 8);
+        VolleyLog.d("HTTP/2 connection going away, last stream %d, error %d",
+                lastStreamId, errorCode);
+        synchronized (this) {
+            mGoingAway = true;
+            // Streams the server never saw can safely be tried again on a new connection.
+            for (Stream stream : mStreams.values()) {
+                if (stream.mId > lastStreamId && stream.mError == null) {
+                    stream.failLocked(new IOException("Stream refused by GOAWAY"));
+                }
+            }
+            closeIfDoneLocked();
+            notifyAll();
+        }
+    }
+
+    private void readWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw protocolError("Bad WINDOW_UPDATE length: " + length);
+        }
+        int increment = mIn.readInt() & 0x7fffffff;
+        synchronized (this) {
+            if (streamId == 0) {
+                mSendWindow += increment;
+            } else {
+                Stream stream = mStreams.get(streamId);
+                if (stream != null) {
+                    stream.mSendWindow += increment;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Records that {@code count} received bytes have been consumed.
+     *
+     * @return The connection window increment to send, or 0 to wait for more
+     */
+    private int consumeLocked(int count) {
+        mUnacknowledgedBytes += count;
+        if (mUnacknowledgedBytes < CONNECTION_WINDOW_SIZE / 2) {
+            return 0;
+        }
+        int increment = mUnacknowledgedBytes;
+        mUnacknowledgedBytes = 0;
+        return increment;
+    }
+
+    /** Stops counting a stream against the server's concurrent stream limit. */
+    private void deactivateLocked(Stream stream) {
+        if (stream.mActive) {
+            stream.mActive = false;
+            mActiveStreams--;
+            closeIfDoneLocked();
+        }
+    }
+
+    private void closeIfDoneLocked() {
+        if (mGoingAway && mActiveStreams == 0 && mPendingStreams == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Waits for a state change, or until the deadline or the request is canceled. Canceling
+     * the request wakes up the thread through {@link #mCancelListener}.
+     */
+    private void awaitLocked(Request<?> request, long deadlineNanos) throws IOException {
+        if (request.isCanceled()) {
+            throw new InterruptedIOException("Request canceled");
+        }
+        long remainingMs = (deadlineNanos - System.nanoTime()) / 1000000L;
+        if (remainingMs <= 0) {
+            throw new SocketTimeoutException();
+        }
+        waitLocked(remainingMs);
+    }
+
+    private void waitLocked(long timeoutMs) throws InterruptedIOException {
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void writeHeadersLocked(int streamId, byte[] block, boolean endStream)
+            throws IOException {
+        int maxFrameSize;
+        synchronized (this) {
+            maxFrameSize = mMaxFrameSize;
+        }
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        int length = Math.min(block.length, maxFrameSize);
+        writeFrameLocked(TYPE_HEADERS, flags | (length == block.length ? FLAG_END_HEADERS : 0),
+                streamId, block, 0, length);
+        for (int offset = length; offset < block.length; offset += length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+            writeFrameLocked(TYPE_CONTINUATION,
+                    offset + length == block.length ? FLAG_END_HEADERS : 0,
+                    streamId, block, offset, length);
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (mWriteLock) {
+            writeFrameLocked(TYPE_WINDOW_UPDATE, 0, streamId, windowUpdate(increment), 0, 4);
+            mOut.flush();
+        }
+    }
+
+    private void writeRstStream(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        synchronized (mWriteLock) {
+            writeFrameLocked(TYPE_RST_STREAM, 0, streamId, payload, 0, payload.length);
+            mOut.flush();
+        }
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, byte[] payload, int offset,
+            int length) throws IOException {
+        byte[] header = mFrameHeader;
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        mOut.write(header);
+        if (length > 0) {
+            mOut.write(payload, offset, length);
+        }
+    }
+
+    private static IOException protocolError(String message) {
+        return new IOException("HTTP/2 protocol error: " + message);
+    }
+
+    private static boolean isInformational(List<String> namesAndValues) {
+        for (int i = 0; i < namesAndValues.size(); i += 2) {
+            if (":status".equals(namesAndValues.get(i))) {
+                return namesAndValues.get(i + 1).startsWith("1");
+            }
+        }
+        return false;
+    }
+
+    private static byte[] windowUpdate(int increment) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        return payload;
+    }
+
+    private static void putSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        putInt(buffer, offset + 2, value);
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * One request and its response. Its state is guarded by the connection's monitor.
+     */
+    class Stream {
+        final int mId;
+        private final Request<?> mRequest;
+        private long mSendWindow;
+        private List<String> mResponseHeaders;
+        private final LinkedList<byte[]> mData = new LinkedList<byte[]>();
+        private int mDataOffset = 0;
+        private int mBuffered = 0;
+        private int mUnacknowledgedBytes = 0;
+        private boolean mActive = true;
+        private boolean mRemoteFinished = false;
+        private boolean mClosed = false;
+        private IOException mError;
+
+        Stream(int id, int sendWindow, Request<?> request) {
+            mId = id;
+            mSendWindow = sendWindow;
+            mRequest = request;
+        }
+
+        /**
+         * Sends the request body, as fast as the server's flow control windows allow.
+         */
+        void writeData(byte[] body, int timeoutMs) throws IOException {
+            try {
+                int offset = 0;
+                while (offset < body.length) {
+                    int count;
+                    synchronized (Http2Connection.this) {
+                        long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+                        while (true) {
+                            checkLocked();
+                            count = (int) Math.min(Math.min(body.length - offset, mMaxFrameSize),
+                                    Math.min(mSendWindow, Http2Connection.this.mSendWindow));
+                            if (count > 0) {
+                                break;
+                            }
+                            awaitLocked(mRequest, deadlineNanos);
+                        }
+                        mSendWindow -= count;
+                        Http2Connection.this.mSendWindow -= count;
+                    }
+                    offset += count;
+                    synchronized (mWriteLock) {
+                        writeFrameLocked(TYPE_DATA, offset == body.length ? FLAG_END_STREAM : 0,
+                                mId, body, offset - count, count);
+                        mOut.flush();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Waits for the final response headers.
+         *
+         * @return Alternating header names and values, including pseudo-headers
+         */
+        List<String> awaitHeaders(int timeoutMs) throws IOException {
+            try {
+                synchronized (Http2Connection.this) {
+                    long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+                    while (mResponseHeaders == null) {
+                        checkLocked();
+                        if (mRemoteFinished) {
+                            throw new IOException("Stream ended without a response");
+                        }
+                        awaitLocked(mRequest, deadlineNanos);
+                    }
+                    return mResponseHeaders;
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns a stream of the response body. Closing it before the end resets the stream.
+         */
+        InputStream getInputStream(final int timeoutMs) {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    return readData(buffer, offset, count, timeoutMs);
+                }
+
+                @Override
+                public int available() {
+                    synchronized (Http2Connection.this) {
+                        return mBuffered;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    Stream.this.close();
+                }
+            };
+        }
+
+        private int readData(byte[] buffer, int offset, int count, int timeoutMs)
+                throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            int read = 0;
+            int streamUpdate = 0;
+            int connectionUpdate;
+            try {
+                synchronized (Http2Connection.this) {
+                    long deadlineNanos = System.nanoTime() + timeoutMs * 1000000L;
+                    while (mData.isEmpty() && !mRemoteFinished) {
+                        checkLocked();
+                        awaitLocked(mRequest, deadlineNanos);
+                    }
+                    if (mData.isEmpty()) {
+                        read = -1;
+                    }
+                    while (read >= 0 && read < count && !mData.isEmpty()) {
+                        byte[] chunk = mData.getFirst();
+                        int n = Math.min(count - read, chunk.length - mDataOffset);
+                        System.arraycopy(chunk, mDataOffset, buffer, offset + read, n);
+                        read += n;
+                        mDataOffset += n;
+                        if (mDataOffset == chunk.length) {
+                            mData.removeFirst();
+                            mDataOffset = 0;
+                        }
+                    }
+                    if (read == -1) {
+                        // Fully read; release the stream below.
+                        connectionUpdate = 0;
+                    } else {
+                        mBuffered -= read;
+                        connectionUpdate = consumeLocked(read);
+                    }
+                    if (read > 0 && !mRemoteFinished) {
+                        mUnacknowledgedBytes += read;
+                        if (mUnacknowledgedBytes >= STREAM_WINDOW_SIZE / 2) {
+                            streamUpdate = mUnacknowledgedBytes;
+                            mUnacknowledgedBytes = 0;
+                        }
+                    }
+                }
+                if (read == -1) {
+                    close();
+                }
+                if (streamUpdate > 0) {
+                    writeWindowUpdate(mId, streamUpdate);
+                }
+                if (connectionUpdate > 0) {
+                    writeWindowUpdate(0, connectionUpdate);
+                }
+                return read;
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Releases the stream. If the response hasn't been received completely, the stream is
+         * reset so the server stops sending it.
+         */
+        void close() {
+            boolean reset;
+            int connectionUpdate;
+            synchronized (Http2Connection.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mRequest.removeCancelListener(mCancelListener);
+                reset = !mRemoteFinished && mError == null && mFailure == null;
+                mStreams.remove(mId);
+                deactivateLocked(this);
+                // Data that will never be read no longer counts against the connection window.
+                connectionUpdate = consumeLocked(mBuffered);
+                mData.clear();
+                mBuffered = 0;
+                Http2Connection.this.notifyAll();
+            }
+            try {
+                if (reset) {
+                    writeRstStream(mId, ERROR_CANCEL);
+                }
+                if (connectionUpdate > 0) {
+                    writeWindowUpdate(0, connectionUpdate);
+                }
+            } catch (IOException e) {
+                // The connection is failing, which the reader thread handles.
+            }
+        }
+
+        private void failLocked(IOException error) {
+            mError = error;
+            deactivateLocked(this);
+        }
+
+        private void checkLocked() throws IOException {
+            if (mError != null) {
+                throw new IOException(mError.getMessage());
+            }
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+}
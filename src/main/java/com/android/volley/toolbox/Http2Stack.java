@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HttpStack} that sends requests over HTTP/2, multiplexing all concurrent requests to a
+ * host over a single connection instead of holding one connection per network thread.
+ * <p>
+ * Request headers are compressed with HPACK, so headers repeated on every request cost a byte or
+ * two each after the first. If a request is canceled while it is in flight, its stream is reset
+ * so the server can stop working on it, without affecting the other streams on the connection.
+ * <p>
+ * Connections are made with prior knowledge of HTTP/2 support (h2c), which suits servers on a
+ * private network or behind a proxy that accept cleartext HTTP/2. Negotiating HTTP/2 over TLS
+ * needs ALPN, which the platform doesn't offer, so https URLs and other schemes are sent through
+ * a fallback stack instead.
+ */
+public class Http2Stack implements HttpStack {
+
+    private static final String HEADER_CONTENT_TYPE = "content-type";
+
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    /** Headers that are specific to HTTP/1.1 connections and not allowed in HTTP/2. */
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("host");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("te");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+    }
+
+    private final HttpStack mFallback;
+
+    /** Open connections, by host and port. */
+    private final Map<String, Http2Connection> mConnections =
+            new HashMap<String, Http2Connection>();
+
+    /** Hosts and ports a connection is being opened to. Guarded by mConnections. */
+    private final Set<String> mConnecting = new HashSet<String>();
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mConnectCount = new AtomicLong();
+
+    /**
+     * Creates a stack that sends https requests through a {@link HurlStack}.
+     */
+    public Http2Stack() {
+        this(new HurlStack());
+    }
+
+    /**
+     * @param fallback Stack for requests that can't be sent over cleartext HTTP/2, such as
+     *     https requests
+     */
+    public Http2Stack(HttpStack fallback) {
+        mFallback = fallback;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+        if (!"http".equals(url.getProtocol())) {
+            return mFallback.performRequest(request, additionalHeaders);
+        }
+        mRequestCount.incrementAndGet();
+
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.putAll(request.getHeaders());
+        map.putAll(additionalHeaders);
+        byte[] body = getBody(request);
+        String method = getMethodName(request.getMethod(), body);
+
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String path = url.getFile().length() > 0 ? url.getFile() : "/";
+        List<String> headers = new ArrayList<String>(2 * (map.size() + 5));
+        headers.add(":method");
+        headers.add(method);
+        headers.add(":scheme");
+        headers.add("http");
+        headers.add(":authority");
+        headers.add(url.getPort() != -1 ? url.getHost() + ":" + port : url.getHost());
+        headers.add(":path");
+        headers.add(path);
+        boolean hasContentType = false;
+        for (Map.Entry<String, String> header : map.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (!CONNECTION_HEADERS.contains(name)) {
+                headers.add(name);
+                headers.add(header.getValue());
+                hasContentType |= HEADER_CONTENT_TYPE.equals(name);
+            }
+        }
+        if (body != null && !hasContentType) {
+            headers.add(HEADER_CONTENT_TYPE);
+            headers.add(getBodyContentType(request));
+        }
+
+        int timeoutMs = request.getTimeoutMs();
+        Http2Connection.Stream stream = null;
+        for (int attempt = 0; stream == null; attempt++) {
+            Http2Connection connection = getConnection(url.getHost(), port, timeoutMs);
+            stream = connection.newStream(headers, body == null, request, timeoutMs);
+            if (stream == null) {
+                // The connection started shutting down; try once more on a new one.
+                removeConnection(url.getHost(), port, connection);
+                if (attempt > 0) {
+                    throw new IOException("Connection shut down");
+                }
+            }
+        }
+        if (body != null) {
+            stream.writeData(body, timeoutMs);
+            request.markBodySent(body.length);
+        }
+
+        List<String> responseHeaders = stream.awaitHeaders(timeoutMs);
+        int statusCode = getStatusCode(responseHeaders);
+        if (statusCode == -1) {
+            stream.close();
+            throw new IOException("Response without a valid :status");
+        }
+        BasicHttpResponse response =
+                new BasicHttpResponse(new BasicStatusLine(HTTP_2, statusCode, null));
+        for (int i = 0; i < responseHeaders.size(); i += 2) {
+            String name = responseHeaders.get(i);
+            if (!name.startsWith(":")) {
+                response.addHeader(name, responseHeaders.get(i + 1));
+            }
+        }
+        if (HurlStack.hasResponseBody(request.getMethod(), statusCode)) {
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(stream.getInputStream(timeoutMs));
+            entity.setContentLength(getContentLength(response));
+            if (response.getFirstHeader("content-type") != null) {
+                entity.setContentType(response.getFirstHeader("content-type"));
+            }
+            if (response.getFirstHeader("content-encoding") != null) {
+                entity.setContentEncoding(response.getFirstHeader("content-encoding"));
+            }
+            response.setEntity(entity);
+        } else {
+            stream.close();
+        }
+        return response;
+    }
+
+    /**
+     * Closes all connections. Requests in flight fail; later requests open new connections.
+     */
+    public void shutdown() {
+        List<Http2Connection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<Http2Connection>(mConnections.values());
+            mConnections.clear();
+        }
+        for (Http2Connection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    /** Returns the number of requests sent over HTTP/2. */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Returns the number of HTTP/2 connections opened. */
+    public long getConnectCount() {
+        return mConnectCount.get();
+    }
+
+    /** Returns the number of HTTP/2 connections that can take new requests. */
+    public int getOpenConnectionCount() {
+        int count = 0;
+        synchronized (mConnections) {
+            for (Http2Connection connection : mConnections.values()) {
+                if (connection.isUsable()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the connection to a host, opening one if there is none. Only one connection to a
+     * host is opened at a time; other requests for the host wait for it.
+     */
+    private Http2Connection getConnection(String host, int port, int timeoutMs)
+            throws IOException {
+        String key = host + ":" + port;
+        synchronized (mConnections) {
+            while (true) {
+                Http2Connection connection = mConnections.get(key);
+                if (connection != null && connection.isUsable()) {
+                    return connection;
+                }
+                if (!mConnecting.contains(key)) {
+                    break;
+                }
+                try {
+                    mConnections.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            mConnecting.add(key);
+        }
+        Http2Connection connection = null;
+        try {
+            connection = Http2Connection.open(host, port, timeoutMs);
+            mConnectCount.incrementAndGet();
+            return connection;
+        } finally {
+            synchronized (mConnections) {
+                mConnecting.remove(key);
+                if (connection != null) {
+                    mConnections.put(key, connection);
+                }
+                mConnections.notifyAll();
+            }
+        }
+    }
+
+    private void removeConnection(String host, int port, Http2Connection connection) {
+        String key = host + ":" + port;
+        synchronized (mConnections) {
+            if (mConnections.get(key) == connection) {
+                mConnections.remove(key);
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static byte[] getBody(Request<?> request) throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                return request.getPostBody();
+            case Method.POST:
+            case Method.PUT:
+            case Method.PATCH:
+                return request.getBody();
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String getBodyContentType(Request<?> request) {
+        return request.getMethod() == Method.DEPRECATED_GET_OR_POST
+                ? request.getPostBodyContentType() : request.getBodyContentType();
+    }
+
+    private static String getMethodName(int method, byte[] body) {
+        switch (method) {
+            case Method.DEPRECATED_GET_OR_POST:
+                return body != null ? "POST" : "GET";
+            case Method.GET:
+                return "GET";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    private static int getStatusCode(List<String> responseHeaders) {
+        for (int i = 0; i < responseHeaders.size(); i += 2) {
+            if (":status".equals(responseHeaders.get(i))) {
+                try {
+                    return Integer.parseInt(responseHeaders.get(i + 1));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long getContentLength(HttpResponse response) {
+        if (response.getFirstHeader("content-length") == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(response.getFirstHeader("content-length").getValue());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
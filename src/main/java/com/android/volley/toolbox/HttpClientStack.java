@@ -52,6 +52,9 @@ public class HttpClientStack implements HttpStack {
 
     private final static String HEADER_CONTENT_TYPE = "Content-Type";
 
+    /** Connection timeout used unless a subclass overrides {@link #getConnectionTimeoutMs()}. */
+    private static final int DEFAULT_CONNECTION_TIMEOUT_MS = 5000;
+
     public HttpClientStack(HttpClient client) {
         mClient = client;
     }
@@ -82,9 +85,24 @@ public class HttpClientStack implements HttpStack {
         int timeoutMs = request.getTimeoutMs();
         // TODO: Reevaluate this connection timeout based on more wide-scale
         // data collection and possibly different for wifi vs. 3G.
-        HttpConnectionParams.setConnectionTimeout(httpParams, 5000);
+        HttpConnectionParams.setConnectionTimeout(httpParams, getConnectionTimeoutMs());
         HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
-        return mClient.execute(httpRequest);
+        HttpResponse response = mClient.execute(httpRequest);
+        if (httpRequest instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntity entity = ((HttpEntityEnclosingRequestBase) httpRequest).getEntity();
+            if (entity != null) {
+                request.markBodySent(entity.getContentLength());
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Returns the timeout in milliseconds for establishing a new connection. The time to read
+     * the response is limited by {@link Request#getTimeoutMs()} instead.
+     */
+    protected int getConnectionTimeoutMs() {
+        return DEFAULT_CONNECTION_TIMEOUT_MS;
     }
 
     /**
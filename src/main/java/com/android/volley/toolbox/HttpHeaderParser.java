@@ -127,6 +127,14 @@ public class HttpHeaderParser {
             finalExpire = softExpire;
         }
 
+        // A response served stale, for example while its host's circuit is open, doesn't get a new
+        // lifetime; it stays expired until the server has validated it. A Warning header alone
+        // doesn't count, since servers and proxies send those too.
+        if (response.stale) {
+            softExpire = 0;
+            finalExpire = 0;
+        }
+
         //将服务器请求内容和验证信息都赋值给entry对象
         Cache.Entry entry = new Cache.Entry();
         entry.data = response.data;
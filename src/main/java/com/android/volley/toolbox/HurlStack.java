@@ -146,7 +146,7 @@ public class HurlStack implements HttpStack {
      * @return whether the response has a body
      */
     /** 判断当前request请求结果是否有响应体. */
-    private static boolean hasResponseBody(int requestMethod, int responseCode) {
+    /* package */ static boolean hasResponseBody(int requestMethod, int responseCode) {
         return requestMethod != Request.Method.HEAD
             && !(HttpStatus.SC_CONTINUE <= responseCode && responseCode < HttpStatus.SC_OK)
             && responseCode != HttpStatus.SC_NO_CONTENT
@@ -223,6 +223,7 @@ public class HurlStack implements HttpStack {
                     DataOutputStream out = new DataOutputStream(connection.getOutputStream());
                     out.write(postBody);
                     out.close();
+                    request.markBodySent(postBody.length);
                 }
                 break;
             case Method.GET:
@@ -269,6 +270,7 @@ public class HurlStack implements HttpStack {
             DataOutputStream out = new DataOutputStream(connection.getOutputStream());
             out.write(body);
             out.close();
+            request.markBodySent(body.length);
         }
     }
 }
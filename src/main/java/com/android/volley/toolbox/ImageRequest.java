@@ -119,6 +119,17 @@ public class ImageRequest extends Request<Bitmap> {
         return Priority.LOW;
     }
 
+    @Override
+    protected boolean canShareResponseWith(Request<?> other) {
+        if (other.getClass() != getClass()) {
+            return false;
+        }
+        // Only requests decoding to the same size and format can share a bitmap.
+        ImageRequest image = (ImageRequest) other;
+        return image.mMaxWidth == mMaxWidth && image.mMaxHeight == mMaxHeight
+                && image.mDecodeConfig == mDecodeConfig && image.mScaleType == mScaleType;
+    }
+
     /**
      * Scales one side of a rectangle to fit aspect ratio.
      *
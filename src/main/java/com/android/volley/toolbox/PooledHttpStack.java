@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link HttpStack} that keeps connections alive in a pool it manages itself, so requests to
+ * the same host reuse a connection instead of paying for a new TCP connection and TLS handshake.
+ * <p>
+ * At most <code>maxConnections</code> connections are kept in total and at most
+ * <code>maxConnectionsPerHost</code> to each host; a request that finds its host at the limit
+ * waits for a connection to be released, for up to the connect timeout. Connections idle for
+ * longer than <code>idleTimeoutMs</code>, or past the server's <code>Keep-Alive</code> timeout,
+ * are closed.
+ * <p>
+ * Connections are returned to the pool when the response entity is consumed, which
+ * {@link BasicNetwork} always does. The reuse ratio and time spent connecting and in TLS
+ * handshakes are available from the getters, for tuning the limits.
+ */
+public class PooledHttpStack extends HttpClientStack {
+
+    /** Default limit on connections in the pool. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /** Default limit on connections to one host, matching the default network thread count. */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** Default time an unused connection is kept open. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+    /** Default timeout for establishing a new connection. */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+
+    private final ThreadSafeClientConnManager mConnectionManager;
+    private final TimingSocketFactory mPlainSocketFactory;
+    private final TimingTlsSocketFactory mTlsSocketFactory;
+    private final long mIdleTimeoutMs;
+    private final int mConnectTimeoutMs;
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Creates a stack with the default limits.
+     */
+    public PooledHttpStack() {
+        this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS,
+                DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxConnections The most connections kept open, idle or in use
+     * @param maxConnectionsPerHost The most connections kept open to a single host
+     * @param idleTimeoutMs How long an unused connection is kept open
+     * @param connectTimeoutMs Timeout for establishing a new connection, which includes waiting
+     *     for a connection to be released when the limit is reached
+     */
+    public PooledHttpStack(int maxConnections, int maxConnectionsPerHost, long idleTimeoutMs,
+            int connectTimeoutMs) {
+        this(createParams(maxConnections, maxConnectionsPerHost, connectTimeoutMs),
+                idleTimeoutMs, connectTimeoutMs);
+    }
+
+    private PooledHttpStack(HttpParams params, long idleTimeoutMs, int connectTimeoutMs) {
+        super(new DefaultHttpClient(createConnectionManager(params), params));
+        mConnectionManager = (ThreadSafeClientConnManager) mClient.getConnectionManager();
+        SchemeRegistry registry = mConnectionManager.getSchemeRegistry();
+        mPlainSocketFactory = (TimingSocketFactory) registry.getScheme("http").getSocketFactory();
+        mTlsSocketFactory =
+                (TimingTlsSocketFactory) registry.getScheme("https").getSocketFactory();
+        mIdleTimeoutMs = idleTimeoutMs;
+        mConnectTimeoutMs = connectTimeoutMs;
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        mRequestCount.incrementAndGet();
+        evictIdleConnections();
+        return super.performRequest(request, additionalHeaders);
+    }
+
+    @Override
+    protected int getConnectionTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    /**
+     * Closes connections that have been idle for longer than the idle timeout, or that the server
+     * no longer keeps alive. This is also done before each request.
+     */
+    public void evictIdleConnections() {
+        mConnectionManager.closeExpiredConnections();
+        mConnectionManager.closeIdleConnections(mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes all connections. The stack can't be used afterwards.
+     */
+    public void shutdown() {
+        mConnectionManager.shutdown();
+    }
+
+    /** Returns the number of requests performed. */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Returns the number of new connections opened. */
+    public long getConnectCount() {
+        return mPlainSocketFactory.mConnectCount.get() + mTlsSocketFactory.mConnectCount.get();
+    }
+
+    /** Returns the fraction of requests that reused a pooled connection. */
+    public float getReuseRatio() {
+        long requests = mRequestCount.get();
+        if (requests == 0) {
+            return 0f;
+        }
+        return Math.max(0f, 1f - (float) getConnectCount() / requests);
+    }
+
+    /** Returns the total time spent establishing TCP connections, in milliseconds. */
+    public long getConnectTimeMs() {
+        return mPlainSocketFactory.mConnectTimeMs.get() + mTlsSocketFactory.mConnectTimeMs.get();
+    }
+
+    /** Returns the number of TLS handshakes performed. */
+    public long getTlsHandshakeCount() {
+        return mTlsSocketFactory.mHandshakeCount.get();
+    }
+
+    /** Returns the total time spent in TLS handshakes, in milliseconds. */
+    public long getTlsHandshakeTimeMs() {
+        return mTlsSocketFactory.mHandshakeTimeMs.get();
+    }
+
+    /** Returns the number of connections currently in the pool, idle or in use. */
+    public int getPooledConnectionCount() {
+        return mConnectionManager.getConnectionsInPool();
+    }
+
+    private static HttpParams createParams(int maxConnections, int maxConnectionsPerHost,
+            int connectTimeoutMs) {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(maxConnectionsPerHost));
+        ConnManagerParams.setTimeout(params, connectTimeoutMs);
+        return params;
+    }
+
+    private static ThreadSafeClientConnManager createConnectionManager(HttpParams params) {
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", new TimingSocketFactory(), 80));
+        registry.register(new Scheme("https",
+                new TimingTlsSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+        return new ThreadSafeClientConnManager(params, registry);
+    }
+
+    /**
+     * Opens plain connections and records how long they take to establish.
+     */
+    private static class TimingSocketFactory implements SocketFactory {
+        private final SocketFactory mPlain = PlainSocketFactory.getSocketFactory();
+        final AtomicLong mConnectCount = new AtomicLong();
+        final AtomicLong mConnectTimeMs = new AtomicLong();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return mPlain.createSocket();
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params)
+                throws IOException, ConnectTimeoutException {
+            long start = SystemClock.elapsedRealtime();
+            Socket connected =
+                    mPlain.connectSocket(sock, host, port, localAddress, localPort, params);
+            mConnectCount.incrementAndGet();
+            mConnectTimeMs.addAndGet(SystemClock.elapsedRealtime() - start);
+            return connected;
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens plain connections and layers TLS on top of them, recording the time taken by the
+     * connection and the handshake separately.
+     */
+    private static class TimingTlsSocketFactory extends TimingSocketFactory
+            implements LayeredSocketFactory {
+        private final LayeredSocketFactory mTls;
+        final AtomicLong mHandshakeCount = new AtomicLong();
+        final AtomicLong mHandshakeTimeMs = new AtomicLong();
+
+        TimingTlsSocketFactory(LayeredSocketFactory tls) {
+            mTls = tls;
+        }
+
+        @Override
+        public Socket connectSocket(Socket sock, String host, int port,
+                InetAddress localAddress, int localPort, HttpParams params)
+                throws IOException, ConnectTimeoutException {
+            Socket connected = super.connectSocket(sock, host, port, localAddress, localPort,
+                    params);
+            return createSocket(connected, host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            // SSLSocketFactory verifies the host name, which completes the handshake.
+            long start = SystemClock.elapsedRealtime();
+            Socket secure = mTls.createSocket(socket, host, port, autoClose);
+            mHandshakeCount.incrementAndGet();
+            mHandshakeTimeMs.addAndGet(SystemClock.elapsedRealtime() - start);
+            return secure;
+        }
+
+        @Override
+        public boolean isSecure(Socket sock) {
+            return true;
+        }
+    }
+}
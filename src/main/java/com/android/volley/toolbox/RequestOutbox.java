@@ -0,0 +1,663 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A durable outbox for mutating requests that must reach the server even if the device is
+ * offline when they are made, or the process dies before they are sent.
+ *
+ * <p>{@link #add(Request)} records the request's method, URL, headers, body content type and
+ * {@link Request#getBody()} in an append-only file and returns once the record is on disk. The
+ * outbox then sends its requests through the {@link RequestQueue} one at a time, in the order
+ * they were added. Requests that the server may apply in any order can be sent in batches of up
+ * to {@link #setMaxBatchSize(int) maxBatchSize}: the requests of a batch are added to the queue
+ * together, and the next batch is only sent once all of them have completed. If a request of a
+ * batch has to be retried, so are the ones after it, so that they aren't applied before it for
+ * good; batched requests should therefore be safe to send twice.
+ *
+ * <p>A request is removed from the outbox once it succeeds, or fails with a client error that a
+ * retry won't fix. If it fails for lack of a connection, with a timeout or with a server error,
+ * or is canceled, it is kept and sending pauses until {@link #replay()} is called, e.g. from the receiver
+ * installed by {@link #registerConnectivityReceiver(Context)} when connectivity returns.
+ * Requests are delivered at least once: a request whose removal hadn't reached the disk when the
+ * process died is sent again.
+ *
+ * <p>Since a request may be sent by a later process, the request passed to {@link #add(Request)}
+ * is only used for its contents; it isn't added to the queue and its listeners are never called.
+ * Outcomes are reported to the {@link Listener} instead, identified by the id returned by
+ * {@link #add(Request)}.
+ *
+ * <p>The file starts with a magic number and a version, followed by ADD records holding a
+ * request and REMOVE records holding the id of a request that is done. Writers that add
+ * requests concurrently share a single fsync, and the removals of a batch are synced together.
+ * The file is rewritten from the pending requests when it is read and whenever the outbox
+ * drains.
+ */
+public class RequestOutbox {
+
+    /** Default most requests sent at once. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1;
+
+    /** Magic number for current version of outbox file format. */
+    private static final int OUTBOX_MAGIC = 0x20151001;
+
+    private static final int OUTBOX_VERSION = 1;
+
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+
+    /** Don't bother compacting files with fewer records than this. */
+    private static final int MIN_COMPACTION_RECORDS = 100;
+
+    /** Receives the outcome of requests sent from the outbox, on the delivery thread. */
+    public interface Listener {
+        /** Called when the request with the given id succeeded and was removed. */
+        public void onSent(long id, NetworkResponse response);
+
+        /** Called when the request with the given id failed permanently and was removed. */
+        public void onDropped(long id, VolleyError error);
+    }
+
+    /** A request waiting in the outbox. */
+    private static class Entry {
+        long id;
+        int method;
+        String url;
+        Map<String, String> headers;
+        String contentType;
+        byte[] body;
+
+        /** Whether the request's ADD record is known to be on disk, so it may be sent. */
+        boolean synced;
+
+        /** Whether the latest attempt succeeded or failed for good, so the request can go. */
+        boolean done;
+
+        /** Outcome of the latest attempt to send the request. */
+        NetworkResponse response;
+        VolleyError error;
+    }
+
+    private final File mFile;
+    private final File mTempFile;
+    private final RequestQueue mRequestQueue;
+
+    /** Serializes syncs and rewrites of the file. Taken before the outbox's own lock. */
+    private final Object mSyncLock = new Object();
+
+    /** Requests that haven't completed yet, in the order they were added. */
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>();
+
+    /** Stream the file is appended through, or null if the outbox isn't open. */
+    private FileOutputStream mFileStream;
+    private OutputStream mWriter;
+
+    /** Records written since the outbox was opened, and how many of those are synced. */
+    private long mWrittenRecords;
+    private long mSyncedRecords;
+
+    /** Number of records in the file, used to decide when to compact. */
+    private int mFileRecords;
+
+    private long mNextId = 1;
+
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    /** Requests of the current batch that haven't completed yet. */
+    private int mInFlight;
+
+    /** Requests of the current batch, in the order they were added. */
+    private final List<Entry> mBatch = new ArrayList<Entry>();
+
+    /** True if a request of the current batch should be retried, until the next replay. */
+    private boolean mPaused;
+
+    /** True if {@link #replay()} was called while a batch was being sent. */
+    private boolean mReplayRequested;
+
+    private Listener mListener;
+
+    private BroadcastReceiver mConnectivityReceiver;
+
+    /**
+     * Creates an outbox backed by the given file. Call {@link #initialize()} before using it.
+     *
+     * @param file The file requests are written to
+     * @param requestQueue The queue requests are sent through
+     */
+    public RequestOutbox(File file, RequestQueue requestQueue) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+        mRequestQueue = requestQueue;
+    }
+
+    /**
+     * Sets the listener for the outcome of requests.
+     */
+    public synchronized RequestOutbox setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Sets the most requests sent at once. Takes effect from the next batch.
+     */
+    public synchronized RequestOutbox setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        mMaxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Returns the number of requests that haven't been sent successfully or dropped yet.
+     */
+    public synchronized int getPendingCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Reads the requests left in the file by an earlier process and starts sending them.
+     *
+     * <p>A record cut short at the end of the file (e.g. by a crash mid-write) is dropped; the
+     * {@link #add(Request)} that wrote it hadn't returned.
+     *
+     * @throws IOException if the file is corrupt or can't be read or written
+     */
+    public void initialize() throws IOException {
+        synchronized (mSyncLock) {
+            synchronized (this) {
+                mEntries.clear();
+                if (mFile.exists()) {
+                    read();
+                }
+                rewrite();
+            }
+        }
+        replay();
+    }
+
+    private void read() throws IOException {
+        int records = 0;
+        InputStream is = new BufferedInputStream(new FileInputStream(mFile));
+        try {
+            if (DiskBasedCache.readInt(is) != OUTBOX_MAGIC
+                    || DiskBasedCache.readInt(is) != OUTBOX_VERSION) {
+                throw new IOException("Unexpected outbox header");
+            }
+            while (true) {
+                int op = is.read();
+                if (op == -1) {
+                    break;
+                }
+                try {
+                    readRecord(op, is);
+                } catch (EOFException e) {
+                    VolleyLog.d("Truncated outbox after %d records", records);
+                    break;
+                }
+                records++;
+            }
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private void readRecord(int op, InputStream is) throws IOException {
+        switch (op) {
+            case OP_ADD:
+                Entry entry = new Entry();
+                entry.id = DiskBasedCache.readLong(is);
+                entry.method = DiskBasedCache.readInt(is);
+                entry.url = DiskBasedCache.readString(is);
+                entry.headers = DiskBasedCache.readStringStringMap(is);
+                entry.contentType = DiskBasedCache.readString(is);
+                int length = DiskBasedCache.readInt(is);
+                entry.body = length < 0 ? null : DiskBasedCache.streamToBytes(is, length);
+                entry.synced = true;
+                mEntries.put(entry.id, entry);
+                mNextId = Math.max(mNextId, entry.id + 1);
+                break;
+            case OP_REMOVE:
+                mEntries.remove(DiskBasedCache.readLong(is));
+                break;
+            default:
+                throw new IOException("Unknown outbox record " + op);
+        }
+    }
+
+    /**
+     * Replaces the file with one ADD record per pending request, synced, and opens it for
+     * appending. Must be called holding both locks.
+     */
+    private void rewrite() throws IOException {
+        close();
+        FileOutputStream fos = new FileOutputStream(mTempFile);
+        try {
+            OutputStream os = new BufferedOutputStream(fos);
+            DiskBasedCache.writeInt(os, OUTBOX_MAGIC);
+            DiskBasedCache.writeInt(os, OUTBOX_VERSION);
+            for (Entry entry : mEntries.values()) {
+                writeAdd(os, entry);
+            }
+            os.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            throw new IOException("Could not rename " + mTempFile);
+        }
+        mFileStream = new FileOutputStream(mFile, true);
+        mWriter = new BufferedOutputStream(mFileStream);
+        mFileRecords = mEntries.size();
+        mSyncedRecords = mWrittenRecords;
+    }
+
+    private static void writeAdd(OutputStream os, Entry entry) throws IOException {
+        os.write(OP_ADD);
+        DiskBasedCache.writeLong(os, entry.id);
+        DiskBasedCache.writeInt(os, entry.method);
+        DiskBasedCache.writeString(os, entry.url);
+        DiskBasedCache.writeStringStringMap(entry.headers, os);
+        DiskBasedCache.writeString(os, entry.contentType);
+        if (entry.body == null) {
+            DiskBasedCache.writeInt(os, -1);
+        } else {
+            DiskBasedCache.writeInt(os, entry.body.length);
+            os.write(entry.body);
+        }
+    }
+
+    /**
+     * Writes a request to the outbox and sends it once the requests added before it have been
+     * sent. Returns once the request is on disk.
+     *
+     * @return the id the request's outcome is reported under
+     * @throws AuthFailureError if the request's headers or body can't be built
+     * @throws IOException if the request couldn't be written
+     */
+    public long add(Request<?> request) throws AuthFailureError, IOException {
+        Entry entry = new Entry();
+        entry.method = request.getMethod();
+        entry.url = request.getUrl();
+        entry.headers = request.getHeaders();
+        entry.contentType = request.getBodyContentType();
+        entry.body = request.getBody();
+        if (entry.method == Request.Method.DEPRECATED_GET_OR_POST) {
+            entry.method = entry.body == null ? Request.Method.GET : Request.Method.POST;
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        long written;
+        synchronized (this) {
+            if (mWriter == null) {
+                throw new IOException("Outbox is not open");
+            }
+            entry.id = mNextId++;
+            writeAdd(record, entry);
+            record.writeTo(mWriter);
+            mFileRecords++;
+            written = ++mWrittenRecords;
+            mEntries.put(entry.id, entry);
+        }
+        try {
+            sync(written);
+        } catch (IOException e) {
+            discard(entry);
+            throw e;
+        }
+        synchronized (this) {
+            entry.synced = true;
+        }
+        replay();
+        return entry.id;
+    }
+
+    /**
+     * Forgets a request whose ADD record couldn't be synced, so that it isn't sent although
+     * {@link #add(Request)} failed. A REMOVE record is written in case the ADD record made it to
+     * disk after all.
+     */
+    private synchronized void discard(Entry entry) {
+        mEntries.remove(entry.id);
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(OP_REMOVE);
+            DiskBasedCache.writeLong(mWriter, entry.id);
+            mWriter.flush();
+            mFileRecords++;
+            mWrittenRecords++;
+        } catch (IOException e) {
+            VolleyLog.e("Failed to update outbox: %s", e.toString());
+        }
+    }
+
+    /**
+     * Waits until the first {@code records} records written are on disk. Whoever gets to sync
+     * first syncs everything written so far, so concurrent writers share one fsync.
+     */
+    private void sync(long records) throws IOException {
+        synchronized (mSyncLock) {
+            FileDescriptor fd;
+            long target;
+            synchronized (this) {
+                if (mSyncedRecords >= records) {
+                    return;
+                }
+                if (mWriter == null) {
+                    throw new IOException("Outbox is not open");
+                }
+                mWriter.flush();
+                fd = mFileStream.getFD();
+                target = mWrittenRecords;
+            }
+            fd.sync();
+            synchronized (this) {
+                mSyncedRecords = Math.max(mSyncedRecords, target);
+            }
+        }
+    }
+
+    /**
+     * Sends the next batch of requests, unless one is already being sent. Resumes sending if it
+     * was paused by a failed request.
+     */
+    public void replay() {
+        List<OutboxRequest> batch = new ArrayList<OutboxRequest>();
+        synchronized (this) {
+            if (mWriter == null) {
+                return;
+            }
+            if (mInFlight > 0) {
+                // Sent once the current batch completes, even if it fails.
+                mReplayRequested = true;
+                return;
+            }
+            mPaused = false;
+            mReplayRequested = false;
+            Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext() && batch.size() < mMaxBatchSize) {
+                Entry entry = it.next();
+                if (!entry.synced) {
+                    // Sent by the add() that is still syncing it, once it's on disk.
+                    break;
+                }
+                entry.done = false;
+                mBatch.add(entry);
+                batch.add(new OutboxRequest(this, entry));
+            }
+            mInFlight = batch.size();
+        }
+        for (OutboxRequest request : batch) {
+            mRequestQueue.add(request);
+        }
+    }
+
+    private void onResponse(Entry entry, NetworkResponse response) {
+        entry.response = response;
+        entry.error = null;
+        onComplete(entry, true);
+    }
+
+    private void onError(Entry entry, VolleyError error) {
+        entry.error = error;
+        onComplete(entry, !isTransient(error));
+    }
+
+    /**
+     * Returns true if a request that failed with {@code error} may succeed when retried.
+     */
+    private static boolean isTransient(VolleyError error) {
+        if (error.networkResponse == null) {
+            return true;
+        }
+        int statusCode = error.networkResponse.statusCode;
+        return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+
+    /**
+     * Called as each request of a batch completes, or is canceled. Once they all have, removes
+     * the requests that are done up to the first one that isn't, reports them to the listener and
+     * sends the next batch unless sending is paused. The requests from the first one that isn't
+     * done on are kept, so that they are sent again in order.
+     */
+    private void onComplete(Entry entry, boolean done) {
+        List<Entry> removed = new ArrayList<Entry>();
+        Listener listener;
+        synchronized (this) {
+            entry.done = done;
+            if (!done) {
+                mPaused = true;
+            }
+            if (--mInFlight > 0) {
+                return;
+            }
+            for (Entry e : mBatch) {
+                if (!e.done) {
+                    break;
+                }
+                removed.add(e);
+            }
+            mBatch.clear();
+            // Removed right away so the next batch doesn't send them again.
+            for (Entry e : removed) {
+                mEntries.remove(e.id);
+            }
+            listener = mListener;
+        }
+        try {
+            commitRemovals(removed);
+        } catch (IOException e) {
+            // The requests will be sent again by the next process.
+            VolleyLog.e("Failed to update outbox: %s", e.toString());
+        }
+        if (listener != null) {
+            for (Entry e : removed) {
+                if (e.error == null) {
+                    listener.onSent(e.id, e.response);
+                } else {
+                    listener.onDropped(e.id, e.error);
+                }
+            }
+        }
+        boolean paused;
+        synchronized (this) {
+            paused = mPaused && !mReplayRequested;
+        }
+        if (!paused) {
+            replay();
+        }
+    }
+
+    /**
+     * Writes REMOVE records for requests that are done with a single sync, or rewrites the file
+     * if it is left mostly redundant.
+     */
+    private void commitRemovals(List<Entry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        long written;
+        synchronized (mSyncLock) {
+            synchronized (this) {
+                if (mWriter == null) {
+                    return;
+                }
+                if (mEntries.isEmpty() || (mFileRecords >= MIN_COMPACTION_RECORDS
+                        && mFileRecords >= 2 * mEntries.size())) {
+                    rewrite();
+                    return;
+                }
+                for (Entry entry : entries) {
+                    mWriter.write(OP_REMOVE);
+                    DiskBasedCache.writeLong(mWriter, entry.id);
+                    mFileRecords++;
+                }
+                mWrittenRecords += entries.size();
+                written = mWrittenRecords;
+            }
+        }
+        sync(written);
+    }
+
+    /**
+     * Registers a receiver that calls {@link #replay()} whenever the device gets connectivity.
+     */
+    public synchronized void registerConnectivityReceiver(Context context) {
+        if (mConnectivityReceiver != null) {
+            return;
+        }
+        mConnectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    replay();
+                }
+            }
+        };
+        context.getApplicationContext().registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Unregisters the receiver registered by {@link #registerConnectivityReceiver(Context)}.
+     */
+    public synchronized void unregisterConnectivityReceiver(Context context) {
+        if (mConnectivityReceiver != null) {
+            context.getApplicationContext().unregisterReceiver(mConnectivityReceiver);
+            mConnectivityReceiver = null;
+        }
+    }
+
+    /**
+     * Closes the outbox's file. Requests being sent still complete, but no more are sent and
+     * their removal isn't recorded, so they are sent again after the next
+     * {@link #initialize()}.
+     */
+    public synchronized void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) { }
+            mWriter = null;
+            mFileStream = null;
+        }
+    }
+
+    /**
+     * Replays an outbox entry, reporting its outcome back to the outbox. A request that finishes
+     * without an outcome, e.g. because it was canceled, is reported as one to retry.
+     */
+    private static class OutboxRequest extends Request<NetworkResponse> {
+        private final RequestOutbox mOutbox;
+        private final Entry mEntry;
+
+        /** Whether the outcome has been reported to the outbox. */
+        private final AtomicBoolean mReported = new AtomicBoolean();
+
+        OutboxRequest(RequestOutbox outbox, Entry entry) {
+            super(entry.method, entry.url, null);
+            mOutbox = outbox;
+            mEntry = entry;
+            setShouldCache(false);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return mEntry.headers;
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mEntry.contentType;
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mEntry.body;
+        }
+
+        @Override
+        protected Response<NetworkResponse> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response, null);
+        }
+
+        @Override
+        protected void deliverResponse(NetworkResponse response) {
+            if (mReported.compareAndSet(false, true)) {
+                mOutbox.onResponse(mEntry, response);
+            }
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            if (mReported.compareAndSet(false, true)) {
+                mOutbox.onError(mEntry, error);
+            }
+        }
+
+        @Override
+        protected void onFinish() {
+            super.onFinish();
+            if (mReported.compareAndSet(false, true)) {
+                mOutbox.onComplete(mEntry, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link ByteArrayPool} that files buffers into power-of-two size classes, so that getting and
+ * returning a buffer takes constant time and doesn't need a lock.
+ * <p>
+ * Each size class has a fixed number of slots which are claimed and released with
+ * compare-and-set, so dispatcher threads don't contend on a single monitor. A request for
+ * {@code len} bytes is served from the class of the next power of two at or above {@code len};
+ * newly allocated buffers are rounded up to that power of two so they can be reused by any request
+ * in the same class. Buffers larger than the pool's size limit are allocated at the exact size
+ * requested and never pooled.
+ * <p>
+ * The total size of pooled buffers never exceeds the size limit. Unlike {@link ByteArrayPool},
+ * when a returned buffer doesn't fit, it is the returned buffer that is dropped rather than the
+ * least recently used one.
+ */
+public class SizeClassByteArrayPool extends ByteArrayPool {
+
+    /** Smallest size class; smaller requests are rounded up to it. */
+    private static final int MIN_SHIFT = 6;
+
+    /** Most slots a single size class gets, to bound the cost of scanning it. */
+    private static final int MAX_SLOTS_PER_CLASS = 16;
+
+    /** Slots for each size class, indexed by log2 of the class's buffer size. */
+    private final AtomicReferenceArray<byte[]>[] mClasses;
+
+    /** The total size of the buffers in the pool */
+    private final AtomicInteger mCurrentSize = new AtomicInteger();
+
+    /**
+     * The maximum aggregate size of the buffers in the pool.
+     */
+    private final int mSizeLimit;
+
+    /**
+     * @param sizeLimit the maximum size of the pool, in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public SizeClassByteArrayPool(int sizeLimit) {
+        super(sizeLimit);
+        mSizeLimit = sizeLimit;
+        int maxShift = sizeLimit > 0 ? 31 - Integer.numberOfLeadingZeros(sizeLimit) : 0;
+        mClasses = new AtomicReferenceArray[Math.max(maxShift + 1, MIN_SHIFT)];
+        for (int shift = MIN_SHIFT; shift <= maxShift; shift++) {
+            int slots = Math.min(MAX_SLOTS_PER_CLASS, sizeLimit >> shift);
+            mClasses[shift] = new AtomicReferenceArray<byte[]>(slots);
+        }
+    }
+
+    /**
+     * Returns a buffer from the pool if one is available in the requested size class, or allocates
+     * a new one if a pooled one is not available.
+     *
+     * @param len the minimum size, in bytes, of the requested buffer. The returned buffer may be
+     *        larger.
+     * @return a byte[] buffer is always returned.
+     */
+    @Override
+    public byte[] getBuf(int len) {
+        int shift = ceilShift(len);
+        if (len > mSizeLimit || shift >= mClasses.length) {
+            // Too big to ever be pooled.
+            return new byte[len];
+        }
+        AtomicReferenceArray<byte[]> slots = mClasses[shift];
+        if (slots != null) {
+            int n = slots.length();
+            int start = startIndex(n);
+            for (int i = 0; i < n; i++) {
+                int index = (start + i) % n;
+                byte[] buf = slots.get(index);
+                if (buf != null && slots.compareAndSet(index, buf, null)) {
+                    mCurrentSize.addAndGet(-buf.length);
+                    return buf;
+                }
+            }
+        }
+        return new byte[1 << shift];
+    }
+
+    /**
+     * Returns a buffer to the pool, unless that would make the pool exceed its size limit or its
+     * size class is full.
+     *
+     * @param buf the buffer to return to the pool.
+     */
+    @Override
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > mSizeLimit || buf.length < (1 << MIN_SHIFT)) {
+            return;
+        }
+        // Buffers that aren't a power of two go in the class below, whose requests they satisfy.
+        AtomicReferenceArray<byte[]> slots = mClasses[floorShift(buf.length)];
+        if (slots == null) {
+            return;
+        }
+        if (mCurrentSize.addAndGet(buf.length) > mSizeLimit) {
+            mCurrentSize.addAndGet(-buf.length);
+            return;
+        }
+        int n = slots.length();
+        int start = startIndex(n);
+        for (int i = 0; i < n; i++) {
+            int index = (start + i) % n;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, buf)) {
+                return;
+            }
+        }
+        mCurrentSize.addAndGet(-buf.length);
+    }
+
+    /** Spreads threads over the slots of a class so they don't all CAS the same one. */
+    private static int startIndex(int slots) {
+        return (int) (Thread.currentThread().getId() % slots);
+    }
+
+    /** Returns log2 of the smallest size class holding buffers of at least {@code len} bytes. */
+    private static int ceilShift(int len) {
+        if (len <= (1 << MIN_SHIFT)) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(len - 1);
+    }
+
+    /** Returns log2 of the largest size class a buffer of {@code len} bytes can serve. */
+    private static int floorShift(int len) {
+        return 31 - Integer.numberOfLeadingZeros(len);
+    }
+}
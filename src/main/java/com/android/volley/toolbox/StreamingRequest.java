@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A request whose response body is parsed as it is read from the network, instead of first being
+ * collected into a <code>byte[]</code>.
+ * <p>
+ * When the request is performed by {@link BasicNetwork}, {@link #parseResponseStream} is called
+ * on the network dispatcher thread with the body's InputStream, so decoders can start before the
+ * last byte arrives and large bodies only take as much memory as the decoder needs. Cache hits
+ * and 304 responses are parsed through the same method, from the cached bytes.
+ * <p>
+ * To be able to cache the response, the body is copied aside while it is read, up to
+ * {@link #getMaxCachedBodySize()} bytes. Larger responses are delivered normally but not cached.
+ *
+ * @param <T> The type of parsed response this request expects.
+ */
+public abstract class StreamingRequest<T> extends Request<T> {
+
+    /** Default limit on the size of a response body that is kept for the cache. */
+    private static final int DEFAULT_MAX_CACHED_BODY_SIZE = 256 * 1024;
+
+    /** Response parsed from the network stream, waiting to be returned from parseNetworkResponse. */
+    private Response<T> mStreamedResponse;
+
+    /** Bytes read off the network stream for that response, or -1 if it wasn't streamed. */
+    private long mStreamedBytes = -1;
+
+    /**
+     * Creates a new request with the given method.
+     *
+     * @param method the request {@link Method} to use
+     * @param url URL to fetch
+     * @param listener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(int method, String url, ErrorListener listener) {
+        super(method, url, listener);
+    }
+
+    /**
+     * Parses the response body. Called on a worker thread, either with the network stream or
+     * with the cached body. If the request is retried this may be called again with a new stream.
+     * <p>
+     * The stream doesn't need to be read to the end, or closed. Unless a cache entry is returned
+     * in the response, one is created from the response headers.
+     *
+     * @param statusCode HTTP status code of the response
+     * @param headers Response headers
+     * @param body The response body
+     * @return A parsed response, or a response containing an error
+     * @throws IOException if reading the body fails; this is delivered as a network error when
+     *     streaming from the network, or as a {@link ParseError} when parsing cached data
+     */
+    protected abstract Response<T> parseResponseStream(int statusCode,
+            Map<String, String> headers, InputStream body) throws IOException;
+
+    /**
+     * Returns the largest response body, in bytes, that is kept in memory for the cache. Bodies
+     * larger than this are not cached. Only used if {@link #shouldCache()} returns true.
+     */
+    protected int getMaxCachedBodySize() {
+        return DEFAULT_MAX_CACHED_BODY_SIZE;
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        Response<T> streamed = mStreamedResponse;
+        if (streamed != null) {
+            mStreamedResponse = null;
+            return streamed;
+        }
+        try {
+            Response<T> parsed = parseResponseStream(response.statusCode, response.headers,
+                    new ByteArrayInputStream(response.data));
+            return withCacheEntry(parsed, response);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    /**
+     * Parses a successful response from the network stream. The parsed response is returned by the
+     * next call to {@link #parseNetworkResponse(NetworkResponse)}.
+     *
+     * @return the response body if it was kept for the cache, otherwise null
+     */
+    byte[] streamResponse(int statusCode, Map<String, String> headers, InputStream in,
+            ByteArrayPool pool) throws IOException {
+        mStreamedResponse = null;
+        mStreamedBytes = -1;
+        TeeInputStream tee =
+                new TeeInputStream(in, pool, shouldCache() ? getMaxCachedBodySize() : -1);
+        try {
+            Response<T> parsed = parseResponseStream(statusCode, headers, tee);
+            byte[] body = tee.drain();
+            mStreamedBytes = tee.mByteCount;
+            if (body != null) {
+                mStreamedResponse = withCacheEntry(parsed,
+                        new NetworkResponse(statusCode, body, headers, false));
+            } else if (parsed.isSuccess() && parsed.cacheEntry != null) {
+                // Without the whole body there is nothing to cache.
+                mStreamedResponse = Response.success(parsed.result, null);
+            } else {
+                mStreamedResponse = parsed;
+            }
+            return body;
+        } finally {
+            tee.release();
+        }
+    }
+
+    /**
+     * Returns false: the body is parsed as it is read, and only kept when the response is cached,
+     * so a network response may not hold it for other requests to parse.
+     */
+    @Override
+    protected boolean canShareNetworkResponse() {
+        return false;
+    }
+
+    /**
+     * Counts the bytes read off the network stream, since the response data only holds them if
+     * the body was small enough to keep for the cache.
+     */
+    @Override
+    protected long getNetworkResponseBytes(NetworkResponse response) {
+        long streamed = mStreamedBytes;
+        mStreamedBytes = -1;
+        return streamed >= 0 ? streamed : super.getNetworkResponseBytes(response);
+    }
+
+    /**
+     * Returns {@code parsed} with a cache entry holding the body of {@code response}.
+     */
+    private static <T> Response<T> withCacheEntry(Response<T> parsed, NetworkResponse response) {
+        if (!parsed.isSuccess()) {
+            return parsed;
+        }
+        Cache.Entry entry = parsed.cacheEntry;
+        if (entry == null) {
+            entry = HttpHeaderParser.parseCacheHeaders(response);
+        } else {
+            entry.data = response.data;
+        }
+        return Response.success(parsed.result, entry);
+    }
+
+    /**
+     * Passes reads through to the network stream and keeps a copy of the bytes read, until there
+     * are more than a limit.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final ByteArrayPool mPool;
+        private final int mLimit;
+        /** Copy of the bytes read so far, or null once the limit has been exceeded. */
+        private PoolingByteArrayOutputStream mCopy;
+        private boolean mEof;
+        /** Bytes read or skipped from the network stream. */
+        long mByteCount;
+
+        /**
+         * @param limit the most bytes to keep, or -1 to keep none
+         */
+        TeeInputStream(InputStream in, ByteArrayPool pool, int limit) {
+            super(in);
+            mPool = pool;
+            mLimit = limit;
+            if (limit >= 0) {
+                mCopy = new PoolingByteArrayOutputStream(pool);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                mEof = true;
+                return b;
+            }
+            mByteCount++;
+            if (mCopy != null) {
+                if (mCopy.size() + 1 > mLimit) {
+                    release();
+                } else {
+                    mCopy.write(b);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = in.read(buffer, offset, count);
+            if (result == -1) {
+                mEof = true;
+                return result;
+            }
+            mByteCount += result;
+            if (mCopy != null) {
+                if (mCopy.size() + result > mLimit) {
+                    release();
+                } else {
+                    mCopy.write(buffer, offset, result);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (mCopy == null) {
+                long skipped = in.skip(n);
+                mByteCount += skipped;
+                return skipped;
+            }
+            // Skipped bytes still need to be copied.
+            byte[] buffer = mPool.getBuf(1024);
+            try {
+                return Math.max(0, read(buffer, 0, (int) Math.min(n, buffer.length)));
+            } finally {
+                mPool.returnBuf(buffer);
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        @Override
+        public void close() {
+            // The network stream is closed by BasicNetwork once the body has been drained.
+        }
+
+        /**
+         * Reads the rest of the body if it still fits within the limit, and returns all of it.
+         *
+         * @return the whole body, or null if it is larger than the limit
+         */
+        byte[] drain() throws IOException {
+            if (mCopy == null) {
+                return null;
+            }
+            byte[] buffer = mPool.getBuf(1024);
+            try {
+                while (mCopy != null && !mEof) {
+                    read(buffer, 0, buffer.length);
+                }
+            } finally {
+                mPool.returnBuf(buffer);
+            }
+            return mCopy != null ? mCopy.toByteArray() : null;
+        }
+
+        /** Stops copying and returns the copy's buffer to the pool. */
+        void release() {
+            if (mCopy != null) {
+                try {
+                    mCopy.close();
+                } catch (IOException ignored) { }
+                mCopy = null;
+            }
+        }
+    }
+}
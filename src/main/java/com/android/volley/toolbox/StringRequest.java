@@ -68,6 +68,11 @@ public class StringRequest extends Request<String> {
         }
     }
 
+    @Override
+    protected boolean canShareResponseWith(Request<?> other) {
+        return other.getClass() == getClass();
+    }
+
     @Override
     protected Response<String> parseNetworkResponse(NetworkResponse response) {
         String parsed;
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A two level {@link Cache}: a size-bounded in-memory LRU cache of entries in front of another
+ * cache, typically a {@link DiskBasedCache}.
+ *
+ * <p>Reads are served from memory when possible, and entries read from the backing cache are
+ * promoted into memory. Entries larger than the admission limit are never kept in memory, so a
+ * few large images can't flush out many small, frequently used responses.
+ *
+ * <p>Writes and removals are applied to the backing cache asynchronously, in order, on a single
+ * background thread. Until then they are visible from memory, so the cache always reads its own
+ * writes. {@link #invalidate} and {@link #clear()} are synchronous.
+ *
+ * <p>Entries are returned as copies sharing the same data array, which must not be modified.
+ */
+public class TieredCache implements Cache {
+
+    /** Default fraction of the memory tier that a single entry may take up. */
+    private static final int DEFAULT_ADMISSION_DIVISOR = 8;
+
+    /** Marks a key whose removal hasn't reached the backing cache yet. */
+    private static final Entry REMOVED = new Entry();
+
+    /** The memory tier, in access order. */
+    private final LinkedHashMap<String, Entry> mMemory =
+            new LinkedHashMap<String, Entry>(16, .75f, true);
+
+    /** Writes (or REMOVED) that haven't been applied to the backing cache yet. */
+    private final Map<String, Entry> mPending = new HashMap<String, Entry>();
+
+    /** The backing tier. */
+    private final Cache mBackingCache;
+
+    /** Serial executor applying writes to the backing tier. */
+    private final Executor mWriteExecutor;
+
+    /** The maximum size of the memory tier in bytes. */
+    private final int mMaxMemoryBytes;
+
+    /** The largest entry that is admitted to the memory tier, in bytes. */
+    private final int mMaxEntryBytes;
+
+    /** Bytes of entry data currently in the memory tier. */
+    private int mMemoryBytes;
+
+    /** Incremented by every write, so reads from the backing tier can tell they raced one. */
+    private long mWriteCount;
+
+    private long mMemoryHitCount;
+    private long mMemoryMissCount;
+    private long mBackingHitCount;
+    private long mBackingMissCount;
+
+    /**
+     * Creates a tiered cache.
+     * @param backingCache The cache behind the memory tier
+     * @param maxMemoryBytes The maximum size of the memory tier in bytes
+     * @param maxEntryBytes Entries larger than this many bytes are not kept in memory
+     * @param writeExecutor Executor for writes to the backing cache. It must run tasks one at a
+     *     time, in the order they were submitted.
+     */
+    public TieredCache(Cache backingCache, int maxMemoryBytes, int maxEntryBytes,
+            Executor writeExecutor) {
+        mBackingCache = backingCache;
+        mMaxMemoryBytes = maxMemoryBytes;
+        mMaxEntryBytes = maxEntryBytes;
+        mWriteExecutor = writeExecutor;
+    }
+
+    /**
+     * Creates a tiered cache which admits entries of up to an eighth of the memory tier's size
+     * and writes to the backing cache on its own background thread.
+     * @param backingCache The cache behind the memory tier
+     * @param maxMemoryBytes The maximum size of the memory tier in bytes
+     */
+    public TieredCache(Cache backingCache, int maxMemoryBytes) {
+        this(backingCache, maxMemoryBytes, maxMemoryBytes / DEFAULT_ADMISSION_DIVISOR,
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "volley-cache-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+    }
+
+    @Override
+    public Entry get(String key) {
+        long writeCount;
+        synchronized (this) {
+            Entry entry = mPending.get(key);
+            if (entry == null) {
+                entry = mMemory.get(key);
+            }
+            if (entry != null) {
+                mMemoryHitCount++;
+                return entry == REMOVED ? null : copyOf(entry);
+            }
+            mMemoryMissCount++;
+            writeCount = mWriteCount;
+        }
+
+        Entry entry = mBackingCache.get(key);
+        synchronized (this) {
+            if (entry == null) {
+                mBackingMissCount++;
+                return null;
+            }
+            mBackingHitCount++;
+            // Don't promote what we read if the key may have been written in the meantime.
+            if (writeCount == mWriteCount) {
+                putInMemory(key, entry);
+            }
+        }
+        return copyOf(entry);
+    }
+
+    @Override
+    public void put(final String key, Entry entry) {
+        final Entry stored = copyOf(entry);
+        synchronized (this) {
+            mWriteCount++;
+            mPending.put(key, stored);
+            putInMemory(key, stored);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBackingCache.put(key, stored);
+                writeFinished(key, stored);
+            }
+        });
+    }
+
+    @Override
+    public void remove(final String key) {
+        synchronized (this) {
+            mWriteCount++;
+            mPending.put(key, REMOVED);
+            removeFromMemory(key);
+        }
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBackingCache.remove(key);
+                writeFinished(key, REMOVED);
+            }
+        });
+    }
+
+    private synchronized void writeFinished(String key, Entry entry) {
+        // A later write to the same key is still pending.
+        if (mPending.get(key) == entry) {
+            mPending.remove(key);
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mBackingCache.initialize();
+    }
+
+    /**
+     * Clears both tiers. Blocks until writes queued before the call have been applied, so none
+     * of them can reappear afterwards.
+     */
+    @Override
+    public void clear() {
+        synchronized (this) {
+            mWriteCount++;
+            mMemory.clear();
+            mMemoryBytes = 0;
+            mPending.clear();
+        }
+        final CountDownLatch cleared = new CountDownLatch(1);
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mBackingCache.clear();
+                } finally {
+                    cleared.countDown();
+                }
+            }
+        });
+        try {
+            cleared.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of reads answered by the memory tier. */
+    public synchronized long getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    /** Returns the number of reads the memory tier couldn't answer. */
+    public synchronized long getMemoryMissCount() {
+        return mMemoryMissCount;
+    }
+
+    /** Returns the number of reads answered by the backing cache. */
+    public synchronized long getBackingHitCount() {
+        return mBackingHitCount;
+    }
+
+    /** Returns the number of reads that missed in both tiers. */
+    public synchronized long getBackingMissCount() {
+        return mBackingMissCount;
+    }
+
+    /** Returns the number of bytes of entry data held in the memory tier. */
+    public synchronized int getMemorySize() {
+        return mMemoryBytes;
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        removeFromMemory(key);
+        int size = entry.data.length;
+        if (size > mMaxEntryBytes) {
+            return;
+        }
+        mMemory.put(key, entry);
+        mMemoryBytes += size;
+        trimMemory();
+    }
+
+    private void removeFromMemory(String key) {
+        Entry old = mMemory.remove(key);
+        if (old != null) {
+            mMemoryBytes -= old.data.length;
+        }
+    }
+
+    private void trimMemory() {
+        Iterator<Entry> iterator = mMemory.values().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && iterator.hasNext()) {
+            mMemoryBytes -= iterator.next().data.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns a copy of {@code entry} sharing its data, with its own copy of the headers, so
+     * callers can change its fields and headers without affecting the cached entry.
+     */
+    private static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders == null
+                ? null : new HashMap<String, String>(entry.responseHeaders);
+        return copy;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffRetryPolicyTest {
+
+    @Test public void maxDelayDoublesUpToCap() throws Exception {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(2500, 10, 1f, 100, 1000);
+        assertEquals(100, policy.getMaxDelayMs(1));
+        assertEquals(200, policy.getMaxDelayMs(2));
+        assertEquals(800, policy.getMaxDelayMs(4));
+        assertEquals(1000, policy.getMaxDelayMs(5));
+        assertEquals(1000, policy.getMaxDelayMs(100));
+    }
+
+    @Test public void delaysAreJittered() throws Exception {
+        BackoffRetryPolicy policy =
+                new BackoffRetryPolicy(2500, 1000, 0f, 100, 100, new Random(42));
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            policy.retry(new TimeoutError());
+            min = Math.min(min, policy.getRetryDelayMs());
+            max = Math.max(max, policy.getRetryDelayMs());
+        }
+        assertTrue(min < 10);
+        assertTrue(max > 90);
+        assertTrue(max <= 100);
+    }
+
+    @Test public void givesUpAfterMaxRetries() throws Exception {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(2500, 2, 1f, 100, 1000);
+        TimeoutError error = new TimeoutError();
+        policy.retry(error);
+        policy.retry(error);
+        try {
+            policy.retry(error);
+            fail("Expected the error to be thrown");
+        } catch (TimeoutError e) {
+            assertSame(error, e);
+        }
+        // The timeout still grows as with DefaultRetryPolicy.
+        assertEquals(20000, policy.getCurrentTimeout());
+    }
+
+    @Test public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(BackoffRetryPolicy.class.getConstructor());
+        assertNotNull(BackoffRetryPolicy.class.getConstructor(int.class, int.class, float.class,
+                int.class, int.class));
+        assertNotNull(BackoffRetryPolicy.class.getMethod("getRetryDelayMs"));
+        assertNotNull(BackoffRetryPolicy.class.getMethod("retry", VolleyError.class));
+        assertNotNull(RetryScheduledError.class.getConstructor(VolleyError.class, long.class));
+        assertNotNull(RetryScheduledError.class.getMethod("getDelayMs"));
+    }
+}
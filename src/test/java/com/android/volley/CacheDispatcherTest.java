@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
 import com.android.volley.mock.MockCache;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.MockResponseDelivery;
@@ -68,6 +69,17 @@ public class CacheDispatcherTest {
         assertFalse(mDelivery.wasEitherResponseCalled());
     }
 
+    // A request past its deadline is dropped with an error, without reading the cache.
+    @Test public void pastDeadline() throws Exception {
+        mRequest.setDeadline(1);
+        SystemClock.sleep(1);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mCache.getCalled);
+        assertTrue(mDelivery.postError_called);
+        assertEquals(0, mNetworkQueue.size());
+    }
+
     // A cache miss does not post a response and puts the request on the network queue.
     @Test public void cacheMiss() throws Exception {
         mCacheQueue.add(mRequest);
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class ExecutorDispatcherTest {
+
+    /** Executor that keeps its tasks until the test runs them. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+    private ManualExecutor mExecutor;
+    private Network mNetwork;
+    private ResponseDelivery mDelivery;
+
+    @Before public void setUp() throws Exception {
+        mExecutor = new ManualExecutor();
+        mNetwork = mock(Network.class);
+        when(mNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(new byte[0]));
+        mDelivery = new ImmediateResponseDelivery();
+    }
+
+    @Test public void cacheMissGoesToNetwork() throws Exception {
+        Cache cache = mock(Cache.class);
+        RequestQueue queue = new RequestQueue(cache, mNetwork, mExecutor, mDelivery);
+        MockRequest request = new MockRequest();
+        queue.start();
+        queue.add(request);
+
+        // One task for the cache triage, which then submits one for the network.
+        assertEquals(1, mExecutor.mTasks.size());
+        mExecutor.runAll();
+
+        verify(cache).initialize();
+        verify(cache).get(request.getCacheKey());
+        verify(mNetwork).performRequest(request);
+        assertTrue(request.deliverResponse_called);
+        assertEquals(0, queue.getNetworkThreadCount());
+    }
+
+    @Test public void keepsPriorityOrder() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, mExecutor, mDelivery);
+        MockRequest low = new MockRequest();
+        low.setShouldCache(false);
+        low.setPriority(Priority.LOW);
+        MockRequest high = new MockRequest();
+        high.setShouldCache(false);
+        high.setPriority(Priority.HIGH);
+        queue.start();
+        queue.add(low);
+        queue.add(high);
+        mExecutor.runAll();
+
+        InOrder inOrder = inOrder(mNetwork);
+        inOrder.verify(mNetwork).performRequest(high);
+        inOrder.verify(mNetwork).performRequest(low);
+    }
+
+    @Test public void skipsCanceledRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, mExecutor, mDelivery);
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        queue.addRequestFinishedListener(listener);
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        queue.start();
+        queue.add(request);
+        request.cancel();
+        mExecutor.runAll();
+
+        verify(mNetwork, never()).performRequest(any(Request.class));
+        verify(listener).onRequestFinished(request);
+        assertFalse(request.deliverResponse_called);
+    }
+
+    @Test public void requestsAddedWhileStoppedRunOnStart() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, mExecutor, mDelivery);
+        MockRequest request = new MockRequest();
+        queue.add(request);
+        assertTrue(mExecutor.mTasks.isEmpty());
+
+        queue.start();
+        queue.stop();
+        mExecutor.runAll();
+        assertFalse(request.deliverResponse_called);
+
+        queue.start();
+        mExecutor.runAll();
+        assertTrue(request.deliverResponse_called);
+    }
+
+    @Test public void hostSchedulerReleasesWaitingRequests() throws Exception {
+        HostScheduler scheduler = new HostScheduler(1);
+        RequestQueue queue =
+                new RequestQueue(new NoCache(), mNetwork, mExecutor, mDelivery, scheduler);
+        MockRequest first = new MockRequest("http://foo.com/1", null);
+        first.setShouldCache(false);
+        MockRequest second = new MockRequest("http://foo.com/2", null);
+        second.setShouldCache(false);
+        queue.start();
+        queue.add(first);
+        queue.add(second);
+        mExecutor.runAll();
+
+        verify(mNetwork).performRequest(first);
+        verify(mNetwork).performRequest(second);
+        assertEquals(0, scheduler.getQueuedCount("foo.com"));
+        assertEquals(0, scheduler.getInFlightCount("foo.com"));
+    }
+
+    @Test public void runsOnExecutorService() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, executor, mDelivery);
+        final CountDownLatch finished = new CountDownLatch(20);
+        queue.addRequestFinishedListener(new RequestFinishedListener<byte[]>() {
+            @Override
+            public void onRequestFinished(Request<byte[]> request) {
+                finished.countDown();
+            }
+        });
+        queue.start();
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int i = 0; i < 20; i++) {
+            MockRequest request = new MockRequest("http://foo.com/" + i, null);
+            requests.add(request);
+            queue.add(request);
+        }
+
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+        }
+        queue.stop();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockNetwork;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class HostSchedulerTest {
+
+    private static MockRequest request(String host, Priority priority) {
+        MockRequest request = new MockRequest("http://" + host + "/", null);
+        request.setPriority(priority);
+        return request;
+    }
+
+    private static MockRequest request(String host) {
+        return request(host, Priority.NORMAL);
+    }
+
+    @Test public void takesHigherPriorityFirst() throws Exception {
+        HostScheduler scheduler = new HostScheduler(4);
+        MockRequest low = request("a.com", Priority.LOW);
+        MockRequest high = request("b.com", Priority.HIGH);
+        MockRequest normal = request("a.com");
+        scheduler.add(low);
+        scheduler.add(normal);
+        scheduler.add(high);
+        assertSame(high, scheduler.poll());
+        assertSame(normal, scheduler.poll());
+        assertSame(low, scheduler.poll());
+        assertNull(scheduler.poll());
+    }
+
+    /** Scheduler whose clock is set by the test. */
+    private static class ClockedScheduler extends HostScheduler {
+        long mNowMs = 1000;
+
+        ClockedScheduler(int maxRequestsPerHost) {
+            super(maxRequestsPerHost);
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return mNowMs;
+        }
+    }
+
+    @Test public void agesWaitingRequests() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setAgingInterval(Priority.LOW, 100);
+        assertEquals(100, scheduler.getAgingInterval(Priority.LOW));
+        assertEquals(0, scheduler.getAgingInterval(Priority.NORMAL));
+        MockRequest low = request("a.com", Priority.LOW);
+        scheduler.add(low);
+        scheduler.mNowMs += 50;
+        MockRequest normal1 = request("b.com");
+        MockRequest normal2 = request("b.com");
+        scheduler.add(normal1);
+        scheduler.add(normal2);
+
+        // Not aged yet.
+        assertSame(normal1, scheduler.poll());
+
+        // Aged to NORMAL, and has waited longer than the other NORMAL request.
+        scheduler.mNowMs += 50;
+        assertSame(low, scheduler.poll());
+        assertSame(normal2, scheduler.poll());
+    }
+
+    @Test public void agingStopsAtHigh() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setAgingInterval(Priority.LOW, 10);
+        MockRequest low = request("a.com", Priority.LOW);
+        scheduler.add(low);
+        scheduler.mNowMs += 10000;
+        MockRequest immediate = request("b.com", Priority.IMMEDIATE);
+        MockRequest high = request("b.com", Priority.HIGH);
+        scheduler.add(immediate);
+        scheduler.add(high);
+
+        assertSame(immediate, scheduler.poll());
+        assertSame(low, scheduler.poll());
+        assertSame(high, scheduler.poll());
+    }
+
+    @Test public void roundRobinsHostsWithinPriority() throws Exception {
+        HostScheduler scheduler = new HostScheduler(10);
+        MockRequest a1 = request("a.com");
+        MockRequest a2 = request("a.com");
+        MockRequest a3 = request("a.com");
+        MockRequest b1 = request("b.com");
+        MockRequest b2 = request("b.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+        scheduler.add(a3);
+        scheduler.add(b1);
+        scheduler.add(b2);
+        assertSame(a1, scheduler.poll());
+        assertSame(b1, scheduler.poll());
+        assertSame(a2, scheduler.poll());
+        assertSame(b2, scheduler.poll());
+        assertSame(a3, scheduler.poll());
+    }
+
+    @Test public void limitsRequestsInFlightPerHost() throws Exception {
+        HostScheduler scheduler = new HostScheduler(1);
+        MockRequest a1 = request("a.com", Priority.HIGH);
+        MockRequest a2 = request("a.com", Priority.HIGH);
+        MockRequest b1 = request("b.com", Priority.LOW);
+        scheduler.add(a1);
+        scheduler.add(a2);
+        scheduler.add(b1);
+
+        assertSame(a1, scheduler.poll());
+        // a.com is at its limit, so the lower priority request for b.com goes first.
+        assertSame(b1, scheduler.peek());
+        assertSame(b1, scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(1, scheduler.size());
+        assertEquals(0, scheduler.getRunnableCount());
+        assertEquals(1, scheduler.getQueuedCount("a.com"));
+        assertEquals(1, scheduler.getInFlightCount("a.com"));
+
+        scheduler.onRequestFinished(a1);
+        assertEquals(1, scheduler.getRunnableCount());
+        assertSame(a2, scheduler.poll());
+        assertEquals(0, scheduler.getQueuedCount("a.com"));
+    }
+
+    @Test public void finishingUnknownRequestHasNoEffect() throws Exception {
+        HostScheduler scheduler = new HostScheduler(1);
+        MockRequest a1 = request("a.com");
+        scheduler.add(a1);
+        scheduler.onRequestFinished(request("a.com"));
+        assertSame(a1, scheduler.poll());
+        scheduler.onRequestFinished(a1);
+        scheduler.onRequestFinished(a1);
+        assertEquals(0, scheduler.getInFlightCount("a.com"));
+    }
+
+    @Test public void takeWaitsForFreeSlot() throws Exception {
+        final HostScheduler scheduler = new HostScheduler(1);
+        MockRequest a1 = request("a.com");
+        MockRequest a2 = request("a.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+        assertSame(a1, scheduler.take());
+
+        final AtomicReference<Request<?>> taken = new AtomicReference<Request<?>>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(scheduler.take());
+                } catch (InterruptedException e) {
+                    // Leave taken empty.
+                }
+                done.countDown();
+            }
+        }.start();
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+        scheduler.onRequestFinished(a1);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(a2, taken.get());
+    }
+
+    @Test public void pollTimesOutWhenHostAtLimit() throws Exception {
+        HostScheduler scheduler = new HostScheduler(1);
+        scheduler.add(request("a.com"));
+        scheduler.add(request("a.com"));
+        assertNotNull(scheduler.poll(10, TimeUnit.MILLISECONDS));
+        assertNull(scheduler.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void limitsRequestRatePerHost() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setHostRateLimit(2, 0);
+        MockRequest a1 = request("a.com");
+        MockRequest a2 = request("a.com");
+        MockRequest a3 = request("a.com");
+        MockRequest b1 = request("b.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+        scheduler.add(a3);
+        scheduler.add(b1);
+
+        // A burst of one second's worth, then a.com waits while b.com has its own bucket.
+        assertSame(a1, scheduler.poll());
+        assertSame(b1, scheduler.poll());
+        assertSame(a2, scheduler.poll());
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.getRunnableCount());
+        assertEquals(1, scheduler.getThrottledCount("a.com"));
+
+        scheduler.mNowMs += 500;
+        assertSame(a3, scheduler.poll());
+        assertEquals(1, scheduler.getThrottledCount());
+        assertEquals(0, scheduler.getThrottledCount("b.com"));
+    }
+
+    @Test public void hostRateLimitOverridesDefault() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setHostRateLimit(1, 0).setHostRateLimit("fast.com", 0, 0);
+        scheduler.add(request("slow.com"));
+        scheduler.add(request("slow.com"));
+        for (int i = 0; i < 5; i++) {
+            scheduler.add(request("fast.com"));
+        }
+        for (int i = 0; i < 6; i++) {
+            assertNotNull(scheduler.poll());
+        }
+        assertNull(scheduler.poll());
+        assertEquals(1, scheduler.getQueuedCount("slow.com"));
+    }
+
+    @Test public void limitsRequestRatePerPriority() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setPriorityRateLimit(Priority.LOW, 1, 0);
+        MockRequest low1 = request("a.com", Priority.LOW);
+        MockRequest low2 = request("b.com", Priority.LOW);
+        MockRequest normal1 = request("a.com");
+        MockRequest normal2 = request("b.com");
+        scheduler.add(low1);
+        scheduler.add(low2);
+        scheduler.add(normal1);
+        scheduler.add(normal2);
+
+        assertSame(normal1, scheduler.poll());
+        assertSame(normal2, scheduler.poll());
+        assertSame(low1, scheduler.poll());
+        assertNull(scheduler.poll());
+
+        scheduler.mNowMs += 1000;
+        assertSame(low2, scheduler.poll());
+    }
+
+    @Test public void limitsBytesPerHost() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setHostRateLimit(0, 1000);
+        assertTrue(scheduler.isLimitingBytes());
+        MockRequest a1 = request("a.com");
+        MockRequest a2 = request("a.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+
+        assertSame(a1, scheduler.poll());
+        // A large response leaves the bucket in debt until it has refilled.
+        scheduler.onBytesTransferred(a1, 3000);
+        scheduler.onRequestFinished(a1);
+        assertNull(scheduler.poll());
+        scheduler.mNowMs += 2000;
+        assertNull(scheduler.poll());
+        scheduler.mNowMs += 1;
+        assertSame(a2, scheduler.poll());
+    }
+
+    @Test public void requestQueueChargesResponseBytes() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setHostRateLimit(0, 1000);
+        RequestQueue queue = new RequestQueue(new NoCache(), new MockNetwork(), 1,
+                new ImmediateResponseDelivery(), scheduler);
+        MockRequest a1 = request("a.com");
+        MockRequest a2 = request("a.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+
+        assertSame(a1, scheduler.poll());
+        queue.onNetworkResponse(a1, new NetworkResponse(new byte[1000]));
+        assertNull(scheduler.poll());
+    }
+
+    @Test public void requestQueueChargesSentBodyBytes() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setHostRateLimit(0, 1000);
+        RequestQueue queue = new RequestQueue(new NoCache(), new MockNetwork(), 1,
+                new ImmediateResponseDelivery(), scheduler);
+        MockRequest a1 = request("a.com");
+        MockRequest a2 = request("a.com");
+        scheduler.add(a1);
+        scheduler.add(a2);
+
+        assertSame(a1, scheduler.poll());
+        a1.markBodySent(600);
+        queue.onNetworkResponse(a1, new NetworkResponse(new byte[400]));
+        assertNull(scheduler.poll());
+        // The body is only charged once.
+        assertEquals(0, ((Request<?>) a1).takeBodyBytesSent());
+    }
+
+    @Test public void throttledPollWakesListener() throws Exception {
+        ClockedScheduler scheduler = new ClockedScheduler(Integer.MAX_VALUE);
+        scheduler.setHostRateLimit(0, 100000);
+        MockRequest a1 = request("a.com");
+        scheduler.add(a1);
+        scheduler.add(request("a.com"));
+        final CountDownLatch woken = new CountDownLatch(1);
+        scheduler.setOfferListener(new Runnable() {
+            @Override
+            public void run() {
+                woken.countDown();
+            }
+        });
+
+        assertSame(a1, scheduler.poll());
+        scheduler.onBytesTransferred(a1, 100001);
+        assertNull(scheduler.poll());
+        assertTrue(woken.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void removeAndClear() throws Exception {
+        HostScheduler scheduler = new HostScheduler(2);
+        MockRequest a1 = request("a.com");
+        MockRequest b1 = request("b.com");
+        MockRequest b2 = request("b.com", Priority.LOW);
+        scheduler.add(a1);
+        scheduler.add(b1);
+        scheduler.add(b2);
+        assertTrue(scheduler.contains(b1));
+        assertTrue(scheduler.remove(b1));
+        assertFalse(scheduler.remove(b1));
+        assertEquals(2, scheduler.size());
+        assertEquals(1, scheduler.getQueuedCount("b.com"));
+
+        List<Request<?>> drained = new ArrayList<Request<?>>();
+        assertEquals(2, scheduler.drainTo(drained));
+        assertEquals(2, drained.size());
+
+        scheduler.add(request("c.com"));
+        scheduler.clear();
+        assertTrue(scheduler.isEmpty());
+        assertEquals(0, scheduler.getQueuedCount("c.com"));
+        assertEquals(3, scheduler.getHosts().size());
+    }
+
+    @Test public void requestQueueEnforcesLimit() throws Exception {
+        final Map<String, Integer> active = Collections.synchronizedMap(
+                new HashMap<String, Integer>());
+        final Map<String, Integer> maxActive = Collections.synchronizedMap(
+                new HashMap<String, Integer>());
+        final Semaphore slowReleases = new Semaphore(0);
+        final CountDownLatch done = new CountDownLatch(8);
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                String host = HostScheduler.getHost(request);
+                synchronized (active) {
+                    Integer count = active.get(host);
+                    count = count == null ? 1 : count + 1;
+                    active.put(host, count);
+                    Integer max = maxActive.get(host);
+                    maxActive.put(host, max == null ? count : Math.max(max, count));
+                }
+                try {
+                    if (host.equals("slow.com")) {
+                        slowReleases.acquire();
+                    }
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                } finally {
+                    synchronized (active) {
+                        active.put(host, active.get(host) - 1);
+                    }
+                }
+                done.countDown();
+                return new NetworkResponse(new byte[0]);
+            }
+        };
+        HostScheduler scheduler = new HostScheduler(1);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 4,
+                new ImmediateResponseDelivery(), scheduler);
+        for (int i = 0; i < 4; i++) {
+            MockRequest slow = request("slow.com");
+            slow.setShouldCache(false);
+            queue.add(slow);
+        }
+        for (int i = 0; i < 4; i++) {
+            MockRequest fast = request("api.com");
+            fast.setShouldCache(false);
+            queue.add(fast);
+        }
+        queue.start();
+
+        // The API host isn't starved while the slow host holds its one slot.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (done.getCount() > 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(4, done.getCount());
+        assertEquals(3, scheduler.getQueuedCount("slow.com"));
+
+        slowReleases.release(4);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        queue.stop();
+        assertEquals(Integer.valueOf(1), maxActive.get("slow.com"));
+        assertEquals(Integer.valueOf(1), maxActive.get("api.com"));
+        assertSame(scheduler, queue.getHostScheduler());
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(HostScheduler.class.getConstructor(int.class));
+        assertNotNull(HostScheduler.class.getMethod("getMaxRequestsPerHost"));
+        assertNotNull(HostScheduler.class.getMethod("onRequestFinished", Request.class));
+        assertNotNull(HostScheduler.class.getMethod("getHosts"));
+        assertNotNull(HostScheduler.class.getMethod("getQueuedCount", String.class));
+        assertNotNull(HostScheduler.class.getMethod("getInFlightCount", String.class));
+        assertNotNull(HostScheduler.class.getMethod("getAverageWaitMs", String.class));
+        assertNotNull(HostScheduler.class.getMethod("getRunnableCount"));
+        assertNotNull(HostScheduler.class.getMethod("setAgingInterval", Request.Priority.class,
+                long.class));
+        assertNotNull(HostScheduler.class.getMethod("getAgingInterval", Request.Priority.class));
+        assertNotNull(HostScheduler.class.getMethod("setHostRateLimit", double.class,
+                long.class));
+        assertNotNull(HostScheduler.class.getMethod("setHostRateLimit", String.class,
+                double.class, long.class));
+        assertNotNull(HostScheduler.class.getMethod("setPriorityRateLimit",
+                Request.Priority.class, double.class, long.class));
+        assertNotNull(HostScheduler.class.getMethod("onBytesTransferred", Request.class,
+                long.class));
+        assertNotNull(HostScheduler.class.getMethod("getThrottledCount"));
+        assertNotNull(HostScheduler.class.getMethod("getThrottledCount", String.class));
+    }
+}
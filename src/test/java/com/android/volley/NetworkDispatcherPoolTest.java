@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class NetworkDispatcherPoolTest {
+
+    /** Network whose requests block until released, counting how many run at once. */
+    private static class BlockingNetwork implements Network {
+        final Semaphore mReleases = new Semaphore(0);
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mMaxActive = new AtomicInteger();
+        final AtomicInteger mCompleted = new AtomicInteger();
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            int active = mActive.incrementAndGet();
+            synchronized (mMaxActive) {
+                mMaxActive.set(Math.max(mMaxActive.get(), active));
+            }
+            try {
+                mReleases.acquire();
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            } finally {
+                mActive.decrementAndGet();
+            }
+            mCompleted.incrementAndGet();
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+
+    private BlockingNetwork mNetwork;
+    private RequestQueue mQueue;
+
+    @Before public void setUp() throws Exception {
+        mNetwork = new BlockingNetwork();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    private RequestQueue newQueue(int min, int max, long keepAliveMs) {
+        mQueue = new RequestQueue(new NoCache(), mNetwork, min, max, keepAliveMs,
+                new ImmediateResponseDelivery(), null);
+        return mQueue;
+    }
+
+    private static MockRequest uncachedRequest() {
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        return request;
+    }
+
+    private static void awaitThreadCount(RequestQueue queue, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getNetworkThreadCount() != count) {
+            assertTrue("Expected " + count + " threads, have " + queue.getNetworkThreadCount(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test public void startsMinimumThreads() throws Exception {
+        RequestQueue queue = newQueue(2, 6, 10000);
+        assertEquals(0, queue.getNetworkThreadCount());
+        queue.start();
+        assertEquals(2, queue.getNetworkThreadCount());
+        assertEquals(2, queue.getPeakNetworkThreadCount());
+    }
+
+    @Test public void growsWithBacklogUpToMaximum() throws Exception {
+        RequestQueue queue = newQueue(1, 4, 10000);
+        queue.start();
+        for (int i = 0; i < 10; i++) {
+            queue.add(uncachedRequest());
+        }
+        awaitThreadCount(queue, 4);
+        Thread.sleep(50);
+        assertEquals(4, queue.getNetworkThreadCount());
+        assertEquals(4, queue.getPeakNetworkThreadCount());
+
+        mNetwork.mReleases.release(10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mNetwork.mCompleted.get() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(10, mNetwork.mCompleted.get());
+        assertEquals(4, mNetwork.mMaxActive.get());
+    }
+
+    @Test public void shrinksToMinimumWhenIdle() throws Exception {
+        RequestQueue queue = newQueue(1, 3, 50);
+        queue.start();
+        for (int i = 0; i < 3; i++) {
+            queue.add(uncachedRequest());
+        }
+        awaitThreadCount(queue, 3);
+        mNetwork.mReleases.release(3);
+        awaitThreadCount(queue, 1);
+        assertEquals(3, queue.getPeakNetworkThreadCount());
+    }
+
+    @Test public void keepsPriorityOrder() throws Exception {
+        final CountDownLatch done = new CountDownLatch(3);
+        final StringBuilder order = new StringBuilder();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                synchronized (order) {
+                    order.append(request.getPriority().name().charAt(0));
+                }
+                done.countDown();
+                return new NetworkResponse(new byte[0]);
+            }
+        };
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 1, 1, 10000,
+                new ImmediateResponseDelivery(), null);
+        mQueue = queue;
+        MockRequest low = uncachedRequest();
+        low.setPriority(Request.Priority.LOW);
+        MockRequest high = uncachedRequest();
+        high.setPriority(Request.Priority.HIGH);
+        MockRequest normal = uncachedRequest();
+        queue.add(low);
+        queue.add(normal);
+        queue.add(high);
+        queue.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("HNL", order.toString());
+    }
+
+    @Test public void stopQuitsAllThreads() throws Exception {
+        RequestQueue queue = newQueue(2, 4, 10000);
+        queue.start();
+        queue.stop();
+        assertEquals(0, queue.getNetworkThreadCount());
+    }
+
+    @Test public void shouldAddThread() {
+        // Nothing waiting.
+        assertFalse(NetworkDispatcherPool.shouldAddThread(0, 1, 1000));
+        // No latency known yet.
+        assertTrue(NetworkDispatcherPool.shouldAddThread(1, 4, -1));
+        // Slow requests: a short backlog is already worth another thread.
+        assertTrue(NetworkDispatcherPool.shouldAddThread(1, 2, 200));
+        // Fast requests: the existing threads drain the backlog quickly.
+        assertFalse(NetworkDispatcherPool.shouldAddThread(4, 4, 10));
+        assertTrue(NetworkDispatcherPool.shouldAddThread(40, 4, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidSizes() {
+        new RequestQueue(new NoCache(), mNetwork, 3, 2, new ImmediateResponseDelivery());
+    }
+}
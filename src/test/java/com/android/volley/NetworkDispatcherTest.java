@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
 import com.android.volley.mock.MockCache;
 import com.android.volley.mock.MockNetwork;
 import com.android.volley.mock.MockRequest;
@@ -79,6 +80,16 @@ public class NetworkDispatcherTest {
         assertTrue(mDelivery.postError_called);
     }
 
+    @Test public void pastDeadlinePostsError() throws Exception {
+        mRequest.setDeadline(1);
+        SystemClock.sleep(1);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertNull(mNetwork.requestHandled);
+        assertFalse(mDelivery.postResponse_called);
+        assertTrue(mDelivery.postError_called);
+    }
+
     @Test public void shouldCacheFalse() throws Exception {
         mRequest.setShouldCache(false);
         mNetworkQueue.add(mRequest);
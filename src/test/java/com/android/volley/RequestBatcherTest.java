@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockCache;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.toolbox.StringRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RequestBatcherTest {
+    private RequestQueue mQueue;
+    private MockCache mCache;
+    private TestAdapter mAdapter;
+    private RequestBatcher mBatcher;
+    private List<String> mResults;
+    private List<VolleyError> mErrors;
+
+    @Before public void setUp() throws Exception {
+        mQueue = mock(RequestQueue.class);
+        mCache = new MockCache();
+        when(mQueue.getCache()).thenReturn(mCache);
+        mAdapter = new TestAdapter();
+        mBatcher = new RequestBatcher(mQueue, mAdapter, 3, 10);
+        mResults = new ArrayList<String>();
+        mErrors = new ArrayList<VolleyError>();
+    }
+
+    @Test public void unbatchableRequestAddedToQueue() {
+        StringRequest request = newRequest("http://foo/other");
+        mBatcher.add(request);
+        verify(mQueue).add(request);
+        assertEquals(0, mBatcher.getPendingCount());
+    }
+
+    @Test public void sendsBatchWhenWindowCloses() throws Exception {
+        mBatcher.add(newRequest("http://foo/items/1"));
+        mBatcher.add(newRequest("http://foo/items/2"));
+        assertEquals(2, mBatcher.getPendingCount());
+        verify(mQueue, never()).add(any(Request.class));
+
+        Robolectric.runUiThreadTasksIncludingDelayedTasks();
+
+        Request<?> batch = captureAdded();
+        assertEquals(0, mBatcher.getPendingCount());
+        assertEquals("http://foo/items?ids=1,2", batch.getUrl());
+        assertEquals(Request.Method.GET, batch.getMethod());
+        assertFalse(batch.shouldCache());
+    }
+
+    @Test public void sendsBatchWhenFull() throws Exception {
+        mBatcher.add(newRequest("http://foo/items/1"));
+        mBatcher.add(newRequest("http://foo/items/2"));
+        mBatcher.add(newRequest("http://foo/items/3"));
+
+        assertEquals("http://foo/items?ids=1,2,3", captureAdded().getUrl());
+        assertEquals(0, mBatcher.getPendingCount());
+    }
+
+    @Test public void batchBodyBuiltOnce() throws Exception {
+        mAdapter.body = "1,2".getBytes();
+        mBatcher.add(newRequest("http://foo/items/1"));
+        mBatcher.add(newRequest("http://foo/items/2"));
+        mBatcher.flushAll();
+
+        Request<?> batch = captureAdded();
+        assertEquals(Request.Method.POST, batch.getMethod());
+        assertEquals(Request.Method.POST, batch.getMethod());
+        assertSame(batch.getBody(), batch.getBody());
+        assertEquals(1, mAdapter.bodyCount);
+    }
+
+    @Test public void singleRequestSentAlone() {
+        StringRequest request = newRequest("http://foo/items/1");
+        mBatcher.add(request);
+        mBatcher.flushAll();
+        verify(mQueue).add(request);
+    }
+
+    @Test public void fansOutAndCachesSubResponses() throws Exception {
+        StringRequest first = newRequest("http://foo/items/1");
+        StringRequest second = newRequest("http://foo/items/2");
+        mBatcher.add(first);
+        mBatcher.add(second);
+        mBatcher.flushAll();
+
+        deliver(captureAdded(), new NetworkResponse("1|2".getBytes()));
+
+        assertEquals(2, mResults.size());
+        assertEquals("item 1", mResults.get(0));
+        assertEquals("item 2", mResults.get(1));
+        assertTrue(first.hasHadResponseDelivered());
+        assertTrue(mCache.putCalled);
+        assertEquals(second.getCacheKey(), mCache.keyPut);
+        assertEquals("item 2", new String(mCache.entryPut.data));
+    }
+
+    @Test public void failedSubResponseDeliveredAsError() throws Exception {
+        mBatcher.add(newRequest("http://foo/items/1"));
+        mBatcher.add(newRequest("http://foo/items/2"));
+        mBatcher.flushAll();
+
+        deliver(captureAdded(), new NetworkResponse("1|!".getBytes()));
+
+        assertEquals(1, mResults.size());
+        assertEquals(1, mErrors.size());
+        assertTrue(mErrors.get(0) instanceof ServerError);
+    }
+
+    @Test public void batchErrorDeliveredToEveryRequest() throws Exception {
+        mBatcher.add(newRequest("http://foo/items/1"));
+        mBatcher.add(newRequest("http://foo/items/2"));
+        mBatcher.flushAll();
+
+        captureAdded().deliverError(new NoConnectionError());
+
+        assertEquals(2, mErrors.size());
+    }
+
+    @Test public void canceledRequestNotDelivered() throws Exception {
+        StringRequest first = newRequest("http://foo/items/1");
+        StringRequest second = newRequest("http://foo/items/2");
+        mBatcher.add(first);
+        mBatcher.add(second);
+        mBatcher.flushAll();
+        Request<?> batch = captureAdded();
+
+        first.cancel();
+        assertFalse(batch.isCanceled());
+        deliver(batch, new NetworkResponse("1|2".getBytes()));
+        assertEquals(1, mResults.size());
+        assertEquals("item 2", mResults.get(0));
+
+        second.cancel();
+        assertTrue(batch.isCanceled());
+    }
+
+    @Test public void cancelAllReachesBatchedRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mock(Network.class), 1);
+        RequestQueue.RequestFinishedListener listener =
+                mock(RequestQueue.RequestFinishedListener.class);
+        queue.addRequestFinishedListener(listener);
+        RequestBatcher batcher = new RequestBatcher(queue, mAdapter, 3, 10);
+        Object tag = new Object();
+        StringRequest first = newRequest("http://foo/items/1");
+        first.setTag(tag);
+        StringRequest second = newRequest("http://foo/items/2");
+        batcher.add(first);
+        batcher.add(second);
+
+        queue.cancelAll(tag);
+        assertTrue(first.isCanceled());
+        assertFalse(second.isCanceled());
+
+        // The canceled request is finished rather than sent.
+        batcher.flushAll();
+        verify(listener).onRequestFinished(first);
+        verify(listener, never()).onRequestFinished(second);
+    }
+
+    @Test public void batchCanceledWithItsLastRequest() {
+        StringRequest first = newRequest("http://foo/items/1");
+        StringRequest second = newRequest("http://foo/items/2");
+        mBatcher.add(first);
+        mBatcher.add(second);
+        mBatcher.flushAll();
+        Request<?> batch = captureAdded();
+        final List<Request<?>> canceled = new ArrayList<Request<?>>();
+        batch.addCancelListener(new Request.CancelListener() {
+            @Override
+            public void onCanceled(Request<?> request) {
+                canceled.add(request);
+            }
+        });
+
+        first.cancel();
+        assertTrue(canceled.isEmpty());
+        second.cancel();
+        assertEquals(1, canceled.size());
+        assertSame(batch, canceled.get(0));
+    }
+
+    @Test public void publicMethods() throws Exception {
+        assertNotNull(RequestBatcher.class.getConstructor(RequestQueue.class,
+                RequestBatcher.BatchAdapter.class, int.class, long.class));
+        assertNotNull(RequestBatcher.class.getConstructor(RequestQueue.class,
+                RequestBatcher.BatchAdapter.class));
+        assertNotNull(RequestBatcher.class.getMethod("add", Request.class));
+        assertNotNull(RequestBatcher.class.getMethod("flushAll"));
+        assertNotNull(RequestBatcher.class.getMethod("getPendingCount"));
+    }
+
+    private Request<?> captureAdded() {
+        ArgumentCaptor<Request> captor = ArgumentCaptor.forClass(Request.class);
+        verify(mQueue).add(captor.capture());
+        return captor.getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void deliver(Request<?> batch, NetworkResponse response) {
+        Request<Object> request = (Request<Object>) batch;
+        Response<Object> parsed = request.parseNetworkResponse(response);
+        assertTrue(parsed.isSuccess());
+        request.deliverResponse(parsed.result);
+    }
+
+    private StringRequest newRequest(String url) {
+        StringRequest request = new StringRequest(url, new Response.Listener<String>() {
+            @Override
+            public void onResponse(String response) {
+                mResults.add(response);
+            }
+        }, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                mErrors.add(error);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Batches "http://foo/items/&lt;id&gt;" as "http://foo/items?ids=&lt;id&gt;,...", whose
+     * response is "&lt;id&gt;|..." with "!" for a missing item.
+     */
+    private static class TestAdapter implements RequestBatcher.BatchAdapter {
+        private static final String PREFIX = "http://foo/items/";
+        byte[] body = null;
+        int bodyCount = 0;
+
+        @Override
+        public String getBatchKey(Request<?> request) {
+            return request.getUrl().startsWith(PREFIX) ? "items" : null;
+        }
+
+        @Override
+        public String getBatchUrl(String batchKey, List<Request<?>> requests) {
+            StringBuilder url = new StringBuilder("http://foo/items?ids=");
+            for (int i = 0; i < requests.size(); i++) {
+                if (i > 0) {
+                    url.append(',');
+                }
+                url.append(requests.get(i).getUrl().substring(PREFIX.length()));
+            }
+            return url.toString();
+        }
+
+        @Override
+        public byte[] getBatchBody(String batchKey, List<Request<?>> requests) {
+            bodyCount++;
+            return body;
+        }
+
+        @Override
+        public String getBatchBodyContentType(String batchKey) {
+            return null;
+        }
+
+        @Override
+        public List<NetworkResponse> parseBatchResponse(NetworkResponse response,
+                List<Request<?>> requests) {
+            List<NetworkResponse> parts = new ArrayList<NetworkResponse>();
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Cache-Control", "max-age=60");
+            for (String id : new String(response.data).split("\\|")) {
+                parts.add("!".equals(id) ? new NetworkResponse(404, null, headers, false)
+                        : new NetworkResponse(200, ("item " + id).getBytes(), headers, false));
+            }
+            return parts;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.android.volley.RequestQueue.RequestFinishedListener;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
+import com.android.volley.toolbox.StringRequest;
 import com.android.volley.utils.ImmediateResponseDelivery;
 import org.junit.Before;
 import org.junit.Test;
@@ -32,7 +33,9 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -204,4 +207,367 @@ public class RequestQueueIntegrationTest {
         queue.stop();
     }
 
+    /**
+     * Verify requests whose retry is scheduled go back to the network after the delay, without
+     * finishing in between.
+     */
+    @Test public void add_retryScheduledAfterDelay() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+
+        when(mMockNetwork.performRequest(request))
+                .thenThrow(new RetryScheduledError(new TimeoutError(), 50))
+                .thenReturn(mock(NetworkResponse.class));
+
+        queue.addRequestFinishedListener(listener);
+        queue.start();
+        queue.add(request);
+
+        verify(listener, timeout(2000)).onRequestFinished(request);
+        queue.stop();
+
+        verify(mMockNetwork, times(2)).performRequest(request);
+        assertFalse(request.deliverError_called);
+        assertEquals(1, queue.getRetryCount());
+        assertEquals(50, queue.getRetryBackoffMs());
+        assertEquals(0, queue.getPendingRetryCount());
+    }
+
+    /**
+     * Verify canceling a request waiting for its retry finishes it right away.
+     */
+    @Test public void add_cancelDuringRetryDelay() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+
+        when(mMockNetwork.performRequest(request))
+                .thenThrow(new RetryScheduledError(new TimeoutError(), 60000));
+
+        queue.addRequestFinishedListener(listener);
+        queue.start();
+        queue.add(request);
+        for (int i = 0; i < 200 && queue.getPendingRetryCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queue.getPendingRetryCount());
+
+        request.cancel();
+        verify(listener).onRequestFinished(request);
+        assertEquals(0, queue.getPendingRetryCount());
+        queue.stop();
+    }
+
+    /**
+     * Verify requests added after their deadline are dropped with an error and counted.
+     */
+    @Test public void add_pastDeadlineDropped() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest request = new MockRequest() {
+            @Override
+            public boolean isPastDeadline() {
+                return true;
+            }
+        };
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.start();
+        queue.add(request);
+
+        verify(listener, timeout(100)).onRequestFinished(request);
+        queue.stop();
+
+        assertTrue(request.deliverError_called);
+        assertEquals(1, queue.getDeadlineExceededCount());
+        verify(mMockNetwork, never()).performRequest(any(Request.class));
+    }
+
+    /**
+     * Verify requests added while a duplicate is in flight are delivered its parsed response,
+     * without reading the cache or the network again.
+     */
+    @Test public void add_coalescedRequestsShareParsedResponse() throws Exception {
+        Cache cache = mock(Cache.class);
+        final List<String> delivered = new ArrayList<String>();
+        Response.Listener<String> responseListener = new Response.Listener<String>() {
+            @Override
+            public void onResponse(String response) {
+                synchronized (delivered) {
+                    delivered.add(response);
+                }
+            }
+        };
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        StringRequest req1 = new StringRequest("http://foo.com", responseListener, null);
+        StringRequest req2 = new StringRequest("http://foo.com", responseListener, null);
+        StringRequest req3 = new StringRequest("http://foo.com", responseListener, null);
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.add(req3);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        verify(listener, timeout(100)).onRequestFinished(req3);
+        queue.stop();
+
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+        verify(cache, times(1)).get(req1.getCacheKey());
+        assertEquals(3, delivered.size());
+        assertSame(delivered.get(0), delivered.get(1));
+        assertSame(delivered.get(0), delivered.get(2));
+    }
+
+    /**
+     * Verify requests that can't share a duplicate's parsed response parse their own from its
+     * data, without reading the cache or the network again.
+     */
+    @Test public void add_coalescedRequestsParseResponseData() throws Exception {
+        Cache cache = mock(Cache.class);
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest req1 = new MockRequest();
+        MockRequest req2 = new MockRequest();
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        queue.stop();
+
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+        verify(cache, times(1)).get(req1.getCacheKey());
+        assertTrue(req2.parseResponse_called);
+        assertTrue(req2.deliverResponse_called);
+    }
+
+    /**
+     * Verify a waiting request that fails to parse the shared response only fails itself.
+     */
+    @Test public void add_coalescedRequestParseFailureIsIsolated() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest req1 = new MockRequest();
+        MockRequest req2 = new MockRequest() {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                throw new IllegalStateException("parse failed");
+            }
+        };
+        MockRequest req3 = new MockRequest();
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.add(req3);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        verify(listener, timeout(100)).onRequestFinished(req3);
+        queue.stop();
+
+        assertTrue(req1.deliverResponse_called);
+        assertTrue(req2.deliverError_called);
+        assertTrue(req3.deliverResponse_called);
+    }
+
+    /**
+     * Verify requests waiting on a duplicate that fails are dispatched on their own.
+     */
+    @Test public void add_coalescedRequestsDispatchedAfterError() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest req1 = new MockRequest();
+        MockRequest req2 = new MockRequest();
+        when(mMockNetwork.performRequest(req1)).thenThrow(new VolleyError());
+        when(mMockNetwork.performRequest(req2))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        queue.stop();
+
+        assertTrue(req1.deliverError_called);
+        assertTrue(req2.deliverResponse_called);
+        verify(mMockNetwork).performRequest(req2);
+    }
+
+    /** An uncacheable single-flight POST with the given body. */
+    private static MockRequest singleFlightPost(final String body) {
+        MockRequest request = new MockRequest() {
+            @Override
+            public int getMethod() {
+                return Method.POST;
+            }
+
+            @Override
+            public byte[] getBody() {
+                return body.getBytes();
+            }
+        };
+        request.setShouldCache(false);
+        request.setSingleFlight(true);
+        return request;
+    }
+
+    /**
+     * Verify identical uncacheable single-flight requests share one network response, which
+     * each of them parses.
+     */
+    @Test public void add_singleFlightRequestsShareNetworkResponse() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest req1 = singleFlightPost("{query}");
+        MockRequest req2 = singleFlightPost("{query}");
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        queue.stop();
+
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+        assertTrue(req1.deliverResponse_called);
+        assertTrue(req2.parseResponse_called);
+        assertTrue(req2.deliverResponse_called);
+        assertEquals(2, queue.getSingleFlightCount());
+        assertEquals(1, queue.getSingleFlightSharedCount());
+        assertEquals(0.5f, queue.getSingleFlightDedupRatio(), 0f);
+    }
+
+    /**
+     * Verify single-flight requests with different bodies, or that didn't opt in, each go to
+     * the network.
+     */
+    @Test public void add_singleFlightRequestsDifferentBodiesNotShared() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest req1 = singleFlightPost("{query1}");
+        MockRequest req2 = singleFlightPost("{query2}");
+        MockRequest req3 = singleFlightPost("{query1}");
+        req3.setSingleFlight(false);
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.add(req3);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        verify(listener, timeout(100)).onRequestFinished(req3);
+        queue.stop();
+
+        verify(mMockNetwork, times(3)).performRequest(any(Request.class));
+        assertEquals(0, queue.getSingleFlightSharedCount());
+    }
+
+    /**
+     * Verify requests waiting on a single-flight request that fails are dispatched on their own.
+     */
+    @Test public void add_singleFlightRequestsDispatchedAfterError() throws Exception {
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        MockRequest req1 = singleFlightPost("{query}");
+        MockRequest req2 = singleFlightPost("{query}");
+        when(mMockNetwork.performRequest(req1)).thenThrow(new VolleyError());
+        when(mMockNetwork.performRequest(req2))
+                .thenReturn(new NetworkResponse("body".getBytes()));
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 3, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.start();
+
+        verify(listener, timeout(100)).onRequestFinished(req1);
+        verify(listener, timeout(100)).onRequestFinished(req2);
+        queue.stop();
+
+        assertTrue(req1.deliverError_called);
+        assertTrue(req2.deliverResponse_called);
+        verify(mMockNetwork).performRequest(req2);
+        assertEquals(0, queue.getSingleFlightSharedCount());
+    }
+
+    /** A POST whose cache key includes a hash of its body. */
+    private static StringRequest bodyHashPost(final String body) {
+        StringRequest request = new StringRequest(Request.Method.POST, "http://foo.com/graphql",
+                null, null) {
+            @Override
+            public byte[] getBody() {
+                return body.getBytes();
+            }
+        };
+        request.setBodyHashCacheKey();
+        return request;
+    }
+
+    /**
+     * Verify POSTs with body hash cache keys are served from the cache while the response is
+     * fresh, and only for the same body.
+     */
+    @Test public void add_bodyHashCacheKeyServesRepeatedQueryFromCache() throws Exception {
+        final Map<String, Cache.Entry> entries = new HashMap<String, Cache.Entry>();
+        Cache cache = new NoCache() {
+            @Override
+            public synchronized Cache.Entry get(String key) {
+                return entries.get(key);
+            }
+
+            @Override
+            public synchronized void put(String key, Cache.Entry entry) {
+                entries.put(key, entry);
+            }
+        };
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Cache-Control", "max-age=60");
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse("body".getBytes(), headers));
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.start();
+
+        Request<?> first = queue.add(bodyHashPost("{query1}"));
+        verify(listener, timeout(100)).onRequestFinished(first);
+        Request<?> repeated = queue.add(bodyHashPost("{query1}"));
+        verify(listener, timeout(100)).onRequestFinished(repeated);
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+
+        Request<?> other = queue.add(bodyHashPost("{query2}"));
+        verify(listener, timeout(100)).onRequestFinished(other);
+        queue.stop();
+
+        verify(mMockNetwork, times(2)).performRequest(any(Request.class));
+        assertEquals(2, entries.size());
+    }
+
 }
@@ -16,6 +16,8 @@
 
 package com.android.volley;
 
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.utils.ImmediateResponseDelivery;
@@ -69,4 +71,57 @@ public class RequestQueueTest {
         verify(req2, never()).cancel(); // B not cancelled
         verify(req4, never()).cancel(); // A added after cancel not cancelled
     }
+
+    @Test public void cancelAll_followsTagChanges() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tagA = new Object();
+        Object tagB = new Object();
+        MockRequest request = new MockRequest();
+        request.setTag(tagA);
+        queue.add(request);
+        request.setTag(tagB);
+
+        queue.cancelAll(tagA);
+        assertFalse(request.cancel_called);
+        queue.cancelAll(tagB);
+        assertTrue(request.cancel_called);
+    }
+
+    @Test public void cancelAll_skipsFinishedRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tag = new Object();
+        Request req = mock(Request.class);
+        when(req.getTag()).thenReturn(tag);
+        queue.add(req);
+        queue.finish(req);
+
+        queue.cancelAll(tag);
+
+        verify(req, never()).cancel();
+    }
+
+    @Test public void cancel_removesQueuedRequests() throws Exception {
+        HostScheduler scheduler = new HostScheduler(Integer.MAX_VALUE);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery,
+                scheduler);
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        queue.addRequestFinishedListener(listener);
+        MockRequest uncacheable = new MockRequest();
+        uncacheable.setShouldCache(false);
+        MockRequest cacheable = new MockRequest();
+        queue.add(uncacheable);
+        queue.add(cacheable);
+        assertEquals(1, scheduler.size());
+
+        Object tag = new Object();
+        uncacheable.setTag(tag);
+        queue.cancelAll(tag);
+        cacheable.cancel();
+
+        // Both are finished without waiting for a dispatcher to take them.
+        assertEquals(0, scheduler.size());
+        verify(listener).onRequestFinished(uncacheable);
+        verify(listener).onRequestFinished(cacheable);
+        verify(mMockNetwork, never()).performRequest(any(Request.class));
+    }
 }
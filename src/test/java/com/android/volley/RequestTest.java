@@ -16,11 +16,15 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
 import com.android.volley.Request.Priority;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 @RunWith(RobolectricTestRunner.class)
@@ -45,6 +49,29 @@ public class RequestTest {
         assertTrue(immediate.compareTo(high) < 0);
     }
 
+    @Test public void deadline() {
+        TestRequest request = new TestRequest(Priority.NORMAL);
+        assertEquals(0, request.getDeadline());
+        assertFalse(request.isPastDeadline());
+        int timeoutMs = request.getTimeoutMs();
+
+        request.setDeadline(timeoutMs + 1000);
+        assertFalse(request.isPastDeadline());
+        assertEquals(timeoutMs, request.getTimeoutMs());
+
+        // Attempts are cut short at the deadline.
+        SystemClock.sleep(1500);
+        assertFalse(request.isPastDeadline());
+        assertEquals(timeoutMs - 500, request.getTimeoutMs());
+
+        SystemClock.sleep(timeoutMs);
+        assertTrue(request.isPastDeadline());
+
+        request.setDeadline(0);
+        assertFalse(request.isPastDeadline());
+        assertEquals(timeoutMs, request.getTimeoutMs());
+    }
+
     private class TestRequest extends Request<Object> {
         private Priority mPriority = Priority.NORMAL;
         public TestRequest(Priority priority) {
@@ -67,6 +94,33 @@ public class RequestTest {
         }
     }
 
+    @Test public void cancelListeners() {
+        final int[] calls = new int[2];
+        Request.CancelListener first = new Request.CancelListener() {
+            @Override
+            public void onCanceled(Request<?> request) {
+                calls[0]++;
+            }
+        };
+        Request.CancelListener second = new Request.CancelListener() {
+            @Override
+            public void onCanceled(Request<?> request) {
+                calls[1]++;
+            }
+        };
+        TestRequest request = new TestRequest(Priority.NORMAL);
+        request.addCancelListener(first);
+        request.addCancelListener(second);
+        request.removeCancelListener(second);
+        request.cancel();
+        assertEquals(1, calls[0]);
+        assertEquals(0, calls[1]);
+
+        // Told right away if the request was already canceled.
+        request.addCancelListener(second);
+        assertEquals(1, calls[1]);
+    }
+
     @Test public void urlParsing() {
         UrlParseRequest nullUrl = new UrlParseRequest(null);
         assertEquals(0, nullUrl.getTrafficStatsTag());
@@ -94,4 +148,83 @@ public class RequestTest {
             return null;
         }
     }
+
+    @Test public void bodyHashCacheKey() {
+        BodyRequest request = new BodyRequest("{a}", "en");
+        assertEquals(Request.Method.POST + ":http://foo", request.getCacheKey());
+        assertFalse(request.hasBodyHashCacheKey());
+
+        request.setBodyHashCacheKey();
+        assertTrue(request.hasBodyHashCacheKey());
+        String key = request.getCacheKey();
+        assertTrue(key.startsWith(Request.Method.POST + ":http://foo:"));
+
+        // Equal bodies get the same key, different bodies don't.
+        assertEquals(key, new BodyRequest("{a}", "en").setBodyHashCacheKey().getCacheKey());
+        assertFalse(key.equals(new BodyRequest("{b}", "en").setBodyHashCacheKey().getCacheKey()));
+        // Headers only count if selected.
+        assertEquals(key, new BodyRequest("{a}", "fr").setBodyHashCacheKey().getCacheKey());
+        String enKey = new BodyRequest("{a}", "en")
+                .setBodyHashCacheKey("accept-language").getCacheKey();
+        String frKey = new BodyRequest("{a}", "fr")
+                .setBodyHashCacheKey("accept-language").getCacheKey();
+        assertFalse(enKey.equals(frKey));
+        assertFalse(enKey.equals(key));
+    }
+
+    @Test public void bodyHashCacheKeyWithoutBody() {
+        BodyRequest request = new BodyRequest("{a}", "en") {
+            private boolean mFailed = false;
+
+            @Override
+            public byte[] getBody() throws AuthFailureError {
+                if (!mFailed) {
+                    mFailed = true;
+                    throw new AuthFailureError();
+                }
+                return super.getBody();
+            }
+        };
+        request.setBodyHashCacheKey();
+        String key = request.getCacheKey();
+
+        // Not cached, and not sharing a key with other requests whose body failed.
+        assertFalse(request.shouldCache());
+        assertFalse(key.equals(new BodyRequest("{a}", "en").setBodyHashCacheKey().getCacheKey()));
+        assertFalse(key.equals(Request.Method.POST + ":http://foo"));
+        // The key doesn't change once the body can be built.
+        assertEquals(key, request.getCacheKey());
+    }
+
+    private class BodyRequest extends Request<Object> {
+        private final String mBody;
+        private final String mLanguage;
+
+        public BodyRequest(String body, String language) {
+            super(Request.Method.POST, "http://foo", null);
+            mBody = body;
+            mLanguage = language;
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError {
+            return mBody.getBytes();
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("Accept-Language", mLanguage);
+            return headers;
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+    }
 }
@@ -16,11 +16,22 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.BackoffRetryPolicy;
+import com.android.volley.Cache;
+import com.android.volley.CircuitOpenError;
+import com.android.volley.DeadlineExceededError;
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.RetryScheduledError;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
 import com.android.volley.mock.MockHttpStack;
 
+import android.os.SystemClock;
+
+import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
@@ -33,7 +44,12 @@ import org.robolectric.RobolectricTestRunner;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @RunWith(RobolectricTestRunner.class)
@@ -75,4 +91,183 @@ public class BasicNetworkTest {
         assertEquals("foo", mockHttpStack.getLastHeaders().get("requestheader"));
         assertEquals("requestpost=foo&", new String(mockHttpStack.getLastPostBody()));
     }
+
+    @Test public void deadlineStopsRetries() throws Exception {
+        final List<Integer> timeouts = new ArrayList<Integer>();
+        HttpStack timingOutStack = new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) throws IOException {
+                timeouts.add(request.getTimeoutMs());
+                SystemClock.sleep(request.getTimeoutMs());
+                throw new SocketTimeoutException();
+            }
+        };
+        BasicNetwork httpNetwork = new BasicNetwork(timingOutStack);
+        Request<String> request = new Request<String>(Request.Method.GET, "http://foo", null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(String response) {
+            }
+        };
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 10, 0f));
+        request.setDeadline(2500);
+
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (DeadlineExceededError expected) {
+        }
+        assertEquals(Arrays.asList(1000, 1000, 500), timeouts);
+    }
+
+    @Test public void backoffPolicySchedulesRetry() throws Exception {
+        final List<Integer> timeouts = new ArrayList<Integer>();
+        HttpStack timingOutStack = new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) throws IOException {
+                timeouts.add(request.getTimeoutMs());
+                throw new SocketTimeoutException();
+            }
+        };
+        BasicNetwork httpNetwork = new BasicNetwork(timingOutStack);
+        Request<String> request = new Request<String>(Request.Method.GET, "http://foo", null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(String response) {
+            }
+        };
+        request.setRetryPolicy(new BackoffRetryPolicy(1000, 2, 1f, 100, 100));
+
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (RetryScheduledError expected) {
+            assertTrue(expected.getCause() instanceof TimeoutError);
+            assertTrue(expected.getDelayMs() <= 100);
+        }
+        // The retry is left to the request queue.
+        assertEquals(Arrays.asList(1000), timeouts);
+        assertEquals(2000, request.getTimeoutMs());
+    }
+
+    private static Request<String> newRequest() {
+        return new Request<String>(Request.Method.GET, "http://foo", null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return null;
+            }
+
+            @Override
+            protected void deliverResponse(String response) {
+            }
+        };
+    }
+
+    @Test public void circuitBreakerFailsFastAfterTimeouts() throws Exception {
+        final List<String> urls = new ArrayList<String>();
+        HttpStack timingOutStack = new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) throws IOException {
+                urls.add(request.getUrl());
+                throw new SocketTimeoutException();
+            }
+        };
+        BasicNetwork httpNetwork = new BasicNetwork(timingOutStack);
+        CircuitBreaker breaker = new CircuitBreaker(10, 2, 0.5f, 60000);
+        httpNetwork.setCircuitBreaker(breaker);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                httpNetwork.performRequest(newRequest());
+                fail();
+            } catch (TimeoutError expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState("foo"));
+        try {
+            httpNetwork.performRequest(newRequest());
+            fail();
+        } catch (CircuitOpenError expected) {
+        }
+        assertEquals(2, urls.size());
+    }
+
+    @Test public void circuitBreakerCountsServerErrors() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                503, "Service Unavailable");
+        fakeResponse.setEntity(new StringEntity("down"));
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        CircuitBreaker breaker = new CircuitBreaker(10, 2, 0.5f, 60000);
+        httpNetwork.setCircuitBreaker(breaker);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                httpNetwork.performRequest(newRequest());
+                fail();
+            } catch (ServerError expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState("foo"));
+    }
+
+    @Test public void circuitOpenServesStaleEntry() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5f, 60000);
+        breaker.onFailure("foo");
+        httpNetwork.setCircuitBreaker(breaker);
+        Request<String> request = newRequest();
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes();
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Cache-Control", "max-age=60");
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = httpNetwork.performRequest(request);
+
+        assertNull(mockHttpStack.getLastUrl());
+        assertTrue(response.notModified);
+        assertEquals("stale", new String(response.data));
+        assertEquals("max-age=60", response.headers.get("Cache-Control"));
+        assertTrue(BasicNetwork.isStaleWarning(response.headers.get("Warning")));
+        assertTrue(response.stale);
+        assertTrue(HttpHeaderParser.parseCacheHeaders(response).isExpired());
+    }
+
+    @Test public void validationClearsStaleWarning() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(new BasicHttpResponse(
+                new ProtocolVersion("HTTP", 1, 1), 304, "Not Modified"));
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = newRequest();
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes();
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Warning", BasicNetwork.STALE_WARNING);
+        request.setCacheEntry(entry);
+
+        NetworkResponse response = httpNetwork.performRequest(request);
+
+        assertTrue(response.notModified);
+        assertNull(response.headers.get("Warning"));
+    }
+
+    @Test public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(BasicNetwork.class.getMethod("setCircuitBreaker", CircuitBreaker.class));
+        assertNotNull(BasicNetwork.class.getMethod("getCircuitBreaker"));
+    }
 }
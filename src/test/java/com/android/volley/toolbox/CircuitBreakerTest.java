@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.toolbox.CircuitBreaker.State;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class CircuitBreakerTest {
+
+    /** Circuit breaker whose clock is set by the test. */
+    private static class ClockedBreaker extends CircuitBreaker {
+        long mNowMs = 1000;
+
+        ClockedBreaker() {
+            super(10, 4, 0.5f, 5000);
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return mNowMs;
+        }
+    }
+
+    private ClockedBreaker mBreaker;
+    private List<String> mTransitions;
+
+    @Before public void setUp() throws Exception {
+        mBreaker = new ClockedBreaker();
+        mTransitions = new ArrayList<String>();
+        mBreaker.setListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChanged(String host, State from, State to) {
+                mTransitions.add(host + ":" + from + "->" + to);
+            }
+        });
+    }
+
+    /** Opens the circuit for a host. */
+    private void open(String host) {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mBreaker.allowRequest(host));
+            mBreaker.onFailure(host);
+        }
+        assertEquals(State.OPEN, mBreaker.getState(host));
+    }
+
+    @Test public void staysClosedBelowMinimumRequests() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mBreaker.onFailure("a.com");
+        }
+        assertEquals(State.CLOSED, mBreaker.getState("a.com"));
+        assertTrue(mBreaker.allowRequest("a.com"));
+    }
+
+    @Test public void staysClosedBelowFailureRatio() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            mBreaker.onSuccess("a.com");
+        }
+        for (int i = 0; i < 4; i++) {
+            mBreaker.onFailure("a.com");
+        }
+        assertEquals(State.CLOSED, mBreaker.getState("a.com"));
+        assertTrue(mTransitions.isEmpty());
+    }
+
+    @Test public void opensPerHost() throws Exception {
+        open("a.com");
+        assertFalse(mBreaker.allowRequest("a.com"));
+        assertTrue(mBreaker.allowRequest("b.com"));
+        assertEquals(State.CLOSED, mBreaker.getState("b.com"));
+        assertEquals(1, mTransitions.size());
+        assertEquals("a.com:CLOSED->OPEN", mTransitions.get(0));
+    }
+
+    @Test public void successfulProbeCloses() throws Exception {
+        open("a.com");
+        mBreaker.mNowMs += 4999;
+        assertFalse(mBreaker.allowRequest("a.com"));
+        mBreaker.mNowMs += 1;
+
+        // Only one probe at a time.
+        assertTrue(mBreaker.allowRequest("a.com"));
+        assertEquals(State.HALF_OPEN, mBreaker.getState("a.com"));
+        assertFalse(mBreaker.allowRequest("a.com"));
+
+        mBreaker.onSuccess("a.com");
+        assertEquals(State.CLOSED, mBreaker.getState("a.com"));
+        assertTrue(mBreaker.allowRequest("a.com"));
+        // The failures from before are forgotten.
+        mBreaker.onFailure("a.com");
+        assertEquals(State.CLOSED, mBreaker.getState("a.com"));
+        assertEquals("a.com:OPEN->HALF_OPEN", mTransitions.get(1));
+        assertEquals("a.com:HALF_OPEN->CLOSED", mTransitions.get(2));
+    }
+
+    @Test public void failedProbeReopens() throws Exception {
+        open("a.com");
+        mBreaker.mNowMs += 5000;
+        assertTrue(mBreaker.allowRequest("a.com"));
+        mBreaker.onFailure("a.com");
+
+        assertEquals(State.OPEN, mBreaker.getState("a.com"));
+        assertFalse(mBreaker.allowRequest("a.com"));
+        mBreaker.mNowMs += 5000;
+        assertTrue(mBreaker.allowRequest("a.com"));
+        assertEquals("a.com:HALF_OPEN->OPEN", mTransitions.get(2));
+    }
+
+    @Test public void canceledProbeLetsAnotherThrough() throws Exception {
+        open("a.com");
+        mBreaker.mNowMs += 5000;
+        assertTrue(mBreaker.allowRequest("a.com"));
+        mBreaker.onCanceled("a.com");
+
+        assertEquals(State.HALF_OPEN, mBreaker.getState("a.com"));
+        assertTrue(mBreaker.allowRequest("a.com"));
+    }
+
+    @Test public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(CircuitBreaker.class.getConstructor());
+        assertNotNull(CircuitBreaker.class.getConstructor(int.class, int.class, float.class,
+                long.class));
+        assertNotNull(CircuitBreaker.class.getMethod("setListener",
+                CircuitBreaker.Listener.class));
+        assertNotNull(CircuitBreaker.class.getMethod("getState", String.class));
+        assertNotNull(CircuitBreaker.class.getMethod("allowRequest", String.class));
+        assertNotNull(CircuitBreaker.class.getMethod("onSuccess", String.class));
+        assertNotNull(CircuitBreaker.class.getMethod("onFailure", String.class));
+        assertNotNull(CircuitBreaker.class.getMethod("onCanceled", String.class));
+        assertNotNull(CircuitBreaker.Listener.class.getMethod("onStateChanged", String.class,
+                State.class, State.class));
+    }
+}
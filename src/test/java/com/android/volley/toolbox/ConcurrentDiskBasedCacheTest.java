@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConcurrentDiskBasedCacheTest {
+
+    private File mRoot;
+
+    @Before public void setUp() throws Exception {
+        mRoot = File.createTempFile("volley-concurrent", "");
+        assertTrue(mRoot.delete());
+    }
+
+    @After public void tearDown() throws Exception {
+        File[] files = mRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mRoot.delete();
+    }
+
+    private static Cache.Entry makeEntry(String data) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data.getBytes();
+        entry.etag = "etag-" + data;
+        entry.ttl = 1234L;
+        entry.softTtl = 123L;
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("fruit", data);
+        return entry;
+    }
+
+    private ConcurrentDiskBasedCache newCache(int maxSize) {
+        ConcurrentDiskBasedCache cache = new ConcurrentDiskBasedCache(mRoot, maxSize);
+        cache.initialize();
+        return cache;
+    }
+
+    @Test public void putGetRemove() throws Exception {
+        ConcurrentDiskBasedCache cache = newCache(1024 * 1024);
+        assertNull(cache.get("a"));
+        cache.put("a", makeEntry("apple"));
+        Cache.Entry a = cache.get("a");
+        assertEquals("apple", new String(a.data));
+        assertEquals("etag-apple", a.etag);
+        assertEquals(1234L, a.ttl);
+        assertEquals("apple", a.responseHeaders.get("fruit"));
+
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertFalse(cache.getFileForKey("a").exists());
+    }
+
+    @Test public void invalidate() throws Exception {
+        ConcurrentDiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.invalidate("a", false);
+        assertEquals(0, cache.get("a").softTtl);
+        assertEquals(1234L, cache.get("a").ttl);
+        cache.invalidate("a", true);
+        assertEquals(0, cache.get("a").ttl);
+    }
+
+    @Test public void prunesLeastRecentlyUsed() throws Exception {
+        ConcurrentDiskBasedCache cache = newCache(35);
+        cache.put("a", makeEntry("0123456789"));
+        cache.put("b", makeEntry("0123456789"));
+        cache.put("c", makeEntry("0123456789"));
+        cache.get("a");
+        cache.put("d", makeEntry("0123456789"));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test public void corruptHeaderIsRemoved() throws Exception {
+        ConcurrentDiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+
+        // The key length, right after the header's magic number.
+        RandomAccessFile raf = new RandomAccessFile(cache.getFileForKey("a"), "rw");
+        raf.seek(4);
+        raf.write(new byte[] { -1, -1, -1, -1, -1, -1, -1, -1 });
+        raf.close();
+
+        assertNull(cache.get("a"));
+        assertFalse(cache.getFileForKey("a").exists());
+        cache.put("a", makeEntry("apricot"));
+        assertEquals("apricot", new String(cache.get("a").data));
+    }
+
+    @Test public void readsFilesWrittenByDiskBasedCache() throws Exception {
+        DiskBasedCache disk = new DiskBasedCache(mRoot);
+        disk.initialize();
+        disk.put("a", makeEntry("apple"));
+
+        ConcurrentDiskBasedCache cache = newCache(1024 * 1024);
+        assertEquals("apple", new String(cache.get("a").data));
+    }
+
+    @Test public void clear() throws Exception {
+        ConcurrentDiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertEquals(0, mRoot.listFiles().length);
+    }
+
+    @Test public void concurrentReadersAndWriters() throws Exception {
+        final ConcurrentDiskBasedCache cache = newCache(64 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 500; i++) {
+                            String key = "key" + random.nextInt(50);
+                            switch (random.nextInt(4)) {
+                                case 0:
+                                    cache.put(key, makeEntry(key + "-" + random.nextInt(1000)));
+                                    break;
+                                case 1:
+                                    cache.remove(key);
+                                    break;
+                                default:
+                                    Cache.Entry entry = cache.get(key);
+                                    // Data and headers must come from the same put.
+                                    if (entry != null) {
+                                        String data = new String(entry.data);
+                                        assertTrue(data.startsWith(key + "-"));
+                                        assertEquals(data, entry.responseHeaders.get("fruit"));
+                                    }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // The index must agree with what is on disk.
+        ConcurrentDiskBasedCache reopened = newCache(64 * 1024);
+        for (int i = 0; i < 50; i++) {
+            Cache.Entry before = cache.get("key" + i);
+            Cache.Entry after = reopened.get("key" + i);
+            assertEquals(before == null, after == null);
+            if (before != null) {
+                assertArrayEquals(before.data, after.data);
+            }
+        }
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(ConcurrentDiskBasedCache.class.getConstructor(File.class, int.class,
+                int.class));
+        assertNotNull(ConcurrentDiskBasedCache.class.getConstructor(File.class, int.class));
+        assertNotNull(ConcurrentDiskBasedCache.class.getConstructor(File.class));
+
+        assertNotNull(ConcurrentDiskBasedCache.class.getMethod("getFileForKey", String.class));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class DiskBasedCacheJournalTest {
+
+    private File mRoot;
+
+    @Before public void setUp() throws Exception {
+        mRoot = File.createTempFile("volley-journal", "");
+        assertTrue(mRoot.delete());
+    }
+
+    @After public void tearDown() throws Exception {
+        File[] files = mRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mRoot.delete();
+    }
+
+    private static Cache.Entry makeEntry(String data) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data.getBytes();
+        entry.etag = "etag-" + data;
+        entry.ttl = 1234L;
+        entry.softTtl = 123L;
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("fruit", data);
+        return entry;
+    }
+
+    private DiskBasedCache newCache(int maxSize) {
+        DiskBasedCache cache = new DiskBasedCache(mRoot, maxSize, true);
+        cache.initialize();
+        return cache;
+    }
+
+    private File journalFile() {
+        return new File(mRoot, DiskCacheJournal.JOURNAL_FILE);
+    }
+
+    @Test public void initializeFromJournal() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.put("b", makeEntry("banana"));
+        cache.put("c", makeEntry("cherry"));
+        cache.remove("b");
+        cache.invalidate("c", false);
+        assertTrue(journalFile().exists());
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        Cache.Entry a = reopened.get("a");
+        assertEquals("apple", new String(a.data));
+        assertEquals("etag-apple", a.etag);
+        assertEquals(1234L, a.ttl);
+        assertEquals("apple", a.responseHeaders.get("fruit"));
+        assertNull(reopened.get("b"));
+        assertEquals(0, reopened.get("c").softTtl);
+    }
+
+    @Test public void journalPreservesLruOrder() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("0123456789"));
+        cache.put("b", makeEntry("0123456789"));
+        cache.put("c", makeEntry("0123456789"));
+        cache.get("a");
+        // READ records are buffered until the next record that is flushed.
+        cache.remove("unused");
+        cache = null;
+
+        // Room for three entries; the fourth evicts the least recently used one, which is "b".
+        DiskBasedCache reopened = newCache(35);
+        reopened.put("d", makeEntry("0123456789"));
+        assertNotNull(reopened.get("a"));
+        assertNull(reopened.get("b"));
+        assertNotNull(reopened.get("c"));
+        assertNotNull(reopened.get("d"));
+    }
+
+    @Test public void corruptJournalFallsBackToScan() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.put("b", makeEntry("banana"));
+
+        FileOutputStream fos = new FileOutputStream(journalFile());
+        fos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        fos.close();
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        assertEquals("apple", new String(reopened.get("a").data));
+        assertEquals("banana", new String(reopened.get("b").data));
+
+        // The journal was rebuilt by the scan.
+        DiskBasedCache again = newCache(1024 * 1024);
+        assertEquals("banana", new String(again.get("b").data));
+    }
+
+    @Test public void badLengthInJournalFallsBackToScan() throws Exception {
+        byte[][] lengths = {
+                { -1, -1, -1, -1, -1, -1, -1, -1 },
+                { -1, -1, -1, 0x7f, 0, 0, 0, 0 },
+        };
+        for (byte[] length : lengths) {
+            DiskBasedCache cache = newCache(1024 * 1024);
+            cache.put("a", makeEntry("apple"));
+            cache.put("b", makeEntry("banana"));
+
+            // The key length of the first PUT record, after the journal header, the record's op
+            // and the cache header's magic.
+            RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw");
+            raf.seek(4 + 4 + 1 + 4);
+            raf.write(length);
+            raf.close();
+
+            DiskBasedCache reopened = newCache(1024 * 1024);
+            assertEquals("apple", new String(reopened.get("a").data));
+            assertEquals("banana", new String(reopened.get("b").data));
+        }
+    }
+
+    @Test public void truncatedJournalKeepsCompleteRecords() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        long length = journalFile().length();
+        cache.put("b", makeEntry("banana"));
+
+        // Cut the last PUT record short, as if the process died while writing it.
+        RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw");
+        raf.setLength(length + 5);
+        raf.close();
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        assertEquals("apple", new String(reopened.get("a").data));
+        // "b" isn't in the journal, so its file is deleted rather than leaked.
+        assertNull(reopened.get("b"));
+        assertFalse(reopened.getFileForKey("b").exists());
+        reopened.put("c", makeEntry("cherry"));
+
+        DiskBasedCache again = newCache(1024 * 1024);
+        assertNotNull(again.get("a"));
+        assertNotNull(again.get("c"));
+    }
+
+    @Test public void corruptHeaderIsRemoved() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+
+        // The key length, right after the header's magic number.
+        RandomAccessFile raf = new RandomAccessFile(cache.getFileForKey("a"), "rw");
+        raf.seek(4);
+        raf.write(new byte[] { -1, -1, -1, -1, -1, -1, -1, -1 });
+        raf.close();
+
+        assertNull(cache.get("a"));
+        assertFalse(cache.getFileForKey("a").exists());
+        cache.put("a", makeEntry("apricot"));
+        assertEquals("apricot", new String(cache.get("a").data));
+    }
+
+    @Test public void missingFilesAreDropped() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.put("b", makeEntry("banana"));
+        assertTrue(cache.getFileForKey("a").delete());
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        assertNull(reopened.get("a"));
+        assertNotNull(reopened.get("b"));
+    }
+
+    @Test public void resizedFilesAreDropped() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.put("b", makeEntry("banana"));
+
+        // Rewritten without the journal knowing, e.g. by a put whose PUT record was lost.
+        FileOutputStream fos = new FileOutputStream(cache.getFileForKey("a"), true);
+        fos.write(new byte[] { 1, 2, 3 });
+        fos.close();
+        assertNull(cache.get("a"));
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        assertNull(reopened.get("a"));
+        assertFalse(reopened.getFileForKey("a").exists());
+        assertEquals("banana", new String(reopened.get("b").data));
+    }
+
+    @Test public void staleHeaderIsNotReturned() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.put("b", makeEntry("melon"));
+
+        // Same length, but the header is for another key.
+        File a = cache.getFileForKey("a");
+        File b = cache.getFileForKey("b");
+        assertEquals(a.length(), b.length());
+        assertTrue(a.delete());
+        assertTrue(b.renameTo(a));
+
+        assertNull(cache.get("a"));
+    }
+
+    @Test public void clearResetsJournal() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        cache.put("a", makeEntry("apple"));
+        cache.clear();
+        cache.put("b", makeEntry("banana"));
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        assertNull(reopened.get("a"));
+        assertNotNull(reopened.get("b"));
+    }
+
+    @Test public void journalIsCompacted() throws Exception {
+        DiskBasedCache cache = newCache(1024 * 1024);
+        long emptyLength = journalFile().length();
+        cache.put("key0", makeEntry("value0000"));
+        long recordLength = journalFile().length() - emptyLength;
+        for (int i = 1; i < 3000; i++) {
+            cache.put("key" + (i % 10), makeEntry("value" + (10000 + i)));
+        }
+        cache.awaitJournalCompaction();
+        cache.put("key0", makeEntry("last"));
+
+        // Compaction happened after 2000 records, leaving about 1000.
+        assertTrue(journalFile().length() < 1500 * recordLength);
+        assertFalse(new File(mRoot, DiskCacheJournal.JOURNAL_FILE_COMPACT).exists());
+
+        DiskBasedCache reopened = newCache(1024 * 1024);
+        assertEquals("last", new String(reopened.get("key0").data));
+        assertEquals("value12999", new String(reopened.get("key9").data));
+    }
+
+    @Test public void switchingModesRescans() throws IOException {
+        DiskBasedCache plain = new DiskBasedCache(mRoot, 1024 * 1024);
+        plain.initialize();
+        plain.put("a", makeEntry("apple"));
+
+        DiskBasedCache journaled = newCache(1024 * 1024);
+        assertNotNull(journaled.get("a"));
+        journaled.put("b", makeEntry("banana"));
+
+        DiskBasedCache plainAgain = new DiskBasedCache(mRoot, 1024 * 1024);
+        plainAgain.initialize();
+        assertNotNull(plainAgain.get("a"));
+        assertNotNull(plainAgain.get("b"));
+    }
+}
@@ -23,6 +23,9 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -125,10 +128,46 @@ public class DiskBasedCacheTest {
         assertEquals(DiskBasedCache.readStringStringMap(bais), emptyValue);
     }
 
+    @Test public void writeFileAndReadData() throws Exception {
+        Cache.Entry e = new Cache.Entry();
+        e.data = "0123456789abcdef".getBytes();
+        e.etag = "etag";
+        e.responseHeaders = new HashMap<String, String>();
+        e.responseHeaders.put("fruit", "banana");
+
+        File file = File.createTempFile("volley-cache", "");
+        try {
+            CacheHeader header = DiskBasedCache.writeFile(file, "my-magical-key", e);
+            assertEquals(file.length() - e.data.length, header.headerLength);
+            assertArrayEquals(e.data, DiskBasedCache.readData(file, header));
+
+            // The header length found by parsing the file agrees.
+            DiskBasedCache.CountingInputStream cis =
+                    new DiskBasedCache.CountingInputStream(new FileInputStream(file));
+            CacheHeader parsed = CacheHeader.readHeader(cis);
+            cis.close();
+            assertEquals(header.headerLength, cis.bytesRead);
+            assertEquals("my-magical-key", parsed.key);
+
+            // A file cut short inside the header can't be read.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(header.headerLength - 1);
+            raf.close();
+            try {
+                DiskBasedCache.readData(file, header);
+                fail("Expected IOException");
+            } catch (IOException expected) {
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void publicMethods() throws Exception {
         // Catch-all test to find API-breaking changes.
         assertNotNull(DiskBasedCache.class.getConstructor(File.class, int.class));
+        assertNotNull(DiskBasedCache.class.getConstructor(File.class, int.class, boolean.class));
         assertNotNull(DiskBasedCache.class.getConstructor(File.class));
 
         assertNotNull(DiskBasedCache.class.getMethod("getFileForKey", String.class));
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockHttpStack;
+
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileDownloadRequestTest {
+
+    private File mRoot;
+    private File mDestination;
+    private File mPartFile;
+    private MockHttpStack mHttpStack;
+    private BasicNetwork mNetwork;
+
+    @Before public void setUp() throws Exception {
+        mRoot = File.createTempFile("volley-download", "");
+        assertTrue(mRoot.delete());
+        mDestination = new File(mRoot, "bundle.bin");
+        mPartFile = new File(mRoot, "bundle.bin" + FileDownloadRequest.PART_SUFFIX);
+        mHttpStack = new MockHttpStack();
+        mNetwork = new BasicNetwork(mHttpStack);
+    }
+
+    @After public void tearDown() throws Exception {
+        File[] files = mRoot.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mRoot.delete();
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        return body;
+    }
+
+    private static BasicHttpResponse response(int statusCode, InputStream content, long length) {
+        BasicHttpResponse response = new BasicHttpResponse(
+                new ProtocolVersion("HTTP", 1, 1), statusCode, "");
+        response.setEntity(new InputStreamEntity(content, length));
+        if (length >= 0) {
+            response.addHeader("Content-Length", String.valueOf(length));
+        }
+        return response;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return DiskBasedCache.streamToBytes(in, (int) file.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Response<File> perform(BasicNetwork network, FileDownloadRequest request)
+            throws VolleyError {
+        NetworkResponse networkResponse = network.performRequest(request);
+        return request.parseNetworkResponse(networkResponse);
+    }
+
+    @Test public void downloadsToDestination() throws Exception {
+        byte[] body = body(200 * 1024);
+        BasicHttpResponse httpResponse = response(200, new ByteArrayInputStream(body), body.length);
+        httpResponse.addHeader("ETag", "\"v1\"");
+        mHttpStack.setResponseToReturn(httpResponse);
+        FileDownloadRequest request = new FileDownloadRequest("http://foo", mDestination, null,
+                null);
+
+        Response<File> response = perform(mNetwork, request);
+        assertTrue(response.isSuccess());
+        assertEquals(mDestination, response.result);
+        assertNull(response.cacheEntry);
+        assertArrayEquals(body, readFile(mDestination));
+        assertFalse(mPartFile.exists());
+        assertFalse(mHttpStack.getLastHeaders().containsKey("Range"));
+        assertEquals(1, mRoot.list().length);
+    }
+
+    @Test public void interruptedDownloadResumesWithRange() throws Exception {
+        byte[] body = body(100 * 1024);
+        int cut = 70 * 1024;
+        // The connection drops after the first 70 KB.
+        InputStream truncated = new FilterInputStream(new ByteArrayInputStream(body, 0, cut)) {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int result = super.read(buffer, offset, count);
+                if (result == -1) {
+                    throw new IOException("connection reset");
+                }
+                return result;
+            }
+        };
+        BasicHttpResponse first = response(200, truncated, body.length);
+        first.addHeader("ETag", "\"v1\"");
+        mHttpStack.setResponseToReturn(first);
+        FileDownloadRequest request = new FileDownloadRequest("http://foo", mDestination, null,
+                null);
+        try {
+            perform(mNetwork, request);
+            fail("Expected NetworkError");
+        } catch (NetworkError e) {
+            // Expected.
+        }
+        assertEquals(cut, mPartFile.length());
+        assertFalse(mDestination.exists());
+
+        BasicHttpResponse second = response(206,
+                new ByteArrayInputStream(body, cut, body.length - cut), body.length - cut);
+        second.addHeader("Content-Range", "bytes " + cut + "-" + (body.length - 1) + "/"
+                + body.length);
+        mHttpStack.setResponseToReturn(second);
+        request = new FileDownloadRequest("http://foo", mDestination, null, null);
+        Response<File> response = perform(mNetwork, request);
+
+        assertEquals("bytes=" + cut + "-", mHttpStack.getLastHeaders().get("Range"));
+        assertEquals("\"v1\"", mHttpStack.getLastHeaders().get("If-Range"));
+        assertTrue(response.isSuccess());
+        assertArrayEquals(body, readFile(mDestination));
+        assertEquals(1, mRoot.list().length);
+    }
+
+    @Test public void changedFileIsDownloadedAgain() throws Exception {
+        assertTrue(mRoot.mkdirs());
+        writeFile(mPartFile, body(500));
+        writeFile(new File(mRoot, "bundle.bin" + FileDownloadRequest.VALIDATOR_SUFFIX),
+                "\"v1\"".getBytes("UTF-8"));
+        byte[] body = new byte[300];
+        Arrays.fill(body, (byte) 7);
+        BasicHttpResponse httpResponse = response(200, new ByteArrayInputStream(body), -1);
+        httpResponse.addHeader("ETag", "\"v2\"");
+        mHttpStack.setResponseToReturn(httpResponse);
+
+        Response<File> response = perform(mNetwork,
+                new FileDownloadRequest("http://foo", mDestination, null, null));
+        assertEquals("bytes=500-", mHttpStack.getLastHeaders().get("Range"));
+        assertTrue(response.isSuccess());
+        assertArrayEquals(body, readFile(mDestination));
+    }
+
+    @Test public void partialFileWithoutValidatorIsNotResumed() throws Exception {
+        assertTrue(mRoot.mkdirs());
+        writeFile(mPartFile, body(500));
+        FileDownloadRequest request = new FileDownloadRequest("http://foo", mDestination, null,
+                null);
+        assertFalse(request.getHeaders().containsKey("Range"));
+    }
+
+    @Test public void mismatchedContentRangeDiscardsPartialFile() throws Exception {
+        assertTrue(mRoot.mkdirs());
+        writeFile(mPartFile, body(500));
+        writeFile(new File(mRoot, "bundle.bin" + FileDownloadRequest.VALIDATOR_SUFFIX),
+                "\"v1\"".getBytes("UTF-8"));
+        BasicHttpResponse httpResponse = response(206, new ByteArrayInputStream(body(10)), 10);
+        httpResponse.addHeader("Content-Range", "bytes 0-9/10");
+        mHttpStack.setResponseToReturn(httpResponse);
+
+        try {
+            perform(mNetwork, new FileDownloadRequest("http://foo", mDestination, null, null));
+            fail("Expected NetworkError");
+        } catch (NetworkError e) {
+            // Expected.
+        }
+        assertFalse(mPartFile.exists());
+    }
+
+    @Test public void rangeNotSatisfiableDiscardsPartialFile() throws Exception {
+        assertTrue(mRoot.mkdirs());
+        writeFile(mPartFile, body(500));
+        mHttpStack.setResponseToReturn(response(416, new ByteArrayInputStream(new byte[0]), 0));
+        FileDownloadRequest request = new FileDownloadRequest("http://foo", mDestination, null,
+                null);
+        try {
+            mNetwork.performRequest(request);
+            fail("Expected ServerError");
+        } catch (ServerError e) {
+            request.parseNetworkError(e);
+        }
+        assertFalse(mPartFile.exists());
+    }
+
+    @Test public void cancelStopsDownloadAndKeepsPartialFile() throws Exception {
+        byte[] body = body(300 * 1024);
+        final FileDownloadRequest[] holder = new FileDownloadRequest[1];
+        InputStream canceling = new ByteArrayInputStream(body) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int count) {
+                if (pos >= 64 * 1024) {
+                    holder[0].cancel();
+                }
+                return super.read(buffer, offset, count);
+            }
+        };
+        BasicHttpResponse httpResponse = response(200, canceling, body.length);
+        httpResponse.addHeader("ETag", "\"v1\"");
+        mHttpStack.setResponseToReturn(httpResponse);
+        holder[0] = new FileDownloadRequest("http://foo", mDestination, null, null);
+
+        Response<File> response = perform(mNetwork, holder[0]);
+        assertFalse(response.isSuccess());
+        assertFalse(mDestination.exists());
+        assertTrue(mPartFile.length() > 0);
+        assertTrue(mPartFile.length() < body.length);
+        assertTrue(holder[0].getHeaders().containsKey("Range"));
+    }
+
+    @Test public void reportsProgress() throws Exception {
+        byte[] body = body(150 * 1024);
+        mHttpStack.setResponseToReturn(
+                response(200, new ByteArrayInputStream(body), body.length));
+        final List<long[]> updates = new ArrayList<long[]>();
+        FileDownloadRequest request = new FileDownloadRequest("http://foo", mDestination, null,
+                new FileDownloadRequest.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesDownloaded, long totalBytes) {
+                        updates.add(new long[] { bytesDownloaded, totalBytes });
+                    }
+                }, null);
+
+        perform(mNetwork, request);
+        assertTrue(updates.size() >= 3);
+        long last = 0;
+        for (long[] update : updates) {
+            assertTrue(update[0] > last);
+            assertEquals(body.length, update[1]);
+            last = update[0];
+        }
+        assertEquals(body.length, last);
+    }
+
+    @Test public void defaultsToLowPriorityAndNoCache() throws Exception {
+        FileDownloadRequest request = new FileDownloadRequest("http://foo", mDestination, null,
+                null);
+        assertEquals(Request.Priority.LOW, request.getPriority());
+        assertFalse(request.shouldCache());
+        request.setPriority(Request.Priority.HIGH);
+        assertEquals(Request.Priority.HIGH, request.getPriority());
+    }
+
+    @Test public void parsesContentRange() {
+        assertEquals(100, FileDownloadRequest.parseRangeStart("bytes 100-199/200"));
+        assertEquals(200, FileDownloadRequest.parseRangeTotal("bytes 100-199/200"));
+        assertEquals(-1, FileDownloadRequest.parseRangeTotal("bytes 100-199/*"));
+        assertEquals(-1, FileDownloadRequest.parseRangeStart(null));
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(FileDownloadRequest.class.getConstructor(String.class, File.class,
+                Response.Listener.class, FileDownloadRequest.ProgressListener.class,
+                Response.ErrorListener.class));
+        assertNotNull(FileDownloadRequest.class.getConstructor(String.class, File.class,
+                Response.Listener.class, Response.ErrorListener.class));
+        assertNotNull(FileDownloadRequest.class.getMethod("getDestination"));
+        assertNotNull(FileDownloadRequest.class.getMethod("setPriority", Request.Priority.class));
+        assertNotNull(FileDownloadRequest.ProgressListener.class.getMethod("onProgress",
+                long.class, long.class));
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.TestRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class HedgingNetworkTest {
+
+    /**
+     * A network whose attempts take a set time each. Attempts after the scripted ones complete
+     * at once.
+     */
+    private static class ScriptedNetwork implements Network {
+        private final List<Long> mDelaysMs = new ArrayList<Long>();
+        private final List<Request<?>> mRequests = new ArrayList<Request<?>>();
+        private boolean mFail = false;
+
+        /** Adds the time the next attempt takes. */
+        synchronized void addDelay(long delayMs) {
+            mDelaysMs.add(delayMs);
+        }
+
+        synchronized void setFail(boolean fail) {
+            mFail = fail;
+        }
+
+        synchronized List<Request<?>> getRequests() {
+            return new ArrayList<Request<?>>(mRequests);
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            int attempt;
+            long delayMs;
+            boolean fail;
+            synchronized (this) {
+                attempt = mRequests.size();
+                mRequests.add(request);
+                delayMs = mDelaysMs.isEmpty() ? 0 : mDelaysMs.remove(0);
+                fail = mFail;
+            }
+            long deadlineNanos = System.nanoTime() + delayMs * 1000000L;
+            // Stop early once canceled, like a stack that watches for cancellation.
+            while (System.nanoTime() < deadlineNanos && !request.isCanceled()) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+            }
+            if (fail) {
+                throw new ServerError();
+            }
+            return new NetworkResponse(new byte[] { (byte) attempt });
+        }
+    }
+
+    private ScriptedNetwork mMockNetwork;
+    private HedgingNetwork mNetwork;
+    private Executor mExecutor;
+
+    @Before public void setUp() throws Exception {
+        mMockNetwork = new ScriptedNetwork();
+        mExecutor = Executors.newCachedThreadPool();
+        mNetwork = new HedgingNetwork(mMockNetwork, mExecutor).setHedgeBudget(1f);
+    }
+
+    /** Sends enough fast requests for hedging to start. */
+    private void warmUp() throws Exception {
+        for (int i = 0; i < HedgingNetwork.MIN_LATENCY_SAMPLES; i++) {
+            mNetwork.performRequest(new MockRequest());
+        }
+    }
+
+    @Test public void notHedgedWithoutLatencySamples() throws Exception {
+        MockRequest request = new MockRequest();
+        mMockNetwork.addDelay(100);
+
+        mNetwork.performRequest(request);
+
+        assertEquals(0, mNetwork.getHedgeCount());
+        assertEquals(1, mMockNetwork.getRequests().size());
+        // Without hedging the request goes to the network as it is.
+        assertSame(request, mMockNetwork.getRequests().get(0));
+    }
+
+    @Test public void slowRequestIsHedged() throws Exception {
+        warmUp();
+        MockRequest request = new MockRequest();
+        mMockNetwork.addDelay(5000);
+        mMockNetwork.addDelay(0);
+
+        long startNanos = System.nanoTime();
+        NetworkResponse response = mNetwork.performRequest(request);
+        long elapsedMs = (System.nanoTime() - startNanos) / 1000000L;
+
+        int attempts = HedgingNetwork.MIN_LATENCY_SAMPLES + 2;
+        assertEquals(attempts, mMockNetwork.getRequests().size());
+        assertEquals((byte) (attempts - 1), response.data[0]);
+        assertTrue(elapsedMs < 2000);
+        assertEquals(1, mNetwork.getHedgeCount());
+        assertEquals(1, mNetwork.getHedgeWinCount());
+        // The losing attempt is canceled, but not the request itself.
+        assertTrue(mMockNetwork.getRequests().get(attempts - 2).isCanceled());
+        assertFalse(request.isCanceled());
+    }
+
+    @Test public void primaryWinsAgainstSlowerHedge() throws Exception {
+        warmUp();
+        mMockNetwork.addDelay(300);
+        mMockNetwork.addDelay(5000);
+
+        NetworkResponse response = mNetwork.performRequest(new MockRequest());
+
+        int attempts = HedgingNetwork.MIN_LATENCY_SAMPLES + 2;
+        assertEquals((byte) (attempts - 2), response.data[0]);
+        assertEquals(1, mNetwork.getHedgeCount());
+        assertEquals(0, mNetwork.getHedgeWinCount());
+        assertTrue(mMockNetwork.getRequests().get(attempts - 1).isCanceled());
+    }
+
+    @Test public void budgetLimitsHedges() throws Exception {
+        // One hedge is earned by warming up, and no more for the next 19 requests.
+        mNetwork.setHedgeBudget(1f / HedgingNetwork.MIN_LATENCY_SAMPLES);
+        warmUp();
+        mMockNetwork.addDelay(200);
+        mMockNetwork.addDelay(0);
+        mNetwork.performRequest(new MockRequest());
+        assertEquals(1, mNetwork.getHedgeCount());
+
+        mMockNetwork.addDelay(200);
+        int before = mMockNetwork.getRequests().size();
+        mNetwork.performRequest(new MockRequest());
+
+        assertEquals(before + 1, mMockNetwork.getRequests().size());
+        assertEquals(1, mNetwork.getHedgeCount());
+    }
+
+    @Test public void zeroBudgetTurnsHedgingOff() throws Exception {
+        warmUp();
+        mNetwork.setHedgeBudget(0f);
+        mMockNetwork.addDelay(200);
+
+        mNetwork.performRequest(new MockRequest());
+
+        assertEquals(0, mNetwork.getHedgeCount());
+    }
+
+    @Test public void postIsNotHedged() throws Exception {
+        warmUp();
+        mMockNetwork.addDelay(200);
+        TestRequest.Post request = new TestRequest.Post();
+
+        mNetwork.performRequest(request);
+
+        assertEquals(0, mNetwork.getHedgeCount());
+        assertSame(request, mMockNetwork.getRequests().get(HedgingNetwork.MIN_LATENCY_SAMPLES));
+    }
+
+    @Test public void errorsAreThrown() throws Exception {
+        warmUp();
+        mMockNetwork.setFail(true);
+        mMockNetwork.addDelay(200);
+        mMockNetwork.addDelay(0);
+
+        try {
+            mNetwork.performRequest(new MockRequest());
+            fail("Expected a ServerError");
+        } catch (ServerError e) {
+            // Expected: both attempts failed.
+        }
+        assertEquals(1, mNetwork.getHedgeCount());
+    }
+
+    @Test public void canceledRequestCancelsAttempts() throws Exception {
+        warmUp();
+        MockRequest request = new MockRequest();
+        request.cancel();
+
+        mNetwork.performRequest(request);
+
+        Request<?> attempt = mMockNetwork.getRequests().get(HedgingNetwork.MIN_LATENCY_SAMPLES);
+        assertNotSame(request, attempt);
+        assertTrue(attempt.isCanceled());
+    }
+
+    @Test public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(HedgingNetwork.class.getConstructor(Network.class));
+        assertNotNull(HedgingNetwork.class.getConstructor(Network.class, Executor.class));
+        assertNotNull(HedgingNetwork.class.getMethod("performRequest", Request.class));
+        assertNotNull(HedgingNetwork.class.getMethod("setLatencyPercentile", float.class));
+        assertNotNull(HedgingNetwork.class.getMethod("getLatencyPercentile"));
+        assertNotNull(HedgingNetwork.class.getMethod("setHedgeBudget", float.class));
+        assertNotNull(HedgingNetwork.class.getMethod("getHedgeBudget"));
+        assertNotNull(HedgingNetwork.class.getMethod("setMinHedgeDelay", long.class));
+        assertNotNull(HedgingNetwork.class.getMethod("getMinHedgeDelay"));
+        assertNotNull(HedgingNetwork.class.getMethod("getHedgeCount"));
+        assertNotNull(HedgingNetwork.class.getMethod("getHedgeWinCount"));
+    }
+}
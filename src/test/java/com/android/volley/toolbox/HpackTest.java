@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HpackTest {
+
+    // Requests with Huffman coding, from RFC 7541 appendix C.4.
+    private static final List<String> REQUEST_1 = Arrays.asList(
+            ":method", "GET", ":scheme", "http", ":path", "/",
+            ":authority", "www.example.com");
+    private static final String REQUEST_1_HEX = "828684418cf1e3c2e5f23a6ba0ab90f4ff";
+
+    private static final List<String> REQUEST_2 = Arrays.asList(
+            ":method", "GET", ":scheme", "http", ":path", "/",
+            ":authority", "www.example.com", "cache-control", "no-cache");
+    private static final String REQUEST_2_HEX = "828684be5886a8eb10649cbf";
+
+    private static final List<String> REQUEST_3 = Arrays.asList(
+            ":method", "GET", ":scheme", "https", ":path", "/index.html",
+            ":authority", "www.example.com", "custom-key", "custom-value");
+    private static final String REQUEST_3_HEX =
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf";
+
+    @Test public void decodesRfcExamples() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        assertEquals(REQUEST_1, decode(decoder, REQUEST_1_HEX));
+        assertEquals(REQUEST_2, decode(decoder, REQUEST_2_HEX));
+        assertEquals(REQUEST_3, decode(decoder, REQUEST_3_HEX));
+    }
+
+    @Test public void encodesRfcExamples() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        assertEquals(REQUEST_1_HEX, encode(encoder, REQUEST_1));
+        assertEquals(REQUEST_2_HEX, encode(encoder, REQUEST_2));
+        assertEquals(REQUEST_3_HEX, encode(encoder, REQUEST_3));
+    }
+
+    @Test public void repeatedHeadersAreIndexed() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        List<String> headers = Arrays.asList(":method", "GET", "user-agent",
+                "Volley/1.0 (Linux; Android 4.1)", "cookie", "session=0123456789abcdef");
+        String first = encode(encoder, headers);
+        String second = encode(encoder, headers);
+        assertEquals(headers, decode(decoder, first));
+        assertEquals(headers, decode(decoder, second));
+        // One byte per header once they are in the table.
+        assertEquals(3, second.length() / 2);
+    }
+
+    @Test public void sensitiveHeadersAreNotIndexed() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        List<String> headers = Arrays.asList("authorization", "Bearer secret");
+        String first = encode(encoder, headers);
+        String second = encode(encoder, headers);
+        assertEquals(first, second);
+        // Literal never indexed, with the name from the static table.
+        assertTrue(first.startsWith("1f08"));
+        assertEquals(headers, decode(decoder, second));
+    }
+
+    @Test public void tableSizeUpdateEvictsEntries() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+        List<String> headers = Arrays.asList("x-custom", "value");
+        decode(decoder, encode(encoder, headers));
+        encoder.setMaxTableSize(0);
+        encoder.setMaxTableSize(100);
+        String block = encode(encoder, headers);
+        // Both sizes are signalled, then the header is sent as a literal again.
+        assertTrue(block.startsWith("203f45"));
+        assertEquals(headers, decode(decoder, block));
+    }
+
+    @Test public void huffmanRoundTrip() throws Exception {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.huffmanEncode(data, out);
+        byte[] encoded = out.toByteArray();
+        assertEquals(Hpack.huffmanEncodedLength(data), encoded.length);
+        assertArrayEquals(data, Hpack.huffmanDecode(encoded, 0, encoded.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void badIndexIsRejected() throws Exception {
+        new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE).decode(new byte[] { (byte) 0xff, 0 },
+                0, 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void badHuffmanPaddingIsRejected() throws Exception {
+        // "a" is 00011; padding it with zeros is invalid.
+        Hpack.huffmanDecode(new byte[] { 0x18 }, 0, 1);
+    }
+
+    private static String encode(Hpack.Encoder encoder, List<String> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(headers, out);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : out.toByteArray()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static List<String> decode(Hpack.Decoder decoder, String hex) throws IOException {
+        byte[] block = new byte[hex.length() / 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return decoder.decode(block, 0, block.length);
+    }
+}
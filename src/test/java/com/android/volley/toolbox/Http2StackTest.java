@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class Http2StackTest {
+
+    /**
+     * Minimal h2c server. Answers each request with the method, path and body it received,
+     * after a delay, except for requests to /hang, which are never answered.
+     */
+    private static class H2cServer extends Thread {
+        private final ServerSocket mServerSocket;
+        final AtomicInteger mConnections = new AtomicInteger();
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mMaxActive = new AtomicInteger();
+        final List<Integer> mResetStreams = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> mHeaderBlockSizes =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Map<String, String>> mRequestHeaders =
+                Collections.synchronizedList(new ArrayList<Map<String, String>>());
+        final CountDownLatch mResetReceived = new CountDownLatch(1);
+        volatile long mResponseDelayMs;
+        volatile int mMaxConcurrentStreams;
+
+        H2cServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    Thread connection = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                serve(socket);
+                            } catch (IOException e) {
+                                // Connection closed by the client.
+                            }
+                        }
+                    };
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            final Hpack.Encoder encoder = new Hpack.Encoder();
+            Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_HEADER_TABLE_SIZE);
+            Map<Integer, Map<String, String>> headers = new HashMap<Integer, Map<String, String>>();
+            Map<Integer, ByteArrayOutputStream> bodies =
+                    new HashMap<Integer, ByteArrayOutputStream>();
+
+            in.readFully(new byte[24]);
+            byte[] settings = new byte[0];
+            if (mMaxConcurrentStreams > 0) {
+                settings = new byte[] { 0, 3, 0, 0, 0, (byte) mMaxConcurrentStreams };
+            }
+            writeFrame(out, 0x4, 0, 0, settings);
+            while (true) {
+                int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                final int streamId = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                boolean endStream = (flags & 0x1) != 0;
+                if (type == 0x4 && (flags & 0x1) == 0) {
+                    writeFrame(out, 0x4, 0x1, 0, new byte[0]);
+                } else if (type == 0x1) {
+                    mHeaderBlockSizes.add(length);
+                    List<String> namesAndValues = decoder.decode(payload, 0, length);
+                    Map<String, String> map = new HashMap<String, String>();
+                    for (int i = 0; i < namesAndValues.size(); i += 2) {
+                        map.put(namesAndValues.get(i), namesAndValues.get(i + 1));
+                    }
+                    mRequestHeaders.add(map);
+                    headers.put(streamId, map);
+                    bodies.put(streamId, new ByteArrayOutputStream());
+                    int active = mActive.incrementAndGet();
+                    synchronized (mMaxActive) {
+                        mMaxActive.set(Math.max(mMaxActive.get(), active));
+                    }
+                } else if (type == 0x0) {
+                    bodies.get(streamId).write(payload, 0, length);
+                } else if (type == 0x3) {
+                    mActive.decrementAndGet();
+                    mResetStreams.add(streamId);
+                    mResetReceived.countDown();
+                }
+                if ((type == 0x0 || type == 0x1) && endStream) {
+                    final Map<String, String> request = headers.remove(streamId);
+                    final byte[] body = bodies.remove(streamId).toByteArray();
+                    if ("/hang".equals(request.get(":path"))) {
+                        continue;
+                    }
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            respond(out, encoder, streamId, request, body);
+                        }
+                    }.start();
+                }
+            }
+        }
+
+        private void respond(OutputStream out, Hpack.Encoder encoder, int streamId,
+                Map<String, String> request, byte[] body) {
+            try {
+                Thread.sleep(mResponseDelayMs);
+                String content = request.get(":method") + " " + request.get(":path") + " "
+                        + new String(body, "UTF-8");
+                byte[] data = content.getBytes("UTF-8");
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                mActive.decrementAndGet();
+                synchronized (out) {
+                    encoder.encode(Arrays.asList(":status", "200",
+                            "content-type", "text/plain",
+                            "content-length", String.valueOf(data.length)), block);
+                    writeFrame(out, 0x1, 0x4, streamId, block.toByteArray());
+                    writeFrame(out, 0x0, 0x1, streamId, data);
+                }
+            } catch (Exception e) {
+                // Connection closed by the client.
+            }
+        }
+
+        private static void writeFrame(OutputStream out, int type, int flags, int streamId,
+                byte[] payload) throws IOException {
+            synchronized (out) {
+                out.write(new byte[] {
+                        (byte) (payload.length >>> 16), (byte) (payload.length >>> 8),
+                        (byte) payload.length, (byte) type, (byte) flags,
+                        (byte) (streamId >>> 24), (byte) (streamId >>> 16),
+                        (byte) (streamId >>> 8), (byte) streamId });
+                out.write(payload);
+                out.flush();
+            }
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static class TestRequest extends Request<byte[]> {
+        private final byte[] mBody;
+
+        TestRequest(int method, String url, byte[] body) {
+            super(method, url, null);
+            mBody = body;
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("X-Token", "0123456789abcdef0123456789abcdef0123456789abcdef");
+            return headers;
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {
+        }
+    }
+
+    private H2cServer mServer;
+    private String mUrl;
+    private Http2Stack mStack;
+
+    @Before public void setUp() throws Exception {
+        mServer = new H2cServer();
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getPort();
+        mStack = new Http2Stack();
+    }
+
+    @After public void tearDown() throws Exception {
+        mStack.shutdown();
+        mServer.shutdown();
+    }
+
+    private String perform(Request<?> request) throws Exception {
+        HttpResponse response =
+                mStack.performRequest(request, Collections.<String, String>emptyMap());
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    @Test public void getAndPost() throws Exception {
+        assertEquals("GET /items?id=1 ",
+                perform(new TestRequest(Request.Method.GET, mUrl + "/items?id=1", null)));
+        assertEquals("POST /items hello", perform(new TestRequest(Request.Method.POST,
+                mUrl + "/items", "hello".getBytes("UTF-8"))));
+
+        Map<String, String> headers = mServer.mRequestHeaders.get(1);
+        assertEquals("http", headers.get(":scheme"));
+        assertEquals("127.0.0.1:" + mServer.getPort(), headers.get(":authority"));
+        assertNotNull(headers.get("x-token"));
+        assertNotNull(headers.get("content-type"));
+        assertEquals(1, mServer.mConnections.get());
+    }
+
+    @Test public void worksWithBasicNetwork() throws Exception {
+        BasicNetwork network = new BasicNetwork(mStack);
+        NetworkResponse response = network.performRequest(
+                new TestRequest(Request.Method.GET, mUrl + "/", null));
+        assertEquals(200, response.statusCode);
+        assertEquals("GET / ", new String(response.data, "UTF-8"));
+        assertEquals("text/plain", response.headers.get("Content-Type"));
+    }
+
+    @Test public void repeatedHeadersAreCompressed() throws Exception {
+        perform(new TestRequest(Request.Method.GET, mUrl + "/a", null));
+        perform(new TestRequest(Request.Method.GET, mUrl + "/a", null));
+        int first = mServer.mHeaderBlockSizes.get(0);
+        int second = mServer.mHeaderBlockSizes.get(1);
+        assertTrue(first > 40);
+        // Every header is an index into the static or dynamic table.
+        assertEquals(5, second);
+    }
+
+    @Test public void concurrentRequestsShareOneConnection() throws Exception {
+        mServer.mResponseDelayMs = 200;
+        final CountDownLatch done = new CountDownLatch(8);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            final TestRequest request = new TestRequest(Request.Method.GET, mUrl + "/" + i, null);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        perform(request);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(1, mServer.mConnections.get());
+        assertEquals(1, mStack.getConnectCount());
+        assertEquals(1, mStack.getOpenConnectionCount());
+        assertEquals(8, mStack.getRequestCount());
+        assertTrue(mServer.mMaxActive.get() > 1);
+    }
+
+    @Test public void maxConcurrentStreamsIsRespected() throws Exception {
+        mServer.mMaxConcurrentStreams = 2;
+        mServer.mResponseDelayMs = 50;
+        final CountDownLatch done = new CountDownLatch(6);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 6; i++) {
+            final TestRequest request = new TestRequest(Request.Method.GET, mUrl + "/", null);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        perform(request);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(1, mServer.mConnections.get());
+        assertTrue(mServer.mMaxActive.get() <= 2);
+    }
+
+    @Test public void canceledRequestResetsStream() throws Exception {
+        final TestRequest request = new TestRequest(Request.Method.GET, mUrl + "/hang", null);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Cancel now.
+                }
+                request.cancel();
+            }
+        }.start();
+        try {
+            perform(request);
+            fail("Canceled request completed");
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+        assertTrue(mServer.mResetReceived.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(1), mServer.mResetStreams.get(0));
+
+        // Other streams on the connection are unaffected.
+        assertEquals("GET / ", perform(new TestRequest(Request.Method.GET, mUrl + "/", null)));
+        assertEquals(1, mStack.getConnectCount());
+    }
+
+    @Test public void canceledHedgedRequestResetsBothStreams() throws Exception {
+        HedgingNetwork network = new HedgingNetwork(new BasicNetwork(mStack))
+                .setHedgeBudget(1f).setMinHedgeDelay(10);
+        for (int i = 0; i < HedgingNetwork.MIN_LATENCY_SAMPLES; i++) {
+            network.performRequest(new TestRequest(Request.Method.GET, mUrl + "/", null));
+        }
+        final TestRequest request = new TestRequest(Request.Method.GET, mUrl + "/hang", null);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // Cancel now.
+                }
+                request.cancel();
+            }
+        }.start();
+        long startMs = System.currentTimeMillis();
+        try {
+            network.performRequest(request);
+            fail("Canceled request completed");
+        } catch (VolleyError e) {
+            // Expected.
+        }
+        assertEquals(1, network.getHedgeCount());
+        // Both attempts ended on the cancel, well before the request would time out.
+        assertTrue(System.currentTimeMillis() - startMs < request.getTimeoutMs());
+        assertTrue(mServer.mResetReceived.await(5, TimeUnit.SECONDS));
+        long deadlineMs = System.currentTimeMillis() + 5000;
+        while (mServer.mResetStreams.size() < 2 && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, mServer.mResetStreams.size());
+    }
+
+    @Test public void httpsUsesFallback() throws Exception {
+        HttpStack fallback = mock(HttpStack.class);
+        Http2Stack stack = new Http2Stack(fallback);
+        Request<?> request = new TestRequest(Request.Method.GET, "https://foo/", null);
+        Map<String, String> headers = Collections.emptyMap();
+        stack.performRequest(request, headers);
+        verify(fallback).performRequest(request, headers);
+        assertEquals(0, stack.getRequestCount());
+    }
+
+    @Test public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(Http2Stack.class.getConstructor());
+        assertNotNull(Http2Stack.class.getConstructor(HttpStack.class));
+        assertNotNull(Http2Stack.class.getMethod("performRequest", Request.class, Map.class));
+        assertNotNull(Http2Stack.class.getMethod("shutdown"));
+        assertNotNull(Http2Stack.class.getMethod("getRequestCount"));
+        assertNotNull(Http2Stack.class.getMethod("getConnectCount"));
+        assertNotNull(Http2Stack.class.getMethod("getOpenConnectionCount"));
+    }
+}
@@ -98,6 +98,29 @@ public class HttpHeaderParserTest {
         assertTrue(entry.ttl == entry.softTtl);
     }
 
+    @Test public void parseCacheHeaders_stale() {
+        headers.put("Cache-Control", "max-age=3600");
+        response = new NetworkResponse(0, null, headers, true, 0, true);
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertEquals(0, entry.softTtl);
+        assertEquals(0, entry.ttl);
+        assertTrue(entry.isExpired());
+    }
+
+    @Test public void parseCacheHeaders_staleWarningFromServer() {
+        headers.put("Cache-Control", "max-age=3600");
+        headers.put("Warning", BasicNetwork.STALE_WARNING);
+
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(response);
+
+        assertNotNull(entry);
+        assertFalse(entry.isExpired());
+        assertFalse(entry.refreshNeeded());
+    }
+
     @Test public void parseCacheHeaders_expiresInPast() {
         long now = System.currentTimeMillis();
         headers.put("Date", rfc1123Date(now));
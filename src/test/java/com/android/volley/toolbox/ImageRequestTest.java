@@ -149,6 +149,21 @@ public class ImageRequestTest {
         assertEquals(4, ImageRequest.findBestSampleSize(100, 200, 24, 50));
     }
 
+    @Test public void canShareResponseWith() {
+        ImageRequest request = new ImageRequest("http://foo", null, 100, 50,
+                ScaleType.CENTER_CROP, Config.RGB_565, null);
+
+        assertTrue(request.canShareResponseWith(new ImageRequest("http://foo", null, 100, 50,
+                ScaleType.CENTER_CROP, Config.RGB_565, null)));
+        assertFalse(request.canShareResponseWith(new ImageRequest("http://foo", null, 200, 50,
+                ScaleType.CENTER_CROP, Config.RGB_565, null)));
+        assertFalse(request.canShareResponseWith(new ImageRequest("http://foo", null, 100, 50,
+                ScaleType.FIT_XY, Config.RGB_565, null)));
+        assertFalse(request.canShareResponseWith(new ImageRequest("http://foo", null, 100, 50,
+                ScaleType.CENTER_CROP, Config.ARGB_8888, null)));
+        assertFalse(request.canShareResponseWith(new StringRequest("http://foo", null, null)));
+    }
+
     private static byte[] readInputStream(InputStream in) throws IOException {
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         byte[] buffer = new byte[1024];
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class PooledHttpStackTest {
+
+    /** Minimal HTTP/1.1 server that keeps connections alive and counts them. */
+    private static class KeepAliveServer extends Thread {
+        private final ServerSocket mServerSocket;
+        final AtomicInteger mConnections = new AtomicInteger();
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mMaxActive = new AtomicInteger();
+        volatile long mResponseDelayMs;
+
+        KeepAliveServer() throws IOException {
+            mServerSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    Thread connection = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                OutputStream out = socket.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > 0) {
+                        continue;
+                    }
+                    int active = mActive.incrementAndGet();
+                    synchronized (mMaxActive) {
+                        mMaxActive.set(Math.max(mMaxActive.get(), active));
+                    }
+                    if (mResponseDelayMs > 0) {
+                        Thread.sleep(mResponseDelayMs);
+                    }
+                    mActive.decrementAndGet();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n"
+                            + "Connection: keep-alive\r\n\r\nhello").getBytes("US-ASCII"));
+                    out.flush();
+                }
+                socket.close();
+            } catch (Exception e) {
+                // Connection closed by the client.
+            }
+        }
+
+        void shutdown() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private KeepAliveServer mServer;
+    private String mUrl;
+
+    @Before public void setUp() throws Exception {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+        mServer = new KeepAliveServer();
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getPort() + "/";
+    }
+
+    @After public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    private static class GetRequest extends Request<byte[]> {
+        GetRequest(String url) {
+            super(Method.GET, url, null);
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {
+        }
+    }
+
+    @Test public void sequentialRequestsReuseConnection() throws Exception {
+        PooledHttpStack stack = new PooledHttpStack();
+        BasicNetwork network = new BasicNetwork(stack);
+        for (int i = 0; i < 5; i++) {
+            NetworkResponse response = network.performRequest(new GetRequest(mUrl));
+            assertEquals("hello", new String(response.data, "US-ASCII"));
+        }
+        assertEquals(1, mServer.mConnections.get());
+        assertEquals(5, stack.getRequestCount());
+        assertEquals(1, stack.getConnectCount());
+        assertEquals(0.8f, stack.getReuseRatio(), 0.001f);
+        assertEquals(0, stack.getTlsHandshakeCount());
+        assertEquals(1, stack.getPooledConnectionCount());
+        stack.shutdown();
+    }
+
+    @Test public void idleConnectionsAreEvicted() throws Exception {
+        PooledHttpStack stack = new PooledHttpStack(4, 4, 0, 5000);
+        BasicNetwork network = new BasicNetwork(stack);
+        for (int i = 0; i < 3; i++) {
+            network.performRequest(new GetRequest(mUrl));
+        }
+        assertEquals(3, stack.getConnectCount());
+        assertEquals(0f, stack.getReuseRatio(), 0.001f);
+        stack.evictIdleConnections();
+        assertEquals(0, stack.getPooledConnectionCount());
+        stack.shutdown();
+    }
+
+    @Test public void connectionsPerHostAreLimited() throws Exception {
+        mServer.mResponseDelayMs = 50;
+        final PooledHttpStack stack = new PooledHttpStack(8, 2, 30000, 5000);
+        final BasicNetwork network = new BasicNetwork(stack);
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 3; j++) {
+                            network.performRequest(new GetRequest(mUrl));
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(0, failures.get());
+        assertEquals(12, stack.getRequestCount());
+        assertTrue(mServer.mConnections.get() <= 2);
+        assertTrue(mServer.mMaxActive.get() <= 2);
+        stack.shutdown();
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(PooledHttpStack.class.getConstructor());
+        assertNotNull(PooledHttpStack.class.getConstructor(int.class, int.class, long.class,
+                int.class));
+        assertNotNull(PooledHttpStack.class.getMethod("evictIdleConnections"));
+        assertNotNull(PooledHttpStack.class.getMethod("shutdown"));
+        assertNotNull(PooledHttpStack.class.getMethod("getRequestCount"));
+        assertNotNull(PooledHttpStack.class.getMethod("getConnectCount"));
+        assertNotNull(PooledHttpStack.class.getMethod("getReuseRatio"));
+        assertNotNull(PooledHttpStack.class.getMethod("getConnectTimeMs"));
+        assertNotNull(PooledHttpStack.class.getMethod("getTlsHandshakeCount"));
+        assertNotNull(PooledHttpStack.class.getMethod("getTlsHandshakeTimeMs"));
+        assertNotNull(PooledHttpStack.class.getMethod("getPooledConnectionCount"));
+    }
+}
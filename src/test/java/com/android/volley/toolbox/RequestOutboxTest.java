@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class RequestOutboxTest {
+
+    /** A network that records what it is sent, and can be offline or reject URLs. */
+    private static class RecordingNetwork implements Network {
+        private final List<String> mSent = new ArrayList<String>();
+        private final Semaphore mAttempts = new Semaphore(0);
+        private boolean mOffline = false;
+        private String mRejectedUrl;
+        private String mUnreachableUrl;
+
+        synchronized void setOffline(boolean offline) {
+            mOffline = offline;
+        }
+
+        synchronized void setRejectedUrl(String url) {
+            mRejectedUrl = url;
+        }
+
+        synchronized void setUnreachableUrl(String url) {
+            mUnreachableUrl = url;
+        }
+
+        /** Returns "method url body header" for each request sent successfully. */
+        synchronized List<String> getSent() {
+            return new ArrayList<String>(mSent);
+        }
+
+        void awaitAttempts(int count) throws InterruptedException {
+            assertTrue(mAttempts.tryAcquire(count, 5, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            try {
+                synchronized (this) {
+                    if (mOffline || request.getUrl().equals(mUnreachableUrl)) {
+                        throw new NoConnectionError();
+                    }
+                    if (request.getUrl().equals(mRejectedUrl)) {
+                        throw new ServerError(new NetworkResponse(400, new byte[0],
+                                Collections.<String, String>emptyMap(), false));
+                    }
+                    mSent.add(request.getMethod() + " " + request.getUrl() + " "
+                            + new String(request.getBody()) + " "
+                            + request.getHeaders().get("X-Test"));
+                }
+                return new NetworkResponse(new byte[0]);
+            } finally {
+                mAttempts.release();
+            }
+        }
+    }
+
+    /** Counts the outcomes reported by the outbox. */
+    private static class CountingListener implements RequestOutbox.Listener {
+        final Semaphore sent = new Semaphore(0);
+        final List<Long> dropped = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void onSent(long id, NetworkResponse response) {
+            sent.release();
+        }
+
+        @Override
+        public void onDropped(long id, VolleyError error) {
+            dropped.add(id);
+            sent.release();
+        }
+
+        void await(int count) throws InterruptedException {
+            assertTrue(sent.tryAcquire(count, 5, TimeUnit.SECONDS));
+        }
+    }
+
+    private File mFile;
+    private RecordingNetwork mNetwork;
+    private CountingListener mListener;
+    private List<RequestQueue> mQueues = new ArrayList<RequestQueue>();
+
+    @Before public void setUp() throws Exception {
+        mFile = File.createTempFile("volley-outbox", "");
+        assertTrue(mFile.delete());
+        mNetwork = new RecordingNetwork();
+        mListener = new CountingListener();
+    }
+
+    @After public void tearDown() throws Exception {
+        for (RequestQueue queue : mQueues) {
+            queue.stop();
+        }
+        mFile.delete();
+    }
+
+    private RequestQueue newQueue(boolean start) {
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, 1,
+                new ImmediateResponseDelivery());
+        if (start) {
+            queue.start();
+            mQueues.add(queue);
+        }
+        return queue;
+    }
+
+    private RequestOutbox newOutbox(RequestQueue queue) throws IOException {
+        RequestOutbox outbox = new RequestOutbox(mFile, queue).setListener(mListener);
+        outbox.initialize();
+        return outbox;
+    }
+
+    private static Request<?> post(String url, final String body) {
+        return new StringRequest(Request.Method.POST, url, null, null) {
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put("X-Test", "h-" + body);
+                return headers;
+            }
+
+            @Override
+            public byte[] getBody() {
+                return body.getBytes();
+            }
+        };
+    }
+
+    @Test public void sendsInOrderAndRemoves() throws Exception {
+        RequestOutbox outbox = newOutbox(newQueue(true));
+        assertEquals(1, outbox.getMaxBatchSize());
+
+        outbox.add(post("http://foo.com/a", "1"));
+        outbox.add(post("http://foo.com/b", "2"));
+        outbox.add(post("http://foo.com/c", "3"));
+        mListener.await(3);
+
+        List<String> expected = new ArrayList<String>();
+        expected.add(Request.Method.POST + " http://foo.com/a 1 h-1");
+        expected.add(Request.Method.POST + " http://foo.com/b 2 h-2");
+        expected.add(Request.Method.POST + " http://foo.com/c 3 h-3");
+        assertEquals(expected, mNetwork.getSent());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test public void keptWhileOfflineAndReplayed() throws Exception {
+        mNetwork.setOffline(true);
+        RequestOutbox outbox = newOutbox(newQueue(true));
+
+        outbox.add(post("http://foo.com/a", "1"));
+        mNetwork.awaitAttempts(1);
+        outbox.add(post("http://foo.com/b", "2"));
+        assertEquals(2, outbox.getPendingCount());
+
+        mNetwork.setOffline(false);
+        outbox.replay();
+        mListener.await(2);
+
+        assertEquals(2, mNetwork.getSent().size());
+        assertTrue(mNetwork.getSent().get(0).contains("/a"));
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test public void survivesRestart() throws Exception {
+        // Nothing is sent through a queue that isn't started.
+        RequestOutbox outbox = newOutbox(newQueue(false));
+        outbox.add(post("http://foo.com/a", "1"));
+        outbox.add(post("http://foo.com/b", "2"));
+        outbox.close();
+
+        RequestOutbox restarted = newOutbox(newQueue(true));
+        mListener.await(2);
+
+        assertEquals(2, mNetwork.getSent().size());
+        assertEquals(Request.Method.POST + " http://foo.com/a 1 h-1", mNetwork.getSent().get(0));
+        assertEquals(0, restarted.getPendingCount());
+        restarted.close();
+
+        // The drained outbox doesn't send anything again.
+        assertEquals(0, newOutbox(newQueue(false)).getPendingCount());
+    }
+
+    @Test public void clientErrorIsDropped() throws Exception {
+        mNetwork.setRejectedUrl("http://foo.com/a");
+        RequestOutbox outbox = newOutbox(newQueue(true));
+
+        long id = outbox.add(post("http://foo.com/a", "1"));
+        outbox.add(post("http://foo.com/b", "2"));
+        mListener.await(2);
+
+        assertEquals(Collections.singletonList(id), mListener.dropped);
+        assertEquals(1, mNetwork.getSent().size());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test public void batchIsRetriedFromFirstFailure() throws Exception {
+        RequestOutbox outbox = newOutbox(newQueue(false));
+        outbox.add(post("http://foo.com/a", "1"));
+        outbox.add(post("http://foo.com/b", "2"));
+        outbox.close();
+
+        // a fails and b succeeds, but b is kept so that it isn't applied before a for good.
+        mNetwork.setUnreachableUrl("http://foo.com/a");
+        RequestOutbox restarted = new RequestOutbox(mFile, newQueue(true))
+                .setListener(mListener).setMaxBatchSize(2);
+        restarted.initialize();
+        mNetwork.awaitAttempts(2);
+        mNetwork.setUnreachableUrl(null);
+        restarted.replay();
+        mListener.await(2);
+
+        List<String> sent = mNetwork.getSent();
+        assertEquals(3, sent.size());
+        assertTrue(sent.get(0).contains("/b"));
+        assertTrue(sent.get(1).contains("/a"));
+        assertTrue(sent.get(2).contains("/b"));
+        assertEquals(0, restarted.getPendingCount());
+    }
+
+    @Test public void canceledRequestIsKept() throws Exception {
+        RequestQueue queue = newQueue(false);
+        RequestOutbox outbox = newOutbox(queue);
+        outbox.add(post("http://foo.com/a", "1"));
+
+        queue.cancelAll(new RequestQueue.RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return true;
+            }
+        });
+        assertEquals(1, outbox.getPendingCount());
+
+        // Sending isn't stuck waiting for the canceled request.
+        queue.start();
+        mQueues.add(queue);
+        outbox.replay();
+        mListener.await(1);
+        assertEquals(1, mNetwork.getSent().size());
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    @Test public void truncatedRecordIsDropped() throws Exception {
+        RequestOutbox outbox = newOutbox(newQueue(false));
+        outbox.add(post("http://foo.com/a", "1"));
+        outbox.add(post("http://foo.com/b", "2"));
+        outbox.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        assertEquals(1, newOutbox(newQueue(false)).getPendingCount());
+    }
+
+    @Test public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(RequestOutbox.class.getConstructor(File.class, RequestQueue.class));
+        assertNotNull(RequestOutbox.class.getMethod("initialize"));
+        assertNotNull(RequestOutbox.class.getMethod("add", Request.class));
+        assertNotNull(RequestOutbox.class.getMethod("replay"));
+        assertNotNull(RequestOutbox.class.getMethod("close"));
+        assertNotNull(RequestOutbox.class.getMethod("getPendingCount"));
+        assertNotNull(RequestOutbox.class.getMethod("setListener",
+                RequestOutbox.Listener.class));
+        assertNotNull(RequestOutbox.class.getMethod("setMaxBatchSize", int.class));
+        assertNotNull(RequestOutbox.class.getMethod("getMaxBatchSize"));
+        assertNotNull(RequestOutbox.class.getMethod("registerConnectivityReceiver",
+                Context.class));
+        assertNotNull(RequestOutbox.class.getMethod("unregisterConnectivityReceiver",
+                Context.class));
+    }
+}
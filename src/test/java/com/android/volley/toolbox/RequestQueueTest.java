@@ -21,6 +21,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.concurrent.Executor;
+
 import static org.junit.Assert.assertNotNull;
 
 @RunWith(RobolectricTestRunner.class)
@@ -33,14 +35,35 @@ public class RequestQueueTest {
                 ResponseDelivery.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class,
+                int.class, ResponseDelivery.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class,
+                int.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class,
+                ResponseDelivery.class, HostScheduler.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class,
+                int.class, ResponseDelivery.class, HostScheduler.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class,
+                Executor.class, ResponseDelivery.class, HostScheduler.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class,
+                Executor.class, ResponseDelivery.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class,
+                Executor.class));
 
         assertNotNull(RequestQueue.class.getMethod("start"));
         assertNotNull(RequestQueue.class.getMethod("stop"));
         assertNotNull(RequestQueue.class.getMethod("getSequenceNumber"));
         assertNotNull(RequestQueue.class.getMethod("getCache"));
+        assertNotNull(RequestQueue.class.getMethod("getHostScheduler"));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", RequestQueue.RequestFilter.class));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", Object.class));
         assertNotNull(RequestQueue.class.getMethod("add", Request.class));
         assertNotNull(RequestQueue.class.getDeclaredMethod("finish", Request.class));
+        assertNotNull(RequestQueue.class.getMethod("getNetworkThreadCount"));
+        assertNotNull(RequestQueue.class.getMethod("getPeakNetworkThreadCount"));
+        assertNotNull(RequestQueue.class.getMethod("getDeadlineExceededCount"));
+        assertNotNull(RequestQueue.class.getMethod("getSingleFlightCount"));
+        assertNotNull(RequestQueue.class.getMethod("getSingleFlightSharedCount"));
+        assertNotNull(RequestQueue.class.getMethod("getSingleFlightDedupRatio"));
     }
 }
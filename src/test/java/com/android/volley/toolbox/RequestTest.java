@@ -49,6 +49,12 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("getCacheEntry"));
         assertNotNull(Request.class.getMethod("cancel"));
         assertNotNull(Request.class.getMethod("isCanceled"));
+        assertNotNull(Request.class.getMethod("addCancelListener",
+                Request.CancelListener.class));
+        assertNotNull(Request.class.getMethod("removeCancelListener",
+                Request.CancelListener.class));
+        assertNotNull(Request.class.getDeclaredMethod("getNetworkResponseBytes",
+                NetworkResponse.class));
         assertNotNull(Request.class.getMethod("getHeaders"));
         assertNotNull(Request.class.getDeclaredMethod("getParams"));
         assertNotNull(Request.class.getDeclaredMethod("getParamsEncoding"));
@@ -56,10 +62,15 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("getBody"));
         assertNotNull(Request.class.getMethod("setShouldCache", boolean.class));
         assertNotNull(Request.class.getMethod("shouldCache"));
+        assertNotNull(Request.class.getMethod("setBodyHashCacheKey", String[].class));
+        assertNotNull(Request.class.getMethod("hasBodyHashCacheKey"));
+        assertNotNull(Request.class.getMethod("setSingleFlight", boolean.class));
+        assertNotNull(Request.class.getMethod("isSingleFlight"));
         assertNotNull(Request.class.getMethod("getPriority"));
         assertNotNull(Request.class.getMethod("getTimeoutMs"));
         assertNotNull(Request.class.getMethod("getRetryPolicy"));
         assertNotNull(Request.class.getMethod("markDelivered"));
+        assertNotNull(Request.class.getMethod("markBodySent", long.class));
         assertNotNull(Request.class.getMethod("hasHadResponseDelivered"));
         assertNotNull(Request.class.getDeclaredMethod("parseNetworkResponse", NetworkResponse.class));
         assertNotNull(Request.class.getDeclaredMethod("parseNetworkError", VolleyError.class));
@@ -43,6 +43,8 @@ public class ResponseTest {
         assertNotNull(Response.ErrorListener.class.getDeclaredMethod("onErrorResponse",
                 VolleyError.class));
 
+        assertNotNull(NetworkResponse.class.getConstructor(int.class, byte[].class, Map.class,
+                boolean.class, long.class, boolean.class));
         assertNotNull(NetworkResponse.class.getConstructor(int.class, byte[].class, Map.class,
                 boolean.class, long.class));
         assertNotNull(NetworkResponse.class.getConstructor(int.class, byte[].class, Map.class,
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SizeClassByteArrayPoolTest {
+    @Test public void reusesBuffer() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(256);
+
+        byte[] buf1 = pool.getBuf(100);
+        byte[] buf2 = pool.getBuf(100);
+        assertEquals(128, buf1.length);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+
+        byte[] buf3 = pool.getBuf(100);
+        byte[] buf4 = pool.getBuf(128);
+        assertTrue(buf3 == buf1 || buf3 == buf2);
+        assertTrue(buf4 == buf1 || buf4 == buf2);
+        assertTrue(buf3 != buf4);
+    }
+
+    @Test public void obeysSizeLimit() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(256);
+
+        byte[] buf1 = pool.getBuf(128);
+        byte[] buf2 = pool.getBuf(128);
+        byte[] buf3 = pool.getBuf(128);
+
+        pool.returnBuf(buf1);
+        pool.returnBuf(buf2);
+        pool.returnBuf(buf3);
+
+        byte[] buf4 = pool.getBuf(128);
+        byte[] buf5 = pool.getBuf(128);
+        byte[] buf6 = pool.getBuf(128);
+
+        // The third buffer didn't fit, so it was dropped.
+        assertTrue(buf4 == buf1 || buf4 == buf2);
+        assertTrue(buf5 == buf1 || buf5 == buf2);
+        assertTrue(buf4 != buf5);
+        assertTrue(buf6 != buf1 && buf6 != buf2 && buf6 != buf3);
+    }
+
+    @Test public void returnsBufferWithRightSize() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(1024);
+
+        byte[] buf1 = pool.getBuf(128);
+        pool.returnBuf(buf1);
+
+        byte[] buf2 = pool.getBuf(129);
+        assertNotSame(buf2, buf1);
+        assertTrue(buf2.length >= 129);
+
+        byte[] buf3 = pool.getBuf(100);
+        assertSame(buf3, buf1);
+    }
+
+    @Test public void oddSizedBuffersServeSmallerClass() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(1024);
+
+        byte[] odd = new byte[200];
+        pool.returnBuf(odd);
+        assertNotSame(odd, pool.getBuf(200));
+        assertSame(odd, pool.getBuf(128));
+    }
+
+    @Test public void largeBuffersAreNotPooled() {
+        ByteArrayPool pool = new SizeClassByteArrayPool(1000);
+
+        byte[] buf1 = pool.getBuf(800);
+        assertEquals(800, buf1.length);
+        pool.returnBuf(buf1);
+        assertNotSame(buf1, pool.getBuf(800));
+
+        byte[] buf2 = pool.getBuf(2000);
+        assertEquals(2000, buf2.length);
+        pool.returnBuf(buf2);
+        assertNotSame(buf2, pool.getBuf(2000));
+    }
+
+    @Test public void buffersAreNeverShared() throws Exception {
+        final ByteArrayPool pool = new SizeClassByteArrayPool(64 * 1024);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final byte id = (byte) t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            byte[] buf = pool.getBuf(64 << (i % 6));
+                            buf[0] = id;
+                            buf[buf.length - 1] = id;
+                            Thread.yield();
+                            assertEquals(id, buf[0]);
+                            assertEquals(id, buf[buf.length - 1]);
+                            pool.returnBuf(buf);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
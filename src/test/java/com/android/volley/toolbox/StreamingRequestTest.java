@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.mock.MockHttpStack;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class StreamingRequestTest {
+
+    /** Reads up to {@code mReadLimit} bytes of the body and returns how many bytes it read. */
+    private static class CountingRequest extends StreamingRequest<Integer> {
+        int mReadLimit = Integer.MAX_VALUE;
+        int mMaxCachedBodySize = 1024;
+        int mCalls;
+
+        CountingRequest() {
+            super(Request.Method.GET, "http://foo", null);
+        }
+
+        @Override
+        protected Response<Integer> parseResponseStream(int statusCode,
+                Map<String, String> headers, InputStream body) throws IOException {
+            mCalls++;
+            byte[] buffer = new byte[7];
+            int total = 0;
+            int count;
+            while (total < mReadLimit && (count = body.read(buffer)) != -1) {
+                total += count;
+            }
+            return Response.success(total, null);
+        }
+
+        @Override
+        protected int getMaxCachedBodySize() {
+            return mMaxCachedBodySize;
+        }
+
+        @Override
+        protected void deliverResponse(Integer response) {
+        }
+    }
+
+    private MockHttpStack mHttpStack;
+    private BasicNetwork mNetwork;
+
+    @Before public void setUp() {
+        mHttpStack = new MockHttpStack();
+        mNetwork = new BasicNetwork(mHttpStack);
+    }
+
+    private void setResponse(int statusCode, byte[] body) {
+        BasicHttpResponse response = new BasicHttpResponse(
+                new ProtocolVersion("HTTP", 1, 1), statusCode, "");
+        response.setEntity(new ByteArrayEntity(body));
+        response.addHeader("Cache-Control", "max-age=60");
+        mHttpStack.setResponseToReturn(response);
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) i;
+        }
+        return body;
+    }
+
+    @Test public void streamsAndCachesSmallBody() throws Exception {
+        byte[] body = body(100);
+        setResponse(200, body);
+        CountingRequest request = new CountingRequest();
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        assertEquals(1, request.mCalls);
+        assertArrayEquals(body, networkResponse.data);
+
+        Response<Integer> response = request.parseNetworkResponse(networkResponse);
+        assertEquals(1, request.mCalls);
+        assertEquals(100, response.result.intValue());
+        assertArrayEquals(body, response.cacheEntry.data);
+        assertTrue(response.cacheEntry.ttl > 0);
+    }
+
+    @Test public void largeBodyIsNotCached() throws Exception {
+        setResponse(200, body(5000));
+        CountingRequest request = new CountingRequest();
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        assertEquals(0, networkResponse.data.length);
+        Response<Integer> response = request.parseNetworkResponse(networkResponse);
+        assertEquals(5000, response.result.intValue());
+        assertNull(response.cacheEntry);
+    }
+
+    @Test public void streamedBytesAreCounted() throws Exception {
+        setResponse(200, body(5000));
+        CountingRequest request = new CountingRequest();
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        assertEquals(0, networkResponse.data.length);
+        // Charged for what was read off the network, not the empty data.
+        assertEquals(5000, request.getNetworkResponseBytes(networkResponse));
+
+        NetworkResponse error = new NetworkResponse(500, body(10), null, false);
+        assertEquals(10, request.getNetworkResponseBytes(error));
+    }
+
+    @Test public void uncacheableRequestKeepsNoCopy() throws Exception {
+        setResponse(200, body(100));
+        CountingRequest request = new CountingRequest();
+        request.setShouldCache(false);
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        assertEquals(0, networkResponse.data.length);
+        assertEquals(100, request.parseNetworkResponse(networkResponse).result.intValue());
+    }
+
+    @Test public void partiallyReadBodyIsStillCached() throws Exception {
+        byte[] body = body(100);
+        setResponse(200, body);
+        CountingRequest request = new CountingRequest();
+        request.mReadLimit = 10;
+
+        NetworkResponse networkResponse = mNetwork.performRequest(request);
+        Response<Integer> response = request.parseNetworkResponse(networkResponse);
+        assertTrue(response.result < 100);
+        assertArrayEquals(body, response.cacheEntry.data);
+    }
+
+    @Test public void cachedDataIsParsedThroughStream() throws Exception {
+        byte[] body = body(100);
+        Map<String, String> headers = new HashMap<String, String>();
+        CountingRequest request = new CountingRequest();
+
+        Response<Integer> response = request.parseNetworkResponse(
+                new NetworkResponse(body, headers));
+        assertEquals(1, request.mCalls);
+        assertEquals(100, response.result.intValue());
+        assertArrayEquals(body, response.cacheEntry.data);
+    }
+
+    @Test public void errorResponsesAreNotStreamed() throws Exception {
+        setResponse(500, body(10));
+        CountingRequest request = new CountingRequest();
+        try {
+            mNetwork.performRequest(request);
+            fail("Expected ServerError");
+        } catch (ServerError e) {
+            assertEquals(10, e.networkResponse.data.length);
+        }
+        assertEquals(0, request.mCalls);
+    }
+
+    @Test public void singleFlightRequestsAreNotShared() throws Exception {
+        setResponse(200, body(100));
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, 2,
+                new ImmediateResponseDelivery());
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        final Semaphore delivered = new Semaphore(0);
+        for (int i = 0; i < 2; i++) {
+            CountingRequest request = new CountingRequest() {
+                @Override
+                protected void deliverResponse(Integer response) {
+                    results.add(response);
+                    delivered.release();
+                }
+            };
+            request.setShouldCache(false);
+            request.setSingleFlight(true);
+            queue.add(request);
+        }
+        queue.start();
+        try {
+            assertTrue(delivered.tryAcquire(2, 5, TimeUnit.SECONDS));
+        } finally {
+            queue.stop();
+        }
+
+        // Each request read the body off the network, rather than one of them parsing nothing.
+        assertEquals(Arrays.asList(100, 100), results);
+        assertEquals(0, queue.getSingleFlightSharedCount());
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(StreamingRequest.class.getConstructor(int.class, String.class,
+                Response.ErrorListener.class));
+        assertNotNull(StreamingRequest.class.getDeclaredMethod("parseResponseStream", int.class,
+                Map.class, InputStream.class));
+        assertNotNull(StreamingRequest.class.getDeclaredMethod("getMaxCachedBodySize"));
+    }
+}
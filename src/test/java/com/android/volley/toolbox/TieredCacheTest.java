@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class TieredCacheTest {
+
+    /** Backing cache that keeps entries in a map and counts reads. */
+    private static class MapCache implements Cache {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        int gets;
+
+        @Override public synchronized Entry get(String key) {
+            gets++;
+            return entries.get(key);
+        }
+        @Override public synchronized void put(String key, Entry entry) {
+            entries.put(key, entry);
+        }
+        @Override public void initialize() {
+        }
+        @Override public void invalidate(String key, boolean fullExpire) {
+        }
+        @Override public synchronized void remove(String key) {
+            entries.remove(key);
+        }
+        @Override public synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    /** Executor that holds tasks until {@link #runAll()}. */
+    private static class QueueingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private MapCache mBacking;
+    private QueueingExecutor mExecutor;
+    private TieredCache mCache;
+
+    @Before public void setUp() {
+        mBacking = new MapCache();
+        mExecutor = new QueueingExecutor();
+        mCache = new TieredCache(mBacking, 100, 40, mExecutor);
+    }
+
+    private static Cache.Entry makeEntry(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        return entry;
+    }
+
+    @Test public void writesAreAsynchronousButVisible() {
+        Cache.Entry entry = makeEntry(10);
+        mCache.put("a", entry);
+        assertTrue(mBacking.entries.isEmpty());
+        assertSame(entry.data, mCache.get("a").data);
+
+        mExecutor.runAll();
+        assertSame(entry.data, mBacking.entries.get("a").data);
+    }
+
+    @Test public void returnedHeadersAreCopies() {
+        Cache.Entry entry = makeEntry(10);
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("ETag", "1");
+        mCache.put("a", entry);
+
+        mCache.get("a").responseHeaders.put("ETag", "2");
+
+        assertEquals("1", mCache.get("a").responseHeaders.get("ETag"));
+    }
+
+    @Test public void removeIsVisibleBeforeItIsApplied() {
+        mBacking.put("a", makeEntry(10));
+        mCache.remove("a");
+        assertNull(mCache.get("a"));
+        assertEquals(0, mBacking.gets);
+
+        mExecutor.runAll();
+        assertFalse(mBacking.entries.containsKey("a"));
+        assertNull(mCache.get("a"));
+    }
+
+    @Test public void backingHitsArePromoted() {
+        mBacking.put("a", makeEntry(10));
+        assertNotNull(mCache.get("a"));
+        assertNotNull(mCache.get("a"));
+        assertEquals(1, mBacking.gets);
+
+        assertEquals(1, mCache.getMemoryHitCount());
+        assertEquals(1, mCache.getMemoryMissCount());
+        assertEquals(1, mCache.getBackingHitCount());
+        assertEquals(0, mCache.getBackingMissCount());
+
+        assertNull(mCache.get("b"));
+        assertEquals(1, mCache.getBackingMissCount());
+    }
+
+    @Test public void largeEntriesAreNotAdmitted() {
+        mCache.put("big", makeEntry(50));
+        mExecutor.runAll();
+        assertEquals(0, mCache.getMemorySize());
+        assertNotNull(mCache.get("big"));
+        assertEquals(1, mBacking.gets);
+        assertEquals(0, mCache.getMemorySize());
+    }
+
+    @Test public void memoryTierIsBoundedLru() {
+        mCache.put("a", makeEntry(30));
+        mCache.put("b", makeEntry(30));
+        mCache.put("c", makeEntry(30));
+        mExecutor.runAll();
+        mCache.get("a");
+        mCache.put("d", makeEntry(30));
+        mExecutor.runAll();
+        assertEquals(90, mCache.getMemorySize());
+
+        // "b" was least recently used, so it has to come from the backing cache.
+        int gets = mBacking.gets;
+        mCache.get("a");
+        mCache.get("c");
+        mCache.get("d");
+        assertEquals(gets, mBacking.gets);
+        assertNotNull(mCache.get("b"));
+        assertEquals(gets + 1, mBacking.gets);
+    }
+
+    @Test public void returnedEntriesAreCopies() {
+        mCache.put("a", makeEntry(10));
+        mCache.get("a").softTtl = 0;
+        assertEquals(Long.MAX_VALUE, mCache.get("a").softTtl);
+    }
+
+    @Test public void invalidate() {
+        mCache.put("a", makeEntry(10));
+        mCache.invalidate("a", false);
+        assertEquals(0, mCache.get("a").softTtl);
+        assertEquals(Long.MAX_VALUE, mCache.get("a").ttl);
+        mExecutor.runAll();
+        assertEquals(0, mBacking.entries.get("a").softTtl);
+    }
+
+    @Test public void clearWaitsForPendingWrites() {
+        TieredCache cache = new TieredCache(mBacking, 100, 40, new Executor() {
+            @Override public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        cache.put("a", makeEntry(10));
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertTrue(mBacking.entries.isEmpty());
+        assertEquals(0, cache.getMemorySize());
+    }
+
+    @Test
+    public void publicMethods() throws Exception {
+        // Catch-all test to find API-breaking changes.
+        assertNotNull(TieredCache.class.getConstructor(Cache.class, int.class));
+        assertNotNull(TieredCache.class.getConstructor(Cache.class, int.class, int.class,
+                Executor.class));
+
+        assertNotNull(TieredCache.class.getMethod("getMemoryHitCount"));
+        assertNotNull(TieredCache.class.getMethod("getMemoryMissCount"));
+        assertNotNull(TieredCache.class.getMethod("getBackingHitCount"));
+        assertNotNull(TieredCache.class.getMethod("getBackingMissCount"));
+        assertNotNull(TieredCache.class.getMethod("getMemorySize"));
+    }
+}